@@ -48,6 +48,31 @@ public class CrudConfiguration implements JsonInitializable, Serializable {
     private SavedSearchConfiguration savedSearch;
     private boolean validateRequests = false;
     private int bulkParallelExecutions = 3;
+    private int bulkMaxThreads = 16;
+    private int bulkQueueSize = 64;
+    private long bulkQueueTimeoutMS = 30000;
+    private int bulkWriteBatchSize = 0;
+    private int writeChunkSize = 1000;
+    private int compositeWriteBatchSize = 500;
+    private int compositeMaxThreads = 32;
+    private int compositeParallelism = 9;
+    private int maxCoalescedFinds = 1000;
+    private long findCacheSizeB = 16777216;
+    private long findCacheTTLMS = 60000;
+    private int fieldAccessCacheSize = 0;
+    private int asyncMaxThreads = 16;
+    private int asyncQueueSize = 1000;
+    private int assembleWindowSize = 1000;
+    private int minBatchSize = 16;
+    private int maxBatchSize = 1024;
+    private long batchTargetLatencyMS = 200;
+    private int batchMaxQuerySizeB = 65536;
+    private int batchMaxResults = 10000;
+    private int joinPrefetchDepth = 1;
+    private int childDocCacheSize = 1000;
+    private int referenceCacheMaxDocs = 1000;
+    private long referenceCacheTTLMS = 60000;
+    private int compositeFindSpillThresholdB = 0;
     private int memoryIndexThreshold = 16;
     private int maxResultSetSizeForReadsB = 50 * 1024 * 1024; // 50 MB
     private int maxResultSetSizeForWritesB = 50 * 1024 * 1024; // 50 MB
@@ -70,6 +95,206 @@ public class CrudConfiguration implements JsonInitializable, Serializable {
         bulkParallelExecutions = i;
     }
 
+    public int getBulkMaxThreads() {
+        return bulkMaxThreads;
+    }
+
+    public void setBulkMaxThreads(int i) {
+        bulkMaxThreads = i;
+    }
+
+    public int getBulkQueueSize() {
+        return bulkQueueSize;
+    }
+
+    public void setBulkQueueSize(int i) {
+        bulkQueueSize = i;
+    }
+
+    public long getBulkQueueTimeoutMS() {
+        return bulkQueueTimeoutMS;
+    }
+
+    public void setBulkQueueTimeoutMS(long l) {
+        bulkQueueTimeoutMS = l;
+    }
+
+    public int getBulkWriteBatchSize() {
+        return bulkWriteBatchSize;
+    }
+
+    public void setBulkWriteBatchSize(int i) {
+        bulkWriteBatchSize = i;
+    }
+
+    public int getWriteChunkSize() {
+        return writeChunkSize;
+    }
+
+    public void setWriteChunkSize(int i) {
+        writeChunkSize = i;
+    }
+
+    public int getCompositeWriteBatchSize() {
+        return compositeWriteBatchSize;
+    }
+
+    public void setCompositeWriteBatchSize(int i) {
+        compositeWriteBatchSize = i;
+    }
+
+    public int getCompositeMaxThreads() {
+        return compositeMaxThreads;
+    }
+
+    public void setCompositeMaxThreads(int i) {
+        compositeMaxThreads = i;
+    }
+
+    public int getCompositeParallelism() {
+        return compositeParallelism;
+    }
+
+    public void setCompositeParallelism(int i) {
+        compositeParallelism = i;
+    }
+
+    public int getMaxCoalescedFinds() {
+        return maxCoalescedFinds;
+    }
+
+    public void setMaxCoalescedFinds(int i) {
+        maxCoalescedFinds = i;
+    }
+
+    public long getFindCacheSizeB() {
+        return findCacheSizeB;
+    }
+
+    public void setFindCacheSizeB(long l) {
+        findCacheSizeB = l;
+    }
+
+    public long getFindCacheTTLMS() {
+        return findCacheTTLMS;
+    }
+
+    public void setFindCacheTTLMS(long l) {
+        findCacheTTLMS = l;
+    }
+
+    public int getFieldAccessCacheSize() {
+        return fieldAccessCacheSize;
+    }
+
+    public void setFieldAccessCacheSize(int i) {
+        fieldAccessCacheSize = i;
+    }
+
+    public int getAsyncMaxThreads() {
+        return asyncMaxThreads;
+    }
+
+    public void setAsyncMaxThreads(int i) {
+        asyncMaxThreads = i;
+    }
+
+    public int getAsyncQueueSize() {
+        return asyncQueueSize;
+    }
+
+    public void setAsyncQueueSize(int i) {
+        asyncQueueSize = i;
+    }
+
+    public int getAssembleWindowSize() {
+        return assembleWindowSize;
+    }
+
+    public void setAssembleWindowSize(int i) {
+        assembleWindowSize = i;
+    }
+
+    public int getMinBatchSize() {
+        return minBatchSize;
+    }
+
+    public void setMinBatchSize(int i) {
+        minBatchSize = i;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int i) {
+        maxBatchSize = i;
+    }
+
+    public long getBatchTargetLatencyMS() {
+        return batchTargetLatencyMS;
+    }
+
+    public void setBatchTargetLatencyMS(long l) {
+        batchTargetLatencyMS = l;
+    }
+
+    public int getBatchMaxQuerySizeB() {
+        return batchMaxQuerySizeB;
+    }
+
+    public void setBatchMaxQuerySizeB(int i) {
+        batchMaxQuerySizeB = i;
+    }
+
+    public int getBatchMaxResults() {
+        return batchMaxResults;
+    }
+
+    public void setBatchMaxResults(int i) {
+        batchMaxResults = i;
+    }
+
+    public int getJoinPrefetchDepth() {
+        return joinPrefetchDepth;
+    }
+
+    public void setJoinPrefetchDepth(int i) {
+        joinPrefetchDepth = i;
+    }
+
+    public int getChildDocCacheSize() {
+        return childDocCacheSize;
+    }
+
+    public void setChildDocCacheSize(int i) {
+        childDocCacheSize = i;
+    }
+
+    public int getReferenceCacheMaxDocs() {
+        return referenceCacheMaxDocs;
+    }
+
+    public void setReferenceCacheMaxDocs(int i) {
+        referenceCacheMaxDocs = i;
+    }
+
+    public long getReferenceCacheTTLMS() {
+        return referenceCacheTTLMS;
+    }
+
+    public void setReferenceCacheTTLMS(long l) {
+        referenceCacheTTLMS = l;
+    }
+
+    public int getCompositeFindSpillThresholdB() {
+        return compositeFindSpillThresholdB;
+    }
+
+    public void setCompositeFindSpillThresholdB(int i) {
+        compositeFindSpillThresholdB = i;
+    }
+
     public SavedSearchConfiguration getSavedSearch() {
         return savedSearch;
     }
@@ -128,6 +353,123 @@ public class CrudConfiguration implements JsonInitializable, Serializable {
             if (x != null) {
                 bulkParallelExecutions = x.intValue();
             }
+            x = node.get("bulkMaxThreads");
+            if (x != null) {
+                bulkMaxThreads = x.intValue();
+            }
+            x = node.get("bulkQueueSize");
+            if (x != null) {
+                bulkQueueSize = x.intValue();
+            }
+            x = node.get("bulkQueueTimeoutMS");
+            if (x != null) {
+                bulkQueueTimeoutMS = x.longValue();
+            }
+            x = node.get("bulkWriteBatchSize");
+            if (x != null) {
+                bulkWriteBatchSize = x.intValue();
+            }
+            x = node.get("writeChunkSize");
+            if (x != null) {
+                writeChunkSize = x.intValue();
+            }
+            x = node.get("compositeWriteBatchSize");
+            if (x != null) {
+                compositeWriteBatchSize = x.intValue();
+            }
+            x = node.get("compositeMaxThreads");
+            if (x != null) {
+                compositeMaxThreads = x.intValue();
+            }
+            x = node.get("compositeParallelism");
+            if (x != null) {
+                compositeParallelism = x.intValue();
+            }
+
+            x = node.get("maxCoalescedFinds");
+            if (x != null) {
+                maxCoalescedFinds = x.intValue();
+            }
+
+            x = node.get("findCacheSizeB");
+            if (x != null) {
+                findCacheSizeB = x.longValue();
+            }
+
+            x = node.get("findCacheTTLMS");
+            if (x != null) {
+                findCacheTTLMS = x.longValue();
+            }
+
+            x = node.get("fieldAccessCacheSize");
+            if (x != null) {
+                fieldAccessCacheSize = x.intValue();
+            }
+
+            x = node.get("asyncMaxThreads");
+            if (x != null) {
+                asyncMaxThreads = x.intValue();
+            }
+
+            x = node.get("asyncQueueSize");
+            if (x != null) {
+                asyncQueueSize = x.intValue();
+            }
+
+            x = node.get("assembleWindowSize");
+            if (x != null) {
+                assembleWindowSize = x.intValue();
+            }
+
+            x = node.get("minBatchSize");
+            if (x != null) {
+                minBatchSize = x.intValue();
+            }
+
+            x = node.get("maxBatchSize");
+            if (x != null) {
+                maxBatchSize = x.intValue();
+            }
+
+            x = node.get("batchTargetLatencyMS");
+            if (x != null) {
+                batchTargetLatencyMS = x.longValue();
+            }
+
+            x = node.get("batchMaxQuerySizeB");
+            if (x != null) {
+                batchMaxQuerySizeB = x.intValue();
+            }
+
+            x = node.get("batchMaxResults");
+            if (x != null) {
+                batchMaxResults = x.intValue();
+            }
+
+            x = node.get("joinPrefetchDepth");
+            if (x != null) {
+                joinPrefetchDepth = x.intValue();
+            }
+
+            x = node.get("childDocCacheSize");
+            if (x != null) {
+                childDocCacheSize = x.intValue();
+            }
+
+            x = node.get("referenceCacheMaxDocs");
+            if (x != null) {
+                referenceCacheMaxDocs = x.intValue();
+            }
+
+            x = node.get("referenceCacheTTLMS");
+            if (x != null) {
+                referenceCacheTTLMS = x.longValue();
+            }
+
+            x = node.get("compositeFindSpillThresholdB");
+            if (x != null) {
+                compositeFindSpillThresholdB = x.intValue();
+            }
 
             x = node.get("savedSearch");
             if(x instanceof ObjectNode) {
@@ -60,6 +60,9 @@ import com.redhat.lightblue.metadata.parser.Extensions;
 import com.redhat.lightblue.metadata.parser.JSONMetadataParser;
 import com.redhat.lightblue.metadata.types.DefaultTypes;
 import com.redhat.lightblue.util.JsonUtils;
+import com.redhat.lightblue.util.metrics.DropwizardRequestMetrics;
+import com.redhat.lightblue.util.metrics.MetricRegistryFactory;
+import com.redhat.lightblue.util.metrics.RequestMetrics;
 
 /**
  * Manager class that creates instances of Mediator, Factory, Metadata, etc.
@@ -86,6 +89,7 @@ public final class LightblueFactory implements Serializable {
     private transient volatile Factory factory;
     private transient volatile JsonTranslator jsonTranslator = null;
     private transient volatile Map<String, LockingSupport> lockingMap = null;
+    private transient volatile RequestMetrics requestMetrics = null;
 
     public LightblueFactory(DataSourcesConfiguration datasources) {
         this(datasources, (JsonNode) null, null);
@@ -171,12 +175,38 @@ public final class LightblueFactory implements Serializable {
 
             Factory f = new Factory();
             f.setBulkParallelExecutions(crudConfiguration.getBulkParallelExecutions());
+            f.setBulkMaxThreads(crudConfiguration.getBulkMaxThreads());
+            f.setBulkQueueSize(crudConfiguration.getBulkQueueSize());
+            f.setBulkQueueTimeoutMS(crudConfiguration.getBulkQueueTimeoutMS());
+            f.setBulkWriteBatchSize(crudConfiguration.getBulkWriteBatchSize());
+            f.setWriteChunkSize(crudConfiguration.getWriteChunkSize());
+            f.setCompositeWriteBatchSize(crudConfiguration.getCompositeWriteBatchSize());
+            f.setCompositeMaxThreads(crudConfiguration.getCompositeMaxThreads());
+            f.setCompositeParallelism(crudConfiguration.getCompositeParallelism());
+            f.setMaxCoalescedFinds(crudConfiguration.getMaxCoalescedFinds());
+            f.setFindCacheSizeB(crudConfiguration.getFindCacheSizeB());
+            f.setFindCacheTTLMS(crudConfiguration.getFindCacheTTLMS());
+            f.setFieldAccessCacheSize(crudConfiguration.getFieldAccessCacheSize());
+            f.setAsyncMaxThreads(crudConfiguration.getAsyncMaxThreads());
+            f.setAsyncQueueSize(crudConfiguration.getAsyncQueueSize());
+            f.setAssembleWindowSize(crudConfiguration.getAssembleWindowSize());
+            f.setMinBatchSize(crudConfiguration.getMinBatchSize());
+            f.setMaxBatchSize(crudConfiguration.getMaxBatchSize());
+            f.setBatchTargetLatencyMS(crudConfiguration.getBatchTargetLatencyMS());
+            f.setBatchMaxQuerySizeB(crudConfiguration.getBatchMaxQuerySizeB());
+            f.setBatchMaxResults(crudConfiguration.getBatchMaxResults());
+            f.setJoinPrefetchDepth(crudConfiguration.getJoinPrefetchDepth());
+            f.setChildDocCacheSize(crudConfiguration.getChildDocCacheSize());
+            f.setReferenceCacheMaxDocs(crudConfiguration.getReferenceCacheMaxDocs());
+            f.setReferenceCacheTTLMS(crudConfiguration.getReferenceCacheTTLMS());
+            f.setCompositeFindSpillThresholdB(crudConfiguration.getCompositeFindSpillThresholdB());
             f.setMemoryIndexThreshold(crudConfiguration.getMemoryIndexThreshold());
             f.addFieldConstraintValidators(new DefaultFieldConstraintValidators());
             f.setMaxResultSetSizeForReadsB(crudConfiguration.getMaxResultSetSizeForReadsB());
             f.setWarnResultSetSizeB(crudConfiguration.getWarnResultSetSizeB());
             f.setMaxResultSetSizeForWritesB(crudConfiguration.getMaxResultSetSizeForWritesB());
             f.setMaxExecutionContextSizeForCompositeFindB(crudConfiguration.getMaxExecutionContextSizeForCompositeFindB());
+            f.setRequestMetrics(getRequestMetrics());
 
             // Add default interceptors
             new UIDInterceptor().register(f.getInterceptors());
@@ -368,6 +398,29 @@ public final class LightblueFactory implements Serializable {
         return factory;
     }
 
+    /**
+     * Returns the request metrics used by the factory. Unless set
+     * explicitly, metrics are recorded in the shared JMX metric registry.
+     */
+    public synchronized RequestMetrics getRequestMetrics() {
+        if (requestMetrics == null) {
+            requestMetrics = new DropwizardRequestMetrics(MetricRegistryFactory.getJmxMetricRegistry());
+        }
+        return requestMetrics;
+    }
+
+    /**
+     * Sets the request metrics used by the factory, so the metrics
+     * recorded by the mediator and the front end end up in the same
+     * place. If the factory is already initialized, it is updated.
+     */
+    public synchronized void setRequestMetrics(RequestMetrics metrics) {
+        requestMetrics = metrics;
+        if (factory != null) {
+            factory.setRequestMetrics(getRequestMetrics());
+        }
+    }
+
     public Mediator getMediator()
             throws ClassNotFoundException, IllegalAccessException, InvocationTargetException, IOException, NoSuchMethodException, InstantiationException {
         if (mediator == null) {
@@ -24,6 +24,10 @@ import com.redhat.lightblue.mediator.Mediator;
 import org.junit.Assert;
 import org.junit.Test;
 import com.redhat.lightblue.metadata.test.DatabaseMetadata;
+import com.redhat.lightblue.util.metrics.DropwizardRequestMetrics;
+import com.redhat.lightblue.util.metrics.RequestMetrics;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
@@ -57,5 +61,50 @@ public class LightblueFactoryTest {
         Assert.assertEquals(52, factory.getMaxResultSetSizeForWritesB());
         Assert.assertEquals(53, factory.getMaxExecutionContextSizeForCompositeFindB());
         Assert.assertEquals(54, factory.getWarnResultSetSizeB());
+        Assert.assertEquals(55, factory.getBulkMaxThreads());
+        Assert.assertEquals(56, factory.getBulkQueueSize());
+        Assert.assertEquals(57, factory.getBulkQueueTimeoutMS());
+        Assert.assertEquals(58, factory.getBulkWriteBatchSize());
+        Assert.assertEquals(59, factory.getWriteChunkSize());
+        Assert.assertEquals(60, factory.getCompositeWriteBatchSize());
+        Assert.assertEquals(61, factory.getCompositeMaxThreads());
+        Assert.assertEquals(62, factory.getCompositeParallelism());
+        Assert.assertEquals(63, factory.getMaxCoalescedFinds());
+        Assert.assertEquals(64, factory.getFindCacheSizeB());
+        Assert.assertEquals(65, factory.getFindCacheTTLMS());
+        Assert.assertEquals(66, factory.getFieldAccessCacheSize());
+        Assert.assertEquals(67, factory.getAsyncMaxThreads());
+        Assert.assertEquals(68, factory.getAsyncQueueSize());
+        Assert.assertEquals(69, factory.getAssembleWindowSize());
+        Assert.assertEquals(70, factory.getMinBatchSize());
+        Assert.assertEquals(71, factory.getMaxBatchSize());
+        Assert.assertEquals(72, factory.getBatchTargetLatencyMS());
+        Assert.assertEquals(73, factory.getBatchMaxQuerySizeB());
+        Assert.assertEquals(74, factory.getBatchMaxResults());
+        Assert.assertEquals(75, factory.getJoinPrefetchDepth());
+        Assert.assertEquals(76, factory.getChildDocCacheSize());
+        Assert.assertEquals(77, factory.getReferenceCacheMaxDocs());
+        Assert.assertEquals(78, factory.getReferenceCacheTTLMS());
+        Assert.assertEquals(79, factory.getCompositeFindSpillThresholdB());
+    }
+
+    @Test
+    public void requestMetricsAreRecordedThroughFactory() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        LightblueFactory mgr = new LightblueFactory(new DataSourcesConfiguration());
+        mgr.setRequestMetrics(new DropwizardRequestMetrics(registry));
+
+        Factory factory = mgr.getFactory();
+        factory.getRequestMetrics().markFindCache("e", "1.0.0", RequestMetrics.FIND_CACHE_HIT);
+
+        Assert.assertEquals(1, registry.getMeters().size());
+        Meter meter = registry.getMeters().values().iterator().next();
+        Assert.assertEquals(1, meter.getCount());
+    }
+
+    @Test
+    public void requestMetricsDefaultToJmxRegistry() throws Exception {
+        Factory factory = new LightblueFactory(new DataSourcesConfiguration()).getFactory();
+        Assert.assertTrue(factory.getRequestMetrics() instanceof DropwizardRequestMetrics);
     }
 }
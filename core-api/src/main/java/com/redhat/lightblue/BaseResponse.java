@@ -47,6 +47,7 @@ public class BaseResponse extends JsonObject {
     private static final String PROPERTY_DATA_ERRORS = "dataErrors";
     private static final String PROPERTY_ERRORS = "errors";
     private static final String PROPERTY_HOSTNAME = "hostname";
+    private static final String PROPERTY_PROFILE = "profile";
 
     private EntityVersion entity;
     private OperationStatus status;
@@ -55,6 +56,7 @@ public class BaseResponse extends JsonObject {
     private String taskHandle;
     private SessionInfo session;
     private String hostname;
+    private JsonNode profile;
     private final List<DataError> dataErrors;
     private final List<Error> errors;
 
@@ -92,6 +94,7 @@ public class BaseResponse extends JsonObject {
         taskHandle=r.taskHandle;
         session=r.session;
         hostname=r.hostname;
+        profile=r.profile;
         dataErrors = r.dataErrors;
         errors = r.errors;
     }
@@ -192,6 +195,22 @@ public class BaseResponse extends JsonObject {
         session = s;
     }
 
+    /**
+     * Timing profile of the request phases. Only returned if the request
+     * asked for it.
+     */
+    public JsonNode getProfile() {
+        return profile;
+    }
+
+    /**
+     * Timing profile of the request phases. Only returned if the request
+     * asked for it.
+     */
+    public void setProfile(JsonNode profile) {
+        this.profile = profile;
+    }
+
     /**
      * Errors related to each document
      */
@@ -222,6 +241,7 @@ public class BaseResponse extends JsonObject {
         builder.add(PROPERTY_TASK_HANDLE, taskHandle);
         builder.add(PROPERTY_SESSION, session);
         builder.add(PROPERTY_HOSTNAME, HOSTNAME);
+        builder.add(PROPERTY_PROFILE, profile);
         builder.addJsonObjectsList(PROPERTY_DATA_ERRORS, dataErrors);
         builder.addErrorsList(PROPERTY_ERRORS, errors);
         return builder.build();
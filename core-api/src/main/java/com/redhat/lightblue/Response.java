@@ -44,9 +44,11 @@ public class Response extends BaseResponse  {
 
     private static final String PROPERTY_PROCESSED = "processed";
     private static final String PROPERTY_RESULT_METADATA = "resultMetadata";
+    private static final String PROPERTY_CONTINUATION = "continuation";
 
     private JsonNode entityData;
     private List<ResultMetadata> resultMetadata;
+    private String continuation;
 
     private MemoryMonitor<JsonNode> memoryMonitor = null;
 
@@ -61,6 +63,7 @@ public class Response extends BaseResponse  {
         super(r);
         entityData=r.entityData;
         resultMetadata=r.resultMetadata;
+        continuation=r.continuation;
     }
 
     public Response(BaseResponse r) {
@@ -148,6 +151,24 @@ public class Response extends BaseResponse  {
         resultMetadata=l;
     }
 
+    /**
+     * Continuation token of a keyset paginated find. Passing it in the next
+     * find request returns the documents after the last document of this
+     * response. Null if there are no more documents.
+     */
+    public String getContinuation() {
+        return continuation;
+    }
+
+    /**
+     * Continuation token of a keyset paginated find. Passing it in the next
+     * find request returns the documents after the last document of this
+     * response. Null if there are no more documents.
+     */
+    public void setContinuation(String continuation) {
+        this.continuation = continuation;
+    }
+
     /**
      * Returns JSON representation of this
      */
@@ -164,6 +185,9 @@ public class Response extends BaseResponse  {
             }
             node.set(PROPERTY_RESULT_METADATA,arr);
         }
+        if(continuation!=null) {
+            node.put(PROPERTY_CONTINUATION, continuation);
+        }
         return node;
     }
 
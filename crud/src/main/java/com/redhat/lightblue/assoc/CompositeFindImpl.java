@@ -23,15 +23,15 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Arrays;
 
-import java.util.concurrent.Executors;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.redhat.lightblue.ExecutionOptions;
 import com.redhat.lightblue.query.QueryExpression;
 
 import com.redhat.lightblue.crud.CRUDFindResponse;
 import com.redhat.lightblue.crud.CRUDFindRequest;
+import com.redhat.lightblue.crud.CompositeExecutor;
 import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.crud.ListDocumentStream;
 
@@ -40,6 +40,7 @@ import com.redhat.lightblue.metadata.CompositeMetadata;
 import com.redhat.lightblue.mediator.Finder;
 import com.redhat.lightblue.mediator.OperationContext;
 import com.redhat.lightblue.mediator.Mediator;
+import com.redhat.lightblue.mediator.SimpleFindImpl;
 
 import com.redhat.lightblue.assoc.scorers.IndexedFieldScorer;
 import com.redhat.lightblue.assoc.iterators.BruteForceQueryPlanIterator;
@@ -88,24 +89,39 @@ public class CompositeFindImpl implements Finder {
     private transient QueryPlan retrievalQPlan;
 
     private transient ExecutionPlan executionPlan;
-    private int parallelism = 1;
+    private int parallelism = 0;
+    // If true, the plans only include the entities required to evaluate the query
+    private transient boolean countOnly = false;
 
     public CompositeFindImpl(CompositeMetadata md) {
         this.root = md;
     }
 
     /**
-     * Set maximum number of threads that can run in parallel. There's a hard
-     * limit on 10
+     * Set maximum number of threads that can run in parallel. If not set, the
+     * {@link CompositeExecutor#OPT_PARALLELISM} execution option of the
+     * request is used, or if that is not given, the factory default.
      */
     public void setParallelism(int n) {
-        parallelism = n;
-        if (parallelism < 1) {
-            parallelism = 1;
+        parallelism = n < 1 ? 1 : n;
+    }
+
+    private int getParallelism(OperationContext ctx) {
+        if (parallelism > 0) {
+            return parallelism;
         }
-        if (parallelism > 10) {
-            parallelism = 10;
+        ExecutionOptions options = ctx.getRequest().getExecution();
+        if (options != null) {
+            String value = options.getOptionValueFor(CompositeExecutor.OPT_PARALLELISM);
+            if (value != null) {
+                try {
+                    return Integer.parseInt(value.trim());
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Invalid {} execution option:{}", CompositeExecutor.OPT_PARALLELISM, value);
+                }
+            }
         }
+        return ctx.getFactory().getCompositeParallelism();
     }
 
     private void initialize(OperationContext ctx,
@@ -135,7 +151,8 @@ public class CompositeFindImpl implements Finder {
                                               root,
                                               searchQPlan,
                                               retrievalQPlan,
-                                              ctx);
+                                              ctx,
+                                              countOnly);
         }
     }
     
@@ -160,14 +177,58 @@ public class CompositeFindImpl implements Finder {
 
         CRUDFindResponse response = new CRUDFindResponse();
         ExecutionContext executionContext = new ExecutionContext(ctx,
-                Executors.newWorkStealingPool(parallelism));
+                ctx.getFactory().getCompositeExecutor().newSession(getParallelism(ctx), ctx.getFactory().getRequestMetrics()));
+        boolean streaming = false;
         try {
             StepResult<ResultDocument> results = executionPlan.getResults(executionContext);
-            ctx.setDocumentStream(new StepResultDocumentStream(new MakeDocCtx(results)));            	
+            // Documents are assembled while the stream is read, so the
+            // executor session stays open until the stream is closed
+            ctx.setDocumentStream(new StepResultDocumentStream(new MakeDocCtx(results), executionContext::close));
+            streaming = true;
             response.setSize(executionContext.getMatchCount());
             LOGGER.debug("executionCtxMemoryUsed={} request={}", executionContext.memoryUsedB(), req);
             LOGGER.debug("Composite find: end");
             return response;
+        } finally {
+            if (!streaming) {
+                executionContext.close();
+            }
+        }
+    }
+
+    /**
+     * Counts the root documents matching the query. If the query refers to
+     * the root entity only, the count is computed by the root entity
+     * controller. Otherwise, only the associated entities required to
+     * evaluate the query are retrieved, and the matching root documents are
+     * counted without projecting them.
+     */
+    @Override
+    public long count(OperationContext ctx,
+                      CRUDFindRequest req) {
+        LOGGER.debug("Composite count: start");
+        Set<CompositeMetadata> minimalTree = findMinimalSetOfQueryEntities(req.getQuery(),
+                                                                           ctx.getTopLevelEntityMetadata());
+        if (minimalTree.size() == 1) {
+            LOGGER.debug("Query refers to the root entity only, counting using the root entity controller");
+            CRUDFindRequest countReq = new CRUDFindRequest();
+            countReq.setQuery(req.getQuery());
+            OperationContext countCtx = ctx.getDerivedOperationContext(root.getName(), countReq);
+            long count = new SimpleFindImpl(root, ctx.getFactory()).count(countCtx, countReq);
+            if (countCtx.hasErrors()) {
+                ctx.addErrors(countCtx.getErrors());
+            }
+            return count;
+        }
+        countOnly = true;
+        initialize(ctx, req);
+        ctx.setProperty(Mediator.CTX_QPLAN, searchQPlan == null ? retrievalQPlan : searchQPlan);
+        ExecutionContext executionContext = new ExecutionContext(ctx,
+                ctx.getFactory().getCompositeExecutor().newSession(getParallelism(ctx), ctx.getFactory().getRequestMetrics()));
+        try {
+            long count = executionPlan.getResults(executionContext).stream().count();
+            LOGGER.debug("Composite count: end, {} documents", count);
+            return count;
         } finally {
             executionContext.close();
         }
@@ -189,6 +250,8 @@ public class CompositeFindImpl implements Finder {
     private void selectQueryPlan(QueryExpression requestQuery,
                                  Set<CompositeMetadata> minimalTree) {
         searchQPlan = retrievalQPlan = null;
+        // Retrieve all entities, unless only counting
+        Set<CompositeMetadata> retrievalTree = countOnly ? minimalTree : null;
 
         if (minimalTree.size() > 1) {
             // There are multiple entities required to evaluate the query
@@ -213,7 +276,7 @@ public class CompositeFindImpl implements Finder {
                         new BruteForceQueryPlanIterator(),
                         new IndexedFieldScorer(),
                         requestQuery,
-                        null).choose();
+                        retrievalTree).choose();
                 // This plan must also have a single root
                 roots = fullPlan.getSources();
                 if (roots.length == 1 && roots[0].getMetadata() == root) {
@@ -240,14 +303,14 @@ public class CompositeFindImpl implements Finder {
                         new First(),
                         new SimpleScorer(),
                         requestQuery,
-                        null).choose();
+                        retrievalTree).choose();
             } else {
                 // No search, only retrieve. No query.
                 retrievalQPlan = new QueryPlanChooser(root,
                         new First(),
                         new SimpleScorer(),
                         null,
-                        null).choose();
+                        retrievalTree).choose();
             }
         }
     }
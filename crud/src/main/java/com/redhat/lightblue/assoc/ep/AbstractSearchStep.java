@@ -99,7 +99,11 @@ public abstract class AbstractSearchStep extends Step<ResultDocument> {
         return new StepResult<ResultDocument>() {
             @Override
             public Stream<ResultDocument> stream() {
-                return StreamSupport.stream(Spliterators.spliteratorUnknownSize(getSearchResults(ctx),Spliterator.IMMUTABLE),false);
+                // Closing the stream closes the search results, so a
+                // consumer stopping early stops the search
+                DocumentStream<ResultDocument> docStream=getSearchResults(ctx);
+                return StreamSupport.stream(Spliterators.spliteratorUnknownSize(docStream,Spliterator.IMMUTABLE),false).
+                    onClose(docStream::close);
             }
         };
     }
@@ -112,6 +116,7 @@ public abstract class AbstractSearchStep extends Step<ResultDocument> {
 
 
     public OperationContext search(ExecutionBlock block, ExecutionContext ctx, CRUDFindRequest req) {
+        ctx.getOperationContext().getDeadline().check();
         OperationContext searchCtx = ctx.getOperationContext().
                 getDerivedOperationContext(block.getMetadata().getName(), req);
         LOGGER.debug("SearchStep {}: entity={}, query={}, projection={}, sort={}, from={}, to={}",
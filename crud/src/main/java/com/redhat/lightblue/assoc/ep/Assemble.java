@@ -20,15 +20,25 @@ package com.redhat.lightblue.assoc.ep;
 
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Predicate;
 import java.util.ArrayList;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TreeSet;
 
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import java.util.concurrent.Future;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.Spliterator;
+import java.util.Spliterators;
 
 import com.google.common.base.Throwables;
 import org.slf4j.Logger;
@@ -42,7 +52,10 @@ import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.redhat.lightblue.query.QueryExpression;
 import com.redhat.lightblue.query.NaryLogicalOperator;
 
+import com.redhat.lightblue.crud.AdaptiveBatchSizer;
+import com.redhat.lightblue.crud.ReferenceEntityCache;
 import com.redhat.lightblue.metadata.CompositeMetadata;
+import com.redhat.lightblue.metadata.DocId;
 
 import com.redhat.lightblue.assoc.BindQuery;
 import com.redhat.lightblue.assoc.QueryFieldInfo;
@@ -57,12 +70,19 @@ import com.redhat.lightblue.eval.QueryEvaluator;
 
 import com.redhat.lightblue.util.Path;
 import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.JsonUtils;
 
 /**
  * There are two sides to an Assemble step: Assemble gets results from the
  * source, and for each of those documents, it runs the associated queries on
  * the destinations, gets the results, and inserts those documents to the
  * document it got from the source side.
+ *
+ * The source documents are assembled in windows of at most
+ * <code>windowSize</code> documents. The documents of a window are returned
+ * as soon as the window is assembled, and while they are read, the next
+ * window is assembled. The memory used by a window, including the
+ * associated documents, is released once its documents are read.
  */
 public class Assemble extends Step<ResultDocument> {
 
@@ -75,6 +95,7 @@ public class Assemble extends Step<ResultDocument> {
      */
     private int memoryIndexThreshold;
 
+    private final int windowSize;
     private final ExecutionBlock[] destinationBlocks;
     private final Source<ResultDocument> source;
     private Map<ExecutionBlock, Assemble> destinations;
@@ -82,11 +103,13 @@ public class Assemble extends Step<ResultDocument> {
     public Assemble(ExecutionBlock block,
                     Source<ResultDocument> source,
                     ExecutionBlock[] destinationBlocks,
-                    int memoryIndexThreshold) {
+                    int memoryIndexThreshold,
+                    int windowSize) {
         super(block);
         this.source = source;
         this.destinationBlocks = destinationBlocks;
         this.memoryIndexThreshold = memoryIndexThreshold;
+        this.windowSize = windowSize < 1 ? 1 : windowSize;
     }
 
     private Stream<ResultDocument> getResultList(QueryExpression q, ExecutionContext ctx) {
@@ -117,31 +140,225 @@ public class Assemble extends Step<ResultDocument> {
     @Override
     public StepResult<ResultDocument> getResults(ExecutionContext ctx) {
         LOGGER.debug("getResults, source:{}, destinations={}", source, destinations);
-        // Get the results from the source
         StepResult<ResultDocument> sourceResults = source.getStep().getResults(ctx);
+        return new StepResult<ResultDocument>() {
+            @Override
+            public Stream<ResultDocument> stream() {
+                // The source stream is created here, so a Retrieve source
+                // runs with the query set when the results are requested
+                Windows windows = new Windows(sourceResults.stream(), ctx);
+                return StreamSupport.stream(Spliterators.spliteratorUnknownSize(windows, Spliterator.IMMUTABLE), false)
+                        .onClose(windows::close);
+            }
+        };
+    }
+
+    /**
+     * A window of source documents, and the memory accounted for them and
+     * their associated documents
+     */
+    private static class Window {
+        private final List<ResultDocument> docs = new ArrayList<>();
+        private final List<JsonNode> nodes = new ArrayList<>();
+        private final List<Integer> sizes = new ArrayList<>();
+
+        synchronized void monitor(ExecutionContext ctx, JsonNode node) {
+            int size = JsonUtils.size(node);
+            ctx.monitorMemory(node);
+            nodes.add(node);
+            sizes.add(size);
+        }
 
-        // Aggregate all source results, to be "assembled" with associated documents, which are
-        // queried below. Since Assemble is always included within the plan of a composite find,
-        // streaming is ineffective at reducing memory footprint of a query: the assemble step
-        // merely "streams" an already aggregated list, fully loaded in memory. Thus, we count all
-        // results here toward memory consumption, despite that later GC cycles may recover some of
-        // this memory (in case of projections for example).
-        List<ResultDocument> results = sourceResults.stream()
-                .peek(ctx::monitorMemory)
-                .collect(Collectors.toList());
+        synchronized void release(ExecutionContext ctx) {
+            for (int i = 0; i < nodes.size(); i++) {
+                ctx.releaseMemory(nodes.get(i), sizes.get(i));
+            }
+            nodes.clear();
+            sizes.clear();
+        }
+    }
 
-        if (ctx.hasErrors()) {
-            return StepResult.EMPTY;
+    /**
+     * Iterates the assembled source documents. The next window is assembled
+     * in the background while the documents of the current window are read.
+     */
+    private class Windows implements Iterator<ResultDocument> {
+        private final Stream<ResultDocument> sourceStream;
+        private final Iterator<ResultDocument> sourceItr;
+        private final ExecutionContext ctx;
+        private Window current;
+        private Iterator<ResultDocument> currentItr;
+        private Future<Window> next;
+        private boolean done = false;
+        private boolean first = true;
+        // Guarded by sourceStream, the next window may be reading it
+        private boolean sourceClosed = false;
+        // The next window, once it is assembled and until it is read,
+        // guarded by sourceStream
+        private Window assembled;
+
+        Windows(Stream<ResultDocument> sourceStream, ExecutionContext ctx) {
+            this.sourceStream = sourceStream;
+            this.sourceItr = sourceStream.iterator();
+            this.ctx = ctx;
+            // The first window is assembled right away, so errors retrieving
+            // its associated documents are in the context before the
+            // documents are read
+            hasNext();
+            first = false;
         }
 
-        // Assemble results: retrieve results from associated
-        // execution blocks, and insert them into sourceResults
-        // documents
+        @Override
+        public boolean hasNext() {
+            while (!done && (currentItr == null || !currentItr.hasNext())) {
+                if (current != null) {
+                    current.release(ctx);
+                    current = null;
+                }
+                Window w = claim(next == null ? assembleWindow() : await(next));
+                next = null;
+                if (w == null) {
+                    done = true;
+                    if (!first && ctx.hasErrors()) {
+                        // Results were already returned, so the reader
+                        // must see that the rest failed
+                        throw ctx.getOperationContext().getErrors().get(0);
+                    }
+                } else {
+                    current = w;
+                    currentItr = w.docs.iterator();
+                    if (sourceHasNext()) {
+                        next = ctx.getExecutor().submit(this::assembleWindow);
+                        ctx.getOperationContext().getDeadline().register(next);
+                    }
+                }
+            }
+            return !done;
+        }
+
+        @Override
+        public ResultDocument next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return currentItr.next();
+        }
+
+        /**
+         * Reads the next window from the source, and assembles it. Returns
+         * null if there are no more documents, or there are errors.
+         */
+        private Window assembleWindow() {
+            Window w = new Window();
+            synchronized (sourceStream) {
+                while (w.docs.size() < windowSize && !sourceClosed && sourceItr.hasNext()) {
+                    ResultDocument doc = sourceItr.next();
+                    w.monitor(ctx, doc.getDoc().getRoot());
+                    w.docs.add(doc);
+                }
+            }
+            if (w.docs.isEmpty() || ctx.hasErrors()) {
+                w.release(ctx);
+                return null;
+            }
+            LOGGER.debug("Assembling a window of {} documents, block={}", w.docs.size(), block);
+            assemble(w, ctx);
+            if (ctx.hasErrors()) {
+                w.release(ctx);
+                return null;
+            }
+            synchronized (sourceStream) {
+                if (sourceClosed) {
+                    // Nobody reads this window
+                    w.release(ctx);
+                    return null;
+                }
+                assembled = w;
+            }
+            return w;
+        }
+
+        /**
+         * Takes over the memory of an assembled window from close()
+         */
+        private Window claim(Window w) {
+            synchronized (sourceStream) {
+                assembled = null;
+            }
+            return w;
+        }
+
+        private Window await(Future<Window> future) {
+            try {
+                return future.get();
+            } catch (ExecutionException ie) {
+                throw Throwables.propagate(ie.getCause());
+            } catch (CancellationException ce) {
+                ctx.getOperationContext().getDeadline().check();
+                throw ce;
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private boolean sourceHasNext() {
+            synchronized (sourceStream) {
+                return !sourceClosed && sourceItr.hasNext();
+            }
+        }
+
+        /**
+         * Stops reading, and closes the source stream, so the upstream
+         * steps release their resources even if the source is not read to
+         * the end
+         */
+        void close() {
+            done = true;
+            if (next != null) {
+                next.cancel(true);
+                next = null;
+            }
+            synchronized (sourceStream) {
+                if (!sourceClosed) {
+                    sourceClosed = true;
+                    sourceStream.close();
+                }
+                if (assembled != null) {
+                    assembled.release(ctx);
+                    assembled = null;
+                }
+            }
+            if (current != null) {
+                current.release(ctx);
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Retrieves the associated documents of the documents of the window,
+     * and inserts them into those documents
+     */
+    private void assemble(Window window, ExecutionContext ctx) {
+        List<ResultDocument> results = window.docs;
         List<Future> assemblers = new ArrayList<>();
         for (Map.Entry<ExecutionBlock, Assemble> destination : destinations.entrySet()) {
             AssociationQuery aq = destination.getKey().getAssociationQueryForEdge(block);
+            ReferenceEntityCache.Entry reference = getReferenceDocs(destination.getValue(), aq, ctx);
+            if (ctx.hasErrors()) {
+                // Reading the reference documents failed
+                break;
+            } else if (reference != null) {
+                LOGGER.debug("Associating cached documents with aq={} block={}", aq, destination.getKey());
+                ExecutionBlock dest = destination.getKey();
+                assemblers.add(ctx.getExecutor().submit(() -> {
+                    results.forEach(doc -> associateReferenceDocs(doc, reference, aq, dest, window, ctx));
+                }));
+                ctx.getOperationContext().getDeadline().register(assemblers.get(assemblers.size() - 1));
+                continue;
+            }
             LOGGER.debug("Scheduling batch assembler with aq={} block={}", aq, destination.getKey());
-            BatchAssembler batchAssembler = new BatchAssembler(256, aq, destination.getValue(), ctx);
+            BatchAssembler batchAssembler = new BatchAssembler(aq, destination.getValue(), ctx, window);
             assemblers.add(ctx.getExecutor().submit(() -> {
                 if (aq.getQuery() == null) {
                     if(aq.isAlwaysTrue()) {
@@ -151,14 +368,13 @@ public class Assemble extends Step<ResultDocument> {
                 } else {
                     results.forEach(doc -> {
                         batchAssembler.addDoc(doc);
-                        Map<ChildSlot, QueryExpression> queries = Searches.
-                                writeChildQueriesFromParentDoc(aq, doc);
-                        queries.values().forEach(batchAssembler::addQuery);
+                        doc.getBindersForChild(aq).values().forEach(batchAssembler::addQuery);
                         batchAssembler.endDoc();
                     });
                 }
                 batchAssembler.commit();
             }));
+            ctx.getOperationContext().getDeadline().register(assemblers.get(assemblers.size() - 1));
         }
         try {
             for (Future x : assemblers) {
@@ -166,14 +382,114 @@ public class Assemble extends Step<ResultDocument> {
             }
         } catch (ExecutionException ie) {
             throw Throwables.propagate(ie.getCause());
+        } catch (CancellationException ce) {
+            ctx.getOperationContext().getDeadline().check();
+            throw ce;
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
-        if (ctx.hasErrors()) {
-            return StepResult.EMPTY;
+    }
+
+    /**
+     * Returns true if the documents of the destination can be read from
+     * the {@link ReferenceEntityCache}. Only the documents of entities
+     * enabled for the cache, without associated documents of their own, are
+     * cached.
+     */
+    private static boolean isReferenceCached(Assemble dest, AssociationQuery aq, ExecutionContext ctx) {
+        Retrieve r = dest.block.getStep(Retrieve.class);
+        return ctx.getOperationContext().getFactory().getReferenceEntityCache().isEnabled(dest.block.getMetadata())
+                && dest.destinationBlocks.length == 0
+                && r != null
+                && r.from == null
+                && r.to == null
+                && !aq.isAlwaysFalse();
+    }
+
+    /**
+     * Returns the cached documents of the destination, reading them if they
+     * are not cached yet. Returns null if the documents of the destination
+     * are not cached.
+     */
+    private static ReferenceEntityCache.Entry getReferenceDocs(Assemble dest, AssociationQuery aq, ExecutionContext ctx) {
+        if (!isReferenceCached(dest, aq, ctx)) {
+            return null;
+        }
+        ReferenceEntityCache cache = ctx.getOperationContext().getFactory().getReferenceEntityCache();
+        String entity = dest.block.getMetadata().getName();
+        Retrieve r = dest.block.getStep(Retrieve.class);
+        // Cached documents are shared by callers with the same roles
+        String key = Searches.batchSizerKey(dest.block, "reference")
+                + "|" + (r.query == null ? null : r.query.toJson())
+                + "|" + (r.projection == null ? null : r.projection.toJson())
+                + "|" + (r.sort == null ? null : r.sort.toJson())
+                + "|" + new TreeSet<>(ctx.getOperationContext().getCallerRoles());
+        ReferenceEntityCache.Entry entry = cache.get(key);
+        if (entry == null) {
+            long generation = cache.getGeneration(entity);
+            List<JsonDoc> docs;
+            try (Stream<ResultDocument> stream = dest.getResultList(null, ctx)) {
+                docs = stream.limit(cache.getMaxDocs() + 1l).map(ResultDocument::getDoc).collect(Collectors.toList());
+            }
+            if (ctx.hasErrors()) {
+                return null;
+            }
+            LOGGER.debug("Read {} documents of {} for the reference cache", docs.size(), entity);
+            entry = cache.put(key, entity, generation, docs, aq.getIndexKeySpec());
+        }
+        return entry.isCached() ? entry : null;
+    }
+
+    /**
+     * Associates the cached documents matching the association query with
+     * all the slots of the parent document. Cached documents are shared, so
+     * copies of them are inserted into the parent document.
+     */
+    private void associateReferenceDocs(ResultDocument parentDoc,
+                                        ReferenceEntityCache.Entry reference,
+                                        AssociationQuery aq,
+                                        ExecutionBlock childBlock,
+                                        Window window,
+                                        ExecutionContext ctx) {
+        List<ChildSlot> slots = parentDoc.getSlots().get(aq.getReference());
+        if (slots == null) {
+            return;
+        }
+        for (ChildSlot slot : slots) {
+            List<JsonDoc> docs;
+            Predicate<JsonDoc> match = null;
+            if (aq.getQuery() == null) {
+                docs = aq.isAlwaysTrue() ? reference.getDocs() : new ArrayList<>();
+            } else {
+                BindQuery binders = parentDoc.getBindersForSlot(slot, aq);
+                if (binders.getBindings().isEmpty() || (aq.getAlways() != null && aq.getAlways())) {
+                    docs = reference.getDocs();
+                } else if (aq.getCompiledQuery() != null) {
+                    CompiledAssociationQuery compiled = aq.getCompiledQuery();
+                    match = d -> compiled.evaluate(d, binders);
+                    LookupSpec spec = reference.getIndex() == null ? null : getLookupSpec(binders, aq, compiled);
+                    docs = spec == null ? reference.getDocs() : reference.inOrder(reference.getIndex().find(spec));
+                } else {
+                    QueryExpression boundQuery = binders.iterate(aq.getQuery());
+                    QueryEvaluator qeval = QueryEvaluator.getInstance(boundQuery, childBlock.getMetadata());
+                    match = d -> qeval.evaluate(d).getResult();
+                    if (reference.getIndex() == null) {
+                        docs = reference.getDocs();
+                    } else {
+                        docs = reference.inOrder(reference.getIndex().find(getLookupSpec(boundQuery, aq)));
+                    }
+                }
+            }
+            ArrayNode destNode = null;
+            for (JsonDoc childDoc : docs) {
+                if (match == null || match.test(childDoc)) {
+                    destNode = ensureDestNodeExists(parentDoc, destNode, slot.getSlotFieldName());
+                    JsonNode copy = childDoc.getRoot().deepCopy();
+                    window.monitor(ctx, copy);
+                    destNode.add(copy);
+                }
+            }
         }
-        // Stream results
-        return new ListStepResult<>(results);
     }
 
     private static class DocAndQ {
@@ -188,19 +504,58 @@ public class Assemble extends Step<ResultDocument> {
     private class BatchAssembler {
         private List<DocAndQ> docs = new ArrayList<>();
         private List<QueryExpression> queries = new ArrayList<>();
-        private final int batchSize;
+        private int batchSize;
         private final AssociationQuery aq;
         private final Assemble dest;
         private final ExecutionContext ctx;
-
-        public BatchAssembler(int batchSize, AssociationQuery aq, Assemble dest, ExecutionContext ctx) {
-            this.batchSize = batchSize;
+        private final Window window;
+        private final AdaptiveBatchSizer sizer;
+        private final String sizerKey;
+        private final ChildDocCache cache;
+        // Child identities requested by the queries of the batch, and found in the cache
+        private Set<DocId> requested = new HashSet<>();
+        private Set<DocId> cached = new HashSet<>();
+        private int lookups = 0;
+        private int hits = 0;
+
+        public BatchAssembler(AssociationQuery aq, Assemble dest, ExecutionContext ctx, Window window) {
             this.dest = dest;
             this.aq = aq;
             this.ctx = ctx;
+            this.window = window;
+            this.sizer = ctx.getOperationContext().getFactory().getBatchSizer();
+            this.sizerKey = Searches.batchSizerKey(dest.block, "assemble");
+            this.batchSize = sizer.getBatchSize(sizerKey);
+            this.cache = ctx.getChildDocCache(dest.block, aq);
         }
 
-        public void addQuery(QueryExpression q) {
+        /**
+         * Adds the query of a parent slot to the batch. If the child
+         * documents of the slot are cached, or already requested by the
+         * batch, the query is not added.
+         */
+        public void addQuery(BindQuery binders) {
+            List<DocId> keys = cache == null ? null : cache.getKeys(binders);
+            if (keys != null) {
+                Set<DocId> unresolved = new HashSet<>();
+                for (DocId key : keys) {
+                    if (requested.contains(key) || cached.contains(key)) {
+                        hits++;
+                    } else if (cache.contains(key)) {
+                        cached.add(key);
+                        hits++;
+                    } else {
+                        unresolved.add(key);
+                    }
+                }
+                lookups += keys.size();
+                if (unresolved.isEmpty()) {
+                    return;
+                }
+                requested.addAll(unresolved);
+                binders = cache.restrict(binders, unresolved);
+            }
+            QueryExpression q = binders.iterate(aq.getQuery());
             docs.get(docs.size() - 1).queries.add(q);
             queries.add(q);
         }
@@ -217,6 +572,7 @@ public class Assemble extends Step<ResultDocument> {
 
         public void commit() {
             if (!docs.isEmpty()) {
+                ctx.getOperationContext().getDeadline().check();
                 QueryExpression combinedQuery;
                 if (!queries.isEmpty()) {
                     combinedQuery = Searches.combine(NaryLogicalOperator._or, queries);
@@ -238,9 +594,30 @@ public class Assemble extends Step<ResultDocument> {
                 // The impact to clients is that projections that ultimately limit result size don't
                 // really help reduce your query footprint as far as server is concerned if it still
                 // requires examining a lot of documents to compute.
-                List<ResultDocument> destResults = dest.getResultList(combinedQuery, ctx)
-                        .peek(ctx::monitorMemory)
-                        .collect(Collectors.toList());
+                List<ResultDocument> destResults;
+                if (combinedQuery == null && aq.getQuery() != null) {
+                    // All child documents are cached
+                    destResults = new ArrayList<>();
+                } else {
+                    destResults = dest.getResultList(combinedQuery, ctx)
+                            .peek(doc -> window.monitor(ctx, doc.getDoc().getRoot()))
+                            .collect(Collectors.toList());
+                    if (combinedQuery != null) {
+                        // Only the back end retrieval is timed, not the
+                        // assembly of the destination documents
+                        long elapsedMS = TimeUnit.NANOSECONDS.toMillis(dest.block.getStep(Retrieve.class).getElapsedNanos());
+                        batchSize = sizer.record(sizerKey, queries.size(), elapsedMS,
+                                destResults.size(), JsonUtils.size(combinedQuery.toJson()));
+                    }
+                }
+                if (cache != null) {
+                    cache.put(requested, destResults);
+                    for (ResultDocument doc : cache.addTo(cached, destResults)) {
+                        window.monitor(ctx, doc.getDoc().getRoot());
+                    }
+                    sizer.recordCache(sizerKey, lookups, hits);
+                    LOGGER.debug("Child document cache of {}: {} lookups, {} hits", dest.block, lookups, hits);
+                }
                 int numSlots=0;
                 for (DocAndQ parentDocAndQ : docs) {
                     List<ChildSlot> slots=parentDocAndQ.doc.getSlots().get(aq.getReference());
@@ -266,14 +643,19 @@ public class Assemble extends Step<ResultDocument> {
             }
             docs = new ArrayList<>();
             queries = new ArrayList<>();
+            requested = new HashSet<>();
+            cached = new HashSet<>();
+            lookups = 0;
+            hits = 0;
         }
     }
     
-    private JsonNode toJson(Step.ToJsonCb<Step> scb,Step.ToJsonCb<ExecutionBlock> bcb) {
+    private JsonNode toJson(Step.ToJsonCb<Step> scb,Step.ToJsonCb<ExecutionBlock> bcb,ExecutionContext ctx) {
         ObjectNode o = JsonNodeFactory.instance.objectNode();
         ObjectNode a = JsonNodeFactory.instance.objectNode();
         o.set("assemble", a);
         a.set("entity", JsonNodeFactory.instance.textNode(block.getMetadata().getName()));
+        a.set("windowSize", JsonNodeFactory.instance.numberNode(windowSize));
         a.set("left", scb.toJson(source.getStep()));
         ArrayNode array = JsonNodeFactory.instance.arrayNode();
         a.set("right", array);
@@ -281,6 +663,15 @@ public class Assemble extends Step<ResultDocument> {
             ObjectNode detail=JsonNodeFactory.instance.objectNode();
             AssociationQuery aq = b.getAssociationQueryForEdge(block);
             detail.set("associationQuery",aq.getQuery().toJson());
+            if (ctx != null) {
+                AdaptiveBatchSizer.Stats stats = ctx.getOperationContext().getFactory().getBatchSizer().
+                        getStatsIfPresent(Searches.batchSizerKey(b, "assemble"));
+                if (stats != null) {
+                    detail.set("batch", stats.toJson());
+                }
+                detail.set("childDocCache", JsonNodeFactory.instance.booleanNode(ctx.getChildDocCache(b, aq) != null));
+                detail.set("referenceCache", JsonNodeFactory.instance.booleanNode(isReferenceCached(destinations.get(b), aq, ctx)));
+            }
             detail.set("source",bcb.toJson(b));
             array.add(detail);
         }
@@ -305,7 +696,10 @@ public class Assemble extends Step<ResultDocument> {
                 if (binders.getBindings().isEmpty()||(aq.getAlways()!=null && aq.getAlways()) ) {
                     associateAllDocs(parentDoc,childDocs,slot.getSlotFieldName());
                 } else if(aq.getAlways()==null||!aq.getAlways()) { // If query is not always false
-                    if(childIndex==null)
+                    CompiledAssociationQuery compiled=aq.getCompiledQuery();
+                    if(compiled!=null)
+                        associateDocs(parentDoc,slot.getSlotFieldName(),binders,childDocs,aq,compiled,childIndex);
+                    else if(childIndex==null)
                         associateDocs(childMetadata,parentDoc,slot.getSlotFieldName(),binders,childDocs,aq.getQuery());
                     else 
                         associateDocsWithIndex(childMetadata,parentDoc,slot.getSlotFieldName(),binders,childDocs,aq,childIndex);
@@ -374,13 +768,7 @@ public class Assemble extends Step<ResultDocument> {
         QueryExpression boundQuery = binders.iterate(aq.getQuery());
         LOGGER.debug("Association query:{}", boundQuery);
         QueryEvaluator qeval = QueryEvaluator.getInstance(boundQuery, childMetadata);
-        AnalyzeQuery analyzer=new AnalyzeQuery(block.rootMd,aq.getReference());
-        analyzer.iterate(boundQuery);
-        List<QueryFieldInfo> qfi=analyzer.getFieldInfo();
-        GetIndexLookupSpec gils=new GetIndexLookupSpec(qfi);
-        LookupSpec ls=gils.iterate(boundQuery);
-        LOGGER.debug("Lookup spec:"+ls);
-        List<ResultDocument> docs=reorder(childDocs,childIndex.find(ls));
+        List<ResultDocument> docs=reorder(childDocs,childIndex.find(getLookupSpec(boundQuery,aq)));
         ArrayNode destNode=null;
         for (ResultDocument childDoc : docs) {
             if (qeval.evaluate(childDoc.getDoc()).getResult()) {
@@ -390,6 +778,61 @@ public class Assemble extends Step<ResultDocument> {
         }
     }
     
+    /**
+     * Associates the child documents matching the compiled association
+     * query with the bound values to the parent document slot. If there is
+     * an index, only the documents found in the index are evaluated.
+     */
+    private void associateDocs(ResultDocument parentDoc,
+                               Path destFieldName,
+                               BindQuery binders,
+                               List<ResultDocument> childDocs,
+                               AssociationQuery aq,
+                               CompiledAssociationQuery compiled,
+                               MemDocIndex childIndex) {
+        List<ResultDocument> docs=childDocs;
+        if(childIndex!=null) {
+            LookupSpec spec=getLookupSpec(binders,aq,compiled);
+            if(spec!=null)
+                docs=reorder(childDocs,childIndex.find(spec));
+        }
+        ArrayNode destNode=null;
+        for (ResultDocument childDoc : docs) {
+            if (compiled.evaluate(childDoc.getDoc(),binders)) {
+                destNode=ensureDestNodeExists(parentDoc,destNode,destFieldName);
+                destNode.add(childDoc.getDoc().getRoot());
+            }
+        }
+    }
+
+    /**
+     * Returns the lookup spec for the association query with the bound
+     * values, using the key specs precomputed by the compiled query if
+     * possible. Returns null if the documents cannot be looked up.
+     */
+    private LookupSpec getLookupSpec(BindQuery binders,AssociationQuery aq,CompiledAssociationQuery compiled) {
+        LookupSpec spec=compiled.getLookupSpec(binders);
+        if(spec==null&&!compiled.hasLookupSpec()) {
+            spec=getLookupSpec(binders.iterate(aq.getQuery()),aq);
+        }
+        return spec;
+    }
+
+    /**
+     * Returns the spec to look up the documents matching the bound
+     * association query in an index built using the key spec of the
+     * association query
+     */
+    private LookupSpec getLookupSpec(QueryExpression boundQuery,AssociationQuery aq) {
+        AnalyzeQuery analyzer=new AnalyzeQuery(block.rootMd,aq.getReference());
+        analyzer.iterate(boundQuery);
+        List<QueryFieldInfo> qfi=analyzer.getFieldInfo();
+        GetIndexLookupSpec gils=new GetIndexLookupSpec(qfi);
+        LookupSpec ls=gils.iterate(boundQuery);
+        LOGGER.debug("Lookup spec:"+ls);
+        return ls;
+    }
+
     /**
      * Returns the documents in foundList in the order of originalList
      */
@@ -404,13 +847,14 @@ public class Assemble extends Step<ResultDocument> {
 
     @Override
     public JsonNode toJson() {
-        return toJson(Step::toJson,ExecutionBlock::toJson);
+        return toJson(Step::toJson,ExecutionBlock::toJson,null);
     }
 
     @Override
     public JsonNode explain(ExecutionContext ctx) {
         return toJson(s->{return s.explain(ctx);},
-                      t->{return t.explain(ctx);});
+                      t->{return t.explain(ctx);},
+                      ctx);
     }
 
 }
@@ -30,12 +30,18 @@ public class AssociationQuery {
     private final List<QueryFieldInfo> qfi;
     // In-memory index key spec
     private final KeySpec keySpec;
+    private final CompositeMetadata root;
+    private final CompositeMetadata currentEntity;
+    private volatile CompiledAssociationQuery compiledQuery;
+    private volatile boolean compiled = false;
 
     public AssociationQuery(CompositeMetadata root,
                             CompositeMetadata currentEntity,
                             ResolvedReferenceField reference,
                             List<Conjunct> conjuncts) {
         this.reference = reference;
+        this.root = root;
+        this.currentEntity = currentEntity;
         RewriteQuery rewriter = new RewriteQuery(root, currentEntity);
         List<QueryExpression> queries = new ArrayList<>(conjuncts.size());
         int numTrue=0;
@@ -79,6 +85,19 @@ public class AssociationQuery {
         return keySpec;
     }
     
+    /**
+     * Returns the query compiled for evaluation with bound values, or null
+     * if the query cannot be compiled. The query is compiled the first time
+     * this is called.
+     */
+    public CompiledAssociationQuery getCompiledQuery() {
+        if (!compiled) {
+            compiledQuery = CompiledAssociationQuery.compile(root, currentEntity, this);
+            compiled = true;
+        }
+        return compiledQuery;
+    }
+
     public List<QueryFieldInfo> getQueryFieldInfo() {
         return qfi;
     }
@@ -0,0 +1,319 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.ep;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+
+import com.redhat.lightblue.assoc.BindQuery;
+import com.redhat.lightblue.assoc.Binder;
+import com.redhat.lightblue.assoc.BoundValue;
+import com.redhat.lightblue.assoc.QueryFieldInfo;
+import com.redhat.lightblue.metadata.DocId;
+import com.redhat.lightblue.metadata.PredefinedFields;
+import com.redhat.lightblue.metadata.Type;
+import com.redhat.lightblue.query.BinaryComparisonOperator;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.query.Value;
+import com.redhat.lightblue.query.ValueComparisonExpression;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Caches the child documents an {@link Assemble} step retrieves for a
+ * destination block during a request, so a child document referenced by
+ * many parents is retrieved once.
+ *
+ * The cache is used only if the association query selects the child
+ * documents by identity: it has a top level clause
+ * <code>identityField = boundValue</code> for every identity field of the
+ * child entity other than objectType. Then the identities of the child
+ * documents a parent slot needs are known before the query runs, and are
+ * looked up in the cache. Identities that were requested but not found are
+ * cached as missing. The values of the parent document must be bound only
+ * to those clauses, otherwise the slot is not looked up.
+ *
+ * At most <code>maxSize</code> identities are cached, and cached documents
+ * are kept until the request ends.
+ */
+public class ChildDocCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChildDocCache.class);
+
+    private final Path[] identityFields;
+    private final int objectTypeIx;
+    private final String objectType;
+    // Types and bound values of the identity fields, null for objectType
+    private final Type[] types;
+    private final BoundValue[] keyValues;
+    private final int maxSize;
+    // Documents by identity, null for identities that were not found
+    private final Map<DocId, ResultDocument> docs = new HashMap<>();
+
+    private ChildDocCache(ExecutionBlock block, int objectTypeIx, Type[] types, BoundValue[] keyValues, int maxSize) {
+        this.identityFields = block.getIdentityFields();
+        this.objectTypeIx = objectTypeIx;
+        this.objectType = block.getMetadata().getName();
+        this.types = types;
+        this.keyValues = keyValues;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cache for the child documents of the block retrieved
+     * using the association query, or null if the association query doesn't
+     * select the child documents by identity
+     *
+     * @param block The destination block
+     * @param aq The association query from the parent block to the
+     * destination block
+     * @param maxSize Maximum number of identities to cache. If 0, the cache
+     * is not used.
+     */
+    public static ChildDocCache create(ExecutionBlock block, AssociationQuery aq, int maxSize) {
+        if (maxSize <= 0 || aq == null || aq.getQuery() == null) {
+            return null;
+        }
+        Path[] identityFields = block.getIdentityFields();
+        Type[] types = new Type[identityFields.length];
+        BoundValue[] keyValues = new BoundValue[identityFields.length];
+        int objectTypeIx = -1;
+        List<QueryExpression> clauses = JoinStrategy.conjuncts(aq.getQuery(), new ArrayList<>());
+        for (int i = 0; i < identityFields.length; i++) {
+            if (identityFields[i].equals(PredefinedFields.OBJECTTYPE_PATH)) {
+                objectTypeIx = i;
+            } else {
+                for (QueryExpression clause : clauses) {
+                    QueryFieldInfo field = getKeyField(block, aq, clause);
+                    if (field != null && field.getEntityRelativeFieldNameWithContext().equals(identityFields[i])) {
+                        types[i] = field.getFieldMd().getType();
+                        keyValues[i] = (BoundValue) ((ValueComparisonExpression) clause).getRvalue();
+                        break;
+                    }
+                }
+                if (keyValues[i] == null) {
+                    LOGGER.debug("Association query of {} does not select {}, not caching", block, identityFields[i]);
+                    return null;
+                }
+            }
+        }
+        return new ChildDocCache(block, objectTypeIx, types, keyValues, maxSize);
+    }
+
+    /**
+     * Returns the field of the block the clause compares to a bound value
+     * for equality, or null if the clause is not such a comparison
+     */
+    private static QueryFieldInfo getKeyField(ExecutionBlock block, AssociationQuery aq, QueryExpression clause) {
+        if (clause instanceof ValueComparisonExpression) {
+            ValueComparisonExpression q = (ValueComparisonExpression) clause;
+            if (q.getOp() == BinaryComparisonOperator._eq && q.getRvalue() instanceof BoundValue) {
+                for (QueryFieldInfo x : aq.getQueryFieldInfo()) {
+                    if (x.getClause() == q && x.getFieldNameInClause().equals(q.getField())) {
+                        if (x.getFieldEntity() == block.getMetadata()
+                                && JoinStrategy.isKeyField(x)
+                                && JoinStrategy.isExactType(x.getFieldMd().getType())) {
+                            return x;
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the identities of the child documents selected by the
+     * binders of a parent slot, or null if they can't be determined
+     */
+    public List<DocId> getKeys(BindQuery binders) {
+        List<List<Object>> values = new ArrayList<>(identityFields.length);
+        for (int i = 0; i < identityFields.length; i++) {
+            values.add(null);
+        }
+        for (Binder b : binders.getBindings()) {
+            int ix = keyIndex(b);
+            if (ix < 0) {
+                return null;
+            }
+            List<Object> l = new ArrayList<>();
+            try {
+                if (b.getValue() instanceof List) {
+                    for (Object v : (List) b.getValue()) {
+                        l.add(cast(ix, (Value) v));
+                    }
+                } else {
+                    l.add(cast(ix, (Value) b.getValue()));
+                }
+            } catch (RuntimeException e) {
+                LOGGER.debug("Cannot cast {}:{}", identityFields[ix], e);
+                return null;
+            }
+            values.set(ix, l);
+        }
+        // The identities are all combinations of the bound values
+        List<Object[]> keys = new ArrayList<>();
+        keys.add(new Object[identityFields.length]);
+        for (int i = 0; i < identityFields.length; i++) {
+            if (i == objectTypeIx) {
+                for (Object[] key : keys) {
+                    key[i] = objectType;
+                }
+            } else if (values.get(i) == null) {
+                return null;
+            } else {
+                List<Object[]> newKeys = new ArrayList<>(keys.size() * values.get(i).size());
+                for (Object[] key : keys) {
+                    for (Object v : values.get(i)) {
+                        Object[] newKey = key.clone();
+                        newKey[i] = v;
+                        newKeys.add(newKey);
+                    }
+                }
+                keys = newKeys;
+            }
+        }
+        List<DocId> ret = new ArrayList<>(keys.size());
+        for (Object[] key : keys) {
+            ret.add(new DocId(key, objectTypeIx));
+        }
+        return ret;
+    }
+
+    /**
+     * If the child entity has a single identity field bound to a list of
+     * values, returns binders selecting only the child documents with the
+     * given identities. Otherwise, returns the binders unchanged.
+     */
+    public BindQuery restrict(BindQuery binders, Set<DocId> keys) {
+        if (identityFields.length != 2) {
+            return binders;
+        }
+        List<Binder> list = new ArrayList<>(binders.getBindings().size());
+        for (Binder b : binders.getBindings()) {
+            int ix = keyIndex(b);
+            if (ix >= 0 && b.getValue() instanceof List) {
+                List<Value> values = new ArrayList<>();
+                for (Object v : (List) b.getValue()) {
+                    Object[] key = new Object[identityFields.length];
+                    key[objectTypeIx] = objectType;
+                    key[ix] = cast(ix, (Value) v);
+                    if (keys.contains(new DocId(key, objectTypeIx))) {
+                        values.add((Value) v);
+                    }
+                }
+                b = new Binder(b.getBinding(), values);
+            }
+            list.add(b);
+        }
+        return new BindQuery(list);
+    }
+
+    /**
+     * Returns true if the identity is cached, either with its document, or
+     * as missing
+     */
+    public synchronized boolean contains(DocId key) {
+        return docs.containsKey(key);
+    }
+
+    /**
+     * Caches the documents retrieved for the requested identities. The
+     * requested identities that are not in the documents are cached as
+     * missing.
+     */
+    public synchronized void put(Collection<DocId> requested, List<ResultDocument> results) {
+        Set<DocId> missing = new HashSet<>(requested);
+        for (ResultDocument doc : results) {
+            DocId key = getKey(doc);
+            if (key != null && missing.remove(key) && docs.size() < maxSize) {
+                docs.put(key, doc);
+            }
+        }
+        for (DocId key : missing) {
+            if (docs.size() < maxSize) {
+                docs.putIfAbsent(key, null);
+            }
+        }
+    }
+
+    /**
+     * Adds the cached documents with the given identities to the results,
+     * unless the results already contain them. Returns the added documents.
+     */
+    public synchronized List<ResultDocument> addTo(Collection<DocId> keys, List<ResultDocument> results) {
+        Set<DocId> present = new HashSet<>();
+        for (ResultDocument doc : results) {
+            present.add(getKey(doc));
+        }
+        List<ResultDocument> added = new ArrayList<>();
+        for (DocId key : keys) {
+            ResultDocument doc = docs.get(key);
+            if (doc != null && present.add(key)) {
+                results.add(doc);
+                added.add(doc);
+            }
+        }
+        return added;
+    }
+
+    private int keyIndex(Binder b) {
+        for (int i = 0; i < keyValues.length; i++) {
+            if (keyValues[i] != null && keyValues[i] == b.getBinding()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Object cast(int ix, Value v) {
+        return v == null || v.getValue() == null ? null : types[ix].cast(v.getValue());
+    }
+
+    private DocId getKey(ResultDocument doc) {
+        Object[] key = new Object[identityFields.length];
+        for (int i = 0; i < identityFields.length; i++) {
+            if (i == objectTypeIx) {
+                key[i] = objectType;
+            } else {
+                JsonNode node = doc.getDoc().get(identityFields[i]);
+                if (node == null || node instanceof NullNode) {
+                    return null;
+                }
+                try {
+                    key[i] = types[i].cast(types[i].fromJson(node));
+                } catch (RuntimeException e) {
+                    return null;
+                }
+            }
+        }
+        return new DocId(key, objectTypeIx);
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.ep;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.assoc.AnalyzeQuery;
+import com.redhat.lightblue.assoc.BindQuery;
+import com.redhat.lightblue.assoc.Binder;
+import com.redhat.lightblue.assoc.BoundObject;
+import com.redhat.lightblue.assoc.QueryFieldInfo;
+import com.redhat.lightblue.eval.ArrayContainsEvaluator;
+import com.redhat.lightblue.eval.NaryValueRelationalExpressionEvaluator;
+import com.redhat.lightblue.eval.QueryEvaluationContext;
+import com.redhat.lightblue.eval.QueryEvaluator;
+import com.redhat.lightblue.eval.ValueComparisonEvaluator;
+import com.redhat.lightblue.metadata.CompositeMetadata;
+import com.redhat.lightblue.metadata.FieldTreeNode;
+import com.redhat.lightblue.mindex.CompositeLookupSpec;
+import com.redhat.lightblue.mindex.LookupSpec;
+import com.redhat.lightblue.mindex.MultiValueLookupSpec;
+import com.redhat.lightblue.mindex.RangeLookupSpec;
+import com.redhat.lightblue.mindex.SimpleKeySpec;
+import com.redhat.lightblue.mindex.ValueLookupSpec;
+import com.redhat.lightblue.query.ArrayContainsExpression;
+import com.redhat.lightblue.query.ArrayMatchExpression;
+import com.redhat.lightblue.query.BinaryComparisonOperator;
+import com.redhat.lightblue.query.ContainsOperator;
+import com.redhat.lightblue.query.NaryLogicalExpression;
+import com.redhat.lightblue.query.NaryLogicalOperator;
+import com.redhat.lightblue.query.NaryRelationalOperator;
+import com.redhat.lightblue.query.NaryValueRelationalExpression;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.query.UnaryLogicalExpression;
+import com.redhat.lightblue.query.UnaryLogicalOperator;
+import com.redhat.lightblue.query.Value;
+import com.redhat.lightblue.query.ValueComparisonExpression;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * An association query compiled into an evaluator with parameter slots for
+ * its bound values. The query is compiled once, and the bound values of a
+ * parent document slot are read from its binders during evaluation, instead
+ * of binding the query and building a new evaluator for every slot. The
+ * result is the same as evaluating the query bound by {@link BindQuery}.
+ *
+ * Clauses without bound values use the usual query evaluators. Queries
+ * with bound values in clauses other than value comparisons, $in, and
+ * array contains expressions, or under an elemMatch, are not compiled.
+ *
+ * If the query is a conjunction of such clauses, the key specs to look up
+ * the child documents in an in-memory index are also computed once, and
+ * only the values are plugged in for every slot.
+ */
+public class CompiledAssociationQuery {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompiledAssociationQuery.class);
+
+    private final Node root;
+    // Lookups of the top level clauses, null if not precomputed
+    private final List<ClauseLookup> lookups;
+
+    private CompiledAssociationQuery(Node root, List<ClauseLookup> lookups) {
+        this.root = root;
+        this.lookups = lookups;
+    }
+
+    /**
+     * Compiles the query of the association query, returns null if the
+     * query cannot be compiled
+     *
+     * @param rootMd The root metadata
+     * @param childMd The metadata of the entity the query runs on
+     * @param aq The association query
+     */
+    public static CompiledAssociationQuery compile(CompositeMetadata rootMd,
+                                                   CompositeMetadata childMd,
+                                                   AssociationQuery aq) {
+        QueryExpression query = aq.getQuery();
+        Node root = query == null ? null : compile(query, childMd.getFieldTreeRoot());
+        if (root == null) {
+            LOGGER.debug("Cannot compile association query {}", query);
+            return null;
+        }
+        List<ClauseLookup> lookups = null;
+        if (aq.getIndexKeySpec() != null) {
+            AnalyzeQuery analyzer = new AnalyzeQuery(rootMd, aq.getReference());
+            analyzer.iterate(query);
+            lookups = compileLookups(query, analyzer.getFieldInfo());
+        }
+        return new CompiledAssociationQuery(root, lookups);
+    }
+
+    /**
+     * Evaluates the query on the document using the bound values
+     */
+    public boolean evaluate(JsonDoc doc, BindQuery binders) {
+        QueryEvaluationContext ctx = new QueryEvaluationContext(doc.getRoot());
+        return root.evaluate(ctx, binders);
+    }
+
+    /**
+     * Returns true if {@link #getLookupSpec(BindQuery)} can build the lookup
+     * specs for the query
+     */
+    public boolean hasLookupSpec() {
+        return lookups != null;
+    }
+
+    /**
+     * Returns the spec to look up the documents matching the query with the
+     * bound values in an index built using the key spec of the association
+     * query. Returns null if the lookup spec is not precomputed, or the bound
+     * values don't allow a lookup using the precomputed key specs.
+     */
+    public LookupSpec getLookupSpec(BindQuery binders) {
+        if (lookups == null) {
+            return null;
+        }
+        List<LookupSpec> specs = new ArrayList<>(lookups.size());
+        for (ClauseLookup lookup : lookups) {
+            Object value = lookup.getValue(binders);
+            if (value == UNSUPPORTED) {
+                return null;
+            } else if (value != null) {
+                specs.add((LookupSpec) value);
+            }
+        }
+        if (specs.isEmpty()) {
+            return null;
+        } else if (lookups.size() == 1) {
+            return specs.get(0);
+        } else {
+            return new CompositeLookupSpec(specs.toArray(new LookupSpec[specs.size()]));
+        }
+    }
+
+    private static Binder getBinder(BindQuery binders, BoundObject binding) {
+        for (Binder binder : binders.getBindings()) {
+            if (binder.getBinding() == binding) {
+                return binder;
+            }
+        }
+        return null;
+    }
+
+    private interface Node {
+        boolean evaluate(QueryEvaluationContext ctx, BindQuery binders);
+    }
+
+    /**
+     * Returns the evaluator node for the query, or null if the query has
+     * bound values that cannot be evaluated using parameters
+     */
+    private static Node compile(QueryExpression q, FieldTreeNode context) {
+        if (!hasBoundValues(q)) {
+            QueryEvaluator evaluator = QueryEvaluator.getInstance(q, context);
+            return (ctx, binders) -> evaluator.evaluate(ctx);
+        } else if (q instanceof ValueComparisonExpression) {
+            return compileComparison((ValueComparisonExpression) q, context);
+        } else if (q instanceof NaryValueRelationalExpression) {
+            NaryValueRelationalExpression expr = (NaryValueRelationalExpression) q;
+            NaryValueRelationalExpressionEvaluator evaluator = new NaryValueRelationalExpressionEvaluator(expr, context);
+            BoundObject binding = (BoundObject) expr.getValues();
+            return (ctx, binders) -> evaluator.evaluate(ctx, getValues(binders, binding, expr.getValues()));
+        } else if (q instanceof ArrayContainsExpression) {
+            ArrayContainsExpression expr = (ArrayContainsExpression) q;
+            ArrayContainsEvaluator evaluator = new ArrayContainsEvaluator(expr, context);
+            BoundObject binding = (BoundObject) expr.getValues();
+            return (ctx, binders) -> evaluator.evaluate(ctx, getValues(binders, binding, expr.getValues()));
+        } else if (q instanceof NaryLogicalExpression) {
+            NaryLogicalExpression expr = (NaryLogicalExpression) q;
+            List<Node> nodes = new ArrayList<>(expr.getQueries().size());
+            for (QueryExpression x : expr.getQueries()) {
+                Node node = compile(x, context);
+                if (node == null) {
+                    return null;
+                }
+                nodes.add(node);
+            }
+            boolean and = expr.getOp() == NaryLogicalOperator._and;
+            return (ctx, binders) -> {
+                boolean ret = and;
+                for (Node node : nodes) {
+                    if (node.evaluate(ctx, binders) != and) {
+                        ret = !and;
+                        break;
+                    }
+                }
+                ctx.setResult(ret);
+                return ret;
+            };
+        } else if (q instanceof UnaryLogicalExpression) {
+            UnaryLogicalExpression expr = (UnaryLogicalExpression) q;
+            Node node = compile(expr.getQuery(), context);
+            if (node == null) {
+                return null;
+            }
+            UnaryLogicalOperator op = expr.getOp();
+            return (ctx, binders) -> {
+                ctx.setResult(op.apply(node.evaluate(ctx, binders)));
+                return ctx.getResult();
+            };
+        }
+        return null;
+    }
+
+    /**
+     * A comparison with a bound value. If the value is bound to a list, the
+     * comparison is evaluated as $in for equality, and as an $or of
+     * comparisons for every value otherwise, as the query is bound by
+     * {@link BindQuery}
+     */
+    private static Node compileComparison(ValueComparisonExpression expr, FieldTreeNode context) {
+        BoundObject binding = (BoundObject) expr.getRvalue();
+        ValueComparisonEvaluator evaluator = new ValueComparisonEvaluator(expr, context);
+        NaryValueRelationalExpressionEvaluator in = expr.getOp() == BinaryComparisonOperator._eq
+                ? new NaryValueRelationalExpressionEvaluator(new NaryValueRelationalExpression(expr.getField(),
+                        NaryRelationalOperator._in, new ArrayList<>()), context)
+                : null;
+        return (ctx, binders) -> {
+            Binder binder = getBinder(binders, binding);
+            Object value = binder == null ? expr.getRvalue() : binder.getValue();
+            if (value instanceof List) {
+                if (in != null) {
+                    return in.evaluate(ctx, (List<Value>) value);
+                }
+                boolean ret = false;
+                for (Value v : (List<Value>) value) {
+                    if (evaluator.evaluate(ctx, v.getValue())) {
+                        ret = true;
+                        break;
+                    }
+                }
+                ctx.setResult(ret);
+                return ret;
+            } else {
+                return evaluator.evaluate(ctx, ((Value) value).getValue());
+            }
+        };
+    }
+
+    private static List<Value> getValues(BindQuery binders, BoundObject binding, List<Value> unbound) {
+        Binder binder = getBinder(binders, binding);
+        return binder == null ? unbound : (List<Value>) binder.getValue();
+    }
+
+    private static boolean hasBoundValues(QueryExpression q) {
+        if (q instanceof ValueComparisonExpression) {
+            return ((ValueComparisonExpression) q).getRvalue() instanceof BoundObject;
+        } else if (q instanceof NaryValueRelationalExpression) {
+            return ((NaryValueRelationalExpression) q).getValues() instanceof BoundObject;
+        } else if (q instanceof ArrayContainsExpression) {
+            return ((ArrayContainsExpression) q).getValues() instanceof BoundObject;
+        } else if (q instanceof NaryLogicalExpression) {
+            return ((NaryLogicalExpression) q).getQueries().stream().anyMatch(CompiledAssociationQuery::hasBoundValues);
+        } else if (q instanceof UnaryLogicalExpression) {
+            return hasBoundValues(((UnaryLogicalExpression) q).getQuery());
+        } else if (q instanceof ArrayMatchExpression) {
+            return hasBoundValues(((ArrayMatchExpression) q).getElemMatch());
+        }
+        return false;
+    }
+
+    private static final Object UNSUPPORTED = new Object();
+
+    /**
+     * Builds the lookup spec of a clause for the bound values. Returns null
+     * if the clause is not used in the lookup, and UNSUPPORTED if the
+     * precomputed key spec cannot be used for the bound values.
+     */
+    private interface ClauseLookup {
+        Object getValue(BindQuery binders);
+    }
+
+    /**
+     * Precomputes the key specs of the clauses, following
+     * {@link com.redhat.lightblue.mindex.GetIndexLookupSpec}. Returns null
+     * if the query is not a conjunction of clauses supported here.
+     */
+    private static List<ClauseLookup> compileLookups(QueryExpression query, List<QueryFieldInfo> fieldInfo) {
+        List<QueryExpression> clauses;
+        if (query instanceof NaryLogicalExpression
+                && ((NaryLogicalExpression) query).getOp() == NaryLogicalOperator._and) {
+            clauses = ((NaryLogicalExpression) query).getQueries();
+        } else {
+            clauses = new ArrayList<>();
+            clauses.add(query);
+        }
+        List<ClauseLookup> list = new ArrayList<>(clauses.size());
+        for (QueryExpression clause : clauses) {
+            ClauseLookup lookup = compileLookup(clause, fieldInfo);
+            if (lookup == null) {
+                return null;
+            }
+            list.add(lookup);
+        }
+        return list;
+    }
+
+    private static ClauseLookup compileLookup(QueryExpression clause, List<QueryFieldInfo> fieldInfo) {
+        if (clause instanceof ValueComparisonExpression) {
+            ValueComparisonExpression expr = (ValueComparisonExpression) clause;
+            SimpleKeySpec key = keySpec(expr.getField(), clause, fieldInfo);
+            if (key == null) {
+                return null;
+            }
+            BinaryComparisonOperator op = expr.getOp();
+            if (expr.getRvalue() instanceof BoundObject) {
+                BoundObject binding = (BoundObject) expr.getRvalue();
+                return binders -> {
+                    Binder binder = getBinder(binders, binding);
+                    if (binder == null) {
+                        return comparisonLookup(key, op, null);
+                    } else if (binder.getValue() instanceof List) {
+                        if (op == BinaryComparisonOperator._eq) {
+                            return new MultiValueLookupSpec(key, values((List<Value>) binder.getValue()));
+                        }
+                        // Bound as an $or of comparisons
+                        return UNSUPPORTED;
+                    } else {
+                        return comparisonLookup(key, op, ((Value) binder.getValue()).getValue());
+                    }
+                };
+            } else {
+                Object value = expr.getRvalue().getValue();
+                return binders -> comparisonLookup(key, op, value);
+            }
+        } else if (clause instanceof NaryValueRelationalExpression) {
+            NaryValueRelationalExpression expr = (NaryValueRelationalExpression) clause;
+            SimpleKeySpec key = keySpec(expr.getField(), clause, fieldInfo);
+            if (key == null) {
+                return null;
+            }
+            if (expr.getOp() != NaryRelationalOperator._in) {
+                return binders -> null;
+            }
+            BoundObject binding = expr.getValues() instanceof BoundObject ? (BoundObject) expr.getValues() : null;
+            return binders -> new MultiValueLookupSpec(key, values(getValues(binders, binding, expr.getValues())));
+        } else if (clause instanceof ArrayContainsExpression) {
+            ArrayContainsExpression expr = (ArrayContainsExpression) clause;
+            SimpleKeySpec key = keySpec(expr.getArray(), clause, fieldInfo);
+            if (key == null) {
+                return null;
+            }
+            if (expr.getOp() != ContainsOperator._any) {
+                return binders -> null;
+            }
+            BoundObject binding = expr.getValues() instanceof BoundObject ? (BoundObject) expr.getValues() : null;
+            return binders -> new MultiValueLookupSpec(key, values(getValues(binders, binding, expr.getValues())));
+        }
+        return null;
+    }
+
+    private static Object comparisonLookup(SimpleKeySpec key, BinaryComparisonOperator op, Object value) {
+        switch (op) {
+            case _eq:
+                return new ValueLookupSpec(key, value);
+            case _lte:
+            case _lt:
+                return new RangeLookupSpec(key, null, value);
+            case _gte:
+            case _gt:
+                return new RangeLookupSpec(key, value, null);
+            default:
+                return null;
+        }
+    }
+
+    private static List<Object> values(List<Value> values) {
+        List<Object> list = new ArrayList<>(values.size());
+        for (Value v : values) {
+            list.add(v.getValue());
+        }
+        return list;
+    }
+
+    private static SimpleKeySpec keySpec(Path field, QueryExpression clause, List<QueryFieldInfo> fieldInfo) {
+        for (QueryFieldInfo fi : fieldInfo) {
+            if (fi.getClause() == clause && fi.getFieldNameInClause().equals(field)) {
+                return new SimpleKeySpec(fi);
+            }
+        }
+        return null;
+    }
+}
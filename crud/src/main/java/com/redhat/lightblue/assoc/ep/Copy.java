@@ -18,9 +18,7 @@
  */
 package com.redhat.lightblue.assoc.ep;
 
-import java.util.List;
 import java.util.stream.Stream;
-import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -53,10 +51,8 @@ public class Copy extends AbstractSearchStep {
                 }
             };
         if(recordResultSetSize) {
-            List<ResultDocument> list=result.stream()
-                    .peek(ctx::monitorMemory)
-                    .collect(Collectors.toList());
-            result=new ListStepResult<ResultDocument>(list);
+            SpillableList list=SpillableList.collect(ctx, block, result.stream());
+            result=list;
             ctx.setMatchCount(list.size());
         }
         return result;
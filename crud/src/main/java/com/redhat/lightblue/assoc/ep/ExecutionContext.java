@@ -18,9 +18,13 @@
  */
 package com.redhat.lightblue.assoc.ep;
 
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.redhat.lightblue.Request;
+import com.redhat.lightblue.crud.CompositeExecutor;
 import com.redhat.lightblue.crud.CrudConstants;
 import com.redhat.lightblue.crud.Factory;
 import com.redhat.lightblue.mediator.OperationContext;
@@ -30,6 +34,7 @@ import com.redhat.lightblue.util.JsonUtils;
 import com.redhat.lightblue.util.MemoryMonitor;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,17 +43,21 @@ import org.slf4j.LoggerFactory;
  */
 public class ExecutionContext {
     private final OperationContext opctx;
-    private final ExecutorService executor;
+    private final CompositeExecutor.Session executor;
     private int matchCount;
     private final MemoryMonitor<JsonNode> memoryMonitor = new MemoryMonitor<>(JsonUtils::size);
+    private final Map<ExecutionBlock, ChildDocCache> childDocCaches = new ConcurrentHashMap<>();
+    private final int spillThresholdB;
+    private final List<SpillFile> spillFiles = new ArrayList<>();
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ExecutionContext.class);
 
-    public ExecutionContext(OperationContext ctx, ExecutorService executor) {
+    public ExecutionContext(OperationContext ctx, CompositeExecutor.Session executor) {
         this.opctx = ctx;
         this.executor = executor;
 
         Factory factory = ctx.getFactory();
+        spillThresholdB = factory.getCompositeFindSpillThresholdB();
 
         registerMemoryMonitors(
                 factory.getMaxExecutionContextSizeForCompositeFindB(),
@@ -60,7 +69,7 @@ public class ExecutionContext {
         return opctx;
     }
 
-    public ExecutorService getExecutor() {
+    public CompositeExecutor.Session getExecutor() {
         return executor;
     }
 
@@ -80,8 +89,52 @@ public class ExecutionContext {
         matchCount++;
     }
 
+    /**
+     * Returns the cache of the child documents retrieved for the block
+     * using the association query, or null if they are not cached. The
+     * cache is shared by all batches of the request.
+     */
+    public ChildDocCache getChildDocCache(ExecutionBlock block, AssociationQuery aq) {
+        return childDocCaches.computeIfAbsent(block,
+                b -> ChildDocCache.create(b, aq, opctx.getFactory().getChildDocCacheSize()));
+    }
+
+    /**
+     * Returns true if the documents held by the execution crossed the spill
+     * threshold, so steps storing documents should write them to spill
+     * files instead of keeping them in memory
+     */
+    public boolean shouldSpill() {
+        return spillThresholdB > 0 && memoryMonitor.getDataSizeB() >= spillThresholdB;
+    }
+
+    /**
+     * Creates a spill file. The file is deleted when the execution context
+     * is closed.
+     */
+    public SpillFile newSpillFile() {
+        SpillFile file = new SpillFile();
+        synchronized (spillFiles) {
+            spillFiles.add(file);
+        }
+        return file;
+    }
+
+    /**
+     * Returns the node factory used to read documents from spill files
+     */
+    public JsonNodeFactory getNodeFactory() {
+        return opctx.getFactory().getNodeFactory();
+    }
+
     public void close() {
-        executor.shutdown();
+        if (executor != null) {
+            executor.close();
+        }
+        synchronized (spillFiles) {
+            spillFiles.forEach(SpillFile::close);
+            spillFiles.clear();
+        }
     }
 
     /**
@@ -119,6 +172,54 @@ public class ExecutionContext {
         memoryMonitor.apply(json);
     }
 
+    /**
+     * Monitors the memory used by the document, and returns true if it was
+     * not counted before. Steps holding documents temporarily use this to
+     * release only the documents they counted.
+     *
+     * @see #monitorMemory(JsonNode)
+     */
+    public boolean monitorMemoryOnce(ResultDocument document) {
+        return memoryMonitor.add(document.getDoc().getRoot());
+    }
+
+    /**
+     * Releases the memory counted for a JSON object that is no longer held
+     * by the execution, such as documents already returned to the caller.
+     * The object may have changed since it was counted, so the caller gives
+     * the size that was counted.
+     */
+    public void releaseMemory(JsonNode json, int sizeB) {
+        memoryMonitor.release(json, sizeB);
+    }
+
+    /**
+     * Releases the memory counted for a document that is dropped by the
+     * execution before it is returned. Nothing is released if the document
+     * was not counted.
+     */
+    public void releaseMemory(ResultDocument document) {
+        memoryMonitor.release(document.getDoc().getRoot());
+    }
+
+    /**
+     * Monitors memory held by the execution that is not a JSON object, such
+     * as the lists of documents built by a step. The caller estimates the
+     * size, and releases it with {@link #releaseMemory(int)}.
+     *
+     * @see #monitorMemory(JsonNode)
+     */
+    public void monitorMemory(int sizeB) {
+        memoryMonitor.addSize(sizeB);
+    }
+
+    /**
+     * Releases memory counted by {@link #monitorMemory(int)}
+     */
+    public void releaseMemory(int sizeB) {
+        memoryMonitor.releaseSize(sizeB);
+    }
+
     /**
      * Experimental! Use carefully.
      */
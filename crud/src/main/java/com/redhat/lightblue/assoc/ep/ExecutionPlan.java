@@ -105,6 +105,33 @@ public class ExecutionPlan {
                          QueryPlan searchQueryPlan,
                          QueryPlan retrievalQueryPlan,
                          CRUDOperationContext ctx) {
+        this(requestQuery, requestProjection, requestSort, from, to, rootMd, searchQueryPlan, retrievalQueryPlan, ctx, false);
+    }
+
+    /**
+     * Creates an execution plan. If <code>countOnly</code> is set, the plan
+     * only returns the root documents matching the query, with only the
+     * fields required to evaluate the query. The projection, sort and range
+     * are ignored, and associated documents are retrieved and assembled only
+     * if they are needed to evaluate the query. The retrieval plan should
+     * contain only those entities.
+     */
+    public ExecutionPlan(QueryExpression requestQuery,
+                         Projection requestProjection,
+                         Sort requestSort,
+                         Long from,
+                         Long to,
+                         CompositeMetadata rootMd,
+                         QueryPlan searchQueryPlan,
+                         QueryPlan retrievalQueryPlan,
+                         CRUDOperationContext ctx,
+                         boolean countOnly) {
+        if (countOnly) {
+            requestProjection = null;
+            requestSort = null;
+            from = null;
+            to = null;
+        }
 
         // Specifies if a filtering layer is needed at the end of the
         // pipeline.  This is needed if searchplan returns more than
@@ -197,7 +224,8 @@ public class ExecutionPlan {
                     List<Source<ResultDocument>> list = (List<Source<ResultDocument>>) block.getSourceBlocks().stream().
                             map(Source<ResultDocument>::new).
                             collect(Collectors.toList());
-                    Join join = new Join(block, list.toArray(new Source[list.size()]));
+                    Source<ResultDocument>[] sources = list.toArray(new Source[list.size()]);
+                    Join join = new Join(block, sources, JoinStrategy.choose(block, sources));
                     search = new JoinSearch(block, new Source<>(join));
                     block.setResultStep(search);
                 }
@@ -227,24 +255,32 @@ public class ExecutionPlan {
 
                         // Make sure we have unique docs
                         Unique u=new Unique(block, new Source<>(search));
-                        if(unassigned.isEmpty()&&!matchCountSet) {
-                            u.setRecordResultSetSize(true);
-                            matchCountSet=true;
-                        }
                         Source<ResultDocument> last = new Source<>(u);
-                        // Sort the results
-                        if (requestSort != null) {
-                            last = new Source<>(new SortResults(block, last, requestSort));
-                        }
-                        if(!needsFinalFiltering) {
-                        	if (from != null) {
-                        		last = new Source<>(new Skip(block, from.intValue(), last));
-                        	}
-                        	if (to != null) {
-                        		last = new Source<>(new Limit(block, to.intValue() - (from==null?0:from.intValue()) + 1, last));
-                        	}
+                        boolean recordSize=unassigned.isEmpty()&&!matchCountSet;
+                        matchCountSet=matchCountSet||recordSize;
+                        if (requestSort != null && to != null && !needsFinalFiltering) {
+                            // Only the requested range of the sorted results is needed,
+                            // so sort with a bounded heap instead of skip/limit
+                            SortResults sort=new SortResults(block, last, requestSort);
+                            sort.setRange(from == null ? null : from.intValue(), to.intValue());
+                            sort.setRecordResultSetSize(recordSize);
+                            block.setResultStep(new Source<>(sort));
+                        } else {
+                            u.setRecordResultSetSize(recordSize);
+                            // Sort the results
+                            if (requestSort != null) {
+                                last = new Source<>(new SortResults(block, last, requestSort));
+                            }
+                            if(!needsFinalFiltering) {
+                            	if (from != null) {
+                            		last = new Source<>(new Skip(block, from.intValue(), last));
+                            	}
+                            	if (to != null) {
+                            		last = new Source<>(new Limit(block, to.intValue() - (from==null?0:from.intValue()) + 1, last));
+                            	}
+                            }
+                            block.setResultStep(last);
                         }
-                        block.setResultStep(last);
                     }
                     // Set the root projection
                     Set<Path> fields = getIncludedFieldsOfEntityForSearch(block, qfi);
@@ -320,7 +356,13 @@ public class ExecutionPlan {
                 fields.addAll(getIncludedFieldsOfEntityForProjection(block, rootMd, requestProjection));
                 search.setProjection(writeProjection(fields));
                 search.setQueries(node.getData().getConjuncts());
-                resultStep = new Assemble(block, last, destinationBlocks, ctx.getFactory().getMemoryIndexThreshold());
+                if (countOnly && !needsFinalFiltering) {
+                    // The root documents are all that's needed to count
+                    resultStep = search;
+                    block.setResultStep(resultStep);
+                    continue;
+                }
+                resultStep = new Assemble(block, last, destinationBlocks, ctx.getFactory().getMemoryIndexThreshold(), ctx.getFactory().getAssembleWindowSize());
                 if(needsFinalFiltering) {
                     resultStep = new Filter(block, new Source<>(resultStep), requestQuery);
                     ((Filter)resultStep).setRecordResultSetSize(true);
@@ -332,7 +374,9 @@ public class ExecutionPlan {
                         resultStep = new Limit(block, to.intValue() - (from==null?0:from.intValue()) + 1, new Source<>(resultStep));
                     }
                 }
-                resultStep = new Project(block, new Source<>(resultStep), requestProjection);
+                if (!countOnly) {
+                    resultStep = new Project(block, new Source<>(resultStep), requestProjection);
+                }
                 block.setResultStep(resultStep);
             } else {
                 // Processing one of the associated entity nodes
@@ -352,7 +396,7 @@ public class ExecutionPlan {
                 Set<Path> fields = getIncludedFieldsOfEntityForSearch(block, qfi);
                 fields.addAll(getIncludedFieldsOfEntityForProjection(block, rootMd, requestProjection));
                 search.setProjection(writeProjection(fields));
-                block.setResultStep(new Assemble(block, new Source<>(search), destinationBlocks, ctx.getFactory().getMemoryIndexThreshold()));
+                block.setResultStep(new Assemble(block, new Source<>(search), destinationBlocks, ctx.getFactory().getMemoryIndexThreshold(), ctx.getFactory().getAssembleWindowSize()));
             }
         }
 
@@ -19,9 +19,7 @@
 package com.redhat.lightblue.assoc.ep;
 
 import java.util.stream.Stream;
-import java.util.stream.Collectors;
 
-import java.util.List;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
@@ -61,10 +59,8 @@ public class Filter extends Step<ResultDocument> {
                 }
             };
         if(recordResultSetSize) {
-            List<ResultDocument> list=result.stream()
-                    .peek(ctx::monitorMemory)
-                    .collect(Collectors.toList());
-            result=new ListStepResult<ResultDocument>(list);
+            SpillableList list=SpillableList.collect(ctx, block, result.stream());
+            result=list;
             ctx.setMatchCount(list.size());
         }
         return result;
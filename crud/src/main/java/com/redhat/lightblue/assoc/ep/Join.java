@@ -20,12 +20,17 @@ package com.redhat.lightblue.assoc.ep;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +42,8 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 
 import com.redhat.lightblue.metadata.ResolvedReferenceField;
 
+import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.util.Path;
 import com.redhat.lightblue.util.Tuples;
 
 /**
@@ -51,13 +58,26 @@ public class Join extends Step<JoinTuple> {
     private static final Logger LOGGER = LoggerFactory.getLogger(Join.class);
 
     private final Source<ResultDocument>[] sources;
+    private final JoinStrategy strategy;
 
     /**
-     * Construct the join with the given sources
+     * Construct the join with the given sources, building every tuple
      */
     public Join(ExecutionBlock block, Source<ResultDocument>[] sources) {
+        this(block, sources, JoinStrategy.CARTESIAN);
+    }
+
+    /**
+     * Construct the join with the given sources and strategy
+     */
+    public Join(ExecutionBlock block, Source<ResultDocument>[] sources, JoinStrategy strategy) {
         super(block);
         this.sources = sources;
+        this.strategy = strategy;
+    }
+
+    public JoinStrategy getStrategy() {
+        return strategy;
     }
 
     /**
@@ -82,39 +102,222 @@ public class Join extends Step<JoinTuple> {
             if (source.getStep().getBlock().getMetadata() == block.getMetadata().getParent()) {
                 parentIndex = i;
             }
-            futureResults[i++] = ctx.getExecutor().submit(() -> {
+            futureResults[i] = ctx.getExecutor().submit(() -> {
                 return source.getStep().getResults(ctx);
             });
+            ctx.getOperationContext().getDeadline().register(futureResults[i++]);
         }
 
-        Tuples<ResultDocument> tuples = new Tuples();
-        i = 0;
-        for (Future<StepResult<ResultDocument>> futureResult : futureResults) {
-            tuples.add(() -> {
-                try {
-                    return futureResult.get().stream().iterator();
-                } catch (InterruptedException x) {
-                    throw new RuntimeException(x);
-                } catch (ExecutionException ex) {
-                    throw new RuntimeException(ex);
-                }
+        Supplier<Iterator<List<ResultDocument>>> docTuples;
+        if (strategy.getKind() == JoinStrategy.Kind.HASH) {
+            docTuples = () -> hashJoin(futureResults, ctx);
+        } else {
+            Tuples<ResultDocument> tuples = new Tuples();
+            for (Future<StepResult<ResultDocument>> futureResult : futureResults) {
+                tuples.add(() -> getSourceResults(futureResult, ctx));
             }
-            );
+            docTuples = tuples::tuples;
         }
         if (ctx.hasErrors()) {
             return StepResult.EMPTY;
         }
-        return new JoinStream(tuples, parentIndex, parentIndex == -1 ? null
+        return new JoinStream(docTuples, parentIndex, parentIndex == -1 ? null
                 : block.getAssociationQueryForEdge(sources[parentIndex].getBlock()).
                 getReference());
     }
 
+    private static Iterator<ResultDocument> getSourceResults(Future<StepResult<ResultDocument>> futureResult, ExecutionContext ctx) {
+        try {
+            return futureResult.get().stream().iterator();
+        } catch (InterruptedException x) {
+            throw new RuntimeException(x);
+        } catch (CancellationException x) {
+            ctx.getOperationContext().getDeadline().check();
+            throw x;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Builds the document tuples whose join key values agree. The tuples
+     * are built source by source: the documents of a source are hashed on
+     * the key fields they share with the previous sources, and each tuple
+     * of the previous sources is extended with the documents having the
+     * same key values. A source sharing no keys with the previous sources
+     * extends every tuple with every document.
+     *
+     * The tuples of all but the last source are kept in memory, and counted
+     * in the memory of the execution context. The tuples extended with the
+     * documents of the last source are built as they are iterated.
+     */
+    private Iterator<List<ResultDocument>> hashJoin(Future<StepResult<ResultDocument>>[] futureResults, ExecutionContext ctx) {
+        List<List<ResultDocument>> tuples = new ArrayList<>();
+        tuples.add(new ArrayList<>());
+        int tuplesB = listSizeB(1);
+        ctx.monitorMemory(tuplesB);
+        int last = futureResults.length - 1;
+        for (int i = 0; i < last; i++) {
+            HashedSource hashed = new HashedSource(i, futureResults[i], ctx);
+            List<List<ResultDocument>> next = new ArrayList<>();
+            int nextB = 0;
+            for (List<ResultDocument> t : tuples) {
+                for (ResultDocument doc : hashed.getMatches(t)) {
+                    List<ResultDocument> l = extend(t, doc);
+                    int sizeB = listSizeB(l.size());
+                    ctx.monitorMemory(sizeB);
+                    nextB += sizeB;
+                    next.add(l);
+                }
+            }
+            LOGGER.debug("Hash join source {}: {} documents, {} tuples", i, hashed.docs.size(), next.size());
+            hashed.release();
+            ctx.releaseMemory(tuplesB);
+            tuples = next;
+            tuplesB = nextB;
+        }
+        if (last < 0) {
+            ctx.releaseMemory(tuplesB);
+            return tuples.iterator();
+        }
+        return new ProbeIterator(tuples, tuplesB, new HashedSource(last, futureResults[last], ctx), ctx);
+    }
+
+    /**
+     * Estimated size of a list of n documents, counting the references to
+     * the documents, which are counted separately
+     */
+    private static int listSizeB(int n) {
+        return 32 + 8 * n;
+    }
+
+    /**
+     * The documents of a source, hashed on the key fields they share with
+     * the previous sources
+     */
+    private class HashedSource {
+        private final List<ResultDocument> docs = new ArrayList<>();
+        private final List<Path> probeFields;
+        private final Map<List<Object>, List<ResultDocument>> hash = new HashMap<>();
+        private final ExecutionContext ctx;
+        private int sizeB;
+
+        HashedSource(int index, Future<StepResult<ResultDocument>> futureResult, ExecutionContext ctx) {
+            this.ctx = ctx;
+            ctx.getOperationContext().getDeadline().check();
+            probeFields = strategy.getProbeFields(index);
+            for (Iterator<ResultDocument> itr = getSourceResults(futureResult, ctx); itr.hasNext();) {
+                ResultDocument doc = itr.next();
+                ctx.monitorMemory(doc);
+                docs.add(doc);
+                if (!probeFields.isEmpty()) {
+                    List<Object> key = new ArrayList<>(probeFields.size());
+                    for (Path field : probeFields) {
+                        key.add(strategy.getKeyValue(index, field, doc));
+                    }
+                    hash.computeIfAbsent(key, k -> new ArrayList<>()).add(doc);
+                    // The key, and the reference to the document
+                    count(listSizeB(probeFields.size()) + 8);
+                }
+            }
+            count(listSizeB(docs.size()));
+        }
+
+        private void count(int b) {
+            ctx.monitorMemory(b);
+            sizeB += b;
+        }
+
+        /**
+         * Returns the documents whose key values agree with the tuple
+         */
+        List<ResultDocument> getMatches(List<ResultDocument> tuple) {
+            if (probeFields.isEmpty()) {
+                return docs;
+            }
+            List<Object> key = new ArrayList<>(probeFields.size());
+            for (Path field : probeFields) {
+                int source = strategy.getFirstSource(field);
+                key.add(strategy.getKeyValue(source, field, tuple.get(source)));
+            }
+            List<ResultDocument> matches = hash.get(key);
+            return matches == null ? Collections.emptyList() : matches;
+        }
+
+        /**
+         * Releases the memory counted for the lists and the hash. The
+         * documents are still referenced by the tuples.
+         */
+        void release() {
+            ctx.releaseMemory(sizeB);
+            sizeB = 0;
+        }
+    }
+
+    /**
+     * Extends the tuples of the previous sources with the matching
+     * documents of the last source as the tuples are iterated. The memory
+     * counted for the tuples and the last source is released when the
+     * iteration completes.
+     */
+    private static class ProbeIterator implements Iterator<List<ResultDocument>> {
+        private final Iterator<List<ResultDocument>> tuples;
+        private final HashedSource last;
+        private final ExecutionContext ctx;
+        private final int tuplesB;
+        private boolean released = false;
+        private List<ResultDocument> tuple;
+        private Iterator<ResultDocument> matches = Collections.emptyIterator();
+
+        ProbeIterator(List<List<ResultDocument>> tuples, int tuplesB, HashedSource last, ExecutionContext ctx) {
+            this.tuples = tuples.iterator();
+            this.tuplesB = tuplesB;
+            this.last = last;
+            this.ctx = ctx;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!matches.hasNext()) {
+                if (!tuples.hasNext()) {
+                    if (!released) {
+                        last.release();
+                        ctx.releaseMemory(tuplesB);
+                        released = true;
+                    }
+                    return false;
+                }
+                tuple = tuples.next();
+                matches = last.getMatches(tuple).iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public List<ResultDocument> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return extend(tuple, matches.next());
+        }
+    }
+
+    private static List<ResultDocument> extend(List<ResultDocument> tuple, ResultDocument doc) {
+        List<ResultDocument> l = new ArrayList<>(tuple.size() + 1);
+        l.addAll(tuple);
+        l.add(doc);
+        return l;
+    }
+
     private static class JoinStream implements StepResult<JoinTuple> {
-        private final Tuples<ResultDocument> tuples;
+        private final Supplier<Iterator<List<ResultDocument>>> tuples;
         private final int parentIndex;
         private final ResolvedReferenceField parentReference;
 
-        public JoinStream(Tuples<ResultDocument> tuples,
+        public JoinStream(Supplier<Iterator<List<ResultDocument>>> tuples,
                           int parentIndex,
                           ResolvedReferenceField parentReference) {
             this.tuples = tuples;
@@ -124,7 +327,7 @@ public class Join extends Step<JoinTuple> {
 
         @Override
         public Stream<JoinTuple> stream() {
-            Iterable<JoinTuple> itr = () -> new JoinTupleIterator(tuples.tuples(), parentIndex, parentReference);
+            Iterable<JoinTuple> itr = () -> new JoinTupleIterator(tuples.get(), parentIndex, parentReference);
             return StreamSupport.stream(itr.spliterator(), false);
         }
     }
@@ -233,6 +436,7 @@ public class Join extends Step<JoinTuple> {
             arr.add(cb.toJson(s.getStep()));
         }
         o.set("join", arr);
+        o.set("strategy", strategy.toJson());
         return o;
     }
 
@@ -19,11 +19,17 @@
 package com.redhat.lightblue.assoc.ep;
 
 import java.util.List;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 
+import com.google.common.base.Throwables;
+
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
@@ -35,9 +41,11 @@ import com.redhat.lightblue.query.QueryExpression;
 import com.redhat.lightblue.query.NaryLogicalOperator;
 
 import com.redhat.lightblue.mediator.OperationContext;
+import com.redhat.lightblue.crud.AdaptiveBatchSizer;
 import com.redhat.lightblue.crud.CRUDFindRequest;
 import com.redhat.lightblue.crud.DocumentStream;
 import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.util.JsonUtils;
 
 /**
  * Performs searches based on the n-tuple of result documents obtained from the
@@ -58,7 +66,35 @@ public class JoinSearch extends AbstractSearchStep {
 
     @Override
     protected DocumentStream<ResultDocument> getSearchResults(final ExecutionContext ctx) {
-        return new BatchQueryIterator(256,ctx);
+        int prefetchDepth = ctx.getOperationContext().getFactory().getJoinPrefetchDepth();
+        if (prefetchDepth > 0 && ctx.getExecutor() != null) {
+            return new PrefetchingBatchQueryIterator(prefetchDepth, ctx);
+        } else {
+            return new BatchQueryIterator(ctx);
+        }
+    }
+
+    /**
+     * Reads join tuples from the source until the batch has at least
+     * batchSize queries, or the source is exhausted
+     */
+    private List<QueryExpression> nextQueryBatch(Iterator<JoinTuple> sourceStream, int batchSize) {
+        ArrayList<QueryExpression> qBatch=new ArrayList<>(batchSize);
+        while(sourceStream.hasNext()&&qBatch.size()<batchSize) {
+            JoinTuple t=sourceStream.next();
+            qBatch.addAll(Searches.writeQueriesForJoinTuple(t, block));
+        }
+        return qBatch;
+    }
+
+    private CRUDFindRequest batchFindRequest(QueryExpression q) {
+        CRUDFindRequest findRequest = new CRUDFindRequest();
+        findRequest.setQuery(Searches.and(q, query));
+        findRequest.setProjection(projection);
+        findRequest.setSort(sort);
+        findRequest.setFrom(from);
+        findRequest.setTo(to);
+        return findRequest;
     }
 
     /**
@@ -66,32 +102,44 @@ public class JoinSearch extends AbstractSearchStep {
      *
      * When the results are retrieved from the stream, executes a
      * batch of queries, computes results, and streams them to the
-     * caller
+     * caller. The number of queries in a batch is chosen by the
+     * AdaptiveBatchSizer of the factory, using the time spent by the
+     * back-end running the previous batches.
      */
     private class BatchQueryIterator implements DocumentStream<ResultDocument> {
-        private final int batchSize;
         private final ExecutionContext ctx;
         private final Iterator<JoinTuple> sourceStream;
         private final ArrayList<Consumer<ResultDocument>> listeners=new ArrayList<>();
+        private final AdaptiveBatchSizer sizer;
+        private final String sizerKey;
+        private int batchSize;
 
         private DocumentStream<DocCtx> currentIterator;
         private boolean done=false; // Are we still iterating, or are we done?
+
+        // Statistics of the current batch
+        private int batchQueries;
+        private int batchQuerySizeB;
+        private long batchResults;
+        private long batchNanos;
         
-        public BatchQueryIterator(int batchSize,ExecutionContext ctx) {
-            this.batchSize=batchSize;
+        public BatchQueryIterator(ExecutionContext ctx) {
             this.ctx=ctx;
+            sizer=ctx.getOperationContext().getFactory().getBatchSizer();
+            sizerKey=Searches.batchSizerKey(block,"join");
+            batchSize=sizer.getBatchSize(sizerKey);
             sourceStream=source.getStep().getResults(ctx).stream().iterator();
         }
 
         @Override
         public boolean hasNext() {
             if(!done) {
-                if(currentIterator==null||!currentIterator.hasNext())
+                if(!currentHasNext())
                     retrieveNextBatch();
                 if(done)
                     return false;
                 else
-                    return currentIterator.hasNext();
+                    return currentHasNext();
             } else {
                 return false;
             }
@@ -100,10 +148,14 @@ public class JoinSearch extends AbstractSearchStep {
         @Override
         public ResultDocument next() {
             if(!done) {
-                if(currentIterator==null||!currentIterator.hasNext())
+                if(!currentHasNext())
                     retrieveNextBatch();
                 if(currentIterator!=null) {
-                    ResultDocument doc=new ResultDocument(block,currentIterator.next().getOutputDocument());
+                    long start=System.nanoTime();
+                    DocCtx next=currentIterator.next();
+                    batchNanos+=System.nanoTime()-start;
+                    batchResults++;
+                    ResultDocument doc=new ResultDocument(block,next.getOutputDocument());
                     for(Consumer<ResultDocument> l:listeners)
                         l.accept(doc);
                     return doc;
@@ -114,8 +166,30 @@ public class JoinSearch extends AbstractSearchStep {
 
         @Override
         public void close() {
-            if(currentIterator!=null)
+            closeBatch();
+        }
+
+        private boolean currentHasNext() {
+            if(currentIterator==null)
+                return false;
+            long start=System.nanoTime();
+            boolean ret=currentIterator.hasNext();
+            batchNanos+=System.nanoTime()-start;
+            return ret;
+        }
+
+        /**
+         * Closes the current batch, and records its statistics
+         */
+        private void closeBatch() {
+            if(currentIterator!=null) {
                 currentIterator.close();
+                currentIterator=null;
+            }
+            if(batchQueries>0) {
+                batchSize=sizer.record(sizerKey,batchQueries,batchNanos/1000000l,batchResults,batchQuerySizeB);
+                batchQueries=0;
+            }
         }
 
         @Override
@@ -125,31 +199,21 @@ public class JoinSearch extends AbstractSearchStep {
         
         private void retrieveNextBatch() {
             do {
-                int n=0;
-                ArrayList<QueryExpression> qBatch=new ArrayList<>(batchSize);
-                if(currentIterator!=null) {
-                    currentIterator.close();
-                    currentIterator=null;
-                }
-                while(sourceStream.hasNext()&&n<batchSize) {
-                    JoinTuple t=sourceStream.next();
-                    qBatch.addAll(Searches.writeQueriesForJoinTuple(t, block));
-                    n++;
-                }
+                ctx.getOperationContext().getDeadline().check();
+                closeBatch();
+                List<QueryExpression> qBatch=nextQueryBatch(sourceStream,batchSize);
                 if(!qBatch.isEmpty()) {
                     QueryExpression q = Searches.combine(NaryLogicalOperator._or, qBatch);
-                    CRUDFindRequest findRequest = new CRUDFindRequest();
-                    findRequest.setQuery(Searches.and(q, query));
-                    findRequest.setProjection(projection);
-                    findRequest.setSort(sort);
-                    findRequest.setFrom(from);
-                    findRequest.setTo(to);
-                    OperationContext opctx = search(ctx, findRequest);
+                    batchQueries=qBatch.size();
+                    batchQuerySizeB=JsonUtils.size(q.toJson());
+                    batchResults=0;
+                    long start=System.nanoTime();
+                    OperationContext opctx = search(ctx, batchFindRequest(q));
+                    batchNanos=System.nanoTime()-start;
                     if(opctx!=null) {
                         currentIterator=opctx.getDocumentStream();
-                        if(!currentIterator.hasNext()) {
-                            currentIterator.close();
-                            currentIterator=null;
+                        if(!currentHasNext()) {
+                            closeBatch();
                         }
                     }
                 } else {
@@ -160,6 +224,206 @@ public class JoinSearch extends AbstractSearchStep {
             
     }
 
+    /**
+     * The documents of a batch read by a prefetch task, and the memory
+     * counted for them
+     */
+    private static class Batch {
+        private final List<DocCtx> docs=new ArrayList<>();
+        private final List<Integer> sizes=new ArrayList<>();
+        private int nextIndex=0;
+
+        void release(ExecutionContext ctx) {
+            for(int i=0;i<docs.size();i++) {
+                ctx.releaseMemory(docs.get(i).getOutputDocument().getRoot(),sizes.get(i));
+            }
+            docs.clear();
+            sizes.clear();
+        }
+    }
+
+    /**
+     * Batch query iterator running up to prefetchDepth batches ahead of
+     * the caller
+     *
+     * The batch queries are written in the calling thread, and each batch
+     * is run on the composite executor, which reads all its documents. The
+     * documents of batches that are not yet returned are counted with
+     * {@link ExecutionContext#monitorMemory}, so a request prefetching
+     * too many documents fails like any other request using too much
+     * memory. No more batches are submitted while the execution context
+     * uses more than half of its memory limit. When the iterator is
+     * closed, the memory of the completed batches is released, and the
+     * batches still running release theirs when they complete.
+     */
+    private class PrefetchingBatchQueryIterator implements DocumentStream<ResultDocument> {
+        private final int prefetchDepth;
+        private final ExecutionContext ctx;
+        private final Iterator<JoinTuple> sourceStream;
+        private final ArrayList<Consumer<ResultDocument>> listeners=new ArrayList<>();
+        private final AdaptiveBatchSizer sizer;
+        private final String sizerKey;
+        private final int memoryLimitB;
+        private final ArrayDeque<Future<Batch>> pending=new ArrayDeque<>();
+        // Batches that are read by a task but not yet returned by await
+        private final List<Batch> completed=new ArrayList<>();
+
+        private Batch current;
+        private boolean done=false;
+        private boolean closed=false;
+
+        public PrefetchingBatchQueryIterator(int prefetchDepth,ExecutionContext ctx) {
+            this.prefetchDepth=prefetchDepth;
+            this.ctx=ctx;
+            sizer=ctx.getOperationContext().getFactory().getBatchSizer();
+            sizerKey=Searches.batchSizerKey(block,"join");
+            memoryLimitB=ctx.getOperationContext().getFactory().getMaxExecutionContextSizeForCompositeFindB();
+            sourceStream=source.getStep().getResults(ctx).stream().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while(!done&&(current==null||current.nextIndex>=current.docs.size())) {
+                if(current!=null) {
+                    current.release(ctx);
+                    current=null;
+                }
+                if(pending.isEmpty()) {
+                    submitNext();
+                }
+                if(pending.isEmpty()) {
+                    done=true;
+                } else {
+                    Future<Batch> f=pending.poll();
+                    // Keep the next batches running while this one is read
+                    prefetch();
+                    current=claim(await(f));
+                }
+            }
+            return !done;
+        }
+
+        @Override
+        public ResultDocument next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ResultDocument doc=new ResultDocument(block,current.docs.get(current.nextIndex++).getOutputDocument());
+            for(Consumer<ResultDocument> l:listeners)
+                l.accept(doc);
+            return doc;
+        }
+
+        @Override
+        public void close() {
+            done=true;
+            synchronized(completed) {
+                closed=true;
+                for(Batch b:completed) {
+                    b.release(ctx);
+                }
+                completed.clear();
+            }
+            // Batches still running release their documents when they
+            // complete, because the iterator is closed
+            for(Future<Batch> f:pending) {
+                f.cancel(true);
+            }
+            pending.clear();
+            if(current!=null) {
+                current.release(ctx);
+                current=null;
+            }
+        }
+
+        @Override
+        public void addListener(Consumer<ResultDocument> listener) {
+            listeners.add(listener);
+        }
+
+        private void prefetch() {
+            while(pending.size()<prefetchDepth&&(memoryLimitB<=0||ctx.memoryUsedB()<memoryLimitB/2)) {
+                if(!submitNext()) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Writes the queries of the next batch, and submits the batch.
+         * Returns false if there are no more batches.
+         */
+        private boolean submitNext() {
+            ctx.getOperationContext().getDeadline().check();
+            List<QueryExpression> qBatch=nextQueryBatch(sourceStream,sizer.getBatchSize(sizerKey));
+            if(qBatch.isEmpty()) {
+                return false;
+            }
+            QueryExpression q=Searches.combine(NaryLogicalOperator._or, qBatch);
+            int numQueries=qBatch.size();
+            Future<Batch> f=ctx.getExecutor().submit(() -> runBatch(q,numQueries));
+            ctx.getOperationContext().getDeadline().register(f);
+            pending.add(f);
+            return true;
+        }
+
+        private Batch runBatch(QueryExpression q,int numQueries) {
+            Batch batch=new Batch();
+            long start=System.currentTimeMillis();
+            OperationContext opctx=search(ctx,batchFindRequest(q));
+            if(opctx!=null) {
+                DocumentStream<DocCtx> docs=opctx.getDocumentStream();
+                try {
+                    while(docs.hasNext()) {
+                        DocCtx doc=docs.next();
+                        JsonNode root=doc.getOutputDocument().getRoot();
+                        batch.sizes.add(JsonUtils.size(root));
+                        batch.docs.add(doc);
+                        ctx.monitorMemory(root);
+                    }
+                } catch (RuntimeException e) {
+                    batch.release(ctx);
+                    throw e;
+                } finally {
+                    docs.close();
+                }
+            }
+            sizer.record(sizerKey,numQueries,System.currentTimeMillis()-start,batch.docs.size(),JsonUtils.size(q.toJson()));
+            synchronized(completed) {
+                if(closed) {
+                    batch.release(ctx);
+                } else {
+                    completed.add(batch);
+                }
+            }
+            return batch;
+        }
+
+        /**
+         * Removes a batch returned by await from the completed batches, so
+         * that it is released by the caller
+         */
+        private Batch claim(Batch batch) {
+            synchronized(completed) {
+                completed.remove(batch);
+            }
+            return batch;
+        }
+
+        private Batch await(Future<Batch> future) {
+            try {
+                return future.get();
+            } catch (ExecutionException ie) {
+                throw Throwables.propagate(ie.getCause());
+            } catch (CancellationException ce) {
+                ctx.getOperationContext().getDeadline().check();
+                throw ce;
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     @Override
     public JsonNode toJson() {
         ObjectNode o = JsonNodeFactory.instance.objectNode();
@@ -186,6 +450,11 @@ public class JoinSearch extends AbstractSearchStep {
     public JsonNode explain(ExecutionContext ctx) {
         ObjectNode o = JsonNodeFactory.instance.objectNode();
         o.set("join-search", source.getStep().explain(ctx));
+        AdaptiveBatchSizer.Stats stats = ctx.getOperationContext().getFactory().getBatchSizer().
+                getStatsIfPresent(Searches.batchSizerKey(block, "join"));
+        if (stats != null) {
+            o.set("batch", stats.toJson());
+        }
         if (query != null) {
             o.set("query", query.toJson());
         }
@@ -0,0 +1,254 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.ep;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.redhat.lightblue.assoc.BoundValue;
+import com.redhat.lightblue.assoc.QueryFieldInfo;
+import com.redhat.lightblue.metadata.SimpleField;
+import com.redhat.lightblue.metadata.Type;
+import com.redhat.lightblue.metadata.types.BigIntegerType;
+import com.redhat.lightblue.metadata.types.BooleanType;
+import com.redhat.lightblue.metadata.types.DateType;
+import com.redhat.lightblue.metadata.types.IntegerType;
+import com.redhat.lightblue.metadata.types.StringType;
+import com.redhat.lightblue.metadata.types.UIDType;
+import com.redhat.lightblue.query.BinaryComparisonOperator;
+import com.redhat.lightblue.query.NaryLogicalExpression;
+import com.redhat.lightblue.query.NaryLogicalOperator;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.query.ValueComparisonExpression;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Decides how a {@link Join} combines the documents of its sources.
+ *
+ * The association query of each source is a query on the documents of the
+ * join block, with values bound from the source document. If the
+ * association queries of two sources both contain a top level clause
+ * <code>field = boundValue</code> for the same non-array field of the join
+ * block, then a tuple can only match a document if both sources bind the
+ * same value to that field. Such fields are the join keys. When there are
+ * join keys, the join uses the HASH strategy: it hashes the documents of a
+ * source on their join key values, and probes with the tuples built from
+ * the previous sources, producing only tuples whose key values agree.
+ * Otherwise, the join uses the CARTESIAN strategy, building every tuple.
+ *
+ * Only fields of types with exact equality (string, integer, big integer,
+ * boolean, date, uid) are used as join keys.
+ */
+public class JoinStrategy {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JoinStrategy.class);
+
+    public enum Kind {
+        CARTESIAN, HASH
+    }
+
+    public static final JoinStrategy CARTESIAN = new JoinStrategy(Kind.CARTESIAN, new ArrayList<>());
+
+    /**
+     * A field of the join block bound to a field of a source document
+     */
+    private static class KeyField {
+        private final Path sourceField;
+        private final Type sourceType;
+        private final Type type;
+
+        KeyField(Path sourceField, Type sourceType, Type type) {
+            this.sourceField = sourceField;
+            this.sourceType = sourceType;
+            this.type = type;
+        }
+    }
+
+    private final Kind kind;
+    // For each source, the join block fields bound by equality to a source field
+    private final List<Map<Path, KeyField>> sourceKeys;
+
+    private JoinStrategy(Kind kind, List<Map<Path, KeyField>> sourceKeys) {
+        this.kind = kind;
+        this.sourceKeys = sourceKeys;
+    }
+
+    /**
+     * Chooses the strategy for joining the given sources of the block
+     */
+    public static JoinStrategy choose(ExecutionBlock block, Source<ResultDocument>[] sources) {
+        if (sources.length < 2) {
+            return CARTESIAN;
+        }
+        List<Map<Path, KeyField>> sourceKeys = new ArrayList<>(sources.length);
+        Map<Path, Integer> numSources = new HashMap<>();
+        for (Source<ResultDocument> source : sources) {
+            Map<Path, KeyField> keys = new LinkedHashMap<>();
+            AssociationQuery aq = block.getAssociationQueryForEdge(source.getBlock());
+            if (aq != null && aq.getQuery() != null) {
+                for (QueryExpression clause : conjuncts(aq.getQuery(), new ArrayList<>())) {
+                    addKeyField(clause, aq, keys);
+                }
+            }
+            for (Path p : keys.keySet()) {
+                numSources.merge(p, 1, Integer::sum);
+            }
+            sourceKeys.add(keys);
+        }
+        // Only fields bound by more than one source are join keys
+        boolean hasKeys = false;
+        for (Map<Path, KeyField> keys : sourceKeys) {
+            keys.keySet().removeIf(p -> numSources.get(p) < 2);
+            hasKeys |= !keys.isEmpty();
+        }
+        LOGGER.debug("Join keys of {}:{}", block, numSources);
+        return hasKeys ? new JoinStrategy(Kind.HASH, sourceKeys) : CARTESIAN;
+    }
+
+    static List<QueryExpression> conjuncts(QueryExpression q, List<QueryExpression> list) {
+        if (q instanceof NaryLogicalExpression && ((NaryLogicalExpression) q).getOp() == NaryLogicalOperator._and) {
+            for (QueryExpression x : ((NaryLogicalExpression) q).getQueries()) {
+                conjuncts(x, list);
+            }
+        } else {
+            list.add(q);
+        }
+        return list;
+    }
+
+    private static void addKeyField(QueryExpression clause, AssociationQuery aq, Map<Path, KeyField> keys) {
+        if (clause instanceof ValueComparisonExpression) {
+            ValueComparisonExpression q = (ValueComparisonExpression) clause;
+            if (q.getOp() == BinaryComparisonOperator._eq && q.getRvalue() instanceof BoundValue) {
+                QueryFieldInfo bound = ((BoundValue) q.getRvalue()).getFieldInfo();
+                QueryFieldInfo field = null;
+                for (QueryFieldInfo x : aq.getQueryFieldInfo()) {
+                    if (x.getClause() == q && x.getFieldNameInClause().equals(q.getField())) {
+                        field = x;
+                        break;
+                    }
+                }
+                if (field != null
+                        && isKeyField(field)
+                        && isKeyField(bound)
+                        && isExactType(field.getFieldMd().getType())) {
+                    keys.put(field.getEntityRelativeFieldNameWithContext(),
+                            new KeyField(bound.getEntityRelativeFieldNameWithContext(),
+                                    bound.getFieldMd().getType(),
+                                    field.getFieldMd().getType()));
+                }
+            }
+        }
+    }
+
+    static boolean isKeyField(QueryFieldInfo fi) {
+        return fi.getFieldMd() instanceof SimpleField
+                && fi.getEntityRelativeFieldNameWithContext().nAnys() == 0;
+    }
+
+    static boolean isExactType(Type t) {
+        return t instanceof StringType
+                || t instanceof IntegerType
+                || t instanceof BigIntegerType
+                || t instanceof BooleanType
+                || t instanceof DateType
+                || t instanceof UIDType;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Returns the join key fields of the source that are also bound by one
+     * of the sources before it
+     */
+    List<Path> getProbeFields(int sourceIndex) {
+        List<Path> ret = new ArrayList<>();
+        for (Path p : sourceKeys.get(sourceIndex).keySet()) {
+            for (int i = 0; i < sourceIndex; i++) {
+                if (sourceKeys.get(i).containsKey(p)) {
+                    ret.add(p);
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the index of the first source binding the join key field
+     */
+    int getFirstSource(Path field) {
+        for (int i = 0; i < sourceKeys.size(); i++) {
+            if (sourceKeys.get(i).containsKey(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value the document of the source binds to the join key
+     * field, converted to the type of the field. Values that can't be
+     * converted are returned as they are, they won't match values of other
+     * sources.
+     */
+    Object getKeyValue(int sourceIndex, Path field, ResultDocument doc) {
+        KeyField kf = sourceKeys.get(sourceIndex).get(field);
+        JsonNode node = doc.getDoc().get(kf.sourceField);
+        if (node == null || node instanceof NullNode) {
+            return null;
+        }
+        try {
+            return kf.type.cast(kf.sourceType.fromJson(node));
+        } catch (RuntimeException e) {
+            return node;
+        }
+    }
+
+    public JsonNode toJson() {
+        ObjectNode o = JsonNodeFactory.instance.objectNode();
+        o.set("kind", JsonNodeFactory.instance.textNode(kind.name().toLowerCase()));
+        if (kind == Kind.HASH) {
+            ArrayNode arr = JsonNodeFactory.instance.arrayNode();
+            for (Map<Path, KeyField> keys : sourceKeys) {
+                ArrayNode s = JsonNodeFactory.instance.arrayNode();
+                for (Path p : keys.keySet()) {
+                    s.add(JsonNodeFactory.instance.textNode(p.toString()));
+                }
+                arr.add(s);
+            }
+            o.set("keys", arr);
+        }
+        return o;
+    }
+}
@@ -18,16 +18,21 @@
  */
 package com.redhat.lightblue.assoc.ep;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.redhat.lightblue.query.QueryExpression;
 
 import com.redhat.lightblue.crud.CRUDFindRequest;
+import com.redhat.lightblue.crud.DocumentStream;
 
 /**
  * Performs search for doc retrieval. Provides the 'setQuery' API to modify
- * search criteria for every retrieval
+ * search criteria for every retrieval, and records the time spent in the
+ * back end retrieving the documents of the query.
  *
  * Input: n/a Output: ResultDocument
  */
@@ -36,13 +41,37 @@ public class Retrieve extends Search {
     private static final Logger LOGGER = LoggerFactory.getLogger(Retrieve.class);
 
     private QueryExpression searchQuery;
+    private final AtomicLong elapsedNanos = new AtomicLong(0);
 
     public Retrieve(ExecutionBlock block) {
         super(block);
     }
 
+    /**
+     * Sets the query of the next retrieval, and resets the elapsed time
+     */
     public void setQuery(QueryExpression q) {
         this.searchQuery = q;
+        elapsedNanos.set(0);
+    }
+
+    /**
+     * Returns the time spent running the search and reading its documents
+     * since the query was set. The time spent by the steps consuming the
+     * documents is not included.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos.get();
+    }
+
+    @Override
+    protected DocumentStream<ResultDocument> getSearchResults(ExecutionContext ctx) {
+        long start = System.nanoTime();
+        try {
+            return new TimedDocumentStream(super.getSearchResults(ctx));
+        } finally {
+            elapsedNanos.addAndGet(System.nanoTime() - start);
+        }
     }
 
     protected CRUDFindRequest buildFindRequest(ExecutionContext ctx) {
@@ -56,4 +85,42 @@ public class Retrieve extends Search {
         findRequest.setTo(to);
         return findRequest;
     }
+
+    private class TimedDocumentStream implements DocumentStream<ResultDocument> {
+        private final DocumentStream<ResultDocument> source;
+
+        TimedDocumentStream(DocumentStream<ResultDocument> source) {
+            this.source = source;
+        }
+
+        @Override
+        public boolean hasNext() {
+            long start = System.nanoTime();
+            try {
+                return source.hasNext();
+            } finally {
+                elapsedNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public ResultDocument next() {
+            long start = System.nanoTime();
+            try {
+                return source.next();
+            } finally {
+                elapsedNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public void close() {
+            source.close();
+        }
+
+        @Override
+        public void addListener(Consumer<ResultDocument> dest) {
+            source.addListener(dest);
+        }
+    }
 }
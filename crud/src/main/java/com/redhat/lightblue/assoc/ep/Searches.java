@@ -72,6 +72,18 @@ public final class Searches {
         return queries;
     }
 
+    /**
+     * Returns the key identifying the batches retrieving the documents of
+     * the block in {@link com.redhat.lightblue.crud.AdaptiveBatchSizer}
+     *
+     * @param block The block whose documents are retrieved in batches
+     * @param step The step retrieving them
+     */
+    public static String batchSizerKey(ExecutionBlock block, String step) {
+        return block.rootMd.getName() + ":" + block.rootMd.getVersion().getValue()
+                + ":" + block.getMetadata().getEntityPath() + ":" + step;
+    }
+
     /**
      * Writes queries form a join tuple
      */
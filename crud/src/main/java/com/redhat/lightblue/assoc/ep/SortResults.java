@@ -18,7 +18,19 @@
  */
 package com.redhat.lightblue.assoc.ep;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
@@ -31,12 +43,38 @@ import com.redhat.lightblue.eval.SortableItem;
 
 /**
  * Sorts the result set
+ *
+ * If a range is set, only the documents in that range of the sorted result
+ * set are returned. Then the step keeps at most <code>to+1</code> documents
+ * in a bounded heap while reading the source, instead of sorting the whole
+ * result set. Documents dropped from the heap are released from the memory
+ * accounting of the execution context if this step counted them.
+ *
+ * Without a range, all documents are sorted. If the execution context
+ * crosses its spill threshold, the documents are sorted using an external
+ * merge sort, see {@link ExecutionContext#shouldSpill()}.
  */
 public class SortResults extends Step<ResultDocument> {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(SortResults.class);
+
+    private static final Comparator<SortableDoc> ORDER = (a, b) -> {
+        int c = a.compareTo(b);
+        // Keep the source order of equal documents, as a stable sort would
+        return c == 0 ? Long.compare(a.seq, b.seq) : c;
+    };
+
+    /**
+     * The minimum number of documents written to a spill file as a sorted run
+     */
+    private static final int MIN_RUN_SIZE = 1024;
+
     private final SortFieldInfo[] sortFields;
     private final Sort sort;
     private final Source<ResultDocument> source;
+    private Integer from;
+    private Integer to;
+    private boolean recordResultSetSize = false;
 
     public SortResults(ExecutionBlock block, Source<ResultDocument> source, Sort sort) {
         super(block);
@@ -45,25 +83,183 @@ public class SortResults extends Step<ResultDocument> {
         this.sortFields = SortFieldInfo.buildSortFields(sort, block.getMetadata());
     }
 
+    /**
+     * Sets the range of the sorted results to return
+     *
+     * @param from The index of the first document to return, null means 0
+     * @param to The index of the last document to return, inclusive
+     */
+    public void setRange(Integer from, int to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * If set, the number of documents read from the source is recorded as
+     * the match count. Only used with a range, when the source is read
+     * completely before the results are returned.
+     */
+    public void setRecordResultSetSize(boolean b) {
+        recordResultSetSize = b;
+    }
+
     @Override
     public StepResult<ResultDocument> getResults(ExecutionContext ctx) {
+        if (to != null) {
+            return new ListStepResult<ResultDocument>(topK(ctx));
+        }
         return new StepResultWrapper<ResultDocument>(source.getStep().getResults(ctx)) {
             @Override
             public Stream<ResultDocument> stream() {
-                return super.stream().
-                        map(d -> new SortableDoc(d, sortFields)).
-                        sorted().
-                        map(d -> d.getDoc());
+                return sort(ctx, super.stream());
+            }
+        };
+    }
+
+    /**
+     * Sorts the documents. If the execution context crosses its spill
+     * threshold while the documents are read, the documents buffered so far
+     * are sorted and written to a spill file as a run, and the runs are
+     * merged when all documents are read.
+     */
+    private Stream<ResultDocument> sort(ExecutionContext ctx, Stream<ResultDocument> docs) {
+        List<SpillFile> runs = new ArrayList<>();
+        List<SortableDoc> buffer = new ArrayList<>();
+        // Documents counted by this step, which are released when they are spilled
+        List<ResultDocument> counted = new ArrayList<>();
+        for (ResultDocument doc : (Iterable<ResultDocument>) docs::iterator) {
+            buffer.add(new SortableDoc(doc, sortFields, buffer.size()));
+            if (ctx.monitorMemoryOnce(doc)) {
+                counted.add(doc);
+            }
+            if (buffer.size() >= MIN_RUN_SIZE && ctx.shouldSpill()) {
+                buffer.sort(ORDER);
+                SpillFile run = ctx.newSpillFile();
+                for (SortableDoc x : buffer) {
+                    run.write(x.getDoc().getDoc().getRoot());
+                }
+                runs.add(run);
+                counted.forEach(ctx::releaseMemory);
+                counted.clear();
+                buffer.clear();
+            }
+        }
+        buffer.sort(ORDER);
+        if (runs.isEmpty()) {
+            return buffer.stream().map(SortableDoc::getDoc);
+        }
+        LOGGER.debug("Merging {} sorted runs", runs.size() + 1);
+        return merge(ctx, runs, buffer);
+    }
+
+    /**
+     * Merges the sorted runs written to spill files, and the sorted
+     * documents in memory. Equal documents are returned in the order of the
+     * runs, and the documents in memory are the last run.
+     */
+    private Stream<ResultDocument> merge(ExecutionContext ctx, List<SpillFile> runs, List<SortableDoc> last) {
+        List<Iterator<ResultDocument>> sources = new ArrayList<>();
+        for (SpillFile run : runs) {
+            sources.add(SpillableList.read(ctx, block, run).iterator());
+        }
+        sources.add(last.stream().map(SortableDoc::getDoc).iterator());
+        PriorityQueue<SortableDoc> heads = new PriorityQueue<>(sources.size(), ORDER);
+        Iterator<ResultDocument> itr = new Iterator<ResultDocument>() {
+            private boolean initialized = false;
+
+            @Override
+            public boolean hasNext() {
+                if (!initialized) {
+                    for (int i = 0; i < sources.size(); i++) {
+                        advance(i);
+                    }
+                    initialized = true;
+                }
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public ResultDocument next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                SortableDoc head = heads.poll();
+                advance((int) head.seq);
+                return head.getDoc();
+            }
+
+            private void advance(int run) {
+                if (sources.get(run).hasNext()) {
+                    heads.add(new SortableDoc(sources.get(run).next(), sortFields, run));
+                }
             }
         };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(itr, Spliterator.ORDERED), false);
+    }
+
+    /**
+     * Reads the source, keeping the first <code>to+1</code> documents in
+     * sort order in a heap whose head is the largest document, and returns
+     * the documents in the range
+     */
+    private List<ResultDocument> topK(ExecutionContext ctx) {
+        int k = to + 1;
+        int skip = from == null ? 0 : from;
+        List<ResultDocument> ret = new ArrayList<>();
+        int n = 0;
+        if (k > 0) {
+            PriorityQueue<SortableDoc> heap = new PriorityQueue<>(Math.min(k, 1024), ORDER.reversed());
+            try (Stream<ResultDocument> docs = source.getStep().getResults(ctx).stream()) {
+                for (ResultDocument doc : (Iterable<ResultDocument>) docs::iterator) {
+                    SortableDoc item = new SortableDoc(doc, sortFields, n++);
+                    if (heap.size() < k) {
+                        item.counted = ctx.monitorMemoryOnce(doc);
+                        heap.add(item);
+                    } else if (ORDER.compare(item, heap.peek()) < 0) {
+                        release(ctx, heap.poll());
+                        item.counted = ctx.monitorMemoryOnce(doc);
+                        heap.add(item);
+                    }
+                }
+            }
+            List<SortableDoc> sorted = new ArrayList<>(heap);
+            sorted.sort(ORDER);
+            for (int i = 0; i < sorted.size(); i++) {
+                if (i < skip) {
+                    release(ctx, sorted.get(i));
+                } else {
+                    ret.add(sorted.get(i).getDoc());
+                }
+            }
+        } else {
+            n = (int) source.getStep().getResults(ctx).stream().count();
+        }
+        if (recordResultSetSize) {
+            ctx.setMatchCount(n);
+        }
+        return ret;
+    }
+
+    /**
+     * Releases the memory of a document dropped from the heap, if this
+     * step counted it. Documents counted by an upstream step are still
+     * held there, and are not released.
+     */
+    private static void release(ExecutionContext ctx, SortableDoc item) {
+        if (item.counted) {
+            ctx.releaseMemory(item.getDoc());
+        }
     }
 
     private static class SortableDoc extends SortableItem {
         private final ResultDocument doc;
+        private final long seq;
+        private boolean counted;
 
-        public SortableDoc(ResultDocument doc, SortFieldInfo[] fields) {
+        public SortableDoc(ResultDocument doc, SortFieldInfo[] fields, long seq) {
             super(doc.getDoc().getRoot(), fields);
             this.doc = doc;
+            this.seq = seq;
         }
 
         public ResultDocument getDoc() {
@@ -71,19 +267,25 @@ public class SortResults extends Step<ResultDocument> {
         }
     }
 
-    @Override
-    public JsonNode toJson() {
+    private JsonNode toJson(ToJsonCb<Step> cb) {
         ObjectNode o = JsonNodeFactory.instance.objectNode();
         o.set("sort", sort.toJson());
-        o.set("source", source.getStep().toJson());
+        if (to != null) {
+            o.set("from", JsonNodeFactory.instance.numberNode(from == null ? 0 : from));
+            o.set("to", JsonNodeFactory.instance.numberNode(to));
+            o.set("topK", JsonNodeFactory.instance.numberNode(to + 1));
+        }
+        o.set("source", cb.toJson(source.getStep()));
         return o;
     }
 
+    @Override
+    public JsonNode toJson() {
+        return toJson(Step::toJson);
+    }
+
     @Override
     public JsonNode explain(ExecutionContext ctx) {
-        ObjectNode o = JsonNodeFactory.instance.objectNode();
-        o.set("sort", sort.toJson());
-        o.set("source", source.getStep().explain(ctx));
-        return o;
+        return toJson(s -> s.explain(ctx));
     }
 }
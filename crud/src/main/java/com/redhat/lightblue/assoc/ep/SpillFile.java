@@ -0,0 +1,420 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.ep;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.crud.CrudConstants;
+import com.redhat.lightblue.util.Error;
+
+/**
+ * A temporary file holding JSON documents written by a composite find when
+ * its documents no longer fit in memory. Documents are appended using a
+ * compact binary encoding, and read back in the same order through memory
+ * mapped windows of the file. A file can be read many times, but no
+ * documents can be written once it is read.
+ *
+ * Each document is written as its encoded length followed by its encoding.
+ * Values are written as a type tag followed by the value. Integers use
+ * variable length encoding. Field names are written once per file, and
+ * then referred to by their index.
+ */
+public class SpillFile implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpillFile.class);
+
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final byte T_NULL = 0;
+    private static final byte T_TRUE = 1;
+    private static final byte T_FALSE = 2;
+    private static final byte T_INT = 3;
+    private static final byte T_LONG = 4;
+    private static final byte T_DOUBLE = 5;
+    private static final byte T_FLOAT = 6;
+    private static final byte T_STRING = 7;
+    private static final byte T_BIGINT = 8;
+    private static final byte T_DECIMAL = 9;
+    private static final byte T_BINARY = 10;
+    private static final byte T_ARRAY = 11;
+    private static final byte T_OBJECT = 12;
+
+    private final File file;
+    private DataOutputStream out;
+    private final Map<String, Integer> names = new HashMap<>();
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(1024);
+    private int numDocs = 0;
+    private long sizeB = 0;
+    // Readers holding an open channel, guarded by this
+    private final List<Reader> openReaders = new ArrayList<>();
+
+    public SpillFile() {
+        try {
+            file = File.createTempFile("lightblue-spill", ".bin");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        } catch (IOException e) {
+            throw Error.get(CrudConstants.ERR_SPILL_FAILED, e.toString());
+        }
+        LOGGER.debug("Created spill file {}", file);
+    }
+
+    /**
+     * Appends a document to the file
+     */
+    public void write(JsonNode doc) {
+        if (out == null) {
+            throw new IllegalStateException("Spill file is read only");
+        }
+        try {
+            record.reset();
+            encode(doc, new DataOutputStream(record));
+            out.writeInt(record.size());
+            record.writeTo(out);
+            numDocs++;
+            sizeB += 4 + record.size();
+        } catch (IOException e) {
+            throw Error.get(CrudConstants.ERR_SPILL_FAILED, e.toString());
+        }
+    }
+
+    /**
+     * Returns the number of documents in the file
+     */
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    /**
+     * Returns the size of the file in bytes
+     */
+    public long getSizeB() {
+        return sizeB;
+    }
+
+    /**
+     * Returns an iterator reading the documents of the file in the order they
+     * are written. No more documents can be written after this call. The
+     * iterator releases the file once all documents are read, or when this
+     * file is closed.
+     */
+    public Iterator<JsonNode> read(JsonNodeFactory factory) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw Error.get(CrudConstants.ERR_SPILL_FAILED, e.toString());
+            } finally {
+                out = null;
+            }
+        }
+        return new Reader(factory);
+    }
+
+    /**
+     * Returns the number of readers that have the file open
+     */
+    synchronized int getNumOpenReaders() {
+        return openReaders.size();
+    }
+
+    /**
+     * Releases the readers that are not read to the end, and deletes the
+     * file
+     */
+    @Override
+    public void close() {
+        List<Reader> readers;
+        synchronized (this) {
+            readers = new ArrayList<>(openReaders);
+        }
+        for (Reader r : readers) {
+            r.release();
+        }
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.debug("Cannot close {}:{}", file, e);
+            }
+            out = null;
+        }
+        if (!file.delete()) {
+            LOGGER.warn("Cannot delete spill file {}", file);
+        }
+    }
+
+    private void encode(JsonNode node, DataOutputStream dout) throws IOException {
+        switch (node.getNodeType()) {
+            case BOOLEAN:
+                dout.writeByte(node.booleanValue() ? T_TRUE : T_FALSE);
+                break;
+            case NUMBER:
+                if (node.isInt() || node.isShort()) {
+                    dout.writeByte(T_INT);
+                    writeVarLong(dout, node.intValue());
+                } else if (node.isLong()) {
+                    dout.writeByte(T_LONG);
+                    writeVarLong(dout, node.longValue());
+                } else if (node.isFloat()) {
+                    dout.writeByte(T_FLOAT);
+                    dout.writeFloat(node.floatValue());
+                } else if (node.isBigInteger()) {
+                    dout.writeByte(T_BIGINT);
+                    writeBytes(dout, node.bigIntegerValue().toByteArray());
+                } else if (node.isBigDecimal()) {
+                    BigDecimal d = node.decimalValue();
+                    dout.writeByte(T_DECIMAL);
+                    writeVarLong(dout, d.scale());
+                    writeBytes(dout, d.unscaledValue().toByteArray());
+                } else {
+                    dout.writeByte(T_DOUBLE);
+                    dout.writeDouble(node.doubleValue());
+                }
+                break;
+            case STRING:
+                dout.writeByte(T_STRING);
+                writeBytes(dout, node.textValue().getBytes(StandardCharsets.UTF_8));
+                break;
+            case BINARY:
+                dout.writeByte(T_BINARY);
+                writeBytes(dout, node.binaryValue());
+                break;
+            case ARRAY:
+                dout.writeByte(T_ARRAY);
+                writeVarLong(dout, node.size());
+                for (JsonNode x : node) {
+                    encode(x, dout);
+                }
+                break;
+            case OBJECT:
+                dout.writeByte(T_OBJECT);
+                writeVarLong(dout, node.size());
+                for (Iterator<Map.Entry<String, JsonNode>> itr = node.fields(); itr.hasNext();) {
+                    Map.Entry<String, JsonNode> entry = itr.next();
+                    Integer index = names.get(entry.getKey());
+                    if (index == null) {
+                        // 0 is followed by a new name, the index of the name is +1
+                        names.put(entry.getKey(), names.size());
+                        writeVarLong(dout, 0);
+                        writeBytes(dout, entry.getKey().getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        writeVarLong(dout, index + 1);
+                    }
+                    encode(entry.getValue(), dout);
+                }
+                break;
+            case POJO:
+                dout.writeByte(T_STRING);
+                writeBytes(dout, node.asText().getBytes(StandardCharsets.UTF_8));
+                break;
+            default:
+                dout.writeByte(T_NULL);
+                break;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream dout, byte[] bytes) throws IOException {
+        writeVarLong(dout, bytes.length);
+        dout.write(bytes);
+    }
+
+    private static void writeVarLong(DataOutputStream dout, long value) throws IOException {
+        // Zigzag encoding, so small negative numbers are short
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7fL) != 0) {
+            dout.writeByte((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        dout.writeByte((int) v);
+    }
+
+    private class Reader implements Iterator<JsonNode> {
+        private final JsonNodeFactory factory;
+        private final List<String> readNames = new ArrayList<>();
+        private FileChannel channel;
+        private ByteBuffer window;
+        private long windowStart = 0;
+        private long position = 0;
+        private int remaining = numDocs;
+
+        Reader(JsonNodeFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public JsonNode next() {
+            if (remaining <= 0) {
+                throw new NoSuchElementException();
+            }
+            try {
+                ByteBuffer buf = map(position, 4);
+                int length = buf.getInt();
+                buf = map(position + 4, length);
+                JsonNode node = decode(buf);
+                position += 4 + length;
+                if (--remaining == 0) {
+                    release();
+                }
+                return node;
+            } catch (IOException e) {
+                release();
+                throw Error.get(CrudConstants.ERR_SPILL_FAILED, e.toString());
+            }
+        }
+
+        /**
+         * Returns a buffer positioned at the given file position with at
+         * least length bytes, mapping a new window of the file if necessary
+         */
+        private ByteBuffer map(long pos, int length) throws IOException {
+            if (window == null || pos < windowStart || pos + length > windowStart + window.limit()) {
+                if (channel == null) {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    synchronized (SpillFile.this) {
+                        openReaders.add(this);
+                    }
+                }
+                long size = Math.min(Math.max(WINDOW_SIZE, length), sizeB - pos);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+                window = mapped;
+                windowStart = pos;
+            }
+            window.position((int) (pos - windowStart));
+            return window;
+        }
+
+        private void release() {
+            window = null;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Cannot close {}:{}", file, e);
+                }
+                channel = null;
+                synchronized (SpillFile.this) {
+                    openReaders.remove(this);
+                }
+            }
+        }
+
+        private JsonNode decode(ByteBuffer buf) {
+            byte tag = buf.get();
+            switch (tag) {
+                case T_NULL:
+                    return factory.nullNode();
+                case T_TRUE:
+                    return factory.booleanNode(true);
+                case T_FALSE:
+                    return factory.booleanNode(false);
+                case T_INT:
+                    return factory.numberNode((int) readVarLong(buf));
+                case T_LONG:
+                    return factory.numberNode(readVarLong(buf));
+                case T_DOUBLE:
+                    return factory.numberNode(buf.getDouble());
+                case T_FLOAT:
+                    return factory.numberNode(buf.getFloat());
+                case T_STRING:
+                    return factory.textNode(new String(readBytes(buf), StandardCharsets.UTF_8));
+                case T_BIGINT:
+                    return factory.numberNode(new BigInteger(readBytes(buf)));
+                case T_DECIMAL: {
+                    int scale = (int) readVarLong(buf);
+                    return factory.numberNode(new BigDecimal(new BigInteger(readBytes(buf)), scale));
+                }
+                case T_BINARY:
+                    return factory.binaryNode(readBytes(buf));
+                case T_ARRAY: {
+                    ArrayNode arr = factory.arrayNode();
+                    for (long n = readVarLong(buf); n > 0; n--) {
+                        arr.add(decode(buf));
+                    }
+                    return arr;
+                }
+                case T_OBJECT: {
+                    ObjectNode obj = factory.objectNode();
+                    for (long n = readVarLong(buf); n > 0; n--) {
+                        int index = (int) readVarLong(buf);
+                        String name;
+                        if (index == 0) {
+                            name = new String(readBytes(buf), StandardCharsets.UTF_8);
+                            readNames.add(name);
+                        } else {
+                            name = readNames.get(index - 1);
+                        }
+                        obj.set(name, decode(buf));
+                    }
+                    return obj;
+                }
+                default:
+                    throw Error.get(CrudConstants.ERR_SPILL_FAILED, "Invalid tag " + tag);
+            }
+        }
+
+        private byte[] readBytes(ByteBuffer buf) {
+            byte[] bytes = new byte[(int) readVarLong(buf)];
+            buf.get(bytes);
+            return bytes;
+        }
+
+        private long readVarLong(ByteBuffer buf) {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf.get();
+                v |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.ep;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import com.redhat.lightblue.util.JsonDoc;
+
+/**
+ * A list of result documents kept in memory until the execution context
+ * crosses its spill threshold. After that, the documents are written to a
+ * spill file. The documents are streamed in the order they are added, and
+ * the documents read from the spill file are new result documents of the
+ * block.
+ */
+public class SpillableList implements StepResult<ResultDocument> {
+
+    private final ExecutionContext ctx;
+    private final ExecutionBlock block;
+    private final List<ResultDocument> list = new ArrayList<>();
+    private SpillFile spill;
+
+    public SpillableList(ExecutionContext ctx, ExecutionBlock block) {
+        this.ctx = ctx;
+        this.block = block;
+    }
+
+    /**
+     * Collects the documents of a stream
+     */
+    public static SpillableList collect(ExecutionContext ctx, ExecutionBlock block, Stream<ResultDocument> docs) {
+        SpillableList ret = new SpillableList(ctx, block);
+        docs.forEach(ret::add);
+        return ret;
+    }
+
+    public void add(ResultDocument doc) {
+        if (spill == null && ctx.shouldSpill()) {
+            spill = ctx.newSpillFile();
+        }
+        if (spill == null) {
+            ctx.monitorMemory(doc);
+            list.add(doc);
+        } else {
+            spill.write(doc.getDoc().getRoot());
+        }
+    }
+
+    public int size() {
+        return list.size() + (spill == null ? 0 : spill.getNumDocs());
+    }
+
+    /**
+     * Returns true if some of the documents are written to a spill file
+     */
+    public boolean isSpilled() {
+        return spill != null;
+    }
+
+    @Override
+    public Stream<ResultDocument> stream() {
+        if (spill == null) {
+            return list.stream();
+        }
+        return Stream.concat(list.stream(), read(ctx, block, spill));
+    }
+
+    /**
+     * Returns a stream reading the documents of a spill file as result
+     * documents of the block
+     */
+    static Stream<ResultDocument> read(ExecutionContext ctx, ExecutionBlock block, SpillFile file) {
+        Iterator<ResultDocument> itr = new Iterator<ResultDocument>() {
+            private Iterator<JsonNode> nodes;
+
+            @Override
+            public boolean hasNext() {
+                if (nodes == null) {
+                    nodes = file.read(ctx.getNodeFactory());
+                }
+                return nodes.hasNext();
+            }
+
+            @Override
+            public ResultDocument next() {
+                hasNext();
+                return new ResultDocument(block, new JsonDoc(nodes.next()));
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliterator(itr, file.getNumDocs(), Spliterator.ORDERED), false);
+    }
+}
@@ -13,11 +13,23 @@ import com.redhat.lightblue.crud.DocumentStream;
  */
 public class StepResultDocumentStream implements DocumentStream<DocCtx> {
 
+    private final Stream<DocCtx> stream;
     private final Iterator<DocCtx> itr;
     private final ArrayList<Consumer<DocCtx>> listeners=new ArrayList<>();
+    private Runnable onClose;
 
     public StepResultDocumentStream(StepResult<DocCtx> result) {
-        this.itr=result.stream().iterator();
+        this(result, null);
+    }
+
+    /**
+     * @param result The results to stream
+     * @param onClose Called once when the stream is closed, can be null
+     */
+    public StepResultDocumentStream(StepResult<DocCtx> result, Runnable onClose) {
+        this.stream=result.stream();
+        this.itr=stream.iterator();
+        this.onClose=onClose;
     }
 
     @Override
@@ -34,7 +46,14 @@ public class StepResultDocumentStream implements DocumentStream<DocCtx> {
     }
 
     @Override
-    public void close() {}
+    public void close() {
+        stream.close();
+        if(onClose!=null) {
+            Runnable r=onClose;
+            onClose=null;
+            r.run();
+        }
+    }
 
     @Override
     public void addListener(Consumer<DocCtx> listener) {
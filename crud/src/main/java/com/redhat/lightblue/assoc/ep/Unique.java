@@ -20,11 +20,9 @@ package com.redhat.lightblue.assoc.ep;
 
 import java.util.Set;
 import java.util.HashSet;
-import java.util.List;
 
 import java.util.stream.Stream;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
@@ -69,10 +67,8 @@ public class Unique extends Step<ResultDocument> {
                 }
             };
         if(recordResultSetSize) {
-            List<ResultDocument> list=result.stream()
-                    .peek(ctx::monitorMemory)
-                    .collect(Collectors.toList());
-            result=new ListStepResult<ResultDocument>(list);
+            SpillableList list=SpillableList.collect(ctx, block, result.stream());
+            result=list;
             ctx.setMatchCount(list.size());
         }
         return result;
@@ -0,0 +1,223 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Chooses the number of queries a composite find combines into one batch
+ * query, separately for each association. The batch size of an association
+ * starts at {@link #INITIAL_BATCH_SIZE}, and is adjusted after every batch
+ * using the time the batch took, the number of documents it returned, and
+ * the size of its combined query:
+ *
+ * <ul>
+ * <li>If a batch takes longer than <code>targetLatencyMS</code>, the batch
+ * size is reduced so the next batch is expected to take that long.</li>
+ * <li>If a full batch takes less than half of <code>targetLatencyMS</code>,
+ * the batch size is doubled.</li>
+ * <li>The batch size is limited so that, based on the averages observed so
+ * far, a batch is not expected to return more than <code>maxResults</code>
+ * documents, or to have a combined query larger than
+ * <code>maxQuerySizeB</code>.</li>
+ * </ul>
+ *
+ * The batch size is always between <code>minBatchSize</code> and
+ * <code>maxBatchSize</code>. Statistics are kept for the lifetime of the
+ * factory, so later requests start with the batch size tuned by earlier
+ * ones.
+ */
+public class AdaptiveBatchSizer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveBatchSizer.class);
+
+    public static final int INITIAL_BATCH_SIZE = 256;
+
+    // Weight of the last batch in the averages
+    private static final double ALPHA = 0.3;
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long targetLatencyMS;
+    private final int maxQuerySizeB;
+    private final int maxResults;
+    private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Batch statistics of an association
+     */
+    public static class Stats {
+        private int batchSize;
+        private long numBatches;
+        private long numQueries;
+        private long numResults;
+        private long totalLatencyMS;
+        private long maxLatencyMS;
+        private double resultsPerQuery = -1;
+        private double querySizePerQuery = -1;
+        private long cacheLookups;
+        private long cacheHits;
+
+        Stats(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public synchronized int getBatchSize() {
+            return batchSize;
+        }
+
+        public synchronized long getNumBatches() {
+            return numBatches;
+        }
+
+        public synchronized ObjectNode toJson() {
+            JsonNodeFactory f = JsonNodeFactory.instance;
+            ObjectNode node = f.objectNode();
+            node.set("batchSize", f.numberNode(batchSize));
+            node.set("batches", f.numberNode(numBatches));
+            node.set("queries", f.numberNode(numQueries));
+            node.set("results", f.numberNode(numResults));
+            if (numBatches > 0) {
+                node.set("avgLatencyMS", f.numberNode(totalLatencyMS / numBatches));
+                node.set("maxLatencyMS", f.numberNode(maxLatencyMS));
+                node.set("avgResultsPerQuery", f.numberNode(resultsPerQuery));
+                node.set("avgQuerySizeBPerQuery", f.numberNode(querySizePerQuery));
+            }
+            if (cacheLookups > 0) {
+                node.set("cacheLookups", f.numberNode(cacheLookups));
+                node.set("cacheHits", f.numberNode(cacheHits));
+                node.set("cacheHitRate", f.numberNode((double) cacheHits / cacheLookups));
+            }
+            return node;
+        }
+    }
+
+    public AdaptiveBatchSizer(int minBatchSize,
+                              int maxBatchSize,
+                              long targetLatencyMS,
+                              int maxQuerySizeB,
+                              int maxResults) {
+        this.minBatchSize = Math.max(1, minBatchSize);
+        this.maxBatchSize = Math.max(this.minBatchSize, maxBatchSize);
+        this.targetLatencyMS = targetLatencyMS;
+        this.maxQuerySizeB = maxQuerySizeB;
+        this.maxResults = maxResults;
+    }
+
+    /**
+     * Returns the batch size to use for the association
+     *
+     * @param association A key identifying the association
+     */
+    public int getBatchSize(String association) {
+        return getStats(association).getBatchSize();
+    }
+
+    /**
+     * Returns the batch statistics of the association, or null if no
+     * batches were recorded for it
+     */
+    public Stats getStatsIfPresent(String association) {
+        return stats.get(association);
+    }
+
+    private Stats getStats(String association) {
+        return stats.computeIfAbsent(association, k -> new Stats(clamp(INITIAL_BATCH_SIZE)));
+    }
+
+    /**
+     * Records a batch, and adjusts the batch size of the association
+     *
+     * @param association A key identifying the association
+     * @param numQueries Number of queries combined into the batch
+     * @param latencyMS Time it took to run the batch
+     * @param numResults Number of documents returned by the batch
+     * @param querySizeB Size of the combined query
+     *
+     * @return The new batch size of the association
+     */
+    public int record(String association, int numQueries, long latencyMS, long numResults, int querySizeB) {
+        if (numQueries <= 0) {
+            return getBatchSize(association);
+        }
+        Stats s = getStats(association);
+        synchronized (s) {
+            s.numBatches++;
+            s.numQueries += numQueries;
+            s.numResults += numResults;
+            s.totalLatencyMS += latencyMS;
+            s.maxLatencyMS = Math.max(s.maxLatencyMS, latencyMS);
+            s.resultsPerQuery = average(s.resultsPerQuery, (double) numResults / numQueries);
+            s.querySizePerQuery = average(s.querySizePerQuery, (double) querySizeB / numQueries);
+
+            int size = s.batchSize;
+            if (targetLatencyMS > 0) {
+                if (latencyMS > targetLatencyMS) {
+                    size = (int) Math.min(size, (long) numQueries * targetLatencyMS / latencyMS);
+                } else if (numQueries >= size && latencyMS * 2 < targetLatencyMS) {
+                    size = size * 2;
+                }
+            }
+            if (maxResults > 0 && s.resultsPerQuery > 0) {
+                size = (int) Math.min(size, maxResults / s.resultsPerQuery);
+            }
+            if (maxQuerySizeB > 0 && s.querySizePerQuery > 0) {
+                size = (int) Math.min(size, maxQuerySizeB / s.querySizePerQuery);
+            }
+            size = clamp(size);
+            if (size != s.batchSize) {
+                LOGGER.debug("Batch size of {} changed from {} to {}", association, s.batchSize, size);
+                s.batchSize = size;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Records the child document cache lookups of a batch. These don't
+     * change the batch size.
+     *
+     * @param association A key identifying the association
+     * @param lookups Number of child documents looked up in the cache
+     * @param hits Number of child documents that were already resolved
+     */
+    public void recordCache(String association, long lookups, long hits) {
+        if (lookups > 0) {
+            Stats s = getStats(association);
+            synchronized (s) {
+                s.cacheLookups += lookups;
+                s.cacheHits += hits;
+            }
+        }
+    }
+
+    private int clamp(int size) {
+        return Math.max(minBatchSize, Math.min(maxBatchSize, size));
+    }
+
+    private static double average(double avg, double value) {
+        return avg < 0 ? value : avg + ALPHA * (value - avg);
+    }
+}
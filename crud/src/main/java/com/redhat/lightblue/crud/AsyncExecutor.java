@@ -0,0 +1,128 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.util.Error;
+
+/**
+ * Long-lived executor running the blocking operations behind the
+ * asynchronous mediator API.
+ *
+ * At most <code>maxThreads</code> operations run at the same time, and at
+ * most <code>queueSize</code> operations wait for a thread. When the queue
+ * is full, the submission fails immediately, so callers get back pressure
+ * instead of an unbounded backlog. A <code>queueSize</code> of 0 or less
+ * means no operation waits: operations are handed off to an idle thread,
+ * and fail if all threads are busy.
+ */
+public class AsyncExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    /**
+     * @param maxThreads Maximum number of threads running operations
+     * @param queueSize Maximum number of operations waiting for a thread. 0
+     * or less hands operations off to idle threads without queueing them.
+     */
+    public AsyncExecutor(int maxThreads, int queueSize) {
+        int n = maxThreads < 1 ? 1 : maxThreads;
+        BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>();
+        this.executor = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS, queue, new AsyncThreadFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the operation on the executor. If the executor is saturated,
+     * the returned future fails with
+     * {@link CrudConstants#ERR_ASYNC_EXECUTOR_SATURATED}.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                if (!future.isDone()) {
+                    try {
+                        future.complete(operation.get());
+                    } catch (Throwable t) {
+                        // Complete the future on any failure, or the caller waits forever
+                        future.completeExceptionally(t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            LOGGER.warn("Async executor saturated, rejecting operation");
+            future.completeExceptionally(Error.get(CrudConstants.ERR_ASYNC_EXECUTOR_SATURATED,
+                    executor.getQueue().size() + " operations waiting"));
+        }
+        return future;
+    }
+
+    /**
+     * Returns the number of operations waiting for a thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of operations rejected because the executor was
+     * saturated
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Stops accepting new operations. Operations already submitted run to
+     * completion.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static class AsyncThreadFactory implements ThreadFactory {
+        private final AtomicInteger n = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "lightblue-async-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.query.Sort;
+
+/**
+ * If the controller can run finds without blocking the calling thread,
+ * implement this interface. Asynchronous finds on simple entities then
+ * call the controller directly, and the calling thread is released while
+ * the controller waits for the back-end. Otherwise, asynchronous finds run
+ * the blocking {@link CRUDController#find} on the shared
+ * {@link AsyncExecutor}.
+ */
+public interface AsyncFindSupport {
+
+    /**
+     * Starts a find. The returned future completes when the document stream
+     * of the context is set, as {@link CRUDController#find} would set it.
+     * The future can complete in any thread, and that thread reads the
+     * results.
+     *
+     * @see CRUDController#find
+     */
+    CompletableFuture<CRUDFindResponse> findAsync(CRUDOperationContext ctx,
+                                                  QueryExpression query,
+                                                  Projection projection,
+                                                  Sort sort,
+                                                  Long from,
+                                                  Long to);
+}
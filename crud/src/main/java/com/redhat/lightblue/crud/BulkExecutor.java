@@ -0,0 +1,216 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.util.metrics.RequestMetrics;
+
+/**
+ * Long-lived executor shared by all bulk requests.
+ *
+ * The total number of threads running bulk request entries is bounded by
+ * <code>maxThreads</code>, and at most <code>queueSize</code> entries can wait
+ * for a thread. When the queue is full, a submission backs off for up to
+ * <code>queueTimeoutMS</code> waiting for a slot, and is rejected after that.
+ *
+ * Each bulk request executes its entries through a {@link Session}. A session
+ * limits the number of entries of a single bulk request that are running or
+ * waiting at the same time, so one large bulk request cannot monopolize the
+ * shared pool.
+ */
+public class BulkExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore admission;
+    private final long queueTimeoutMS;
+    private final AtomicInteger queueDepth = new AtomicInteger(0);
+
+    /**
+     * Constructs a bulk executor
+     *
+     * @param maxThreads Maximum number of threads executing bulk entries
+     * @param queueSize Maximum number of entries waiting for a thread
+     * @param queueTimeoutMS How long to wait for a queue slot before
+     * rejecting an entry
+     */
+    public BulkExecutor(int maxThreads, int queueSize, long queueTimeoutMS) {
+        int n = maxThreads < 1 ? 1 : maxThreads;
+        this.queueTimeoutMS = queueTimeoutMS < 0 ? 0 : queueTimeoutMS;
+        this.admission = new Semaphore(n + (queueSize < 0 ? 0 : queueSize), true);
+        // Admission is bounded by the semaphore, so the executor
+        // queue never grows beyond queueSize
+        this.executor = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new BulkThreadFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts a new session for a bulk request. At most
+     * <code>perRequestLimit</code> entries submitted through the returned
+     * session run or wait at the same time.
+     */
+    public Session newSession(int perRequestLimit) {
+        return new Session(perRequestLimit < 1 ? 1 : perRequestLimit);
+    }
+
+    /**
+     * Returns the number of entries admitted to the executor that are not
+     * running yet
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Stops accepting new entries. Entries already submitted run to
+     * completion.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Execution scope of a single bulk request
+     */
+    public class Session {
+        private final Semaphore permits;
+
+        private Session(int perRequestLimit) {
+            this.permits = new Semaphore(perRequestLimit);
+        }
+
+        /**
+         * Submits a task. Blocks while this session already has the maximum
+         * number of entries running or waiting, and while the shared queue
+         * is full. The queue depth observed at submission and the time the
+         * task waited before it started are reported to <code>metrics</code>.
+         *
+         * @throws RejectedExecutionException if the shared queue stays full
+         * for longer than the queue timeout
+         */
+        public <T> Future<T> submit(Callable<T> task, RequestMetrics metrics) {
+            final long submitted = System.nanoTime();
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+            boolean admitted = false;
+            try {
+                admitted = admission.tryAcquire(queueTimeoutMS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!admitted) {
+                permits.release();
+                LOGGER.warn("Bulk executor saturated, rejecting entry after {}ms", queueTimeoutMS);
+                throw new RejectedExecutionException("Bulk executor queue is full");
+            }
+            final int depth = queueDepth.incrementAndGet();
+            BulkTask<T> future = new BulkTask<>(() -> {
+                metrics.markBulkEntryQueued(depth, System.nanoTime() - submitted);
+                return task.call();
+            }, permits);
+            try {
+                executor.execute(future);
+                return future;
+            } catch (RejectedExecutionException e) {
+                future.release();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * A bulk entry holding an admission permit and a session permit. The
+     * entry leaves the queue when it starts running, or when it is
+     * cancelled before it runs. The permits are released once, when the
+     * entry completes, or when it is cancelled, even if it never runs.
+     */
+    private class BulkTask<T> extends FutureTask<T> {
+        private final Semaphore permits;
+        private final AtomicBoolean dequeued = new AtomicBoolean(false);
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        BulkTask(Callable<T> task, Semaphore permits) {
+            super(task);
+            this.permits = permits;
+        }
+
+        @Override
+        public void run() {
+            try {
+                dequeue();
+                super.run();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                release();
+            }
+        }
+
+        private void dequeue() {
+            if (dequeued.compareAndSet(false, true)) {
+                queueDepth.decrementAndGet();
+            }
+        }
+
+        void release() {
+            dequeue();
+            if (released.compareAndSet(false, true)) {
+                admission.release();
+                permits.release();
+            }
+        }
+    }
+
+    private static class BulkThreadFactory implements ThreadFactory {
+        private final AtomicInteger n = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "lightblue-bulk-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -39,6 +39,7 @@ public class CRUDFindRequest implements Serializable, WithRange {
     private Sort sort;
     private Long from;
     private Long to;
+    private String continuation;
 
     /**
      * The query
@@ -116,6 +117,26 @@ public class CRUDFindRequest implements Serializable, WithRange {
         to = l;
     }
 
+    /**
+     * Continuation token returned by the previous page of a keyset paginated
+     * find. The find returns the documents after the last document of that
+     * page, and <code>from</code> and <code>to</code> are relative to that
+     * document.
+     */
+    public String getContinuation() {
+        return continuation;
+    }
+
+    /**
+     * Continuation token returned by the previous page of a keyset paginated
+     * find. The find returns the documents after the last document of that
+     * page, and <code>from</code> and <code>to</code> are relative to that
+     * document.
+     */
+    public void setContinuation(String s) {
+        continuation = s;
+    }
+
     /**
      * Shallow copy from r to this
      */
@@ -125,6 +146,7 @@ public class CRUDFindRequest implements Serializable, WithRange {
         sort = r.sort;
         from = r.from;
         to = r.to;
+        continuation = r.continuation;
     }
 
     /**
@@ -141,6 +163,9 @@ public class CRUDFindRequest implements Serializable, WithRange {
             node.set("sort", sort.toJson());
         }
         WithRange.toJson(this, factory, node);
+        if (continuation != null) {
+            node.put("continuation", continuation);
+        }
     }
 
     /**
@@ -163,6 +188,10 @@ public class CRUDFindRequest implements Serializable, WithRange {
         Range r = WithRange.fromJson(node);
         setFrom(r.from);
         setTo(r.to);
+        x = node.get("continuation");
+        if (x != null && !x.isNull()) {
+            continuation = x.asText();
+        }
     }
 
 }
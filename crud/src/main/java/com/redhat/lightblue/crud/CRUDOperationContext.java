@@ -32,6 +32,7 @@ import java.util.Iterator;
 import com.redhat.lightblue.DataError;
 import com.redhat.lightblue.ExecutionOptions;
 import com.redhat.lightblue.ResultMetadata;
+import com.redhat.lightblue.eval.FieldAccessRoleEvaluator;
 import com.redhat.lightblue.hooks.HookManager;
 import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.JsonDoc;
@@ -62,6 +63,7 @@ public abstract class CRUDOperationContext implements MetadataResolver, Serializ
     private boolean updateIfCurrent;
     private boolean computeCounts=true;
     private boolean limitQueryTime=true;
+    private transient Deadline deadline;
 
     public final Measure measure=new Measure();
 
@@ -82,6 +84,7 @@ public abstract class CRUDOperationContext implements MetadataResolver, Serializ
         this.hookManager = new HookManager(factory.getHookResolver(), factory.getNodeFactory());
         this.callerRoles = new HashSet<>();
         this.executionOptions = eo;
+        this.deadline = Deadline.fromExecutionOptions(eo, null);
     }
 
     public CRUDOperationContext(CRUDOperation op,
@@ -150,6 +153,23 @@ public abstract class CRUDOperationContext implements MetadataResolver, Serializ
     public void setLimitQueryTime(boolean b) {
         limitQueryTime=b;
     }
+
+    /**
+     * Returns the deadline and cancellation token of the request. Contexts
+     * derived from a context share its deadline. Controllers can use it to
+     * bound the time spent in the backend, and should stop processing when
+     * it expires.
+     */
+    public Deadline getDeadline() {
+        if (deadline == null) {
+            deadline = new Deadline();
+        }
+        return deadline;
+    }
+
+    public void setDeadline(Deadline d) {
+        deadline = d;
+    }
     
     /**
      * Returns the execution options
@@ -195,6 +215,15 @@ public abstract class CRUDOperationContext implements MetadataResolver, Serializ
         return callerRoles;
     }
 
+    /**
+     * Returns an evaluator for the access of the caller to the fields of an
+     * entity. Controllers use this to check field access, and to exclude
+     * inaccessible fields from projections.
+     */
+    public FieldAccessRoleEvaluator getFieldAccessRoleEvaluator(String entityName) {
+        return new FieldAccessRoleEvaluator(getEntityMetadata(entityName), getCallerRoles());
+    }
+
     public void setDocumentStream(DocumentStream<DocCtx> stream) {
         this.documentStream=stream;
     }
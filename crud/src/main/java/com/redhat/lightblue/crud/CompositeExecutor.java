@@ -0,0 +1,219 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.util.metrics.RequestMetrics;
+
+/**
+ * Long-lived executor shared by all composite find executions.
+ *
+ * There is no queue: a task is handed to an idle thread, and if all
+ * <code>maxThreads</code> threads are busy, the task runs in the submitting
+ * thread. Composite execution steps submit nested tasks and wait for them,
+ * so a task never waits for a thread that may be blocked waiting for that
+ * task, and the executor cannot deadlock.
+ *
+ * Each composite find executes its tasks through a {@link Session}. A
+ * session limits the number of tasks of a single request running on the
+ * shared threads. Tasks over that limit also run in the submitting thread.
+ */
+public class CompositeExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompositeExecutor.class);
+
+    /**
+     * Execution option overriding the maximum number of threads a single
+     * composite find runs on. It is capped at the number of threads of the
+     * executor.
+     */
+    public static final String OPT_PARALLELISM = "compositeParallelism";
+
+    private final ThreadPoolExecutor executor;
+    private final int maxThreads;
+    private final AtomicLong callerRuns = new AtomicLong(0);
+
+    /**
+     * Constructs a composite executor
+     *
+     * @param maxThreads Maximum number of threads executing composite find
+     * tasks
+     */
+    public CompositeExecutor(int maxThreads) {
+        int n = maxThreads < 1 ? 1 : maxThreads;
+        this.maxThreads = n;
+        this.executor = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                new CompositeThreadFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts a new session for a composite find. At most
+     * <code>parallelism</code> tasks submitted through the returned session
+     * run on the shared threads at the same time. The parallelism is capped
+     * at the number of threads of the executor.
+     */
+    public Session newSession(int parallelism, RequestMetrics metrics) {
+        return new Session(Math.max(1, Math.min(parallelism, maxThreads)), metrics);
+    }
+
+    /**
+     * Returns the number of threads running tasks
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns the number of tasks that ran in the submitting thread because
+     * the executor or the request was saturated
+     */
+    public long getCallerRunsCount() {
+        return callerRuns.get();
+    }
+
+    /**
+     * Stops accepting new tasks. Tasks submitted after this run in the
+     * submitting thread.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Execution scope of a single composite find
+     */
+    public class Session {
+        private final Semaphore permits;
+        private final RequestMetrics metrics;
+        private volatile boolean closed = false;
+
+        private Session(int parallelism, RequestMetrics metrics) {
+            this.permits = new Semaphore(parallelism);
+            this.metrics = metrics;
+        }
+
+        /**
+         * Submits a task. The task runs on a shared thread if this session is
+         * below its parallelism limit and there is an idle thread, otherwise
+         * it runs in the calling thread before this method returns.
+         */
+        public <T> Future<T> submit(Callable<T> task) {
+            int active = executor.getActiveCount();
+            if (!closed && permits.tryAcquire()) {
+                PermitTask<T> future = new PermitTask<>(task, permits);
+                try {
+                    executor.execute(future);
+                    metrics.markCompositeTaskSubmitted(active, false);
+                    return future;
+                } catch (RejectedExecutionException e) {
+                    future.release();
+                }
+            }
+            callerRuns.incrementAndGet();
+            metrics.markCompositeTaskSubmitted(active, true);
+            LOGGER.debug("Composite executor saturated, running task in caller thread");
+            FutureTask<T> future = new FutureTask<>(task);
+            future.run();
+            return future;
+        }
+
+        /**
+         * @see #submit(Callable)
+         */
+        public Future<?> submit(Runnable task) {
+            return submit(() -> {
+                task.run();
+                return null;
+            });
+        }
+
+        /**
+         * Ends the session. Tasks that are already running are not
+         * interrupted, tasks submitted after this run in the calling thread.
+         */
+        public void close() {
+            closed = true;
+        }
+    }
+
+    /**
+     * A task holding a permit of a session. The permit is released once,
+     * when the task completes, or when it is cancelled, even if the task
+     * never runs.
+     */
+    private static class PermitTask<T> extends FutureTask<T> {
+        private final Semaphore permits;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        PermitTask(Callable<T> task, Semaphore permits) {
+            super(task);
+            this.permits = permits;
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                release();
+            }
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+    }
+
+    private static class CompositeThreadFactory implements ThreadFactory {
+        private final AtomicInteger n = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "lightblue-composite-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import com.redhat.lightblue.query.QueryExpression;
+
+/**
+ * If the controller can count the documents matching a query without
+ * retrieving them, implement this interface. Otherwise, counts are computed
+ * using a find that retrieves only the document identities.
+ */
+public interface CountQuerySupport {
+
+    /**
+     * Returns the number of documents matching the query
+     *
+     * @param ctx Operation context
+     * @param query The query. Can be null, meaning all documents.
+     */
+    long count(CRUDOperationContext ctx,
+               QueryExpression query);
+}
@@ -80,6 +80,20 @@ public final class CrudConstants {
 
     public static final String ERR_EXECUTION_CONTEXT_TOO_LARGE = "crud:ExecutionContextTooLarge";
 
+    public static final String ERR_BULK_EXECUTOR_SATURATED = "crud:BulkExecutorSaturated";
+
+    public static final String ERR_ASYNC_EXECUTOR_SATURATED = "crud:AsyncExecutorSaturated";
+
+    public static final String ERR_DEADLINE_EXCEEDED = "crud:DeadlineExceeded";
+
+    public static final String ERR_REQUEST_CANCELLED = "crud:RequestCancelled";
+
+    public static final String ERR_HOOKS_SKIPPED = "crud:HooksSkipped";
+
+    public static final String ERR_INVALID_CONTINUATION = "crud:InvalidContinuation";
+
+    public static final String ERR_SPILL_FAILED = "crud:SpillFailed";
+
     private CrudConstants() {
 
     }
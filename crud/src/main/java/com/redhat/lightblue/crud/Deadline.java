@@ -0,0 +1,233 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.ExecutionOptions;
+import com.redhat.lightblue.util.Error;
+
+/**
+ * Deadline and cancellation token of a request. The same deadline is shared
+ * by the operation context of a request and all contexts derived from it.
+ *
+ * Long running steps call {@link #check()} at safe points, and stop with an
+ * error once the deadline passed or the request is cancelled. Futures
+ * registered with the deadline are cancelled when that happens, so work that
+ * is no longer needed stops as soon as possible.
+ *
+ * A deadline can have a parent, such as the deadline of the bulk request
+ * containing the request. The deadline expires when its parent expires.
+ */
+public class Deadline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Deadline.class);
+
+    /**
+     * Execution option giving the number of milliseconds the request is
+     * allowed to run
+     */
+    public static final String OPT_DEADLINE_MS = "deadlineMS";
+
+    private final Deadline parent;
+    private final long expiresAtNanos;
+    private final boolean bounded;
+    private final List<Future<?>> futures = new ArrayList<>();
+    private final List<Runnable> listeners = new ArrayList<>();
+    private volatile boolean cancelled = false;
+    private volatile boolean expired = false;
+
+    /**
+     * Constructs a deadline that never expires, but can be cancelled
+     */
+    public Deadline() {
+        this(null);
+    }
+
+    /**
+     * Constructs a deadline that expires when its parent expires
+     */
+    public Deadline(Deadline parent) {
+        this.parent = parent;
+        this.bounded = false;
+        this.expiresAtNanos = 0;
+    }
+
+    /**
+     * Constructs a deadline expiring <code>timeoutMS</code> milliseconds
+     * from now
+     */
+    public Deadline(long timeoutMS) {
+        this(null, timeoutMS);
+    }
+
+    /**
+     * Constructs a deadline expiring <code>timeoutMS</code> milliseconds
+     * from now, or when its parent expires
+     */
+    public Deadline(Deadline parent, long timeoutMS) {
+        this.parent = parent;
+        this.bounded = true;
+        this.expiresAtNanos = System.nanoTime() + timeoutMS * 1000000l;
+    }
+
+    /**
+     * Returns a deadline based on the {@link #OPT_DEADLINE_MS} execution
+     * option. If the option is not given, the deadline expires only when
+     * the parent expires.
+     *
+     * @param options Execution options, can be null
+     * @param parent Parent deadline, can be null
+     */
+    public static Deadline fromExecutionOptions(ExecutionOptions options, Deadline parent) {
+        if (options != null) {
+            String value = options.getOptionValueFor(OPT_DEADLINE_MS);
+            if (value != null) {
+                try {
+                    return new Deadline(parent, Long.parseLong(value.trim()));
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Invalid {} execution option:{}", OPT_DEADLINE_MS, value);
+                }
+            }
+        }
+        return new Deadline(parent);
+    }
+
+    /**
+     * Cancels the request. All registered futures are cancelled.
+     */
+    public void cancel() {
+        cancelled = true;
+        cancelFutures();
+    }
+
+    /**
+     * Returns true if this request or its parent is cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled || (parent != null && parent.isCancelled());
+    }
+
+    /**
+     * Returns true if the deadline passed, or the request is cancelled
+     */
+    public boolean isExpired() {
+        if (cancelled || expired) {
+            return true;
+        }
+        if ((bounded && System.nanoTime() - expiresAtNanos >= 0)
+                || (parent != null && parent.isExpired())) {
+            expired = true;
+            cancelFutures();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of milliseconds left before the deadline, or
+     * <code>Long.MAX_VALUE</code> if the deadline never expires
+     */
+    public long getRemainingMS() {
+        long remaining = Long.MAX_VALUE;
+        if (bounded) {
+            remaining = Math.max(0, (expiresAtNanos - System.nanoTime()) / 1000000l);
+        }
+        if (parent != null) {
+            remaining = Math.min(remaining, parent.getRemainingMS());
+        }
+        return remaining;
+    }
+
+    /**
+     * Throws an error if the deadline passed, or the request is cancelled
+     *
+     * @throws Error {@link CrudConstants#ERR_DEADLINE_EXCEEDED} or
+     * {@link CrudConstants#ERR_REQUEST_CANCELLED}
+     */
+    public void check() {
+        if (isExpired()) {
+            if (isCancelled()) {
+                throw Error.get(CrudConstants.ERR_REQUEST_CANCELLED);
+            } else {
+                throw Error.get(CrudConstants.ERR_DEADLINE_EXCEEDED);
+            }
+        }
+    }
+
+    /**
+     * Registers a future to be cancelled when the deadline expires or the
+     * request is cancelled. If that already happened, the future is
+     * cancelled immediately.
+     */
+    public void register(Future<?> future) {
+        boolean cancelNow;
+        synchronized (futures) {
+            // Drop completed futures so long requests don't accumulate them
+            futures.removeIf(Future::isDone);
+            futures.add(future);
+            cancelNow = cancelled || expired;
+        }
+        if (cancelNow) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Registers a callback to be called once when the deadline expiration
+     * or the cancellation of the request is detected. Threads waiting for
+     * other threads use this to wake up. If that already happened, the
+     * callback is called immediately.
+     */
+    public void onExpire(Runnable listener) {
+        boolean callNow;
+        synchronized (futures) {
+            listeners.add(listener);
+            callNow = cancelled || expired;
+        }
+        if (callNow) {
+            listener.run();
+        }
+    }
+
+    private void cancelFutures() {
+        List<Future<?>> l;
+        List<Runnable> r;
+        synchronized (futures) {
+            l = new ArrayList<>(futures);
+            futures.clear();
+            r = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        if (!l.isEmpty()) {
+            LOGGER.debug("Cancelling {} pending tasks", l.size());
+        }
+        for (Future<?> f : l) {
+            f.cancel(true);
+        }
+        for (Runnable x : r) {
+            x.run();
+        }
+    }
+}
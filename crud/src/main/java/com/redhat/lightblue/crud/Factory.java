@@ -28,6 +28,8 @@ import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 
 import com.redhat.lightblue.util.DefaultRegistry;
 import com.redhat.lightblue.util.Resolver;
+import com.redhat.lightblue.util.metrics.NoopRequestMetrics;
+import com.redhat.lightblue.util.metrics.RequestMetrics;
 
 import com.redhat.lightblue.metadata.EntityMetadata;
 import com.redhat.lightblue.metadata.ValueGenerator;
@@ -61,6 +63,40 @@ public class Factory implements Serializable {
 
     private JsonNodeFactory nodeFactory;
     private int bulkParallelExecutions = 3;
+    private int bulkMaxThreads = 16;
+    private int bulkQueueSize = 64;
+    private long bulkQueueTimeoutMS = 30000;
+    private int bulkWriteBatchSize = 0;
+    private int writeChunkSize = 1000;
+    private int compositeWriteBatchSize = 500;
+    private transient volatile BulkExecutor bulkExecutor;
+    private int compositeMaxThreads = 32;
+    private int compositeParallelism = 9;
+    private transient volatile CompositeExecutor compositeExecutor;
+    private transient volatile FindCoalescer findCoalescer;
+    private transient volatile FindResultCache findResultCache;
+    private transient volatile ReferenceEntityCache referenceEntityCache;
+    private transient volatile AdaptiveBatchSizer batchSizer;
+    private transient volatile FieldAccessCache fieldAccessCache;
+    private transient volatile AsyncExecutor asyncExecutor;
+    private transient RequestMetrics requestMetrics;
+    private int maxCoalescedFinds = 1000;
+    private long findCacheSizeB = 16777216;
+    private long findCacheTTLMS = 60000;
+    private int fieldAccessCacheSize = 0;
+    private int asyncMaxThreads = 16;
+    private int asyncQueueSize = 1000;
+    private int assembleWindowSize = 1000;
+    private int minBatchSize = 16;
+    private int maxBatchSize = 1024;
+    private long batchTargetLatencyMS = 200;
+    private int batchMaxQuerySizeB = 65536;
+    private int batchMaxResults = 10000;
+    private int joinPrefetchDepth = 1;
+    private int childDocCacheSize = 1000;
+    private int referenceCacheMaxDocs = 1000;
+    private long referenceCacheTTLMS = 60000;
+    private int compositeFindSpillThresholdB = 0;
     private int memoryIndexThreshold = 16;
     private int maxResultSetSizeForReadsB;
     private int warnResultSetSizeB;
@@ -115,6 +151,457 @@ public class Factory implements Serializable {
         return bulkParallelExecutions;
     }
 
+    /**
+     * Maximum number of threads shared by all bulk requests
+     */
+    public int getBulkMaxThreads() {
+        return bulkMaxThreads;
+    }
+
+    public void setBulkMaxThreads(int i) {
+        bulkMaxThreads = i;
+    }
+
+    /**
+     * Maximum number of bulk request entries waiting for a thread
+     */
+    public int getBulkQueueSize() {
+        return bulkQueueSize;
+    }
+
+    public void setBulkQueueSize(int i) {
+        bulkQueueSize = i;
+    }
+
+    /**
+     * How long a bulk request entry waits for a queue slot before it is
+     * rejected
+     */
+    public long getBulkQueueTimeoutMS() {
+        return bulkQueueTimeoutMS;
+    }
+
+    public void setBulkQueueTimeoutMS(long l) {
+        bulkQueueTimeoutMS = l;
+    }
+
+    /**
+     * Maximum number of consecutive single document insert or save entries
+     * of a bulk request that are merged into one operation. 0 or 1 disables
+     * merging.
+     */
+    public int getBulkWriteBatchSize() {
+        return bulkWriteBatchSize;
+    }
+
+    public void setBulkWriteBatchSize(int i) {
+        bulkWriteBatchSize = i;
+    }
+
+    /**
+     * Number of documents processed at once when inserting or saving
+     * documents read from a stream
+     */
+    public int getWriteChunkSize() {
+        return writeChunkSize;
+    }
+
+    public void setWriteChunkSize(int i) {
+        writeChunkSize = i;
+    }
+
+    /**
+     * Maximum number of documents updated or deleted by one controller call
+     * when the update or delete query requires a composite search
+     */
+    public int getCompositeWriteBatchSize() {
+        return compositeWriteBatchSize;
+    }
+
+    public void setCompositeWriteBatchSize(int i) {
+        compositeWriteBatchSize = i;
+    }
+
+    /**
+     * Returns the executor shared by all bulk requests. The executor is
+     * created on first use, so the bulk executor settings must be set before
+     * the first bulk request.
+     */
+    public BulkExecutor getBulkExecutor() {
+        if (bulkExecutor == null) {
+            synchronized (this) {
+                if (bulkExecutor == null) {
+                    bulkExecutor = new BulkExecutor(bulkMaxThreads, bulkQueueSize, bulkQueueTimeoutMS);
+                }
+            }
+        }
+        return bulkExecutor;
+    }
+
+    /**
+     * Maximum number of threads shared by all composite finds
+     */
+    public int getCompositeMaxThreads() {
+        return compositeMaxThreads;
+    }
+
+    public void setCompositeMaxThreads(int i) {
+        compositeMaxThreads = i;
+    }
+
+    /**
+     * Default maximum number of threads a single composite find runs on.
+     * Can be overridden per request with the
+     * {@link CompositeExecutor#OPT_PARALLELISM} execution option.
+     */
+    public int getCompositeParallelism() {
+        return compositeParallelism;
+    }
+
+    public void setCompositeParallelism(int i) {
+        compositeParallelism = i;
+    }
+
+    /**
+     * Returns the executor shared by all composite finds. The executor is
+     * created on first use, so the composite executor settings must be set
+     * before the first composite find.
+     */
+    public CompositeExecutor getCompositeExecutor() {
+        if (compositeExecutor == null) {
+            synchronized (this) {
+                if (compositeExecutor == null) {
+                    compositeExecutor = new CompositeExecutor(compositeMaxThreads);
+                }
+            }
+        }
+        return compositeExecutor;
+    }
+
+    /**
+     * Maximum number of distinct find requests that are coalesced at the
+     * same time. 0 disables coalescing. See {@link FindCoalescer}.
+     */
+    public int getMaxCoalescedFinds() {
+        return maxCoalescedFinds;
+    }
+
+    public void setMaxCoalescedFinds(int i) {
+        maxCoalescedFinds = i;
+    }
+
+    /**
+     * Returns the coalescer shared by all find requests
+     */
+    public FindCoalescer getFindCoalescer() {
+        if (findCoalescer == null) {
+            synchronized (this) {
+                if (findCoalescer == null) {
+                    findCoalescer = new FindCoalescer(maxCoalescedFinds);
+                }
+            }
+        }
+        return findCoalescer;
+    }
+
+    /**
+     * Maximum total size of find responses kept in the find result cache,
+     * computed with JsonUtils.size. 0 disables the cache. See
+     * {@link FindResultCache}.
+     */
+    public long getFindCacheSizeB() {
+        return findCacheSizeB;
+    }
+
+    public void setFindCacheSizeB(long l) {
+        findCacheSizeB = l;
+    }
+
+    /**
+     * How long a find response stays in the find result cache, in
+     * milliseconds
+     */
+    public long getFindCacheTTLMS() {
+        return findCacheTTLMS;
+    }
+
+    public void setFindCacheTTLMS(long l) {
+        findCacheTTLMS = l;
+    }
+
+    /**
+     * Returns the find result cache shared by all requests
+     */
+    public FindResultCache getFindResultCache() {
+        if (findResultCache == null) {
+            synchronized (this) {
+                if (findResultCache == null) {
+                    findResultCache = new FindResultCache(findCacheSizeB, findCacheTTLMS);
+                }
+            }
+        }
+        return findResultCache;
+    }
+
+    /**
+     * Returns the cache of reference entity documents shared by all
+     * composite finds
+     */
+    public ReferenceEntityCache getReferenceEntityCache() {
+        if (referenceEntityCache == null) {
+            synchronized (this) {
+                if (referenceEntityCache == null) {
+                    referenceEntityCache = new ReferenceEntityCache(referenceCacheMaxDocs, referenceCacheTTLMS);
+                }
+            }
+        }
+        return referenceEntityCache;
+    }
+
+    /**
+     * Maximum number of field access matrices and metadata role sets cached
+     * by {@link FieldAccessCache}. 0 disables the cache, which is the
+     * default.
+     *
+     * Cached entries are only invalidated when the metadata implementation
+     * calls {@link FieldAccessCache#invalidate(String)}, or notifies the
+     * cache as a metadata listener. Otherwise, an entity version that is
+     * removed and recreated with different access keeps the old access
+     * until the entry is evicted. Enable the cache only if metadata
+     * changes are wired to it, or metadata doesn't change while the server
+     * runs.
+     */
+    public int getFieldAccessCacheSize() {
+        return fieldAccessCacheSize;
+    }
+
+    public void setFieldAccessCacheSize(int i) {
+        fieldAccessCacheSize = i;
+    }
+
+    /**
+     * Returns the field access cache shared by all requests. See
+     * {@link #getFieldAccessCacheSize()} for how it is invalidated.
+     */
+    public FieldAccessCache getFieldAccessCache() {
+        if (fieldAccessCache == null) {
+            synchronized (this) {
+                if (fieldAccessCache == null) {
+                    fieldAccessCache = new FieldAccessCache(fieldAccessCacheSize);
+                }
+            }
+        }
+        return fieldAccessCache;
+    }
+
+    /**
+     * Maximum number of threads running blocking operations for the
+     * asynchronous mediator API. See {@link AsyncExecutor}.
+     */
+    public int getAsyncMaxThreads() {
+        return asyncMaxThreads;
+    }
+
+    public void setAsyncMaxThreads(int i) {
+        asyncMaxThreads = i;
+    }
+
+    /**
+     * Maximum number of asynchronous operations waiting for a thread. When
+     * the queue is full, asynchronous operations fail immediately. 0 or
+     * less disables the queue, so operations fail when all threads are busy.
+     */
+    public int getAsyncQueueSize() {
+        return asyncQueueSize;
+    }
+
+    public void setAsyncQueueSize(int i) {
+        asyncQueueSize = i;
+    }
+
+    /**
+     * Returns the executor shared by all asynchronous operations
+     */
+    public AsyncExecutor getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            synchronized (this) {
+                if (asyncExecutor == null) {
+                    asyncExecutor = new AsyncExecutor(asyncMaxThreads, asyncQueueSize);
+                }
+            }
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * Number of parent documents assembled together by a composite find.
+     * The documents of a window are returned while the next window is
+     * assembled, so only two windows are kept in memory.
+     */
+    public int getAssembleWindowSize() {
+        return assembleWindowSize;
+    }
+
+    public void setAssembleWindowSize(int i) {
+        assembleWindowSize = i;
+    }
+
+    /**
+     * Smallest number of queries combined into one batch by a composite find.
+     * See {@link AdaptiveBatchSizer}.
+     */
+    public int getMinBatchSize() {
+        return minBatchSize;
+    }
+
+    public void setMinBatchSize(int i) {
+        minBatchSize = i;
+    }
+
+    /**
+     * Largest number of queries combined into one batch by a composite find
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int i) {
+        maxBatchSize = i;
+    }
+
+    /**
+     * Batch sizes of a composite find are reduced when a batch takes longer
+     * than this many milliseconds, and increased when it takes less than half
+     * of it
+     */
+    public long getBatchTargetLatencyMS() {
+        return batchTargetLatencyMS;
+    }
+
+    public void setBatchTargetLatencyMS(long l) {
+        batchTargetLatencyMS = l;
+    }
+
+    /**
+     * Batch sizes of a composite find are limited so the combined query of a
+     * batch is not expected to be larger than this, computed with
+     * JsonUtils.size
+     */
+    public int getBatchMaxQuerySizeB() {
+        return batchMaxQuerySizeB;
+    }
+
+    public void setBatchMaxQuerySizeB(int i) {
+        batchMaxQuerySizeB = i;
+    }
+
+    /**
+     * Batch sizes of a composite find are limited so a batch is not expected
+     * to return more documents than this
+     */
+    public int getBatchMaxResults() {
+        return batchMaxResults;
+    }
+
+    public void setBatchMaxResults(int i) {
+        batchMaxResults = i;
+    }
+
+    /**
+     * Returns the batch sizer shared by all composite finds
+     */
+    public AdaptiveBatchSizer getBatchSizer() {
+        if (batchSizer == null) {
+            synchronized (this) {
+                if (batchSizer == null) {
+                    batchSizer = new AdaptiveBatchSizer(minBatchSize, maxBatchSize, batchTargetLatencyMS, batchMaxQuerySizeB, batchMaxResults);
+                }
+            }
+        }
+        return batchSizer;
+    }
+
+    /**
+     * Number of join search batches a composite find runs ahead of the batch
+     * whose documents are being read. 0 runs one batch at a time. Batches are
+     * not prefetched while the execution context uses more than half of
+     * maxExecutionContextSizeForCompositeFindB.
+     */
+    public int getJoinPrefetchDepth() {
+        return joinPrefetchDepth;
+    }
+
+    public void setJoinPrefetchDepth(int i) {
+        joinPrefetchDepth = i;
+    }
+
+    /**
+     * Maximum number of child documents a composite find caches for each
+     * association, so child documents referenced by many parents are
+     * retrieved once per request. 0 disables the cache.
+     */
+    public int getChildDocCacheSize() {
+        return childDocCacheSize;
+    }
+
+    public void setChildDocCacheSize(int i) {
+        childDocCacheSize = i;
+    }
+
+    /**
+     * Maximum number of documents of an entity cached by
+     * {@link ReferenceEntityCache}. Entities with more documents are not
+     * cached. 0 disables the cache.
+     */
+    public int getReferenceCacheMaxDocs() {
+        return referenceCacheMaxDocs;
+    }
+
+    public void setReferenceCacheMaxDocs(int i) {
+        referenceCacheMaxDocs = i;
+    }
+
+    /**
+     * How long {@link ReferenceEntityCache} keeps the documents of an entity
+     * before reading them again
+     */
+    public long getReferenceCacheTTLMS() {
+        return referenceCacheTTLMS;
+    }
+
+    public void setReferenceCacheTTLMS(long l) {
+        referenceCacheTTLMS = l;
+    }
+
+    /**
+     * Once the documents held by a composite find exceed this many bytes,
+     * sorted and unique root results are written to temporary files instead
+     * of being kept in memory. 0 disables spilling. Should be less than the
+     * maximum execution context size.
+     */
+    public int getCompositeFindSpillThresholdB() {
+        return compositeFindSpillThresholdB;
+    }
+
+    public void setCompositeFindSpillThresholdB(int i) {
+        compositeFindSpillThresholdB = i;
+    }
+
+    /**
+     * Returns the metrics used by components shared by all requests, such
+     * as the composite find executor
+     */
+    public RequestMetrics getRequestMetrics() {
+        if (requestMetrics == null) {
+            requestMetrics = new NoopRequestMetrics();
+        }
+        return requestMetrics;
+    }
+
+    public void setRequestMetrics(RequestMetrics metrics) {
+        requestMetrics = metrics;
+    }
+
     /**
      * Returns a constraint validator containing field and entity constraint
      * validators for the given entity
@@ -269,7 +756,9 @@ public class Factory implements Serializable {
         return "Factory [fieldConstraintValidatorRegistry=" + fieldConstraintValidatorRegistry + ", entityConstraintValidatorRegistry="
                 + entityConstraintValidatorRegistry + ", crudControllers=" + crudControllers + ", hookResolver=" + hookResolver + ", interceptors="
                 + interceptors + ", generators=" + generators + ", nodeFactory=" + nodeFactory + ", bulkParallelExecutions=" + bulkParallelExecutions
-                + ", memoryIndexThreshold=" + memoryIndexThreshold + ", maxResultSetSizeForReadsB=" + maxResultSetSizeForReadsB
+                + ", bulkMaxThreads=" + bulkMaxThreads + ", bulkQueueSize=" + bulkQueueSize + ", bulkQueueTimeoutMS=" + bulkQueueTimeoutMS + ", bulkWriteBatchSize=" + bulkWriteBatchSize + ", writeChunkSize=" + writeChunkSize + ", compositeWriteBatchSize=" + compositeWriteBatchSize
+                + ", compositeMaxThreads=" + compositeMaxThreads + ", compositeParallelism=" + compositeParallelism
+                + ", maxCoalescedFinds=" + maxCoalescedFinds + ", findCacheSizeB=" + findCacheSizeB + ", findCacheTTLMS=" + findCacheTTLMS + ", fieldAccessCacheSize=" + fieldAccessCacheSize + ", asyncMaxThreads=" + asyncMaxThreads + ", asyncQueueSize=" + asyncQueueSize + ", assembleWindowSize=" + assembleWindowSize + ", minBatchSize=" + minBatchSize + ", maxBatchSize=" + maxBatchSize + ", batchTargetLatencyMS=" + batchTargetLatencyMS + ", batchMaxQuerySizeB=" + batchMaxQuerySizeB + ", batchMaxResults=" + batchMaxResults + ", joinPrefetchDepth=" + joinPrefetchDepth + ", childDocCacheSize=" + childDocCacheSize + ", referenceCacheMaxDocs=" + referenceCacheMaxDocs + ", referenceCacheTTLMS=" + referenceCacheTTLMS + ", compositeFindSpillThresholdB=" + compositeFindSpillThresholdB + ", memoryIndexThreshold=" + memoryIndexThreshold + ", maxResultSetSizeForReadsB=" + maxResultSetSizeForReadsB
                 + ", maxExecutionContextSizeForCompositeFindB=" + maxExecutionContextSizeForCompositeFindB + ", warnResultSetSizeB=" + warnResultSetSizeB
                 + ", maxResultSetSizeForWritesB=" + maxResultSetSizeForWritesB + "]";
     }
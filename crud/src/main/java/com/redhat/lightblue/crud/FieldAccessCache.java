@@ -0,0 +1,197 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.eval.FieldAccessMatrix;
+import com.redhat.lightblue.metadata.CompositeMetadata;
+import com.redhat.lightblue.metadata.EntityInfo;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.Metadata;
+import com.redhat.lightblue.metadata.MetadataListener;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Caches field access matrices per entity, version, and caller role set,
+ * and the roles referenced in the metadata of an entity. Both are computed
+ * by walking the whole field tree of the entity, which is done once per
+ * entity instead of once per request.
+ *
+ * Entries are keyed by entity name and version. A composite entity is
+ * keyed by the names and versions of the entities in its tree, so requests
+ * that retrieve different child entities don't share entries. When the
+ * metadata of an entity is modified, {@link #invalidate(String)} removes
+ * the entries of every entity tree containing it. The cache is a
+ * {@link MetadataListener}, so it can be notified by the metadata
+ * implementation directly. Nothing in the mediator calls these, so the
+ * cache is disabled by default, and should only be enabled when metadata
+ * changes are wired to it. At most <code>maxEntries</code> entries are
+ * kept, least recently used entries are removed first.
+ */
+public class FieldAccessCache implements MetadataListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FieldAccessCache.class);
+
+    private final int maxEntries;
+
+    // Guarded by this
+    private final LinkedHashMap<String, Entry> entries;
+
+    private static class Entry {
+        private final Set<String> entities;
+        private final Object value;
+
+        Entry(Set<String> entities, Object value) {
+            this.entities = entities;
+            this.value = value;
+        }
+    }
+
+    /**
+     * @param maxEntries Maximum number of cached entries. 0 disables the
+     * cache.
+     */
+    public FieldAccessCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > FieldAccessCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the field access matrix of the caller for an entity
+     *
+     * @param md The entity metadata, can be a composite metadata
+     * @param callerRoles The caller roles
+     */
+    public FieldAccessMatrix getFieldAccess(EntityMetadata md, Set<String> callerRoles) {
+        return (FieldAccessMatrix) get("access|", md, "|" + new TreeSet<>(callerRoles),
+                () -> new FieldAccessMatrix(md, callerRoles));
+    }
+
+    /**
+     * Returns the roles referenced in the metadata of a composite entity
+     *
+     * @param md The composite metadata
+     * @param collector Collects the roles if they are not cached
+     */
+    @SuppressWarnings("unchecked")
+    public Set<String> getMetadataRoles(CompositeMetadata md, Supplier<Set<String>> collector) {
+        return (Set<String>) get("roles|", md, "", () -> Collections.unmodifiableSet(collector.get()));
+    }
+
+    /**
+     * Removes the entries computed from the metadata of the given entity,
+     * including the entries of composite entities containing it. Call this
+     * when the metadata of the entity is modified.
+     */
+    public synchronized void invalidate(String entityName) {
+        int n = entries.size();
+        entries.values().removeIf(e -> e.entities.contains(entityName));
+        LOGGER.debug("Invalidated {} entries of {}", n - entries.size(), entityName);
+    }
+
+    @Override
+    public void beforeCreateNewSchema(Metadata m, EntityMetadata md) {
+    }
+
+    @Override
+    public void afterCreateNewSchema(Metadata m, EntityMetadata md) {
+        invalidate(md.getName());
+    }
+
+    @Override
+    public void beforeUpdateEntityInfo(Metadata m, EntityInfo ei, boolean newEntity) {
+    }
+
+    @Override
+    public void afterUpdateEntityInfo(Metadata m, EntityInfo ei, boolean newEntity) {
+        invalidate(ei.getName());
+    }
+
+    /**
+     * Removes all entries
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of cached entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private Object get(String prefix, EntityMetadata md, String suffix, Supplier<Object> compute) {
+        if (maxEntries <= 0) {
+            return compute.get();
+        }
+        StringBuilder bld = new StringBuilder(prefix);
+        Set<String> entities = new HashSet<>();
+        key(md, bld, entities);
+        String key = bld.append(suffix).toString();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                return entry.value;
+            }
+        }
+        LOGGER.debug("Computing {}", key);
+        Object value = compute.get();
+        synchronized (this) {
+            entries.put(key, new Entry(entities, value));
+        }
+        return value;
+    }
+
+    /**
+     * Builds a key identifying the entity, and for composite entities, the
+     * entity tree, and collects the names of the entities in the tree
+     */
+    private static void key(EntityMetadata md, StringBuilder bld, Set<String> entities) {
+        entities.add(md.getName());
+        bld.append(md.getName()).append(':').append(md.getVersion().getValue());
+        if (md instanceof CompositeMetadata) {
+            CompositeMetadata cmd = (CompositeMetadata) md;
+            if (!cmd.isSimple()) {
+                bld.append('{');
+                for (Path child : new TreeSet<>(cmd.getChildPaths())) {
+                    bld.append(child).append('=');
+                    key(cmd.getChildMetadata(child), bld, entities);
+                    bld.append(',');
+                }
+                bld.append('}');
+            }
+        }
+    }
+}
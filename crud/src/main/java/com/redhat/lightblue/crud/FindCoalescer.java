@@ -0,0 +1,258 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.DataError;
+import com.redhat.lightblue.Response;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.util.Error;
+
+/**
+ * Coalesces identical find requests running at the same time. The first
+ * request with a given key runs the find. Requests with the same key
+ * arriving while it runs wait for it, and return a copy of its response.
+ *
+ * The key is built from the entity, version, query, projection, sort,
+ * range, and the roles of the caller, so callers with different roles never
+ * share results. Only entities whose entity info contains the
+ * {@link #PROP_COALESCE_FINDS} property with value <code>true</code> are
+ * coalesced.
+ *
+ * Responses are kept only while the find runs. At most
+ * <code>maxInFlight</code> distinct finds are coalesced at the same time,
+ * requests over that limit run on their own.
+ */
+public class FindCoalescer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FindCoalescer.class);
+
+    /**
+     * Entity info property enabling find coalescing for an entity
+     */
+    public static final String PROP_COALESCE_FINDS = "coalesceFinds";
+
+    private final int maxInFlight;
+    private final ConcurrentHashMap<String, CompletableFuture<Response>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedCount = new AtomicLong(0);
+
+    public FindCoalescer(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Returns true if finds for the entity should be coalesced
+     */
+    public boolean isEnabled(EntityMetadata md) {
+        if (maxInFlight > 0 && md.getEntityInfo() != null) {
+            Object value = md.getEntityInfo().getProperties().get(PROP_COALESCE_FINDS);
+            return value != null && Boolean.parseBoolean(value.toString());
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of requests that used the response of another
+     * request
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Builds the coalescing key of a find request
+     *
+     * @param req The request
+     * @param entityVersion The resolved entity version
+     * @param callerRoles The roles of the caller
+     */
+    public static String key(FindRequest req, String entityVersion, Set<String> callerRoles) {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        req.getCRUDFindRequest().toJson(JsonNodeFactory.instance, node);
+        StringBuilder bld = new StringBuilder();
+        bld.append(req.getEntityVersion().getEntity()).append(':').append(entityVersion).append('|');
+        canonical(node, bld);
+        if (KeysetPagination.isRequested(req)) {
+            // Keyset paginated responses have a continuation token
+            bld.append("|keyset");
+        }
+        bld.append('|').append(new TreeSet<>(callerRoles));
+        return bld.toString();
+    }
+
+    /**
+     * Writes the node with the object fields in sorted order, so requests
+     * that differ only in field order have the same key
+     */
+    private static void canonical(JsonNode node, StringBuilder bld) {
+        if (node instanceof ObjectNode) {
+            Map<String, JsonNode> fields = new TreeMap<>();
+            for (Iterator<Map.Entry<String, JsonNode>> itr = node.fields(); itr.hasNext();) {
+                Map.Entry<String, JsonNode> entry = itr.next();
+                fields.put(entry.getKey(), entry.getValue());
+            }
+            bld.append('{');
+            for (Map.Entry<String, JsonNode> entry : fields.entrySet()) {
+                bld.append('"').append(entry.getKey()).append("\":");
+                canonical(entry.getValue(), bld);
+                bld.append(',');
+            }
+            bld.append('}');
+        } else if (node.isArray()) {
+            bld.append('[');
+            for (JsonNode x : node) {
+                canonical(x, bld);
+                bld.append(',');
+            }
+            bld.append(']');
+        } else {
+            bld.append(node.toString());
+        }
+    }
+
+    /**
+     * Runs the find, or waits for an identical find that is already running.
+     * If the running find fails, or returns an error, because its own
+     * deadline expired or it was cancelled, the waiting request runs the
+     * find itself.
+     *
+     * @param key The coalescing key, see {@link #key(FindRequest, String, Set)}
+     * @param deadline The deadline of the calling request
+     * @param nodeFactory Node factory used to copy responses
+     * @param find Runs the find
+     */
+    public Response execute(String key, Deadline deadline, JsonNodeFactory nodeFactory, Supplier<Response> find) {
+        CompletableFuture<Response> mine = new CompletableFuture<>();
+        CompletableFuture<Response> leader = null;
+        if (inFlight.size() < maxInFlight) {
+            leader = inFlight.putIfAbsent(key, mine);
+        } else {
+            LOGGER.debug("Too many coalesced finds, running on its own");
+            return find.get();
+        }
+        if (leader == null) {
+            try {
+                Response response = find.get();
+                mine.complete(response);
+                return response;
+            } catch (RuntimeException e) {
+                mine.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, mine);
+            }
+        }
+        LOGGER.debug("Waiting for a running find:{}", key);
+        coalescedCount.incrementAndGet();
+        Response response;
+        try {
+            response = await(leader, deadline);
+        } catch (Error e) {
+            if (isLeaderStopped(e)) {
+                deadline.check();
+                LOGGER.debug("Running find failed with {}, retrying", e.getErrorCode());
+                return find.get();
+            }
+            throw e;
+        }
+        // The deadline of the running find can also expire while its
+        // documents are read, and that is returned in the response
+        for (Error e : response.getErrors()) {
+            if (isLeaderStopped(e)) {
+                deadline.check();
+                LOGGER.debug("Running find returned {}, retrying", e.getErrorCode());
+                return find.get();
+            }
+        }
+        return copy(response, nodeFactory);
+    }
+
+    /**
+     * Returns true if the error is caused by the deadline or cancellation
+     * of the running find, and not by the find itself
+     */
+    private static boolean isLeaderStopped(Error e) {
+        return CrudConstants.ERR_DEADLINE_EXCEEDED.equals(e.getErrorCode())
+                || CrudConstants.ERR_REQUEST_CANCELLED.equals(e.getErrorCode());
+    }
+
+    private static Response await(CompletableFuture<Response> leader, Deadline deadline) {
+        try {
+            long remaining = deadline.getRemainingMS();
+            return remaining == Long.MAX_VALUE ? leader.get() : leader.get(remaining, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            deadline.check();
+            throw Error.get(CrudConstants.ERR_DEADLINE_EXCEEDED);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Error.get(CrudConstants.ERR_CRUD, "interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw Error.get(CrudConstants.ERR_CRUD, e.getCause().toString());
+        }
+    }
+
+    /**
+     * Copies a response, so the caller can't modify the response returned
+     * to another caller. The error lists and the data errors are copied,
+     * the errors themselves are shared.
+     */
+    static Response copy(Response r, JsonNodeFactory nodeFactory) {
+        Response copy = new Response(nodeFactory, r.getStatus());
+        copy.setEntity(r.getEntity());
+        copy.setModifiedCount(r.getModifiedCount());
+        copy.setMatchCount(r.getMatchCount());
+        copy.setTaskHandle(r.getTaskHandle());
+        copy.setContinuation(r.getContinuation());
+        copy.setSessionInfo(r.getSessionInfo());
+        for (DataError x : r.getDataErrors()) {
+            copy.getDataErrors().add(new DataError(x.getEntityData() == null ? null : x.getEntityData().deepCopy(),
+                    x.getErrors() == null ? null : new ArrayList<>(x.getErrors())));
+        }
+        copy.getErrors().addAll(r.getErrors());
+        if (r.getEntityData() != null) {
+            copy.setEntityData(r.getEntityData().deepCopy());
+        }
+        if (r.getResultMetadata() != null) {
+            copy.setResultMetadata(new ArrayList<>(r.getResultMetadata()));
+        }
+        return copy;
+    }
+}
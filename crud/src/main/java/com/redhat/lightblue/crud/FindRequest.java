@@ -102,6 +102,22 @@ public class FindRequest extends Request implements WithQuery, WithProjection, W
         cfr.setTo(l);
     }
 
+    /**
+     * Continuation token returned by the previous page of a keyset
+     * paginated find
+     */
+    public String getContinuation() {
+        return cfr.getContinuation();
+    }
+
+    /**
+     * Continuation token returned by the previous page of a keyset
+     * paginated find
+     */
+    public void setContinuation(String s) {
+        cfr.setContinuation(s);
+    }
+
     public CRUDFindRequest getCRUDFindRequest() {
         return cfr;
     }
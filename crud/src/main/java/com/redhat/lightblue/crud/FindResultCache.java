@@ -0,0 +1,296 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.redhat.lightblue.OperationStatus;
+import com.redhat.lightblue.Response;
+import com.redhat.lightblue.metadata.CompositeMetadata;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.ResolvedReferenceField;
+import com.redhat.lightblue.util.JsonUtils;
+import com.redhat.lightblue.util.Path;
+import com.redhat.lightblue.util.metrics.RequestMetrics;
+
+/**
+ * Caches the responses of find requests. Only entities whose entity info
+ * contains the {@link #PROP_CACHE_FINDS} property with value
+ * <code>true</code> are cached.
+ *
+ * Responses are cached under the same key used to coalesce finds, see
+ * {@link FindCoalescer#key(FindRequest, String, Set)}, so callers with
+ * different roles never share results. The size of a cached response is the
+ * size of its documents computed by {@link JsonUtils#size}. When the total
+ * size exceeds <code>maxSizeB</code>, least recently used responses are
+ * evicted. Responses older than <code>ttlMS</code> are not returned.
+ *
+ * A cached response depends on the entity it was read from, and for
+ * composite entities, on all the entities referenced by it. Writing to any
+ * of those entities with {@link #invalidate(String, RequestMetrics)} removes
+ * the response. A find that started before a write and completed after it
+ * is not cached.
+ */
+public class FindResultCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FindResultCache.class);
+
+    /**
+     * Entity info property enabling the find result cache for an entity
+     */
+    public static final String PROP_CACHE_FINDS = "cacheFinds";
+
+    private final long maxSizeB;
+    private final long ttlMS;
+
+    // All fields below are guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<String>> keysByEntity = new HashMap<>();
+    private final Map<String, Long> generations = new HashMap<>();
+    private long sizeB = 0;
+
+    private static class Entry {
+        private final String key;
+        private final Response response;
+        private final Set<String> entities;
+        private final String entity;
+        private final String version;
+        private final long sizeB;
+        private final long expiresAtMS;
+
+        Entry(String key, Response response, Set<String> entities, long sizeB, long expiresAtMS) {
+            this.key = key;
+            this.response = response;
+            this.entities = entities;
+            this.entity = response.getEntity().getEntity();
+            this.version = response.getEntity().getVersion();
+            this.sizeB = sizeB;
+            this.expiresAtMS = expiresAtMS;
+        }
+    }
+
+    /**
+     * @param maxSizeB Maximum total size of cached documents. 0 disables the
+     * cache.
+     * @param ttlMS How long a cached response is valid
+     */
+    public FindResultCache(long maxSizeB, long ttlMS) {
+        this.maxSizeB = maxSizeB;
+        this.ttlMS = ttlMS;
+    }
+
+    /**
+     * Returns true if finds for the entity should be cached
+     */
+    public boolean isEnabled(EntityMetadata md) {
+        if (maxSizeB > 0 && ttlMS > 0 && md.getEntityInfo() != null) {
+            Object value = md.getEntityInfo().getProperties().get(PROP_CACHE_FINDS);
+            return value != null && Boolean.parseBoolean(value.toString());
+        }
+        return false;
+    }
+
+    /**
+     * Returns the names of the entities a find on the given metadata reads
+     */
+    public static Set<String> getEntities(CompositeMetadata md) {
+        Set<String> names = new HashSet<>();
+        addEntities(md, names);
+        return names;
+    }
+
+    private static void addEntities(CompositeMetadata md, Set<String> names) {
+        names.add(md.getName());
+        for (Path child : md.getChildPaths()) {
+            ResolvedReferenceField rf = md.getChildReference(child);
+            addEntities(rf.getReferencedMetadata(), names);
+        }
+    }
+
+    /**
+     * Returns the total size of cached documents
+     */
+    public synchronized long getSizeB() {
+        return sizeB;
+    }
+
+    /**
+     * Returns the number of cached responses
+     */
+    public synchronized int getNumEntries() {
+        return entries.size();
+    }
+
+    /**
+     * Returns a copy of the cached response, or null if there isn't one
+     *
+     * @param key The cache key
+     * @param nodeFactory Node factory used to copy the response
+     * @param metrics Hits and misses are recorded here
+     */
+    public Response get(String key, JsonNodeFactory nodeFactory, RequestMetrics metrics) {
+        Entry entry;
+        boolean expired = false;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && System.currentTimeMillis() >= entry.expiresAtMS) {
+                remove(entry);
+                expired = true;
+            }
+        }
+        if (entry == null || expired) {
+            if (expired) {
+                metrics.markFindCache(entry.entity, entry.version, RequestMetrics.FIND_CACHE_EVICTION);
+            }
+            LOGGER.debug("Cache miss:{}", key);
+            return null;
+        }
+        metrics.markFindCache(entry.entity, entry.version, RequestMetrics.FIND_CACHE_HIT);
+        return FindCoalescer.copy(entry.response, nodeFactory);
+    }
+
+    /**
+     * Returns the write generation of the given entities. Pass this value to
+     * {@link #put} to detect writes that happened while the find was
+     * running.
+     */
+    public synchronized long getGeneration(Set<String> entities) {
+        long g = 0;
+        for (String entity : entities) {
+            Long x = generations.get(entity);
+            if (x != null) {
+                g += x;
+            }
+        }
+        return g;
+    }
+
+    /**
+     * Caches a copy of a find response. Only complete responses without
+     * errors are cached. The response is not cached if any of the entities
+     * it depends on was written after <code>generation</code> was read, or
+     * if it is larger than the cache.
+     *
+     * @param key The cache key
+     * @param entities The entities the response depends on, see
+     * {@link #getEntities(CompositeMetadata)}
+     * @param generation The write generation of the entities read before the
+     * find started
+     * @param response The response
+     * @param nodeFactory Node factory used to copy the response
+     * @param metrics Misses and evictions are recorded here
+     */
+    public void put(String key, Set<String> entities, long generation, Response response,
+                    JsonNodeFactory nodeFactory, RequestMetrics metrics) {
+        metrics.markFindCache(response.getEntity().getEntity(), response.getEntity().getVersion(), RequestMetrics.FIND_CACHE_MISS);
+        if (response.getStatus() != OperationStatus.COMPLETE
+                || !response.getErrors().isEmpty()
+                || !response.getDataErrors().isEmpty()) {
+            return;
+        }
+        long size = JsonUtils.size(response.getEntityData());
+        if (size > maxSizeB) {
+            LOGGER.debug("Response of {}B is too large to cache", size);
+            return;
+        }
+        Entry entry = new Entry(key, FindCoalescer.copy(response, nodeFactory), entities, size, System.currentTimeMillis() + ttlMS);
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (getGeneration(entities) != generation) {
+                LOGGER.debug("Entities written during find, not caching:{}", key);
+                return;
+            }
+            Entry old = entries.get(key);
+            if (old != null) {
+                remove(old);
+            }
+            entries.put(key, entry);
+            sizeB += size;
+            for (String x : entities) {
+                keysByEntity.computeIfAbsent(x, k -> new HashSet<>()).add(key);
+            }
+            // Entries are in access order, evict the least recently used ones
+            long excess = sizeB - maxSizeB;
+            for (Iterator<Entry> itr = entries.values().iterator(); excess > 0 && itr.hasNext();) {
+                Entry x = itr.next();
+                evicted.add(x);
+                excess -= x.sizeB;
+            }
+            for (Entry x : evicted) {
+                remove(x);
+            }
+        }
+        markEvictions(evicted, metrics);
+    }
+
+    /**
+     * Removes all cached responses depending on an entity. Call this after
+     * every write to the entity, whether it succeeded or not.
+     */
+    public void invalidate(String entity, RequestMetrics metrics) {
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            generations.merge(entity, 1l, Long::sum);
+            Set<String> keys = keysByEntity.get(entity);
+            if (keys != null) {
+                for (String key : keys) {
+                    evicted.add(entries.get(key));
+                }
+                for (Entry x : evicted) {
+                    remove(x);
+                }
+            }
+        }
+        if (!evicted.isEmpty()) {
+            LOGGER.debug("Invalidated {} cached responses depending on {}", evicted.size(), entity);
+        }
+        markEvictions(evicted, metrics);
+    }
+
+    private static void markEvictions(List<Entry> evicted, RequestMetrics metrics) {
+        for (Entry x : evicted) {
+            metrics.markFindCache(x.entity, x.version, RequestMetrics.FIND_CACHE_EVICTION);
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        sizeB -= entry.sizeB;
+        for (String x : entry.entities) {
+            Set<String> keys = keysByEntity.get(x);
+            if (keys != null) {
+                keys.remove(entry.key);
+                if (keys.isEmpty()) {
+                    keysByEntity.remove(x);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.ExecutionOptions;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.Field;
+import com.redhat.lightblue.metadata.FieldTreeNode;
+import com.redhat.lightblue.metadata.SimpleField;
+import com.redhat.lightblue.query.BinaryComparisonOperator;
+import com.redhat.lightblue.query.CompositeSortKey;
+import com.redhat.lightblue.query.FieldProjection;
+import com.redhat.lightblue.query.NaryLogicalExpression;
+import com.redhat.lightblue.query.NaryLogicalOperator;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.ProjectionList;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.query.Sort;
+import com.redhat.lightblue.query.SortKey;
+import com.redhat.lightblue.query.Value;
+import com.redhat.lightblue.query.ValueComparisonExpression;
+import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.JsonUtils;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Keyset pagination of a find request.
+ *
+ * A find is keyset paginated if it has a continuation token, or if the
+ * {@link #OPT_KEYSET} execution option is true. The documents are sorted by
+ * the requested sort keys followed by the identity fields of the entity, so
+ * every document has a distinct position. When a page is full, the response
+ * contains a continuation token encoding the sort key values of its last
+ * document. The next request passes that token, and the find adds a range
+ * predicate selecting the documents after that position to the query. The
+ * predicate is part of the query, so it is evaluated by the back-end for
+ * simple entities, and by the root entity search for composite entities,
+ * and later pages don't read the documents of earlier pages.
+ *
+ * The sort keys must be simple fields of the root entity that are not in
+ * arrays. The <code>from</code> and <code>to</code> of a request with a
+ * continuation token are relative to the position of the token.
+ */
+public class KeysetPagination {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeysetPagination.class);
+
+    /**
+     * Execution option starting a keyset paginated find when set to true
+     */
+    public static final String OPT_KEYSET = "keyset";
+
+    private static final String TOKEN_FINGERPRINT = "f";
+    private static final String TOKEN_KEYS = "k";
+
+    private final List<SortKey> keys = new ArrayList<>();
+    private final List<Path> strippedFields = new ArrayList<>();
+    private final Projection requestProjection;
+    private final CRUDFindRequest findRequest = new CRUDFindRequest();
+    private final String fingerprint;
+    private final Long pageSize;
+    private JsonNode[] lastKeys;
+    private long numDocs = 0;
+
+    /**
+     * Returns true if the find request is keyset paginated
+     */
+    public static boolean isRequested(FindRequest req) {
+        if (req.getContinuation() != null) {
+            return true;
+        }
+        ExecutionOptions options = req.getExecution();
+        return options != null && Boolean.parseBoolean(options.getOptionValueFor(OPT_KEYSET));
+    }
+
+    /**
+     * Prepares the keyset pagination of a request
+     *
+     * @param req The find request
+     * @param md The metadata of the root entity
+     *
+     * @throws Error {@link CrudConstants#ERR_INVALID_CONTINUATION} if the sort
+     * keys can't be used for keyset pagination, or the continuation token is
+     * not valid for this request
+     */
+    public KeysetPagination(FindRequest req, EntityMetadata md) {
+        CRUDFindRequest freq = req.getCRUDFindRequest();
+        if (freq.getSort() != null) {
+            for (SortKey key : toKeys(freq.getSort())) {
+                checkKeyField(md, key.getField());
+                keys.add(key);
+            }
+        }
+        Field[] identities = md.getEntitySchema().getIdentityFields();
+        if (identities == null || identities.length == 0) {
+            throw Error.get(CrudConstants.ERR_INVALID_CONTINUATION, "No identity fields in " + md.getName());
+        }
+        for (Field f : identities) {
+            Path field = md.getEntitySchema().getEntityRelativeFieldName(f);
+            if (!isKey(field)) {
+                keys.add(new SortKey(field, false));
+            }
+        }
+        fingerprint = fingerprint(req);
+        requestProjection = freq.getProjection();
+        pageSize = freq.getTo() == null ? null : freq.getTo() - (freq.getFrom() == null ? 0 : freq.getFrom()) + 1;
+
+        findRequest.shallowCopyFrom(freq);
+        findRequest.setContinuation(null);
+        findRequest.setSort(new CompositeSortKey(keys));
+        if (requestProjection != null) {
+            // The sort key values are read from the returned documents
+            List<Projection> projections = new ArrayList<>();
+            projections.add(requestProjection);
+            for (SortKey key : keys) {
+                Projection.Inclusion inc = requestProjection.getFieldInclusion(key.getField());
+                if (inc != Projection.Inclusion.explicit_inclusion && inc != Projection.Inclusion.implicit_inclusion) {
+                    projections.add(new FieldProjection(key.getField(), true, false));
+                    strippedFields.add(key.getField());
+                }
+            }
+            if (!strippedFields.isEmpty()) {
+                findRequest.setProjection(new ProjectionList(projections));
+            }
+        }
+        if (freq.getContinuation() != null) {
+            QueryExpression after = afterQuery(decode(freq.getContinuation()));
+            findRequest.setQuery(freq.getQuery() == null ? after
+                    : new NaryLogicalExpression(NaryLogicalOperator._and, freq.getQuery(), after));
+        }
+        LOGGER.debug("Keyset pagination, sort:{} query:{}", findRequest.getSort(), findRequest.getQuery());
+    }
+
+    /**
+     * Returns the find request to run. The sort includes the identity
+     * fields, the projection includes the sort keys, and the query
+     * selects the documents after the continuation token.
+     */
+    public CRUDFindRequest getCRUDFindRequest() {
+        return findRequest;
+    }
+
+    /**
+     * Returns a document stream recording the sort keys of the documents
+     * read from the given stream. The sort keys that are not in the
+     * requested projection are removed from the documents.
+     */
+    public DocumentStream<DocCtx> wrap(DocumentStream<DocCtx> docStream) {
+        return DocumentStream.map(docStream, doc -> {
+            if (!doc.hasErrors()) {
+                JsonDoc output = doc.getOutputDocument();
+                JsonNode[] values = new JsonNode[keys.size()];
+                for (int i = 0; i < values.length; i++) {
+                    JsonNode value = output.get(keys.get(i).getField());
+                    values[i] = value == null ? JsonNodeFactory.instance.nullNode() : value.deepCopy();
+                }
+                lastKeys = values;
+                numDocs++;
+                for (Path field : strippedFields) {
+                    strip(output, field);
+                }
+            }
+            return doc;
+        });
+    }
+
+    /**
+     * Returns the continuation token after the documents read from the
+     * stream, or null if the page is not full, so there are no more
+     * documents
+     */
+    public String getContinuation() {
+        if (lastKeys == null || pageSize == null || numDocs < pageSize) {
+            return null;
+        }
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put(TOKEN_FINGERPRINT, fingerprint);
+        ArrayNode arr = node.putArray(TOKEN_KEYS);
+        for (JsonNode x : lastKeys) {
+            arr.add(x);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(node.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Builds the query selecting the documents after the given sort key
+     * values: the first key is after its value, or it is equal to its value
+     * and the second key is after its value, and so on.
+     */
+    private QueryExpression afterQuery(JsonNode[] values) {
+        List<QueryExpression> disjuncts = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            QueryExpression after = afterKey(keys.get(i), values[i]);
+            if (after == null) {
+                continue;
+            }
+            List<QueryExpression> conjuncts = new ArrayList<>(i + 1);
+            for (int j = 0; j < i; j++) {
+                conjuncts.add(new ValueComparisonExpression(keys.get(j).getField(),
+                        BinaryComparisonOperator._eq,
+                        Value.fromJson(values[j])));
+            }
+            conjuncts.add(after);
+            disjuncts.add(conjuncts.size() == 1 ? conjuncts.get(0) : new NaryLogicalExpression(NaryLogicalOperator._and, conjuncts));
+        }
+        if (disjuncts.isEmpty()) {
+            throw Error.get(CrudConstants.ERR_INVALID_CONTINUATION, "Null identity");
+        }
+        return disjuncts.size() == 1 ? disjuncts.get(0) : new NaryLogicalExpression(NaryLogicalOperator._or, disjuncts);
+    }
+
+    /**
+     * Builds the query selecting the values of a key after the given value,
+     * or returns null if no value is after it. Nulls sort first in
+     * ascending order and last in descending order, and a range comparison
+     * never matches a null, so crossing the null/non-null boundary is
+     * explicit: after a null ascending key come all non-null values, and
+     * after a non-null descending key come the smaller values and the nulls.
+     */
+    private static QueryExpression afterKey(SortKey key, JsonNode value) {
+        if (value.isNull()) {
+            return key.isDesc() ? null
+                    : new ValueComparisonExpression(key.getField(), BinaryComparisonOperator._neq, new Value(null));
+        }
+        if (key.isDesc()) {
+            return new NaryLogicalExpression(NaryLogicalOperator._or,
+                    new ValueComparisonExpression(key.getField(), BinaryComparisonOperator._lt, Value.fromJson(value)),
+                    new ValueComparisonExpression(key.getField(), BinaryComparisonOperator._eq, new Value(null)));
+        }
+        return new ValueComparisonExpression(key.getField(), BinaryComparisonOperator._gt, Value.fromJson(value));
+    }
+
+    private JsonNode[] decode(String token) {
+        JsonNode node;
+        try {
+            node = JsonUtils.json(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw Error.get(CrudConstants.ERR_INVALID_CONTINUATION, "Malformed token");
+        }
+        JsonNode f = node.get(TOKEN_FINGERPRINT);
+        JsonNode k = node.get(TOKEN_KEYS);
+        if (f == null || !fingerprint.equals(f.asText())) {
+            throw Error.get(CrudConstants.ERR_INVALID_CONTINUATION, "Token of a different query");
+        }
+        if (k == null || !k.isArray() || k.size() != keys.size()) {
+            throw Error.get(CrudConstants.ERR_INVALID_CONTINUATION, "Malformed token");
+        }
+        JsonNode[] values = new JsonNode[k.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = k.get(i);
+        }
+        return values;
+    }
+
+    /**
+     * A token is only valid for the entity, query, and sort it was built
+     * for. This is a consistency check, not a security measure.
+     */
+    private String fingerprint(FindRequest req) {
+        StringBuilder bld = new StringBuilder();
+        bld.append(req.getEntityVersion().getEntity()).append('|');
+        if (req.getQuery() != null) {
+            bld.append(req.getQuery().toString());
+        }
+        bld.append('|').append(keys.toString());
+        return Integer.toHexString(bld.toString().hashCode());
+    }
+
+    private boolean isKey(Path field) {
+        for (SortKey key : keys) {
+            if (key.getField().equals(field)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<SortKey> toKeys(Sort sort) {
+        List<SortKey> list = new ArrayList<>();
+        if (sort instanceof SortKey) {
+            list.add((SortKey) sort);
+        } else {
+            list.addAll(((CompositeSortKey) sort).getKeys());
+        }
+        return list;
+    }
+
+    private static void checkKeyField(EntityMetadata md, Path field) {
+        FieldTreeNode node;
+        try {
+            node = md.resolve(field);
+        } catch (Error e) {
+            node = null;
+        }
+        if (field.nAnys() > 0 || !(node instanceof SimpleField)) {
+            throw Error.get(CrudConstants.ERR_INVALID_CONTINUATION, "Sort key is not a simple field of the entity:" + field);
+        }
+    }
+
+    /**
+     * Removes a field added to the projection, and its parents that are
+     * left empty
+     */
+    private void strip(JsonDoc doc, Path field) {
+        doc.modify(field, null, false);
+        for (Path p = field.prefix(-1); p.numSegments() > 0; p = p.prefix(-1)) {
+            JsonNode parent = doc.get(p);
+            Projection.Inclusion inc = requestProjection.getFieldInclusion(p);
+            if (parent instanceof ObjectNode && parent.size() == 0
+                    && inc != Projection.Inclusion.explicit_inclusion && inc != Projection.Inclusion.implicit_inclusion) {
+                doc.modify(p, null, false);
+            } else {
+                break;
+            }
+        }
+    }
+}
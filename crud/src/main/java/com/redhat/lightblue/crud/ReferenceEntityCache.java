@@ -0,0 +1,246 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.mindex.KeySpec;
+import com.redhat.lightblue.mindex.MemDocIndex;
+import com.redhat.lightblue.util.JsonDoc;
+
+/**
+ * Caches the documents of small, rarely changing entities referenced by
+ * composite entities, such as lookup tables. Only entities whose entity
+ * info contains the {@link #PROP_CACHE_AS_REFERENCE} property with value
+ * <code>true</code> are cached.
+ *
+ * An entry contains the documents a composite find reads for a reference,
+ * indexed with a {@link MemDocIndex} on the key of the association, so the
+ * documents associated with a parent document are found without calling the
+ * back end. An entity with more than <code>maxDocs</code> documents is not
+ * cached. Entries older than <code>ttlMS</code> are read again. Writing to
+ * an entity with {@link #invalidate(String)} removes its entries, and
+ * entries read while the entity was written are not cached.
+ *
+ * Cached documents are shared by all requests, so they must be copied
+ * before they are modified.
+ */
+public class ReferenceEntityCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReferenceEntityCache.class);
+
+    /**
+     * Entity info property enabling the reference cache for an entity
+     */
+    public static final String PROP_CACHE_AS_REFERENCE = "cacheAsReference";
+
+    // Maximum number of entries, least recently used entries are evicted
+    private static final int MAX_ENTRIES = 256;
+
+    private final int maxDocs;
+    private final long ttlMS;
+
+    // All fields below are guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final Map<String, Long> generations = new HashMap<>();
+
+    /**
+     * The documents of a reference
+     */
+    public static class Entry {
+        private final String entity;
+        private final List<JsonDoc> docs;
+        private final MemDocIndex index;
+        private final Map<JsonDoc, Integer> positions;
+        private final long expiresAtMS;
+
+        private Entry(String entity, List<JsonDoc> docs, MemDocIndex index, long expiresAtMS) {
+            this.entity = entity;
+            this.docs = docs;
+            this.index = index;
+            this.expiresAtMS = expiresAtMS;
+            if (docs == null) {
+                positions = null;
+            } else {
+                positions = new IdentityHashMap<>();
+                for (JsonDoc doc : docs) {
+                    positions.put(doc, positions.size());
+                }
+            }
+        }
+
+        /**
+         * Returns true if the documents are cached, false if the entity has
+         * too many documents to cache
+         */
+        public boolean isCached() {
+            return docs != null;
+        }
+
+        /**
+         * Returns the documents in the order they were read
+         */
+        public List<JsonDoc> getDocs() {
+            return docs;
+        }
+
+        /**
+         * Returns the index on the association key, or null if the
+         * association can't be indexed
+         */
+        public MemDocIndex getIndex() {
+            return index;
+        }
+
+        /**
+         * Returns the given documents of the entry in the order they were
+         * read
+         */
+        public List<JsonDoc> inOrder(Collection<JsonDoc> found) {
+            List<JsonDoc> ret = new ArrayList<>(found);
+            ret.sort((a, b) -> Integer.compare(positions.get(a), positions.get(b)));
+            return ret;
+        }
+    }
+
+    /**
+     * @param maxDocs Maximum number of documents of a cached entity. 0
+     * disables the cache.
+     * @param ttlMS How long cached documents are used
+     */
+    public ReferenceEntityCache(int maxDocs, long ttlMS) {
+        this.maxDocs = maxDocs;
+        this.ttlMS = ttlMS;
+    }
+
+    public int getMaxDocs() {
+        return maxDocs;
+    }
+
+    /**
+     * Returns true if the documents of the entity should be cached
+     */
+    public boolean isEnabled(EntityMetadata md) {
+        if (maxDocs > 0 && ttlMS > 0 && md.getEntityInfo() != null) {
+            Object value = md.getEntityInfo().getProperties().get(PROP_CACHE_AS_REFERENCE);
+            return value != null && Boolean.parseBoolean(value.toString());
+        }
+        return false;
+    }
+
+    /**
+     * Returns the cached entry, or null if there isn't one
+     */
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() >= entry.expiresAtMS) {
+            entries.remove(key);
+            entry = null;
+        }
+        LOGGER.debug("Reference cache {}:{}", entry == null ? "miss" : "hit", key);
+        return entry;
+    }
+
+    /**
+     * Returns the write generation of the entity. Pass this value to
+     * {@link #put} to detect writes that happened while the documents were
+     * read.
+     */
+    public synchronized long getGeneration(String entity) {
+        Long g = generations.get(entity);
+        return g == null ? 0 : g;
+    }
+
+    /**
+     * Caches the documents read for a reference. If there are more than
+     * <code>maxDocs</code> documents, the entry records that the entity is
+     * too large to cache, so it is not read again until the entry expires.
+     *
+     * @param key The cache key
+     * @param entity The entity of the documents
+     * @param generation The write generation of the entity read before the
+     * documents were read
+     * @param docs The documents
+     * @param keySpec The key of the association used to index the
+     * documents, can be null
+     *
+     * @return The entry. It is not cached if the entity was written after
+     * <code>generation</code> was read.
+     */
+    public Entry put(String key, String entity, long generation, List<JsonDoc> docs, KeySpec keySpec) {
+        Entry entry;
+        if (docs.size() > maxDocs) {
+            LOGGER.debug("{} has more than {} documents, not caching", entity, maxDocs);
+            entry = new Entry(entity, null, null, System.currentTimeMillis() + ttlMS);
+        } else {
+            MemDocIndex index = null;
+            if (keySpec != null) {
+                index = new MemDocIndex(keySpec);
+                for (JsonDoc doc : docs) {
+                    index.add(doc);
+                }
+            }
+            entry = new Entry(entity, new ArrayList<>(docs), index, System.currentTimeMillis() + ttlMS);
+        }
+        synchronized (this) {
+            if (getGeneration(entity) == generation) {
+                entries.put(key, entry);
+            } else {
+                LOGGER.debug("{} written while reading, not caching:{}", entity, key);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Removes all cached entries of an entity. Call this after every write
+     * to the entity, whether it succeeded or not.
+     */
+    public synchronized void invalidate(String entity) {
+        generations.merge(entity, 1l, Long::sum);
+        for (Iterator<Entry> itr = entries.values().iterator(); itr.hasNext();) {
+            if (itr.next().entity.equals(entity)) {
+                itr.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of cached entries
+     */
+    public synchronized int getNumEntries() {
+        return entries.size();
+    }
+}
@@ -63,11 +63,18 @@ public class ArrayContainsEvaluator extends QueryEvaluator {
 
     @Override
     public boolean evaluate(QueryEvaluationContext ctx) {
+        return evaluate(ctx, expr.getValues());
+    }
+
+    /**
+     * Evaluates the expression using the given values instead of the values
+     * in the expression
+     */
+    public boolean evaluate(QueryEvaluationContext ctx, List<Value> values) {
         boolean ret = false;
         JsonNode node = ctx.getNode(expr.getArray());
         if (node instanceof ArrayNode) {
             ArrayNode array = (ArrayNode) node;
-            List<Value> values = expr.getValues();
             ContainsOperator op = expr.getOp();
             Type t = elem.getType();
             int numElementsContained = 0;
@@ -0,0 +1,145 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.eval;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.Field;
+import com.redhat.lightblue.metadata.FieldCursor;
+import com.redhat.lightblue.metadata.FieldTreeNode;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * The field access of a caller for all the fields of an entity, computed
+ * once. Each field is mapped to the operations the caller can perform on
+ * it, so access checks are table lookups. A matrix is immutable, and can be
+ * shared by all requests of callers with the same roles, as long as the
+ * metadata doesn't change.
+ */
+public class FieldAccessMatrix {
+
+    private static final int FIND = 1;
+    private static final int INSERT = 2;
+    private static final int UPDATE = 4;
+
+    private final EntityMetadata md;
+    private final Set<String> roles;
+    private final Map<Path, Integer> access = new HashMap<>();
+    private final Map<FieldAccessRoleEvaluator.Operation, Set<Path>> inaccessible = new EnumMap<>(FieldAccessRoleEvaluator.Operation.class);
+
+    /**
+     * Computes the access of the caller to the fields of the entity
+     *
+     * @param md The entity metadata
+     * @param callerRoles The roles of the caller
+     */
+    public FieldAccessMatrix(EntityMetadata md, Set<String> callerRoles) {
+        this.md = md;
+        this.roles = Collections.unmodifiableSet(new HashSet<>(callerRoles));
+        FieldAccessRoleEvaluator eval = new FieldAccessRoleEvaluator(md, roles);
+        for (FieldAccessRoleEvaluator.Operation op : FieldAccessRoleEvaluator.Operation.values()) {
+            inaccessible.put(op, new HashSet<>());
+        }
+        FieldCursor cursor = md.getFieldCursor();
+        while (cursor.next()) {
+            FieldTreeNode fn = cursor.getCurrentNode();
+            if (fn instanceof Field) {
+                Path path = cursor.getCurrentPath();
+                int bits = 0;
+                if (eval.hasAccess((Field) fn, FieldAccessRoleEvaluator.Operation.find)) {
+                    bits |= FIND;
+                }
+                if (eval.hasAccess((Field) fn, FieldAccessRoleEvaluator.Operation.insert)) {
+                    bits |= INSERT;
+                }
+                if (eval.hasAccess((Field) fn, FieldAccessRoleEvaluator.Operation.update)) {
+                    bits |= UPDATE;
+                }
+                access.put(path, bits);
+                for (FieldAccessRoleEvaluator.Operation op : FieldAccessRoleEvaluator.Operation.values()) {
+                    if (!allows(bits, op)) {
+                        inaccessible.get(op).add(path);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<FieldAccessRoleEvaluator.Operation, Set<Path>> entry : inaccessible.entrySet()) {
+            entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+        }
+    }
+
+    public EntityMetadata getEntityMetadata() {
+        return md;
+    }
+
+    public Set<String> getRoles() {
+        return roles;
+    }
+
+    /**
+     * Returns whether the caller has access to the given field based on the
+     * operation. Returns false if the field does not exist, and true if it
+     * is not a field but an array element.
+     */
+    public boolean hasAccess(Path field, FieldAccessRoleEvaluator.Operation op) {
+        Integer bits = access.get(field);
+        if (bits == null) {
+            // Array indexes and other paths that are not field names
+            FieldTreeNode fn = md.resolve(field);
+            if (fn == null) {
+                return false;
+            } else if (!(fn instanceof Field)) {
+                return true;
+            }
+            bits = access.get(fn.getFullPath());
+            if (bits == null) {
+                return false;
+            }
+        }
+        return allows(bits, op);
+    }
+
+    /**
+     * Returns the fields inaccessible to the caller for the given operation.
+     * The returned set cannot be modified.
+     */
+    public Set<Path> getInaccessibleFields(FieldAccessRoleEvaluator.Operation op) {
+        return inaccessible.get(op);
+    }
+
+    private static boolean allows(int bits, FieldAccessRoleEvaluator.Operation op) {
+        switch (op) {
+            case insert:
+                return (bits & INSERT) != 0;
+            case update:
+                return (bits & UPDATE) != 0;
+            case insert_and_update:
+                return (bits & (INSERT | UPDATE)) == (INSERT | UPDATE);
+            case find:
+                return (bits & FIND) != 0;
+        }
+        return false;
+    }
+}
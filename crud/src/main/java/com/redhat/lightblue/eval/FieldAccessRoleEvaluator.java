@@ -48,6 +48,7 @@ import com.redhat.lightblue.util.DocComparator;
 public class FieldAccessRoleEvaluator {
     private final EntityMetadata md;
     private final Set<String> roles;
+    private final FieldAccessMatrix matrix;
     private JsonCompare comparator;
     private DocComparator.Difference<JsonNode> diff;
 
@@ -58,6 +59,17 @@ public class FieldAccessRoleEvaluator {
     public FieldAccessRoleEvaluator(EntityMetadata md, Set<String> callerRoles) {
         this.md = md;
         this.roles = callerRoles;
+        this.matrix = null;
+    }
+
+    /**
+     * Constructs an evaluator that looks up field access in a precomputed
+     * access matrix
+     */
+    public FieldAccessRoleEvaluator(FieldAccessMatrix matrix) {
+        this.md = matrix.getEntityMetadata();
+        this.roles = matrix.getRoles();
+        this.matrix = matrix;
     }
 
     /**
@@ -78,6 +90,9 @@ public class FieldAccessRoleEvaluator {
      * the operation
      */
     public boolean hasAccess(Path field, Operation op) {
+        if (matrix != null) {
+            return matrix.hasAccess(field, op);
+        }
         FieldTreeNode fn = md.resolve(field);
         if (fn != null) {
             if (fn instanceof Field) {
@@ -95,6 +110,9 @@ public class FieldAccessRoleEvaluator {
      * operation
      */
     public Set<Path> getInaccessibleFields(Operation op) {
+        if (matrix != null) {
+            return new HashSet<>(matrix.getInaccessibleFields(op));
+        }
         FieldCursor cursor = md.getFieldCursor();
         Set<Path> fields = new HashSet<>();
         while (cursor.next()) {
@@ -112,7 +130,7 @@ public class FieldAccessRoleEvaluator {
      * doc.
      */
     public Set<Path> getInaccessibleFields_Insert(JsonDoc doc) {
-        Set<Path> inaccessibleFields = getInaccessibleFields(Operation.insert);
+        Set<Path> inaccessibleFields = inaccessibleFields(Operation.insert);
         Set<Path> ret = new HashSet<>(inaccessibleFields.size());
         for (Path x : inaccessibleFields) {
             KeyValueCursor<Path, JsonNode> cursor = doc.getAllNodes(x);
@@ -123,6 +141,10 @@ public class FieldAccessRoleEvaluator {
         return ret;
     }
 
+    private Set<Path> inaccessibleFields(Operation op) {
+        return matrix == null ? getInaccessibleFields(op) : matrix.getInaccessibleFields(op);
+    }
+
     public DocComparator.Difference<JsonNode> getLastDiff() {
         return diff;
     }
@@ -139,7 +161,7 @@ public class FieldAccessRoleEvaluator {
         if (comparator == null) {
             comparator = md.getEntitySchema().getDocComparator();
         }
-        Set<Path> inaccessibleFields = getInaccessibleFields(Operation.update);
+        Set<Path> inaccessibleFields = inaccessibleFields(Operation.update);
         Set<Path> ret = new HashSet<>();
         if (!inaccessibleFields.isEmpty()) {
             try {
@@ -195,7 +217,7 @@ public class FieldAccessRoleEvaluator {
      * access to based on the operation
      */
     public Projection getExcludedFields(Operation op) {
-        Set<Path> inaccessibleFields = getInaccessibleFields(op);
+        Set<Path> inaccessibleFields = inaccessibleFields(op);
         Projection ret;
         if (inaccessibleFields.isEmpty()) {
             ret = null;
@@ -253,7 +275,7 @@ public class FieldAccessRoleEvaluator {
         return access;
     }
 
-    private boolean hasAccess(Field f, Operation op) {
+    boolean hasAccess(Field f, Operation op) {
         EntityAccess eaccess = md.getAccess();
         switch (op) {
             case insert:
@@ -18,6 +18,7 @@
  */
 package com.redhat.lightblue.eval;
 
+import java.util.List;
 import java.util.Set;
 import java.util.HashSet;
 
@@ -58,6 +59,22 @@ public class NaryValueRelationalExpressionEvaluator extends QueryEvaluator {
 
     @Override
     public boolean evaluate(QueryEvaluationContext ctx) {
+        return evaluate(ctx, values);
+    }
+
+    /**
+     * Evaluates the expression using the given values instead of the values
+     * in the expression
+     */
+    public boolean evaluate(QueryEvaluationContext ctx, List<Value> values) {
+        Set<Object> set = new HashSet<>();
+        for (Value x : values) {
+            set.add(fieldMd.getType().cast(x.getValue()));
+        }
+        return evaluate(ctx, set);
+    }
+
+    private boolean evaluate(QueryEvaluationContext ctx, Set<Object> values) {
         LOGGER.debug("evaluate {} {} {}", field, operator, values);
         KeyValueCursor<Path, JsonNode> cursor = ctx.getNodes(field, true);
         boolean ret = false;
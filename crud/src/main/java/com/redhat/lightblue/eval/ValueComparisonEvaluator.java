@@ -59,8 +59,15 @@ public class ValueComparisonEvaluator extends QueryEvaluator {
 
     @Override
     public boolean evaluate(QueryEvaluationContext ctx) {
+        return evaluate(ctx, rvalue.getValue());
+    }
+
+    /**
+     * Evaluates the comparison using the given value instead of the value
+     * in the expression
+     */
+    public boolean evaluate(QueryEvaluationContext ctx, Object value) {
         ctx.setResult(false);
-        Object value = rvalue.getValue();
         LOGGER.debug("evaluate {} {} {}", field, operator, value);
         KeyValueCursor<Path, JsonNode> cursor = ctx.getNodes(field);
         boolean fieldValueExists = false;
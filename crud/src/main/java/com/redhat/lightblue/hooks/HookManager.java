@@ -30,6 +30,7 @@ import com.redhat.lightblue.Response;
 import com.redhat.lightblue.crud.CRUDOperation;
 import com.redhat.lightblue.crud.CRUDOperationContext;
 import com.redhat.lightblue.crud.CrudConstants;
+import com.redhat.lightblue.crud.Deadline;
 import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.crud.DocumentStream;
 import com.redhat.lightblue.crud.RewindableDocumentStream;
@@ -185,12 +186,6 @@ public class HookManager {
             this.who=who;
             this.hooks=hooks;
         }
-
-        void call() {
-            for(HookAndDocs hook:hooks) {
-                hook.call(who);
-            }
-        }
     }
 
     /**
@@ -258,10 +253,37 @@ public class HookManager {
      * hooks throws an exception with @StopHookProcessing annotation.
      */
     public void callQueuedHooks() {
-        for (QueuedHook q: queuedHooks) {
-            q.call();
+        callQueuedHooks(null);
+    }
+
+    /**
+     * Calls all queued hooks as long as the deadline is not expired, and
+     * then clears the queued hooks. If the deadline expires, the remaining
+     * hooks are not called. The hooks are called after the write is
+     * committed, so an expired deadline doesn't fail the operation.
+     *
+     * @return The names of the hooks that were not called because the
+     * deadline expired, empty if all hooks were called
+     */
+    public List<String> callQueuedHooks(Deadline deadline) {
+        List<String> skipped = new ArrayList<>();
+        try {
+            for (QueuedHook q : queuedHooks) {
+                for (HookAndDocs hook : q.hooks) {
+                    if (!skipped.isEmpty() || (deadline != null && deadline.isExpired())) {
+                        skipped.add(hook.hook.getName());
+                    } else {
+                        hook.call(q.who);
+                    }
+                }
+            }
+        } finally {
+            clear();
+        }
+        if (!skipped.isEmpty()) {
+            LOGGER.warn("Deadline expired, hooks not called:{}", skipped);
         }
-        clear();
+        return skipped;
     }
 
     
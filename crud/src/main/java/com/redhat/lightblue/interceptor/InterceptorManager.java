@@ -50,6 +50,15 @@ public class InterceptorManager implements Serializable {
         }
     }
 
+    /**
+     * Returns true if there are interceptors registered for the given
+     * intercept point
+     */
+    public boolean hasInterceptors(InterceptPoint pt) {
+        TreeMap<Integer, Interceptor> tree = interceptors.get(pt);
+        return tree != null && !tree.isEmpty();
+    }
+
     public void callInterceptors(InterceptPoint.MediatorInterceptPoint pt, OperationContext ctx) {
         TreeMap<Integer, Interceptor> tree = interceptors.get(pt);
         if (tree != null) {
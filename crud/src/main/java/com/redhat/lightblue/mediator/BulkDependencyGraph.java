@@ -0,0 +1,157 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mediator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.EntityVersion;
+import com.redhat.lightblue.Request;
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.FieldCursor;
+import com.redhat.lightblue.metadata.FieldTreeNode;
+import com.redhat.lightblue.metadata.Metadata;
+import com.redhat.lightblue.metadata.ReferenceField;
+
+/**
+ * Dependencies between the entries of an ordered bulk request.
+ *
+ * Every entry reads its own entity and all entities reachable from it
+ * through reference fields. Entries other than finds also write their own
+ * entity. An entry depends on an earlier entry if one of them writes an
+ * entity the other one reads or writes. Entries that don't depend on each
+ * other can run concurrently without changing the outcome of the ordered
+ * execution.
+ *
+ * Entities are compared by name only, different versions of an entity
+ * share the same data.
+ */
+public class BulkDependencyGraph {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkDependencyGraph.class);
+
+    private final Metadata metadata;
+    private final Map<EntityVersion, Set<String>> entityCache = new HashMap<>();
+
+    private final int[] numDependencies;
+    private final List<List<Integer>> dependents;
+
+    private static final class EntityState {
+        int lastWrite = -1;
+        final List<Integer> readsSinceWrite = new ArrayList<>();
+    }
+
+    public BulkDependencyGraph(List<Request> requests, Metadata metadata) {
+        this.metadata = metadata;
+        int n = requests.size();
+        numDependencies = new int[n];
+        dependents = new ArrayList<>(n);
+        Map<String, EntityState> states = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            dependents.add(new ArrayList<>());
+            Request req = requests.get(i);
+            Set<Integer> deps = new TreeSet<>();
+            String writes = req.getOperation() == CRUDOperation.FIND ? null : req.getEntityVersion().getEntity();
+            for (String entity : getReadEntities(req.getEntityVersion())) {
+                EntityState state = states.get(entity);
+                if (state == null) {
+                    states.put(entity, state = new EntityState());
+                }
+                if (state.lastWrite >= 0) {
+                    deps.add(state.lastWrite);
+                }
+                if (entity.equals(writes)) {
+                    deps.addAll(state.readsSinceWrite);
+                    state.readsSinceWrite.clear();
+                    state.lastWrite = i;
+                } else {
+                    state.readsSinceWrite.add(i);
+                }
+            }
+            numDependencies[i] = deps.size();
+            for (Integer d : deps) {
+                dependents.get(d).add(i);
+            }
+            LOGGER.debug("Bulk entry {} depends on {}", i, deps);
+        }
+    }
+
+    /**
+     * Returns the number of entries that must complete before entry
+     * <code>index</code> can start
+     */
+    public int getNumDependencies(int index) {
+        return numDependencies[index];
+    }
+
+    /**
+     * Returns the entries that depend on entry <code>index</code>, in
+     * request order
+     */
+    public List<Integer> getDependents(int index) {
+        return dependents.get(index);
+    }
+
+    /**
+     * Returns the names of the entity and all entities reachable from it
+     * through references. If metadata cannot be loaded, only the entity
+     * itself is returned; the entry will fail when it runs anyway.
+     */
+    private Set<String> getReadEntities(EntityVersion ev) {
+        Set<String> entities = entityCache.get(ev);
+        if (entities == null) {
+            entities = new HashSet<>();
+            collectEntities(ev.getEntity(), ev.getVersion(), entities);
+            entityCache.put(ev, entities);
+        }
+        return entities;
+    }
+
+    private void collectEntities(String entityName, String version, Set<String> entities) {
+        if (entityName == null || !entities.add(entityName)) {
+            return;
+        }
+        EntityMetadata md;
+        try {
+            md = metadata.getEntityMetadata(entityName, version);
+        } catch (RuntimeException e) {
+            LOGGER.debug("Cannot load metadata for {}:{}", entityName, version, e);
+            md = null;
+        }
+        if (md != null && md.getEntitySchema() != null) {
+            FieldCursor cursor = md.getFieldCursor();
+            while (cursor.next()) {
+                FieldTreeNode node = cursor.getCurrentNode();
+                if (node instanceof ReferenceField) {
+                    ReferenceField ref = (ReferenceField) node;
+                    collectEntities(ref.getEntityName(), ref.getVersionValue(), entities);
+                }
+            }
+        }
+    }
+}
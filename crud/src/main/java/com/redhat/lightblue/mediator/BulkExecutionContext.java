@@ -1,7 +1,5 @@
 package com.redhat.lightblue.mediator;
 
-import java.util.concurrent.Future;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,13 +16,11 @@ public class BulkExecutionContext {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(BulkExecutionContext.class);
 
-    final Future<Response>[] futures;
-    private Response[] responses;
+    private final Response[] responses;
 
     private MemoryMonitor<Response> memoryMonitor = null;
 
     public BulkExecutionContext(int size) {
-        futures = new Future[size];
         responses = new Response[size];
     }
 
@@ -63,6 +59,20 @@ public class BulkExecutionContext {
         responses[index] = response;
     }
 
+    /**
+     * Removes the response at the given index, and releases its memory so
+     * it no longer counts towards the result set size thresholds. Used when
+     * responses are streamed to the client as they complete.
+     */
+    public Response releaseResponseAt(int index) {
+        Response response = responses[index];
+        responses[index] = null;
+        if (memoryMonitor != null && response != null) {
+            memoryMonitor.release(response);
+        }
+        return response;
+    }
+
     public Response[] getResponses() {
         return responses;
     }
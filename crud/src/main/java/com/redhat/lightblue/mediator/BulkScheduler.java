@@ -0,0 +1,151 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mediator;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.crud.Deadline;
+
+/**
+ * Schedules the entries of a bulk request. The scheduler is driven by the
+ * thread consuming the results: each call to {@link #next()} submits the
+ * entries that are ready to run, and waits until an entry completes.
+ *
+ * An entry is ready when all the entries it depends on are complete. If
+ * there is no dependency graph, all entries are ready. At most
+ * <code>maxInFlight</code> entries are submitted but not yet completed at
+ * any time, so completed entries can be consumed while the remaining
+ * entries are waiting to be submitted.
+ *
+ * Once the deadline of the bulk request expires, no more entries are
+ * submitted, and waiting for an entry fails with the deadline error.
+ */
+public class BulkScheduler {
+
+    /**
+     * Submits bulk entries for execution
+     */
+    @FunctionalInterface
+    public interface Submitter {
+        /**
+         * Submits the entry with the given index. The submitted task must
+         * run <code>onComplete</code> when it is done. If the entry cannot be
+         * submitted, returns false, and the entry is considered complete.
+         */
+        boolean submit(int index, Runnable onComplete);
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkScheduler.class);
+
+    private final int n;
+    private final BulkDependencyGraph graph;
+    private final int maxInFlight;
+    private final Submitter submitter;
+    private final Deadline deadline;
+
+    private final int[] pending;
+    private final PriorityQueue<Integer> ready = new PriorityQueue<>();
+    private final BlockingQueue<Integer> completed = new LinkedBlockingQueue<>();
+    private int inFlight = 0;
+    private int numCompleted = 0;
+
+    /**
+     * @param n Number of entries
+     * @param graph Dependencies between entries, or null if entries are
+     * independent
+     * @param maxInFlight Maximum number of entries submitted but not
+     * completed
+     * @param submitter Submits entries for execution
+     * @param deadline Deadline of the bulk request, can be null
+     */
+    public BulkScheduler(int n, BulkDependencyGraph graph, int maxInFlight, Submitter submitter, Deadline deadline) {
+        this.n = n;
+        this.deadline = deadline == null ? new Deadline() : deadline;
+        // Wake up the consumer waiting for an entry if the request is cancelled
+        this.deadline.onExpire(() -> completed.add(-1));
+        this.graph = graph;
+        this.maxInFlight = maxInFlight < 1 ? 1 : maxInFlight;
+        this.submitter = submitter;
+        pending = new int[n];
+        for (int i = 0; i < n; i++) {
+            pending[i] = graph == null ? 0 : graph.getNumDependencies(i);
+            if (pending[i] == 0) {
+                ready.add(i);
+            }
+        }
+    }
+
+    /**
+     * Returns if there are entries that are not completed yet
+     */
+    public boolean hasNext() {
+        return numCompleted < n;
+    }
+
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Submits the entries that are ready to run, waits until an entry
+     * completes, and returns its index. Entries are returned in completion
+     * order.
+     *
+     * @throws com.redhat.lightblue.util.Error if the deadline expires
+     */
+    public int next() throws InterruptedException {
+        deadline.check();
+        while (inFlight < maxInFlight && !ready.isEmpty()) {
+            int index = ready.poll();
+            inFlight++;
+            LOGGER.debug("Scheduling bulk entry {}", index);
+            if (!submitter.submit(index, () -> completed.add(index))) {
+                completed.add(index);
+            }
+        }
+        int index = waitForCompletion();
+        inFlight--;
+        numCompleted++;
+        if (graph != null) {
+            for (Integer dependent : graph.getDependents(index)) {
+                if (--pending[dependent] == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        return index;
+    }
+
+    private int waitForCompletion() throws InterruptedException {
+        while (true) {
+            long remaining = deadline.getRemainingMS();
+            Integer index = remaining == Long.MAX_VALUE ? completed.take() : completed.poll(remaining, TimeUnit.MILLISECONDS);
+            if (index != null && index >= 0) {
+                return index;
+            }
+            deadline.check();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mediator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.redhat.lightblue.OperationStatus;
+import com.redhat.lightblue.Request;
+import com.redhat.lightblue.Response;
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.crud.DocRequest;
+import com.redhat.lightblue.crud.InsertionRequest;
+import com.redhat.lightblue.crud.SaveRequest;
+import com.redhat.lightblue.util.JsonObject;
+
+/**
+ * Merges consecutive single document insert or save entries of a bulk
+ * request into one request, and splits the response of the merged request
+ * into one response per entry.
+ *
+ * Two entries are merged if they are both inserts or both saves for the same
+ * entity and version, they have the same caller, execution options,
+ * projection and upsert flag, and they don't use ranges or ifCurrent.
+ */
+public final class BulkWriteCoalescer {
+
+    private BulkWriteCoalescer() {
+    }
+
+    /**
+     * Groups the requests into execution units. Each unit is either a single
+     * request, or a run of consecutive requests that can be merged. At most
+     * <code>maxBatchSize</code> requests are merged into one unit.
+     */
+    public static List<int[]> group(List<Request> requests, int maxBatchSize) {
+        List<int[]> units = new ArrayList<>();
+        int n = requests.size();
+        int i = 0;
+        while (i < n) {
+            int j = i + 1;
+            if (maxBatchSize > 1 && isMergeable(requests.get(i))) {
+                while (j < n && j - i < maxBatchSize && isCompatible(requests.get(i), requests.get(j))) {
+                    j++;
+                }
+            }
+            int[] unit = new int[j - i];
+            for (int k = 0; k < unit.length; k++) {
+                unit[k] = i + k;
+            }
+            units.add(unit);
+            i = j;
+        }
+        return units;
+    }
+
+    /**
+     * Builds one request containing the documents of all the requests in
+     * the unit, in order
+     */
+    public static DocRequest merge(List<Request> requests, int[] unit) {
+        DocRequest first = (DocRequest) requests.get(unit[0]);
+        ArrayNode docs = JsonNodeFactory.instance.arrayNode();
+        for (int index : unit) {
+            docs.add(getDocument((DocRequest) requests.get(index)));
+        }
+        DocRequest merged;
+        if (first instanceof InsertionRequest) {
+            InsertionRequest req = new InsertionRequest();
+            req.setReturnFields(((InsertionRequest) first).getReturnFields());
+            merged = req;
+        } else {
+            SaveRequest req = new SaveRequest();
+            req.setReturnFields(((SaveRequest) first).getReturnFields());
+            req.setUpsert(((SaveRequest) first).isUpsert());
+            merged = req;
+        }
+        merged.shallowCopyFrom(first);
+        merged.setEntityData(docs);
+        return merged;
+    }
+
+    /**
+     * Builds the response of each merged request from the response of the
+     * merged request.
+     *
+     * @param merged The response of the merged request
+     * @param docs The documents processed by the merged request, in request
+     * order. If the merged request failed before processing its documents,
+     * this doesn't contain one document per request, and all responses get
+     * the errors of the merged response.
+     * @param n Number of merged requests
+     */
+    public static Response[] split(Response merged, List<DocCtx> docs, int n, JsonNodeFactory nodeFactory) {
+        Response[] responses = new Response[n];
+        boolean perDoc = docs.size() == n;
+        for (int k = 0; k < n; k++) {
+            Response response = new Response(nodeFactory, OperationStatus.ERROR);
+            response.setEntity(merged.getEntity());
+            response.getErrors().addAll(merged.getErrors());
+            if (perDoc) {
+                DocCtx doc = docs.get(k);
+                if (doc.hasErrors()) {
+                    response.getDataErrors().add(doc.getDataError());
+                } else if (merged.getStatus() != OperationStatus.ERROR && merged.getErrors().isEmpty()) {
+                    response.setStatus(OperationStatus.COMPLETE);
+                    response.setModifiedCount(1);
+                    response.addEntityData(doc.getOutputDocument().getRoot());
+                    response.setResultMetadata(new ArrayList<>(Arrays.asList(doc.getResultMetadata())));
+                }
+            } else {
+                response.getDataErrors().addAll(merged.getDataErrors());
+            }
+            responses[k] = response;
+        }
+        return responses;
+    }
+
+    private static boolean isMergeable(Request req) {
+        if (req.getOperation() == CRUDOperation.INSERT) {
+            InsertionRequest ireq = (InsertionRequest) req;
+            return ireq.getFrom() == null && ireq.getTo() == null && getDocument(ireq) != null;
+        } else if (req.getOperation() == CRUDOperation.SAVE) {
+            SaveRequest sreq = (SaveRequest) req;
+            return !sreq.isIfCurrentOnly() && sreq.getFrom() == null && sreq.getTo() == null && getDocument(sreq) != null;
+        }
+        return false;
+    }
+
+    private static boolean isCompatible(Request first, Request req) {
+        if (first.getOperation() != req.getOperation()
+                || !isMergeable(req)
+                || !Objects.equals(first.getEntityVersion(), req.getEntityVersion())
+                || !Objects.equals(first.getClientId(), req.getClientId())
+                || !sameJson(first.getExecution(), req.getExecution())) {
+            return false;
+        }
+        if (first instanceof InsertionRequest) {
+            return sameJson(((InsertionRequest) first).getReturnFields(), ((InsertionRequest) req).getReturnFields());
+        } else {
+            SaveRequest s1 = (SaveRequest) first;
+            SaveRequest s2 = (SaveRequest) req;
+            return s1.isUpsert() == s2.isUpsert() && sameJson(s1.getReturnFields(), s2.getReturnFields());
+        }
+    }
+
+    /**
+     * Returns the single document of the request, or null if the request
+     * doesn't contain exactly one document
+     */
+    private static JsonNode getDocument(DocRequest req) {
+        JsonNode data = req.getEntityData();
+        if (data instanceof ArrayNode) {
+            return data.size() == 1 ? data.get(0) : null;
+        } else if (data != null && data.isObject()) {
+            return data;
+        }
+        return null;
+    }
+
+    private static boolean sameJson(JsonObject o1, JsonObject o2) {
+        if (o1 == o2) {
+            return true;
+        } else if (o1 == null || o2 == null) {
+            return false;
+        }
+        return o1.toJson().equals(o2.toJson());
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mediator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.assoc.CompositeFindImpl;
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.crud.DocumentStream;
+import com.redhat.lightblue.crud.FindRequest;
+import com.redhat.lightblue.crud.WithQuery;
+import com.redhat.lightblue.metadata.CompositeMetadata;
+import com.redhat.lightblue.metadata.DocId;
+import com.redhat.lightblue.metadata.DocIdExtractor;
+import com.redhat.lightblue.metadata.PredefinedFields;
+import com.redhat.lightblue.query.BinaryComparisonOperator;
+import com.redhat.lightblue.query.FieldProjection;
+import com.redhat.lightblue.query.NaryLogicalExpression;
+import com.redhat.lightblue.query.NaryLogicalOperator;
+import com.redhat.lightblue.query.NaryRelationalOperator;
+import com.redhat.lightblue.query.NaryValueRelationalExpression;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.ProjectionList;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.query.Value;
+import com.redhat.lightblue.query.ValueComparisonExpression;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Runs the query of a composite update or delete request as a composite
+ * search retrieving only the identities of the matching documents, and
+ * returns queries selecting those documents by identity, in batches of at
+ * most <code>batchSize</code> documents.
+ *
+ * The identities are read from the search results as batches are
+ * requested, so a batch can be executed as soon as it is full. If the
+ * identity is a single field, a batch query is an <code>$in</code>
+ * expression, otherwise it is an <code>$or</code> of identity matches.
+ * The identities of all documents already included in a batch are kept,
+ * so a document is written only once, even if a write moves it ahead of
+ * the search cursor and the search returns it again. Only the identities
+ * are kept, so this set is bounded by the number of matching documents.
+ *
+ * {@link #write(Consumer)} returns a document stream that executes the
+ * batches one at a time as the documents of the previous batch are read,
+ * so the written documents are not accumulated over the whole result.
+ */
+public class CompositeIdQueryBatches implements Iterator<QueryExpression>, AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompositeIdQueryBatches.class);
+
+    private final int batchSize;
+    private final DocIdExtractor docIdx;
+    private final Path[] identityFields;
+    private final OperationContext ctx;
+    private final DocumentStream<DocCtx> docStream;
+    private final Set<DocId> seen = new HashSet<>();
+    private List<DocId> nextBatch;
+
+    public CompositeIdQueryBatches(CompositeMetadata md, OperationContext ctx, int batchSize) {
+        this.batchSize = batchSize < 1 ? 1 : batchSize;
+        this.ctx = ctx;
+        // This fails if the entity doesn't have identities
+        docIdx = new DocIdExtractor(md);
+        // Identity fields also contains the objectType, we'll filter that out while writing the query
+        identityFields = docIdx.getIdentityFields();
+
+        FindRequest freq = new FindRequest();
+        freq.setEntityVersion(ctx.getRequest().getEntityVersion());
+        freq.setClientId(ctx.getRequest().getClientId());
+        freq.setExecution(ctx.getRequest().getExecution());
+        freq.setQuery(((WithQuery) ctx.getRequest()).getQuery());
+        // Project the identity fields
+        List<Projection> pl = new ArrayList<>(identityFields.length);
+        for (Path field : identityFields) {
+            pl.add(new FieldProjection(field, true, false));
+        }
+        freq.setProjection(new ProjectionList(pl));
+        LOGGER.debug("Query:{} projection:{}", freq.getQuery(), freq.getProjection());
+
+        OperationContext findCtx = new OperationContext(freq, CRUDOperation.FIND, ctx);
+        CompositeFindImpl finder = new CompositeFindImpl(md);
+        finder.find(findCtx, freq.getCRUDFindRequest());
+        if (findCtx.hasErrors()) {
+            ctx.addErrors(findCtx.getErrors());
+            docStream = null;
+        } else {
+            docStream = findCtx.getDocumentStream();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextBatch == null && docStream != null) {
+            List<DocId> batch = new ArrayList<>(batchSize);
+            while (batch.size() < batchSize && docStream.hasNext()) {
+                DocCtx doc = docStream.next();
+                if (!doc.hasErrors()) {
+                    DocId id = docIdx.getDocId(doc);
+                    if (seen.add(id)) {
+                        batch.add(id);
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                nextBatch = batch;
+            }
+        }
+        return nextBatch != null;
+    }
+
+    @Override
+    public QueryExpression next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        List<DocId> batch = nextBatch;
+        nextBatch = null;
+        LOGGER.debug("Batch of {} documents", batch.size());
+        return buildQuery(batch);
+    }
+
+    /**
+     * Returns a document stream over the documents written by all batches.
+     * When the documents of a batch are read, the next batch query is
+     * passed to <code>writer</code>, which should run it against the
+     * controller. The document stream the controller sets in the operation
+     * context is read, and then the context is reset to this stream. No
+     * more batches are written once the context has errors.
+     */
+    public DocumentStream<DocCtx> write(Consumer<QueryExpression> writer) {
+        return new BatchDocumentStream(writer);
+    }
+
+    @Override
+    public void close() {
+        if (docStream != null) {
+            docStream.close();
+        }
+    }
+
+    private QueryExpression buildQuery(List<DocId> batch) {
+        List<Integer> fields = new ArrayList<>(identityFields.length);
+        for (int ix = 0; ix < identityFields.length; ix++) {
+            if (!identityFields[ix].equals(PredefinedFields.OBJECTTYPE_PATH)) {
+                fields.add(ix);
+            }
+        }
+        if (fields.size() == 1) {
+            int ix = fields.get(0);
+            if (batch.size() == 1) {
+                return new ValueComparisonExpression(identityFields[ix],
+                        BinaryComparisonOperator._eq,
+                        new Value(batch.get(0).getValue(ix)));
+            }
+            List<Value> values = new ArrayList<>(batch.size());
+            for (DocId id : batch) {
+                values.add(new Value(id.getValue(ix)));
+            }
+            return new NaryValueRelationalExpression(identityFields[ix], NaryRelationalOperator._in, values);
+        }
+        List<QueryExpression> orq = new ArrayList<>(batch.size());
+        for (DocId id : batch) {
+            List<QueryExpression> idList = new ArrayList<>(fields.size());
+            for (int ix : fields) {
+                idList.add(new ValueComparisonExpression(identityFields[ix],
+                        BinaryComparisonOperator._eq,
+                        new Value(id.getValue(ix))));
+            }
+            orq.add(new NaryLogicalExpression(NaryLogicalOperator._and, idList));
+        }
+        return orq.size() == 1 ? orq.get(0) : new NaryLogicalExpression(NaryLogicalOperator._or, orq);
+    }
+
+    private class BatchDocumentStream implements DocumentStream<DocCtx> {
+        private final ArrayList<Consumer<DocCtx>> listeners = new ArrayList<>();
+        private final Consumer<QueryExpression> writer;
+        private DocumentStream<DocCtx> current;
+
+        BatchDocumentStream(Consumer<QueryExpression> writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (current == null || !current.hasNext()) {
+                closeCurrent();
+                if (ctx.hasErrors() || !CompositeIdQueryBatches.this.hasNext()) {
+                    return false;
+                }
+                QueryExpression q = CompositeIdQueryBatches.this.next();
+                LOGGER.debug("Batch query:{}", q);
+                ctx.setDocumentStream(null);
+                writer.accept(q);
+                current = ctx.getDocumentStream();
+                ctx.setDocumentStream(this);
+            }
+            return true;
+        }
+
+        @Override
+        public DocCtx next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            DocCtx doc = current.next();
+            for (Consumer<DocCtx> c : listeners) {
+                c.accept(doc);
+            }
+            return doc;
+        }
+
+        @Override
+        public void close() {
+            closeCurrent();
+        }
+
+        @Override
+        public void addListener(Consumer<DocCtx> listener) {
+            listeners.add(listener);
+        }
+
+        private void closeCurrent() {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+}
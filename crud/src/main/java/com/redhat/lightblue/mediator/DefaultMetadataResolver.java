@@ -32,6 +32,9 @@ import org.slf4j.LoggerFactory;
 
 import com.redhat.lightblue.crud.MetadataResolver;
 import com.redhat.lightblue.crud.CrudConstants;
+import com.redhat.lightblue.crud.FieldAccessCache;
+
+import com.redhat.lightblue.eval.FieldAccessMatrix;
 
 import com.redhat.lightblue.EntityVersion;
 
@@ -87,6 +90,7 @@ public class DefaultMetadataResolver implements MetadataResolver, Serializable {
 
     private CompositeMetadata cmd;
     private Set<String> roles;
+    private transient FieldAccessCache accessCache;
 
     private final class Gmd extends AbstractGetMetadata {
         // the metadata version of the initial request
@@ -135,6 +139,19 @@ public class DefaultMetadataResolver implements MetadataResolver, Serializable {
      * This method builds the composite metadata for the given top level entity name and entity version, for the given query and projections
      */
     public void initialize(String entityName, String entityVersion, final QueryExpression query, final Projection projection) {
+        initialize(entityName, entityVersion, query, projection, null);
+    }
+
+    /**
+     * This method builds the composite metadata for the given top level
+     * entity name and entity version, for the given query and projections.
+     * The metadata roles and field access matrices are looked up in
+     * <code>accessCache</code>, and computed only if they are not cached.
+     *
+     * @param accessCache The field access cache, can be null
+     */
+    public void initialize(String entityName, String entityVersion, final QueryExpression query, final Projection projection,
+                           FieldAccessCache accessCache) {
         if (cmd != null) {
             throw new IllegalStateException("Metadata resolver was already initialized");
         }
@@ -151,8 +168,18 @@ public class DefaultMetadataResolver implements MetadataResolver, Serializable {
         cmd = CompositeMetadata.buildCompositeMetadata(emd, new Gmd(projection, query, entityName, entityVersion));
         LOGGER.debug("Composite metadata:{}", cmd);
 
+        this.accessCache = accessCache;
+        if (accessCache == null) {
+            roles = collectMetadataRoles();
+        } else {
+            roles = accessCache.getMetadataRoles(cmd, this::collectMetadataRoles);
+        }
+        LOGGER.debug("Metadata roles:{}", roles);
+    }
+
+    private Set<String> collectMetadataRoles() {
         LOGGER.debug("Collecting metadata roles");
-        roles = new HashSet<>();
+        Set<String> roles = new HashSet<>();
         addMetadataRoles(roles, cmd);
         FieldCursor c = cmd.getFieldCursor();
         while (c.next()) {
@@ -162,7 +189,34 @@ public class DefaultMetadataResolver implements MetadataResolver, Serializable {
                 addMetadataRoles(roles, ((ResolvedReferenceField) node).getReferencedMetadata());
             }
         }
-        LOGGER.debug("Metadata roles:{}", roles);
+        return roles;
+    }
+
+    /**
+     * Returns the access of the caller to the fields of the top level
+     * entity, including the fields of all the entities in the composite
+     * metadata
+     */
+    public FieldAccessMatrix getCompositeFieldAccess(Set<String> callerRoles) {
+        if (accessCache == null) {
+            return new FieldAccessMatrix(cmd, callerRoles);
+        }
+        return accessCache.getFieldAccess(cmd, callerRoles);
+    }
+
+    /**
+     * Returns the access of the caller to the fields of an entity used in
+     * this operation
+     */
+    public FieldAccessMatrix getFieldAccess(String entityName, Set<String> callerRoles) {
+        EntityMetadata emd = metadataMap.get(entityName);
+        if (emd == null) {
+            throw Error.get(CrudConstants.ERR_UNKNOWN_ENTITY, entityName);
+        }
+        if (accessCache == null) {
+            return new FieldAccessMatrix(emd, callerRoles);
+        }
+        return accessCache.getFieldAccess(emd, callerRoles);
     }
 
     /**
@@ -27,4 +27,25 @@ public interface Finder {
     CRUDFindResponse find(OperationContext ctx, CRUDFindRequest req);
 
     void explain(OperationContext ctx, CRUDFindRequest req);
+
+    /**
+     * Returns the number of documents matching the request query. The
+     * sort and range of the request are ignored.
+     *
+     * The default implementation runs a find with the request query and
+     * projection, and returns its match count without reading the
+     * documents. Implementations should override it with a cheaper count.
+     */
+    default long count(OperationContext ctx, CRUDFindRequest req) {
+        CRUDFindRequest countReq = new CRUDFindRequest();
+        countReq.setQuery(req.getQuery());
+        countReq.setProjection(req.getProjection());
+        ctx.setComputeCounts(true);
+        CRUDFindResponse response = find(ctx, countReq);
+        if (ctx.getDocumentStream() != null) {
+            ctx.getDocumentStream().close();
+            ctx.setDocumentStream(null);
+        }
+        return response == null ? 0 : response.getSize();
+    }
 }
@@ -19,17 +19,28 @@
 package com.redhat.lightblue.mediator;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.redhat.lightblue.BaseResponse;
 import com.redhat.lightblue.DataError;
+import com.redhat.lightblue.EntityVersion;
+import com.redhat.lightblue.ExecutionOptions;
 import com.redhat.lightblue.OperationStatus;
 import com.redhat.lightblue.Request;
 import com.redhat.lightblue.Response;
@@ -37,10 +48,13 @@ import com.redhat.lightblue.ResultMetadata;
 import com.redhat.lightblue.assoc.AnalyzeQuery;
 import com.redhat.lightblue.assoc.CompositeFindImpl;
 import com.redhat.lightblue.assoc.QueryFieldInfo;
+import com.redhat.lightblue.crud.AsyncFindSupport;
+import com.redhat.lightblue.crud.BulkExecutor;
 import com.redhat.lightblue.crud.BulkRequest;
 import com.redhat.lightblue.crud.BulkResponse;
 import com.redhat.lightblue.crud.CRUDController;
 import com.redhat.lightblue.crud.CRUDDeleteResponse;
+import com.redhat.lightblue.crud.CRUDFindRequest;
 import com.redhat.lightblue.crud.CRUDFindResponse;
 import com.redhat.lightblue.crud.CRUDInsertionResponse;
 import com.redhat.lightblue.crud.CRUDOperation;
@@ -48,34 +62,31 @@ import com.redhat.lightblue.crud.CRUDSaveResponse;
 import com.redhat.lightblue.crud.CRUDUpdateResponse;
 import com.redhat.lightblue.crud.ConstraintValidator;
 import com.redhat.lightblue.crud.CrudConstants;
+import com.redhat.lightblue.crud.Deadline;
 import com.redhat.lightblue.crud.DeleteRequest;
 import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.crud.DocRequest;
 import com.redhat.lightblue.crud.DocumentStream;
 import com.redhat.lightblue.crud.Factory;
+import com.redhat.lightblue.crud.FindCoalescer;
+import com.redhat.lightblue.crud.FindResultCache;
 import com.redhat.lightblue.crud.FindRequest;
 import com.redhat.lightblue.crud.InsertionRequest;
+import com.redhat.lightblue.crud.KeysetPagination;
+import com.redhat.lightblue.crud.ListDocumentStream;
 import com.redhat.lightblue.crud.SaveRequest;
 import com.redhat.lightblue.crud.UpdateRequest;
 import com.redhat.lightblue.crud.WithIfCurrent;
 import com.redhat.lightblue.crud.WithQuery;
 import com.redhat.lightblue.crud.WithRange;
+import com.redhat.lightblue.eval.FieldAccessMatrix;
 import com.redhat.lightblue.eval.FieldAccessRoleEvaluator;
 import com.redhat.lightblue.interceptor.InterceptPoint;
 import com.redhat.lightblue.metadata.CompositeMetadata;
-import com.redhat.lightblue.metadata.DocId;
-import com.redhat.lightblue.metadata.DocIdExtractor;
 import com.redhat.lightblue.metadata.EntityMetadata;
 import com.redhat.lightblue.metadata.Metadata;
 import com.redhat.lightblue.metadata.PredefinedFields;
-import com.redhat.lightblue.query.BinaryComparisonOperator;
-import com.redhat.lightblue.query.FieldProjection;
-import com.redhat.lightblue.query.NaryLogicalExpression;
-import com.redhat.lightblue.query.NaryLogicalOperator;
-import com.redhat.lightblue.query.Projection;
-import com.redhat.lightblue.query.ProjectionList;
 import com.redhat.lightblue.query.QueryExpression;
-import com.redhat.lightblue.query.Value;
-import com.redhat.lightblue.query.ValueComparisonExpression;
 import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.JsonDoc;
 import com.redhat.lightblue.util.Path;
@@ -95,6 +106,17 @@ public class Mediator {
     private static final Logger LOGGER = LoggerFactory.getLogger(Mediator.class);
     private static final Logger METRICS = LoggerFactory.getLogger("metrics."+Mediator.class.getName());
 
+    /**
+     * Execution option returning the timing profile of the request phases in
+     * the response when set to true
+     */
+    public static final String OPT_PROFILE = "profile";
+
+    /**
+     * Deadline of the bulk request the current thread is running an entry of
+     */
+    private static final ThreadLocal<Deadline> PARENT_DEADLINE = new ThreadLocal<>();
+
     private static final Path OBJECT_TYPE_PATH = new Path("objectType");
 
     public final Metadata metadata;
@@ -117,6 +139,14 @@ public class Mediator {
      */
     @StopWatch(loggerName = "stopwatch.com.redhat.lightblue.mediator.Mediator", sizeCalculatorClass = "com.redhat.lightblue.mediator.ResponsePayloadSizeCalculator")
     public Response insert(InsertionRequest req) {
+        return insert(req, null);
+    }
+
+    /**
+     * Runs the insert. If <code>processedDocs</code> is not null, the documents
+     * processed by the operation are added to it in request order.
+     */
+    private Response insert(InsertionRequest req, List<DocCtx> processedDocs) {
         LOGGER.debug("insert {}", req.getEntityVersion());
         Error.push("insert(" + req.getEntityVersion().toString() + ")");
         Response response = new Response(factory.getNodeFactory(), OperationStatus.ERROR);
@@ -142,7 +172,7 @@ public class Mediator {
                     response.setModifiedCount(ir.getNumInserted());
                     List<DataError> dataErrors=setResponseResults(ctx,req,response);
                     response.getDataErrors().addAll(dataErrors);
-                    ctx.measure.begin("postProcessInsertedDocs");
+                    ctx.measure.end("postProcessInsertedDocs");
                     if (!ctx.hasErrors() && dataErrors.isEmpty() && ctx.getInputDocuments().size()==ir.getNumInserted()) {
                         ctx.setStatus(OperationStatus.COMPLETE);
                     } else if (ir.getNumInserted()>0) {
@@ -156,10 +186,13 @@ public class Mediator {
                     ctx.setStatus(OperationStatus.ERROR);
                 }
             }
+            if (processedDocs != null && ctx.getInputDocuments() != null) {
+                processedDocs.addAll(ctx.getInputDocuments());
+            }
             response.getErrors().addAll(ctx.getErrors());
             response.setStatus(ctx.getStatus());
             if (response.getStatus() != OperationStatus.ERROR) {
-                ctx.getHookManager().callQueuedHooks();
+                callQueuedHooks(ctx, response);
             }
         } catch (Error e) {
             response.getErrors().add(e);
@@ -169,9 +202,9 @@ public class Mediator {
             response.setStatus(OperationStatus.ERROR);
         } finally {
             if(ctx!=null) {
-                ctx.measure.end("insert");
-                METRICS.debug("insert: {}",ctx.measure);
+                endMeasure(ctx, "insert", response);
             }
+            invalidateFindCache(req);
             Error.pop();
         }
         return response;
@@ -191,6 +224,14 @@ public class Mediator {
      */
     @StopWatch(loggerName = "stopwatch.com.redhat.lightblue.mediator.Mediator", sizeCalculatorClass = "com.redhat.lightblue.mediator.ResponsePayloadSizeCalculator")
     public Response save(SaveRequest req) {
+        return save(req, null);
+    }
+
+    /**
+     * Runs the save. If <code>processedDocs</code> is not null, the documents
+     * processed by the operation are added to it in request order.
+     */
+    private Response save(SaveRequest req, List<DocCtx> processedDocs) {
         LOGGER.debug("save {}", req.getEntityVersion());
         Error.push("save(" + req.getEntityVersion().toString() + ")");
         Response response = new Response(factory.getNodeFactory(), OperationStatus.ERROR);
@@ -230,10 +271,13 @@ public class Mediator {
                     response.getDataErrors().addAll(dataErrors);
                 }
             }
+            if (processedDocs != null && ctx.getInputDocuments() != null) {
+                processedDocs.addAll(ctx.getInputDocuments());
+            }
             response.getErrors().addAll(ctx.getErrors());
             response.setStatus(ctx.getStatus());
             if (response.getStatus() != OperationStatus.ERROR) {
-                ctx.getHookManager().callQueuedHooks();
+                callQueuedHooks(ctx, response);
             }
         } catch (Error e) {
             response.getErrors().add(e);
@@ -243,14 +287,121 @@ public class Mediator {
             response.setStatus(OperationStatus.ERROR);
         } finally {
             if(ctx!=null) {
-                ctx.measure.end("save");
-                METRICS.debug("save: {}",ctx.measure);
+                endMeasure(ctx, "save", response);
             }
+            invalidateFindCache(req);
             Error.pop();
         }
         return response;
     }
 
+    /**
+     * Inserts documents read from a stream. The documents are read and
+     * inserted in chunks of <code>writeChunkSize</code> documents. Each
+     * chunk runs through the same steps as {@link #insert(InsertionRequest)},
+     * so only one chunk of documents is in memory at any time.
+     *
+     * @param req The insertion request. Its entity data is ignored.
+     * @param documents The documents to insert. If this is a DocumentStream,
+     * it is closed when done.
+     * @param chunkListener If not null, receives the response of each chunk
+     * as it completes
+     *
+     * @return A response containing the total modified count and the
+     * errors. Inserted documents are only returned in chunk responses. Data
+     * errors are only returned in chunk responses if there is a chunk
+     * listener, otherwise the response contains at most
+     * <code>writeChunkSize</code> data errors, so a stream of failing
+     * documents doesn't accumulate in memory. Processing stops at the first
+     * chunk that fails with a request level error.
+     */
+    public Response insertFromStream(InsertionRequest req, Iterator<JsonNode> documents, Consumer<Response> chunkListener) {
+        return writeFromStream(req, documents, chunkListener, chunk -> {
+            InsertionRequest chunkReq = new InsertionRequest();
+            chunkReq.shallowCopyFrom(req);
+            chunkReq.setReturnFields(req.getReturnFields());
+            chunkReq.setEntityData(chunk);
+            return insert(chunkReq, null);
+        });
+    }
+
+    /**
+     * Saves documents read from a stream, in chunks of
+     * <code>writeChunkSize</code> documents.
+     *
+     * @see #insertFromStream(InsertionRequest, Iterator, Consumer)
+     */
+    public Response saveFromStream(SaveRequest req, Iterator<JsonNode> documents, Consumer<Response> chunkListener) {
+        return writeFromStream(req, documents, chunkListener, chunk -> {
+            SaveRequest chunkReq = new SaveRequest();
+            chunkReq.shallowCopyFrom(req);
+            chunkReq.setReturnFields(req.getReturnFields());
+            chunkReq.setUpsert(req.isUpsert());
+            chunkReq.setIfCurrentOnly(req.isIfCurrentOnly());
+            chunkReq.setDocumentVersions(req.getDocumentVersions());
+            chunkReq.setEntityData(chunk);
+            return save(chunkReq, null);
+        });
+    }
+
+    private Response writeFromStream(DocRequest req, Iterator<JsonNode> documents, Consumer<Response> chunkListener, Function<ArrayNode, Response> chunkWriter) {
+        LOGGER.debug("{} from stream {}", req.getOperation(), req.getEntityVersion());
+        Error.push(req.getOperation().toString().toLowerCase() + "FromStream(" + req.getEntityVersion().toString() + ")");
+        Response response = new Response(factory.getNodeFactory(), OperationStatus.COMPLETE);
+        response.setEntity(req.getEntityVersion());
+        int chunkSize = factory.getWriteChunkSize() < 1 ? 1 : factory.getWriteChunkSize();
+        int numChunks = 0;
+        int numDataErrors = 0;
+        try {
+            while (documents.hasNext()) {
+                ArrayNode chunk = factory.getNodeFactory().arrayNode();
+                while (chunk.size() < chunkSize && documents.hasNext()) {
+                    JsonNode doc = documents.next();
+                    if (doc != null) {
+                        chunk.add(doc);
+                    }
+                }
+                if (chunk.size() == 0) {
+                    continue;
+                }
+                Response chunkResponse = chunkWriter.apply(chunk);
+                numChunks++;
+                response.setModifiedCount(response.getModifiedCount() + chunkResponse.getModifiedCount());
+                numDataErrors += chunkResponse.getDataErrors().size();
+                if (chunkListener == null) {
+                    for (DataError x : chunkResponse.getDataErrors()) {
+                        if (response.getDataErrors().size() >= chunkSize) {
+                            break;
+                        }
+                        response.getDataErrors().add(x);
+                    }
+                }
+                response.getErrors().addAll(chunkResponse.getErrors());
+                if (chunkListener != null) {
+                    chunkListener.accept(chunkResponse);
+                }
+                if (!chunkResponse.getErrors().isEmpty()) {
+                    LOGGER.debug("Chunk {} failed, stopping", numChunks);
+                    break;
+                }
+            }
+        } catch (Error e) {
+            response.getErrors().add(e);
+        } catch (Exception e) {
+            response.getErrors().add(Error.get(CrudConstants.ERR_CRUD, e));
+        } finally {
+            if (documents instanceof DocumentStream) {
+                ((DocumentStream<JsonNode>) documents).close();
+            }
+            Error.pop();
+        }
+        LOGGER.debug("Processed {} chunks, {} data errors", numChunks, numDataErrors);
+        if (!response.getErrors().isEmpty() || numDataErrors > 0) {
+            response.setStatus(response.getModifiedCount() > 0 ? OperationStatus.PARTIAL : OperationStatus.ERROR);
+        }
+        return response;
+    }
+
     /**
      * Updates documents that match the given search criteria
      *
@@ -270,6 +421,7 @@ public class Mediator {
         Error.push("update(" + req.getEntityVersion().toString() + ")");
         Response response = new Response(factory.getNodeFactory(), OperationStatus.ERROR);
         OperationContext ctx=null;
+        CompositeIdQueryBatches batches=null;
         try {
             ctx = newCtx(req, CRUDOperation.UPDATE);
             ctx.measure.begin("update");
@@ -290,24 +442,25 @@ public class Mediator {
                             req.getReturnFields());
                 } else {
                     LOGGER.debug("Composite search required for update");
-                    QueryExpression q = rewriteUpdateQueryForCompositeSearch(md, ctx);
-                    LOGGER.debug("New query:{}", q);
-                    if (q != null) {
-                        updateResponse = controller.update(ctx, q, req.getUpdateExpression(), req.getReturnFields());
-                    } else {
-                        updateResponse = new CRUDUpdateResponse();
-                        updateResponse.setNumUpdated(0);
-                        updateResponse.setNumFailed(0);
-                        updateResponse.setNumMatched(0);
-                    }
+                    updateResponse = new CRUDUpdateResponse();
+                    final CRUDUpdateResponse sum = updateResponse;
+                    final OperationContext batchCtx = ctx;
+                    // Batches are written as the updated documents are read below
+                    batches = new CompositeIdQueryBatches(md, ctx, factory.getCompositeWriteBatchSize());
+                    ctx.setDocumentStream(batches.write(q -> {
+                        CRUDUpdateResponse batchResponse = controller.update(batchCtx, q, req.getUpdateExpression(), req.getReturnFields());
+                        sum.setNumUpdated(sum.getNumUpdated() + batchResponse.getNumUpdated());
+                        sum.setNumFailed(sum.getNumFailed() + batchResponse.getNumFailed());
+                        sum.setNumMatched(sum.getNumMatched() + batchResponse.getNumMatched());
+                    }));
                 }
                 ctx.getHookManager().queueMediatorHooks(ctx);
                 ctx.measure.begin("postProcessUpdatedDocs");
+                List<DataError> dataErrors=setResponseResults(ctx,req,response);
+                response.getDataErrors().addAll(dataErrors);
                 LOGGER.debug("# Updated", updateResponse.getNumUpdated());                
                 response.setModifiedCount(updateResponse.getNumUpdated());
                 response.setMatchCount(updateResponse.getNumMatched());
-                List<DataError> dataErrors=setResponseResults(ctx,req,response);
-                response.getDataErrors().addAll(dataErrors);
                 ctx.measure.end("postProcessUpdatedDocs");
                 if (ctx.hasErrors()) {
                     ctx.setStatus(OperationStatus.ERROR);
@@ -320,7 +473,7 @@ public class Mediator {
             response.getErrors().addAll(ctx.getErrors());
             response.setStatus(ctx.getStatus());
             if (response.getStatus() != OperationStatus.ERROR) {
-                ctx.getHookManager().callQueuedHooks();
+                callQueuedHooks(ctx, response);
             }
         } catch (Error e) {
             response.getErrors().add(e);
@@ -329,10 +482,13 @@ public class Mediator {
             response.getErrors().add(Error.get(CrudConstants.ERR_CRUD, e));
             response.setStatus(OperationStatus.ERROR);
         } finally {
+            if(batches!=null) {
+                batches.close();
+            }
              if(ctx!=null) {
-                ctx.measure.end("update");
-                METRICS.debug("update: {}",ctx.measure);
+                endMeasure(ctx, "update", response);
             }
+            invalidateFindCache(req);
            Error.pop();
         }
         return response;
@@ -344,6 +500,7 @@ public class Mediator {
         Error.push("delete(" + req.getEntityVersion().toString() + ")");
         Response response=new Response(factory.getNodeFactory(), OperationStatus.ERROR);
         OperationContext ctx=null;
+        CompositeIdQueryBatches batches=null;
         try {
             ctx = newCtx(req, CRUDOperation.DELETE);
             ctx.measure.begin("delete");
@@ -362,17 +519,28 @@ public class Mediator {
                     result = controller.delete(ctx, req.getQuery());
                 } else {
                     LOGGER.debug("Composite search required for delete");
-                    QueryExpression q = rewriteUpdateQueryForCompositeSearch(md, ctx);
-                    LOGGER.debug("New query:{}", q);
-                    if (q != null) {
-                        result = controller.delete(ctx, q);
-                    } else {
-                        result = new CRUDDeleteResponse();
-                        result.setNumDeleted(0);
-                    }
+                    result = new CRUDDeleteResponse();
+                    final CRUDDeleteResponse sum = result;
+                    final OperationContext batchCtx = ctx;
+                    batches = new CompositeIdQueryBatches(md, ctx, factory.getCompositeWriteBatchSize());
+                    ctx.setDocumentStream(batches.write(q -> {
+                        CRUDDeleteResponse batchResult = controller.delete(batchCtx, q);
+                        if (batchResult != null) {
+                            sum.setNumDeleted(sum.getNumDeleted() + batchResult.getNumDeleted());
+                        }
+                    }));
                 }
 
                 ctx.getHookManager().queueMediatorHooks(ctx);
+                if (batches != null) {
+                    // Write all batches. Hooks keep the documents they need
+                    // through their stream listener
+                    DocumentStream<DocCtx> deletedDocs = ctx.getDocumentStream();
+                    while (deletedDocs.hasNext()) {
+                        deletedDocs.next();
+                    }
+                    deletedDocs.close();
+                }
                 response.setModifiedCount(result == null ? 0 : result.getNumDeleted());
                 if (ctx.hasErrors()) {
                     ctx.setStatus(OperationStatus.ERROR);
@@ -383,7 +551,7 @@ public class Mediator {
             response.getErrors().addAll(ctx.getErrors());
             response.setStatus(ctx.getStatus());
             if (response.getStatus() != OperationStatus.ERROR) {
-                ctx.getHookManager().callQueuedHooks();
+                callQueuedHooks(ctx, response);
             }
         } catch (Error e) {
             response.getErrors().add(e);
@@ -392,79 +560,28 @@ public class Mediator {
             response.getErrors().add(Error.get(CrudConstants.ERR_CRUD, e));
             response.setStatus(OperationStatus.ERROR);
         } finally {
+            if(batches!=null) {
+                batches.close();
+            }
             if(ctx!=null) {
-                ctx.measure.end("delete");
-                METRICS.debug("delete: {}",ctx.measure);
+                endMeasure(ctx, "delete", response);
             }
+            invalidateFindCache(req);
             Error.pop();
         }
         return response;
     }
 
-    private QueryExpression rewriteUpdateQueryForCompositeSearch(CompositeMetadata md, OperationContext ctx) {
-        // Construct a new find request with the composite query
-        // Retrieve only the identities
-        // This fails if the entity doesn't have identities
-        DocIdExtractor docIdx = new DocIdExtractor(md);
-        // Identity fields also contains the objectType, we'll filter that out while writing the query
-        Path[] identityFields = docIdx.getIdentityFields();
-
-        FindRequest freq = new FindRequest();
-        freq.setEntityVersion(ctx.getRequest().getEntityVersion());
-        freq.setClientId(ctx.getRequest().getClientId());
-        freq.setExecution(ctx.getRequest().getExecution());
-        freq.setQuery(((WithQuery) ctx.getRequest()).getQuery());
-        // Project the identity fields
-        List<Projection> pl = new ArrayList<>(identityFields.length);
-        for (Path field : identityFields) {
-            pl.add(new FieldProjection(field, true, false));
-        }
-        freq.setProjection(new ProjectionList(pl));
-        LOGGER.debug("Query:{} projection:{}", freq.getQuery(), freq.getProjection());
-
-        OperationContext findCtx = new OperationContext(freq, CRUDOperation.FIND, ctx);
-        CompositeFindImpl finder = new CompositeFindImpl(md);
-        finder.setParallelism(9);
-        CRUDFindResponse response = finder.find(findCtx, freq.getCRUDFindRequest());
-        if(findCtx.hasErrors()) {
-            ctx.addErrors(findCtx.getErrors());
-        } else {
-            DocumentStream<DocCtx> docStream = findCtx.getDocumentStream();
-            
-            // Now write a query
-            List<QueryExpression> orq = new ArrayList<>();
-            for (;docStream.hasNext();) {
-                DocCtx doc=docStream.next();
-                if(!doc.hasErrors()) {
-                    DocId id = docIdx.getDocId(doc);
-                    List<QueryExpression> idList = new ArrayList<>(identityFields.length);
-                    for (int ix = 0; ix < identityFields.length; ix++) {
-                        if (!identityFields[ix].equals(PredefinedFields.OBJECTTYPE_PATH)) {
-                            Object value = id.getValue(ix);
-                            idList.add(new ValueComparisonExpression(identityFields[ix],
-                                                                     BinaryComparisonOperator._eq,
-                                                                     new Value(value)));
-                        }
-                    }
-                    QueryExpression idq;
-                    if (idList.size() == 1) {
-                        idq = idList.get(0);
-                    } else {
-                        idq = new NaryLogicalExpression(NaryLogicalOperator._and, idList);
-                    }
-                    orq.add(idq);
-                }
-            }
-            docStream.close();
-            if (orq.isEmpty()) {
-                return null;
-            } else if (orq.size() == 1) {
-                return orq.get(0);
-            } else {
-                return new NaryLogicalExpression(NaryLogicalOperator._or, orq);
-            }
+    /**
+     * Calls the hooks queued by a committed write. If the deadline expires
+     * before all hooks are called, the response keeps the status of the
+     * write, and gets an error listing the hooks that were not called.
+     */
+    private void callQueuedHooks(OperationContext ctx, Response response) {
+        List<String> skipped = ctx.getHookManager().callQueuedHooks(ctx.getDeadline());
+        if (!skipped.isEmpty()) {
+            response.getErrors().add(Error.get(CrudConstants.ERR_HOOKS_SKIPPED, skipped.toString()));
         }
-        return null;
     }
 
     /**
@@ -476,23 +593,60 @@ public class Mediator {
      */
     @StopWatch(loggerName = "stopwatch.com.redhat.lightblue.mediator.Mediator", sizeCalculatorClass = "com.redhat.lightblue.mediator.ResponsePayloadSizeCalculator")
     public Response find(FindRequest req) {
+        return find(req, null);
+    }
+
+    /**
+     * Runs the find. If <code>ctx0</code> is null, a new operation context is
+     * created, otherwise the find uses the given context created by the
+     * caller, whose "find" phase has already begun.
+     */
+    private Response find(FindRequest req, OperationContext ctx0) {
         LOGGER.debug("find {}", req.getEntityVersion());
         Error.push("find(" + req.getEntityVersion().toString() + ")");        
-        OperationContext ctx=null;
+        OperationContext ctx=ctx0;
         Response response=new Response(factory.getNodeFactory(), OperationStatus.ERROR);
         try {
-            ctx = newCtx(req, CRUDOperation.FIND);
-            ctx.measure.begin("find");
+            if (ctx == null) {
+                ctx = newCtx(req, CRUDOperation.FIND);
+                ctx.measure.begin("find");
+            }
+            response = cachedFind(req, ctx);
+        } catch (Error e) {
+            LOGGER.debug("Error during find:{}", e);
+            response.getErrors().add(e);
+        } catch (Exception e) {
+            LOGGER.debug("Exception during find:{}", e);
+            response.getErrors().add(Error.get(CrudConstants.ERR_CRUD, e));
+        } finally {
+            if(ctx!=null) {
+                endMeasure(ctx, "find", response);
+            }
+            Error.pop();
+        }
+        
+        return response;
+    }
 
-            StreamingResponse r=_findAndStream(req, ctx);
+    /**
+     * Runs the find, and reads the results into the response
+     */
+    private Response materializeFind(FindRequest req, OperationContext ctx) {
+        return materialize(req, _findAndStream(req, ctx));
+    }
 
-            response = new Response(r);
-            if(response.getErrors()==null||response.getErrors().isEmpty()) {
-                DocumentStream<DocCtx> docStream=r.documentStream;
-                List<ResultMetadata> rmd=new ArrayList<>();
-                response.setEntityData(factory.getNodeFactory().arrayNode());
-                response.setResultSizeThresholds(factory.getMaxResultSetSizeForReadsB(), factory.getWarnResultSetSizeB(), req);
+    /**
+     * Reads the document stream of a find response into a response
+     */
+    private Response materialize(FindRequest req, StreamingResponse r) {
+        Response response = new Response(r);
+        if(response.getErrors()==null||response.getErrors().isEmpty()) {
+            DocumentStream<DocCtx> docStream=r.documentStream;
+            List<ResultMetadata> rmd=new ArrayList<>();
+            response.setEntityData(factory.getNodeFactory().arrayNode());
+            response.setResultSizeThresholds(factory.getMaxResultSetSizeForReadsB(), factory.getWarnResultSetSizeB(), req);
 
+            try {
                 for(;docStream.hasNext();) {
                     DocCtx doc=docStream.next();
                     if(!doc.hasErrors()) {
@@ -504,85 +658,232 @@ public class Mediator {
                             response.getDataErrors().add(error);
                     }
                 }
+            } catch (Error e) {
+                // Result set too large, or reading the rest of the results failed
+                response.getErrors().add(e);
+                response.setStatus(OperationStatus.ERROR);
+                return response;
+            } finally {
                 docStream.close();
-                response.setResultMetadata(rmd);
-                response.setMatchCount(r.matchCount == null ? 0 : r.matchCount);
-                LOGGER.debug("responseMemoryUsed={} request={}", response.getResponseDataSizeB(), req);
             }
-         } catch (Error e) {
-            LOGGER.debug("Error during find:{}", e);
-            response.getErrors().add(e);
-        } catch (Exception e) {
-            LOGGER.debug("Exception during find:{}", e);
-            response.getErrors().add(Error.get(CrudConstants.ERR_CRUD, e));
-        } finally {
-            if(ctx!=null) {
-                ctx.measure.end("find");
-                METRICS.debug("find: {}",ctx.measure);
+            response.setResultMetadata(rmd);
+            if (r.continuation != null) {
+                response.setContinuation(r.continuation.get());
             }
-            Error.pop();
+            response.setMatchCount(r.matchCount == null ? 0 : r.matchCount);
+            LOGGER.debug("responseMemoryUsed={} request={}", response.getResponseDataSizeB(), req);
         }
-        
         return response;
     }
 
+    /**
+     * Runs the find. If finds for the entity are cached, returns the cached
+     * response if there is one, and caches the response otherwise.
+     */
+    private Response cachedFind(FindRequest req, OperationContext ctx) {
+        FindResultCache cache = factory.getFindResultCache();
+        CompositeMetadata md = ctx.getTopLevelEntityMetadata();
+        // Cached responses are shared by callers with the same roles, so
+        // those callers passed the same access checks
+        if (cache.isEnabled(md) && sharesFindResponses()
+                && md.getAccess().getFind().hasAccess(ctx.getCallerRoles())) {
+            String key = FindCoalescer.key(req, ctx.getTopLevelEntityVersion(), ctx.getCallerRoles());
+            Response response = cache.get(key, factory.getNodeFactory(), factory.getRequestMetrics());
+            if (response == null) {
+                Set<String> entities = FindResultCache.getEntities(md);
+                long generation = cache.getGeneration(entities);
+                response = coalescedFind(req, ctx, key);
+                cache.put(key, entities, generation, response, factory.getNodeFactory(), factory.getRequestMetrics());
+            }
+            return response;
+        }
+        return coalescedFind(req, ctx, null);
+    }
+
+    /**
+     * Runs the find. If finds for the entity are coalesced, waits for an
+     * identical find already running instead, and returns a copy of its
+     * response.
+     *
+     * @param key The coalescing key, or null if not computed yet
+     */
+    private Response coalescedFind(FindRequest req, OperationContext ctx, String key) {
+        FindCoalescer coalescer = factory.getFindCoalescer();
+        if (coalescer.isEnabled(ctx.getTopLevelEntityMetadata()) && sharesFindResponses()) {
+            if (key == null) {
+                key = FindCoalescer.key(req, ctx.getTopLevelEntityVersion(), ctx.getCallerRoles());
+            }
+            return coalescer.execute(key, ctx.getDeadline(), factory.getNodeFactory(), () -> materializeFind(req, ctx));
+        }
+        return materializeFind(req, ctx);
+    }
+
+    /**
+     * Returns true if find responses can be cached and coalesced. Requests
+     * sharing a response skip the PRE_MEDIATOR_FIND interceptors, which
+     * can rewrite or audit each request based on more than the caller
+     * roles in the key, so responses are not shared if there are any.
+     */
+    private boolean sharesFindResponses() {
+        return !factory.getInterceptors().hasInterceptors(InterceptPoint.PRE_MEDIATOR_FIND);
+    }
+
+    /**
+     * Removes the cached find responses and reference documents depending
+     * on the entity written by a request
+     */
+    private void invalidateFindCache(Request req) {
+        if (req.getEntityVersion() != null) {
+            factory.getFindResultCache().invalidate(req.getEntityVersion().getEntity(), factory.getRequestMetrics());
+            factory.getReferenceEntityCache().invalidate(req.getEntityVersion().getEntity());
+        }
+    }
+
     public StreamingResponse findAndStream(FindRequest req) {
         LOGGER.debug("findAndStream {}", req.getEntityVersion());
         Error.push("findAndStream(" + req.getEntityVersion().toString() + ")");        
         OperationContext ctx=null;
+        StreamingResponse response=null;
         try {
             ctx = newCtx(req, CRUDOperation.FIND);
-            ctx.setComputeCounts(false);
             ctx.measure.begin("find");
-            return _findAndStream(req,ctx);
+            if (sharesFindResponses()
+                    && (factory.getFindCoalescer().isEnabled(ctx.getTopLevelEntityMetadata())
+                        || factory.getFindResultCache().isEnabled(ctx.getTopLevelEntityMetadata()))) {
+                // Coalesced and cached finds share a materialized response
+                response=toStreamingResponse(cachedFind(req, ctx));
+            } else {
+                ctx.setComputeCounts(false);
+                response=_findAndStream(req,ctx);
+            }
         } catch (Error e) {
             LOGGER.debug("Error during find:{}", e);
-            return StreamingResponse.withError(factory.getNodeFactory(), e);
+            response=StreamingResponse.withError(factory.getNodeFactory(), e);
         } catch (Exception e) {
             LOGGER.debug("Exception during find:{}", e);
-            return StreamingResponse.withError(factory.getNodeFactory(), Error.get(CrudConstants.ERR_CRUD, e));
+            response=StreamingResponse.withError(factory.getNodeFactory(), Error.get(CrudConstants.ERR_CRUD, e));
         } finally {
             if(ctx!=null) {
-                ctx.measure.end("find");
-                METRICS.debug("find: {}",ctx.measure);
+                endMeasure(ctx, "find", response);
             }
             Error.pop();
         }
+        return response;
+    }
+
+    private StreamingResponse toStreamingResponse(Response r) {
+        StreamingResponse response = new StreamingResponse(factory.getNodeFactory(), r.getStatus());
+        response.setEntity(r.getEntity());
+        response.setModifiedCount(r.getModifiedCount());
+        response.getDataErrors().addAll(r.getDataErrors());
+        response.getErrors().addAll(r.getErrors());
+        if (r.getEntityData() != null) {
+            List<DocCtx> docs = new ArrayList<>(r.getEntityData().size());
+            int i = 0;
+            for (JsonNode node : r.getEntityData()) {
+                docs.add(new DocCtx(new JsonDoc(node),
+                        r.getResultMetadata() == null ? null : r.getResultMetadata().get(i)));
+                i++;
+            }
+            response.documentStream = new ListDocumentStream<>(docs);
+            response.matchCount = r.getMatchCount();
+            String continuation = r.getContinuation();
+            if (continuation != null) {
+                response.continuation = () -> continuation;
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Ends the top level phase of an operation. The phase timings are
+     * logged, recorded in the request metrics, and returned in the response
+     * if the request asked for a profile with the {@link #OPT_PROFILE}
+     * execution option. In a streaming find, the profile doesn't include
+     * reading the document stream.
+     */
+    private void endMeasure(OperationContext ctx, String operation, BaseResponse response) {
+        ctx.measure.end(operation);
+        METRICS.debug("{}: {}", operation, ctx.measure);
+        EntityVersion ev = ctx.getRequest().getEntityVersion();
+        factory.getRequestMetrics().markPhases(operation, ev.getEntity(), ev.getVersion(), ctx.measure);
+        ExecutionOptions options = ctx.getRequest().getExecution();
+        if (response != null && options != null && Boolean.parseBoolean(options.getOptionValueFor(OPT_PROFILE))) {
+            response.setProfile(ctx.measure.toJson(factory.getNodeFactory()));
+        }
     }
 
     private StreamingResponse _findAndStream(FindRequest req, OperationContext ctx) {
-        StreamingResponse response = new StreamingResponse(factory.getNodeFactory(), OperationStatus.ERROR);
-        response.setEntity(ctx.getTopLevelEntityName(),ctx.getTopLevelEntityVersion());
-        CompositeMetadata md = ctx.getTopLevelEntityMetadata();
-        if (!md.getAccess().getFind().hasAccess(ctx.getCallerRoles())) {
-            ctx.setStatus(OperationStatus.ERROR);
-            LOGGER.debug("No access");
-            ctx.addError(Error.get(CrudConstants.ERR_NO_ACCESS, "find " + ctx.getTopLevelEntityName()));
-        } else if (checkQueryAccess(ctx, req.getQuery())) {
-            factory.getInterceptors().callInterceptors(InterceptPoint.PRE_MEDIATOR_FIND, ctx);
+        CRUDFindResponse result = null;
+        KeysetPagination keyset = null;
+        if (prepareFind(req, ctx)) {
+            CRUDFindRequest freq = req.getCRUDFindRequest();
+            if (KeysetPagination.isRequested(req)) {
+                keyset = new KeysetPagination(req, ctx.getTopLevelEntityMetadata());
+                freq = keyset.getCRUDFindRequest();
+            }
             Finder finder;
             if (ctx.isSimple()) {
                 LOGGER.debug("Simple entity");
-                finder = new SimpleFindImpl(md, factory);
+                finder = new SimpleFindImpl(ctx.getTopLevelEntityMetadata(), factory);
             } else {
                 LOGGER.debug("Composite entity");
-                finder = new CompositeFindImpl(md);
-                // This can be read from a configuration
-                ((CompositeFindImpl) finder).setParallelism(9);
+                finder = new CompositeFindImpl(ctx.getTopLevelEntityMetadata());
             }
             
+            ctx.getDeadline().check();
             ctx.measure.begin("finder.find");
-            CRUDFindResponse result = finder.find(ctx, req.getCRUDFindRequest());
+            result = finder.find(ctx, freq);
             ctx.measure.end("finder.find");
-            
+        }
+        return completeFind(ctx, result, keyset);
+    }
+
+    /**
+     * Checks find access, and calls the find interceptors. Returns false if
+     * the find should not run, the errors are in the context.
+     */
+    private boolean prepareFind(FindRequest req, OperationContext ctx) {
+        CompositeMetadata md = ctx.getTopLevelEntityMetadata();
+        if (!md.getAccess().getFind().hasAccess(ctx.getCallerRoles())) {
+            ctx.setStatus(OperationStatus.ERROR);
+            LOGGER.debug("No access");
+            ctx.addError(Error.get(CrudConstants.ERR_NO_ACCESS, "find " + ctx.getTopLevelEntityName()));
+            return false;
+        } else if (checkQueryAccess(ctx, req.getQuery())) {
+            factory.getInterceptors().callInterceptors(InterceptPoint.PRE_MEDIATOR_FIND, ctx);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Builds the find response from the context after the finder ran.
+     *
+     * @param result The finder result, or null if the finder didn't run
+     * @param keyset The keyset pagination of the find, or null
+     */
+    private StreamingResponse completeFind(OperationContext ctx, CRUDFindResponse result, KeysetPagination keyset) {
+        StreamingResponse response = new StreamingResponse(factory.getNodeFactory(), OperationStatus.ERROR);
+        response.setEntity(ctx.getTopLevelEntityName(),ctx.getTopLevelEntityVersion());
+        if (result != null) {
             if(!ctx.hasErrors()) {
                 ctx.setStatus(OperationStatus.COMPLETE);
                 response.documentStream=ctx.getDocumentStream();
+                if (keyset != null && response.documentStream != null) {
+                    response.documentStream = keyset.wrap(response.documentStream);
+                    response.continuation = keyset::getContinuation;
+                }
                 if(ctx.isComputeCounts()) {
                     response.matchCount=result.getSize();
                 }
             } else {
                 ctx.setStatus(OperationStatus.ERROR);
+                // The stream is not returned, close it so the finder releases its resources
+                DocumentStream<DocCtx> docStream = ctx.getDocumentStream();
+                if (docStream != null) {
+                    docStream.close();
+                }
             }
         }
         response.setStatus(ctx.getStatus());
@@ -590,6 +891,69 @@ public class Mediator {
         return response;
     }
 
+    /**
+     * Counts the documents matching the query of a find request without
+     * returning them. The projection, sort, and range of the request are
+     * ignored. The response contains only the match count.
+     *
+     * If the controller implements {@link com.redhat.lightblue.crud.CountQuerySupport},
+     * the count is computed by the controller, otherwise by a find
+     * retrieving only document identities. For composite entities, only the
+     * entities required to evaluate the query are retrieved.
+     */
+    @StopWatch(loggerName = "stopwatch.com.redhat.lightblue.mediator.Mediator")
+    public Response count(FindRequest req) {
+        LOGGER.debug("count {}", req.getEntityVersion());
+        Error.push("count(" + req.getEntityVersion().toString() + ")");
+        OperationContext ctx = null;
+        Response response = new Response(factory.getNodeFactory(), OperationStatus.ERROR);
+        try {
+            ctx = newCtx(req, CRUDOperation.FIND);
+            ctx.measure.begin("count");
+            response.setEntity(ctx.getTopLevelEntityName(), ctx.getTopLevelEntityVersion());
+            CompositeMetadata md = ctx.getTopLevelEntityMetadata();
+            if (!md.getAccess().getFind().hasAccess(ctx.getCallerRoles())) {
+                ctx.setStatus(OperationStatus.ERROR);
+                LOGGER.debug("No access");
+                ctx.addError(Error.get(CrudConstants.ERR_NO_ACCESS, "find " + ctx.getTopLevelEntityName()));
+            } else if (checkQueryAccess(ctx, req.getQuery())) {
+                factory.getInterceptors().callInterceptors(InterceptPoint.PRE_MEDIATOR_FIND, ctx);
+                Finder finder;
+                if (ctx.isSimple()) {
+                    LOGGER.debug("Simple entity");
+                    finder = new SimpleFindImpl(md, factory);
+                } else {
+                    LOGGER.debug("Composite entity");
+                    finder = new CompositeFindImpl(md);
+                }
+                ctx.getDeadline().check();
+                ctx.measure.begin("finder.count");
+                long count = finder.count(ctx, req.getCRUDFindRequest());
+                ctx.measure.end("finder.count");
+                if (!ctx.hasErrors()) {
+                    ctx.setStatus(OperationStatus.COMPLETE);
+                    response.setMatchCount(count);
+                } else {
+                    ctx.setStatus(OperationStatus.ERROR);
+                }
+            }
+            response.setStatus(ctx.getStatus());
+            response.getErrors().addAll(ctx.getErrors());
+        } catch (Error e) {
+            LOGGER.debug("Error during count:{}", e);
+            response.getErrors().add(e);
+        } catch (Exception e) {
+            LOGGER.debug("Exception during count:{}", e);
+            response.getErrors().add(Error.get(CrudConstants.ERR_CRUD, e));
+        } finally {
+            if (ctx != null) {
+                endMeasure(ctx, "count", response);
+            }
+            Error.pop();
+        }
+        return response;
+    }
+
     /**
      * Explains the query. Part of the implementation is done here at
      * the core level, and then passed to the backend to fill in
@@ -611,8 +975,6 @@ public class Mediator {
             } else {
                 LOGGER.debug("Composite entity");
                 finder = new CompositeFindImpl(md);
-                // This can be read from a configuration
-                ((CompositeFindImpl) finder).setParallelism(9);
             }
             
             finder.explain(ctx, req.getCRUDFindRequest());
@@ -644,17 +1006,193 @@ public class Mediator {
         return response;        
     }
 
-    protected void wait(BulkExecutionContext ctx) {
-        for (int i = 0; i < ctx.futures.length; i++) {
-            if (ctx.futures[i] != null) {
-                try {
-                    LOGGER.debug("Waiting for a find request to complete");
-                    ctx.setResponseAt(i, ctx.futures[i].get());
-                } catch (Exception e) {
-                    LOGGER.debug("Find request wait failed", e);
+    /**
+     * Finds documents without blocking the calling thread.
+     *
+     * Metadata is resolved in the calling thread. If the entity is simple,
+     * its controller implements {@link AsyncFindSupport}, and finds for the
+     * entity are neither coalesced nor cached, the controller runs the find
+     * without blocking any thread while it waits for the back-end.
+     * Otherwise, the blocking find runs on the shared
+     * {@link com.redhat.lightblue.crud.AsyncExecutor}. Cancelling the
+     * returned future cancels the request.
+     *
+     * The returned future always completes with a response. Errors,
+     * including a saturated executor, are returned in the response.
+     */
+    public CompletableFuture<Response> findAsync(FindRequest req) {
+        LOGGER.debug("findAsync {}", req.getEntityVersion());
+        Error.push("findAsync(" + req.getEntityVersion().toString() + ")");
+        OperationContext ctx = null;
+        try {
+            ctx = newCtx(req, CRUDOperation.FIND);
+            ctx.measure.begin("find");
+            CompositeMetadata md = ctx.getTopLevelEntityMetadata();
+            CompletableFuture<Response> future;
+            if (ctx.isSimple()
+                    && factory.getCRUDController(md) instanceof AsyncFindSupport
+                    && !factory.getFindCoalescer().isEnabled(md)
+                    && !factory.getFindResultCache().isEnabled(md)) {
+                future = nonBlockingFind(req, ctx);
+            } else {
+                OperationContext findCtx = ctx;
+                future = submitAsync(() -> find(req, findCtx));
+                if (future.isDone()) {
+                    // Rejected, the find won't run
+                    endMeasure(ctx, "find", future.getNow(null));
                 }
             }
+            Deadline deadline = ctx.getDeadline();
+            future.whenComplete((r, t) -> {
+                if (t != null) {
+                    deadline.cancel();
+                }
+            });
+            return future;
+        } catch (Error e) {
+            LOGGER.debug("Error during findAsync:{}", e);
+            return CompletableFuture.completedFuture(asyncFindFailed(ctx, e));
+        } catch (Exception e) {
+            LOGGER.debug("Exception during findAsync:{}", e);
+            return CompletableFuture.completedFuture(asyncFindFailed(ctx, Error.get(CrudConstants.ERR_CRUD, e)));
+        } finally {
+            Error.pop();
+        }
+    }
+
+    private Response asyncFindFailed(OperationContext ctx, Error e) {
+        Response response = new Response(factory.getNodeFactory(), OperationStatus.ERROR);
+        response.getErrors().add(e);
+        if (ctx != null) {
+            endMeasure(ctx, "find", response);
         }
+        return response;
+    }
+
+    /**
+     * Runs the find using the asynchronous find of the controller. The
+     * results are read in the thread completing the controller future.
+     */
+    private CompletableFuture<Response> nonBlockingFind(FindRequest req, OperationContext ctx) {
+        CompletableFuture<CRUDFindResponse> result;
+        KeysetPagination keyset = null;
+        boolean ran = prepareFind(req, ctx);
+        if (ran) {
+            LOGGER.debug("Simple entity, asynchronous controller");
+            CRUDFindRequest freq = req.getCRUDFindRequest();
+            if (KeysetPagination.isRequested(req)) {
+                keyset = new KeysetPagination(req, ctx.getTopLevelEntityMetadata());
+                freq = keyset.getCRUDFindRequest();
+            }
+            SimpleFindImpl finder = new SimpleFindImpl(ctx.getTopLevelEntityMetadata(), factory);
+            ctx.getDeadline().check();
+            ctx.measure.begin("finder.find");
+            result = finder.findAsync(ctx, freq);
+            ctx.getDeadline().register(result);
+        } else {
+            result = CompletableFuture.completedFuture(null);
+        }
+        KeysetPagination findKeyset = keyset;
+        return result.handle((r, t) -> {
+            Error.push("findAsync(" + req.getEntityVersion().toString() + ")");
+            Response response = new Response(factory.getNodeFactory(), OperationStatus.ERROR);
+            try {
+                if (ran) {
+                    ctx.measure.end("finder.find");
+                }
+                if (t != null) {
+                    response.getErrors().add(toError(t));
+                } else {
+                    response = materialize(req, completeFind(ctx, r, findKeyset));
+                }
+            } catch (Error e) {
+                LOGGER.debug("Error during findAsync:{}", e);
+                response.getErrors().add(e);
+            } catch (Exception e) {
+                LOGGER.debug("Exception during findAsync:{}", e);
+                response.getErrors().add(Error.get(CrudConstants.ERR_CRUD, e));
+            } finally {
+                endMeasure(ctx, "find", response);
+                Error.pop();
+            }
+            return response;
+        });
+    }
+
+    /**
+     * Inserts data on the shared async executor. See {@link #insert}
+     */
+    public CompletableFuture<Response> insertAsync(InsertionRequest req) {
+        return submitAsync(() -> insert(req));
+    }
+
+    /**
+     * Saves data on the shared async executor. See {@link #save}
+     */
+    public CompletableFuture<Response> saveAsync(SaveRequest req) {
+        return submitAsync(() -> save(req));
+    }
+
+    /**
+     * Updates data on the shared async executor. See {@link #update}
+     */
+    public CompletableFuture<Response> updateAsync(UpdateRequest req) {
+        return submitAsync(() -> update(req));
+    }
+
+    /**
+     * Deletes data on the shared async executor. See {@link #delete}
+     */
+    public CompletableFuture<Response> deleteAsync(DeleteRequest req) {
+        return submitAsync(() -> delete(req));
+    }
+
+    /**
+     * Counts documents on the shared async executor. See {@link #count}
+     */
+    public CompletableFuture<Response> countAsync(FindRequest req) {
+        return submitAsync(() -> count(req));
+    }
+
+    /**
+     * Executes a bulk request on the shared async executor. The entries run
+     * on the bulk executor as in {@link #bulkRequest}. If the async executor
+     * is saturated, all entries fail without running.
+     */
+    public CompletableFuture<BulkResponse> bulkAsync(BulkRequest requests, RequestMetrics metrics) {
+        CompletableFuture<BulkResponse> future = factory.getAsyncExecutor().submit(() -> bulkRequest(requests, metrics));
+        if (future.isCompletedExceptionally()) {
+            Error error = toError(future.handle((r, t) -> t).join());
+            Response[] responses = new Response[requests.getEntries().size()];
+            for (int i = 0; i < responses.length; i++) {
+                responses[i] = errorResponses(requests.getEntries().get(i), 1, error)[0];
+            }
+            BulkResponse response = new BulkResponse();
+            response.setEntries(responses);
+            return CompletableFuture.completedFuture(response);
+        }
+        return future;
+    }
+
+    /**
+     * Submits an operation to the shared async executor. If the executor is
+     * saturated, returns a completed future with an error response. If the
+     * returned future is cancelled before the operation starts, the
+     * operation doesn't run.
+     */
+    private CompletableFuture<Response> submitAsync(Supplier<Response> operation) {
+        CompletableFuture<Response> future = factory.getAsyncExecutor().submit(operation);
+        if (future.isCompletedExceptionally()) {
+            Response response = new Response(factory.getNodeFactory(), OperationStatus.ERROR);
+            response.getErrors().add(toError(future.handle((r, t) -> t).join()));
+            return CompletableFuture.completedFuture(response);
+        }
+        return future;
+    }
+
+    private static Error toError(Throwable t) {
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        return cause instanceof Error ? (Error) cause : Error.get(CrudConstants.ERR_CRUD, cause);
     }
 
     protected Callable<Response> getFutureRequest(final Request req, RequestMetrics metrics) {
@@ -690,65 +1228,154 @@ public class Mediator {
     }
 
     public BulkResponse bulkRequest(BulkRequest requests, RequestMetrics metrics) {
+        StreamingBulkResponse stream = bulkRequestAndStream(requests, metrics, new Deadline(), false);
+        Response[] responses = new Response[requests.getEntries().size()];
+        while (stream.hasNext()) {
+            StreamingBulkResponse.Entry entry = stream.next();
+            responses[entry.getSeq()] = entry.getResponse();
+        }
+        LOGGER.debug("Bulk execution completed");
+        BulkResponse response = new BulkResponse();
+        response.setEntries(responses);
+        return response;
+    }
+
+    /**
+     * Executes a bulk request, and returns the responses as the entries
+     * complete. Each returned entry contains the sequence number of its
+     * request. Result set size thresholds apply to the responses that are
+     * completed but not yet returned.
+     */
+    public StreamingBulkResponse bulkRequestAndStream(BulkRequest requests, RequestMetrics metrics) {
+        return bulkRequestAndStream(requests, metrics, new Deadline());
+    }
+
+    /**
+     * Executes a bulk request with a deadline. The deadline is the parent of
+     * the deadlines of all entries, so cancelling it, or closing the returned
+     * stream early, cancels the entries that are still running.
+     */
+    public StreamingBulkResponse bulkRequestAndStream(BulkRequest requests, RequestMetrics metrics, Deadline deadline) {
+        return bulkRequestAndStream(requests, metrics, deadline, true);
+    }
+
+    private StreamingBulkResponse bulkRequestAndStream(BulkRequest requests, RequestMetrics metrics, Deadline deadline, boolean release) {
         LOGGER.debug("Bulk request start");
         Error.push("bulk operation");
-        ExecutorService executor = Executors.newFixedThreadPool(factory.getBulkParallelExecutions());
         try {
+            BulkExecutor.Session executor = factory.getBulkExecutor().newSession(factory.getBulkParallelExecutions());
             LOGGER.debug("Executing up to {} requests in parallel, ordered = {}", factory.getBulkParallelExecutions(), requests.isOrdered());
             List<Request> requestList = requests.getEntries();
             int n = requestList.size();
             BulkExecutionContext ctx = new BulkExecutionContext(n);
             ctx.setResultSizeThresholds(factory.getMaxResultSetSizeForReadsB(), factory.getWarnResultSetSizeB(), requests);
-            for (int i = 0; i < n; i++) {
-            	Response resp = null;
-                Request req = requestList.get(i);
-                if (requests.isOrdered()) {
-                    // ordered - only consecutive finds in parallel
-                    if (req.getOperation() == CRUDOperation.FIND) {
-                        ctx.futures[i] = executor.submit(getFutureRequest(req, metrics));
+            // Consecutive single document writes may be merged into one unit
+            List<int[]> units = BulkWriteCoalescer.group(requestList, factory.getBulkWriteBatchSize());
+            List<Request> unitRequests = new ArrayList<>(units.size());
+            for (int[] unit : units) {
+                unitRequests.add(unit.length == 1 ? requestList.get(unit[0]) : BulkWriteCoalescer.merge(requestList, unit));
+            }
+            LOGGER.debug("{} bulk entries in {} units", n, units.size());
+            // ordered - only conflicting entries run in order
+            // unordered - do them all in parallel
+            BulkDependencyGraph graph = requests.isOrdered() ? new BulkDependencyGraph(unitRequests, metadata) : null;
+            BulkScheduler scheduler = new BulkScheduler(units.size(), graph, factory.getBulkParallelExecutions(),
+                    (index, onComplete) -> submit(executor, ctx, units.get(index), unitRequests.get(index), onComplete, metrics, deadline),
+                    deadline);
+            return new StreamingBulkResponse(scheduler, ctx, units, n, factory.getNodeFactory(), release);
+        } finally {
+            Error.pop();
+        }
+    }
+
+    /**
+     * Submits a unit of bulk request entries to the shared bulk executor. A
+     * unit is either a single entry, or a merged request for several
+     * entries. The responses of the entries are stored in the bulk
+     * execution context, and then <code>onComplete</code> is called. If the
+     * executor is saturated, the entries fail without running, and this
+     * returns false. If the bulk deadline expires before the unit starts,
+     * the entries fail without running.
+     */
+    private boolean submit(BulkExecutor.Session executor, BulkExecutionContext ctx, int[] unit, Request req, Runnable onComplete, RequestMetrics metrics, Deadline deadline) {
+        try {
+            Future<?> future = executor.submit(() -> {
+                Response[] responses;
+                try {
+                    deadline.check();
+                    PARENT_DEADLINE.set(deadline);
+                    if (unit.length == 1) {
+                        responses = new Response[]{getFutureRequest(req, metrics).call()};
                     } else {
-                        wait(ctx);
-                        RequestMetrics.Context metricCtx = metrics.startCrudRequest(req.getOperation().toString().toLowerCase(), req.getEntityVersion().getEntity(), req.getEntityVersion().getVersion());
-                        switch (req.getOperation()) {
-                            case INSERT:
-                            	resp = insert((InsertionRequest) req);
-                                ctx.setResponseAt(i, resp);
-                                break;
-                            case DELETE:
-                                resp = delete((DeleteRequest) req);
-                                ctx.setResponseAt(i, resp);
-                                break;
-                            case UPDATE:
-                                resp = update((UpdateRequest) req);
-                                ctx.setResponseAt(i, resp);
-                                break;
-                            case SAVE:
-                                resp = save((SaveRequest) req);
-                                ctx.setResponseAt(i, resp);
-                                break;
-                        }
-                        metricCtx.markAllErrorsAndEndRequestMonitoring(resp.getErrors());  
+                        responses = runMergedWrite((DocRequest) req, unit.length, metrics);
                     }
-                } else {
-                    LOGGER.debug("Scheduling a future operation");
-                    // unordered - do them all in parallel
-                    ctx.futures[i] = executor.submit(getFutureRequest(req, metrics));
+                } catch (Error e) {
+                    LOGGER.debug("Bulk entry {} failed", unit[0], e);
+                    responses = errorResponses(req, unit.length, e);
+                } catch (Exception e) {
+                    LOGGER.debug("Bulk entry {} failed", unit[0], e);
+                    responses = errorResponses(req, unit.length, Error.get(CrudConstants.ERR_CRUD, e));
+                } finally {
+                    PARENT_DEADLINE.remove();
+                }
+                try {
+                    for (int i = 0; i < unit.length; i++) {
+                        ctx.setResponseAt(unit[i], responses[i]);
+                    }
+                } finally {
+                    onComplete.run();
                 }
+                return null;
+            }, metrics);
+            deadline.register(future);
+            return true;
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Bulk entry {} rejected", unit[0], e);
+            RequestMetrics.Context metricCtx = metrics.startCrudRequest(req.getOperation().toString().toLowerCase(), req.getEntityVersion().getEntity(), req.getEntityVersion().getVersion());
+            Response[] responses = errorResponses(req, unit.length, Error.get(CrudConstants.ERR_BULK_EXECUTOR_SATURATED, e.getMessage()));
+            metricCtx.markAllErrorsAndEndRequestMonitoring(responses[0].getErrors());
+            for (int i = 0; i < unit.length; i++) {
+                ctx.setResponseAt(unit[i], responses[i]);
             }
+            return false;
+        }
+    }
 
-            wait(ctx);
-            LOGGER.debug("Bulk execution completed");
-            BulkResponse response = new BulkResponse();
-            response.setEntries(ctx.getResponses());
-            Error.pop();
-            return response;
-        } finally {
-            executor.shutdown();
+    /**
+     * Runs an insert or save request merged from several single document bulk
+     * entries, and returns the responses of the merged entries
+     */
+    protected Response[] runMergedWrite(DocRequest req, int n, RequestMetrics metrics) {
+        LOGGER.debug("Running {} merged {} requests", n, req.getOperation());
+        RequestMetrics.Context metricCtx = metrics.startCrudRequest(req.getOperation().toString().toLowerCase(), req.getEntityVersion().getEntity(), req.getEntityVersion().getVersion());
+        List<DocCtx> docs = new ArrayList<>();
+        Response resp;
+        if (req.getOperation() == CRUDOperation.INSERT) {
+            resp = insert((InsertionRequest) req, docs);
+        } else {
+            resp = save((SaveRequest) req, docs);
         }
+        metricCtx.markAllErrorsAndEndRequestMonitoring(resp.getErrors());
+        return BulkWriteCoalescer.split(resp, docs, n, factory.getNodeFactory());
+    }
+
+    private Response[] errorResponses(Request req, int n, Error error) {
+        Response[] responses = new Response[n];
+        for (int i = 0; i < n; i++) {
+            responses[i] = new Response(factory.getNodeFactory(), OperationStatus.ERROR);
+            responses[i].setEntity(req.getEntityVersion());
+            responses[i].getErrors().add(error);
+        }
+        return responses;
     }
 
     protected OperationContext newCtx(Request request, CRUDOperation CRUDOperation) {
         OperationContext ctx=new OperationContext(request, metadata, factory, CRUDOperation);
+        Deadline parent = PARENT_DEADLINE.get();
+        if (parent != null) {
+            // Bulk request entry, expires with the bulk request
+            ctx.setDeadline(Deadline.fromExecutionOptions(request.getExecution(), parent));
+        }
         if(request instanceof WithIfCurrent) {
             WithIfCurrent wif=(WithIfCurrent)request;
             if(wif.isIfCurrentOnly()) {
@@ -812,14 +1439,14 @@ public class Mediator {
         boolean ret = true;
         if (query != null) {
             CompositeMetadata md = ctx.getTopLevelEntityMetadata();
-            FieldAccessRoleEvaluator eval = new FieldAccessRoleEvaluator(md, ctx.getCallerRoles());
+            FieldAccessMatrix access = ctx.getTopLevelFieldAccess();
             AnalyzeQuery analyzer=new AnalyzeQuery(md,null);
             analyzer.iterate(query,Path.EMPTY);
             List<QueryFieldInfo> fields=analyzer.getFieldInfo();
             LOGGER.debug("Checking access for query fields {}", fields);
             for (QueryFieldInfo field : fields) {
                 LOGGER.debug("Access checking field {}", field.getFullFieldName());
-                if (eval.hasAccess(field.getFullFieldName(), FieldAccessRoleEvaluator.Operation.find)) {
+                if (access.hasAccess(field.getFullFieldName(), FieldAccessRoleEvaluator.Operation.find)) {
                     LOGGER.debug("Field {} is readable", field.getFullFieldName());
                 } else {
                     LOGGER.debug("Field {} is not readable", field.getFullFieldName());
@@ -41,6 +41,8 @@ import com.redhat.lightblue.crud.CRUDFindRequest;
 import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.crud.WithQuery;
 import com.redhat.lightblue.crud.WithProjection;
+import com.redhat.lightblue.eval.FieldAccessMatrix;
+import com.redhat.lightblue.eval.FieldAccessRoleEvaluator;
 import com.redhat.lightblue.hooks.HookManager;
 import com.redhat.lightblue.metadata.EntityMetadata;
 import com.redhat.lightblue.metadata.Metadata;
@@ -91,7 +93,7 @@ public final class OperationContext extends CRUDOperationContext {
         }
         resolver.initialize(request.getEntityVersion().getEntity(),
                 request.getEntityVersion().getVersion(),
-                query, projection);
+                query, projection, factory.getFieldAccessCache());
         addCallerRoles(getCallerRoles(resolver.getMetadataRoles(), request.getClientId()));
         LOGGER.debug("Caller roles:{}", getCallerRoles());
     }
@@ -113,6 +115,7 @@ public final class OperationContext extends CRUDOperationContext {
         this.request = request;
         this.metadata = ctx.metadata;
         this.resolver = ctx.resolver;
+        setDeadline(ctx.getDeadline());
     }
 
     /**
@@ -157,7 +160,7 @@ public final class OperationContext extends CRUDOperationContext {
         // original request, but query information from the argument
         // 'req'
 
-        return new OperationContext(newReq,
+        OperationContext derived = new OperationContext(newReq,
                 metadata,
                 getFactory(),
                 CRUDOperation.FIND,
@@ -165,6 +168,8 @@ public final class OperationContext extends CRUDOperationContext {
                 new ArrayList<DocCtx>(),
                 getCallerRoles(),
                 getHookManager());
+        derived.setDeadline(getDeadline());
+        return derived;
     }
 
     /**
@@ -218,6 +223,24 @@ public final class OperationContext extends CRUDOperationContext {
         return resolver.getEntityMetadata(entityName);
     }
 
+    /**
+     * Returns the access of the caller to the fields of the entity, looked
+     * up in the field access cache of the factory
+     */
+    @Override
+    public FieldAccessRoleEvaluator getFieldAccessRoleEvaluator(String entityName) {
+        return new FieldAccessRoleEvaluator(resolver.getFieldAccess(entityName, getCallerRoles()));
+    }
+
+    /**
+     * Returns the access of the caller to the fields of the top level
+     * entity, including the fields of all the entities in the composite
+     * metadata
+     */
+    public FieldAccessMatrix getTopLevelFieldAccess() {
+        return resolver.getCompositeFieldAccess(getCallerRoles());
+    }
+
     /**
      * The operation status
      */
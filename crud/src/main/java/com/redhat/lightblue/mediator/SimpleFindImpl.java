@@ -20,21 +20,31 @@
 package com.redhat.lightblue.mediator;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 
+import com.redhat.lightblue.crud.AsyncFindSupport;
 import com.redhat.lightblue.crud.CRUDController;
 import com.redhat.lightblue.crud.CRUDFindRequest;
 import com.redhat.lightblue.crud.CRUDFindResponse;
+import com.redhat.lightblue.crud.CountQuerySupport;
 import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.crud.Factory;
 import com.redhat.lightblue.crud.ListDocumentStream;
 import com.redhat.lightblue.crud.ExplainQuerySupport;
 
 import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.EntitySchema;
+import com.redhat.lightblue.metadata.Field;
+import com.redhat.lightblue.metadata.PredefinedFields;
+import com.redhat.lightblue.query.FieldProjection;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.ProjectionList;
 
 import com.redhat.lightblue.util.JsonDoc;
 import com.redhat.lightblue.util.Path;
@@ -44,9 +54,11 @@ public class SimpleFindImpl implements Finder {
     private static final Logger LOGGER = LoggerFactory.getLogger(SimpleFindImpl.class);
 
     private final CRUDController controller;
+    private final EntityMetadata md;
 
     public SimpleFindImpl(EntityMetadata md,
                           Factory factory) {
+        this.md = md;
         this.controller = factory.getCRUDController(md);
         LOGGER.debug("Controller for {}:{}", md.getName(), controller.getClass().getName());
     }
@@ -63,6 +75,60 @@ public class SimpleFindImpl implements Finder {
         return result;
     }
 
+    /**
+     * Runs the find using the asynchronous find of the controller. The
+     * controller must implement {@link AsyncFindSupport}.
+     */
+    public CompletableFuture<CRUDFindResponse> findAsync(OperationContext ctx,
+                                                         CRUDFindRequest req) {
+        return ((AsyncFindSupport) controller).findAsync(ctx,
+                req.getQuery(),
+                req.getProjection(),
+                req.getSort(),
+                req.getFrom(),
+                req.getTo());
+    }
+
+    /**
+     * Counts the matching documents using the controller if it implements
+     * {@link CountQuerySupport}. Otherwise, runs a find that retrieves only
+     * the document identities, and returns its result set size without
+     * reading the documents.
+     */
+    @Override
+    public long count(OperationContext ctx,
+                      CRUDFindRequest req) {
+        if (controller instanceof CountQuerySupport) {
+            return ((CountQuerySupport) controller).count(ctx, req.getQuery());
+        }
+        LOGGER.debug("Controller doesn't support count, using an identity find");
+        ctx.setComputeCounts(true);
+        CRUDFindResponse result = controller.find(ctx,
+                req.getQuery(),
+                getIdentityProjection(),
+                null,
+                null,
+                null);
+        if (ctx.getDocumentStream() != null) {
+            ctx.getDocumentStream().close();
+            ctx.setDocumentStream(null);
+        }
+        return result.getSize();
+    }
+
+    private Projection getIdentityProjection() {
+        EntitySchema schema = md.getEntitySchema();
+        Field[] identities = schema.getIdentityFields();
+        if (identities == null || identities.length == 0) {
+            return new FieldProjection(PredefinedFields.OBJECTTYPE_PATH, true, false);
+        }
+        List<Projection> list = new ArrayList<>(identities.length);
+        for (Field f : identities) {
+            list.add(new FieldProjection(schema.getEntityRelativeFieldName(f), true, false));
+        }
+        return list.size() == 1 ? list.get(0) : new ProjectionList(list);
+    }
+
     @Override
     public void explain(OperationContext ctx,
                         CRUDFindRequest req) {
@@ -0,0 +1,180 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mediator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.OperationStatus;
+import com.redhat.lightblue.Response;
+import com.redhat.lightblue.crud.CrudConstants;
+import com.redhat.lightblue.crud.DocumentStream;
+import com.redhat.lightblue.util.Error;
+
+/**
+ * Streams the responses of a bulk request as the entries complete. Entries
+ * are returned in completion order, each with the sequence number of its
+ * request. Once an entry is returned, its response no longer counts towards
+ * the bulk result set size thresholds.
+ *
+ * Closing the stream before all entries are returned cancels the bulk
+ * request: entries that haven't started yet don't run, and entries that are
+ * running fail at their next cancellation check.
+ *
+ * If the deadline of the bulk request expires, or the consumer thread is
+ * interrupted, the entries that are not returned yet are returned with an
+ * error.
+ */
+public class StreamingBulkResponse implements DocumentStream<StreamingBulkResponse.Entry> {
+
+    /**
+     * A bulk response entry, with the sequence number of its request
+     */
+    public static class Entry {
+        private final int seq;
+        private final Response response;
+
+        public Entry(int seq, Response response) {
+            this.seq = seq;
+            this.response = response;
+        }
+
+        public int getSeq() {
+            return seq;
+        }
+
+        public Response getResponse() {
+            return response;
+        }
+
+        /**
+         * Returns the JSON representation of the entry, in the same format
+         * as an element of {@link com.redhat.lightblue.crud.BulkResponse}
+         */
+        public JsonNode toJson() {
+            ObjectNode node = JsonNodeFactory.instance.objectNode();
+            node.set("seq", JsonNodeFactory.instance.numberNode(seq));
+            node.set("response", response.toJson());
+            return node;
+        }
+    }
+
+    private final BulkScheduler scheduler;
+    private final BulkExecutionContext ctx;
+    private final List<int[]> units;
+    private final Deque<Integer> completed = new ArrayDeque<>();
+    private final JsonNodeFactory nodeFactory;
+    private final boolean[] returned;
+    private final boolean release;
+    private final List<Consumer<Entry>> listeners = new ArrayList<>();
+    private Error abortError = null;
+    private boolean closed = false;
+    private int next = 0;
+
+    StreamingBulkResponse(BulkScheduler scheduler, BulkExecutionContext ctx, List<int[]> units, int size, JsonNodeFactory nodeFactory, boolean release) {
+        this.scheduler = scheduler;
+        this.ctx = ctx;
+        this.units = units;
+        this.nodeFactory = nodeFactory;
+        this.returned = new boolean[size];
+        this.release = release;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        } else if (!completed.isEmpty()) {
+            return true;
+        } else if (abortError != null) {
+            while (next < returned.length && returned[next]) {
+                next++;
+            }
+            return next < returned.length;
+        } else {
+            return scheduler.hasNext();
+        }
+    }
+
+    /**
+     * Waits until the next entry completes, and returns it. If the calling
+     * thread is interrupted or the deadline expires, the entries that are not
+     * returned yet are returned with an error.
+     */
+    @Override
+    public Entry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (completed.isEmpty() && abortError == null) {
+            try {
+                for (int i : units.get(scheduler.next())) {
+                    completed.add(i);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abortError = Error.get(CrudConstants.ERR_CRUD, "interrupted");
+            } catch (Error e) {
+                abortError = e;
+            }
+        }
+        Entry entry;
+        if (!completed.isEmpty()) {
+            int index = completed.poll();
+            entry = new Entry(index, release ? ctx.releaseResponseAt(index) : ctx.getResponses()[index]);
+            returned[index] = true;
+        } else {
+            // Move to the first entry that is not returned yet
+            hasNext();
+            Response response = new Response(nodeFactory, OperationStatus.ERROR);
+            response.getErrors().add(abortError);
+            entry = new Entry(next, response);
+            returned[next] = true;
+        }
+        for (Consumer<Entry> listener : listeners) {
+            listener.accept(entry);
+        }
+        return entry;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            for (boolean r : returned) {
+                if (!r) {
+                    scheduler.getDeadline().cancel();
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addListener(Consumer<Entry> listener) {
+        listeners.add(listener);
+    }
+}
@@ -18,6 +18,8 @@
  */
 package com.redhat.lightblue.mediator;
 
+import java.util.function.Supplier;
+
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.redhat.lightblue.BaseResponse;
 import com.redhat.lightblue.OperationStatus;
@@ -31,6 +33,11 @@ public class StreamingResponse extends BaseResponse  {
 
     public DocumentStream<DocCtx> documentStream;
     public Long matchCount;
+    /**
+     * Returns the continuation token of a keyset paginated find once the
+     * document stream is read, null otherwise
+     */
+    public Supplier<String> continuation;
 
     public StreamingResponse(JsonNodeFactory jsonNodeFactory, OperationStatus status) {
         super(jsonNodeFactory, status);
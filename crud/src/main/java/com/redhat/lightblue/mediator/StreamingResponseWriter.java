@@ -0,0 +1,232 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mediator;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.redhat.lightblue.DataError;
+import com.redhat.lightblue.OperationStatus;
+import com.redhat.lightblue.Request;
+import com.redhat.lightblue.Response;
+import com.redhat.lightblue.ResultMetadata;
+import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.crud.DocumentStream;
+import com.redhat.lightblue.crud.Factory;
+import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.util.JsonUtils;
+
+/**
+ * Writes a find response directly from the document stream of a
+ * {@link StreamingResponse} to an output stream. Each document is written as
+ * soon as it is read from the stream, so the result set is never held in
+ * memory. The output has the same fields as {@link Response#toJson()}.
+ *
+ * The size of the written documents is checked after every document. When
+ * it exceeds the maximum result set size, no more documents are written, and
+ * the response ends with status ERROR and a
+ * {@link Response#ERR_RESULT_SIZE_TOO_LARGE} error. The response also ends
+ * with status ERROR if reading the document stream fails. Documents written
+ * before that are not removed from the output, so clients must check the
+ * status.
+ */
+public class StreamingResponseWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingResponseWriter.class);
+
+    private final ObjectMapper mapper = JsonUtils.getObjectMapper();
+    private final int maxResultSetSizeB;
+    private final int warnResultSetSizeB;
+
+    /**
+     * Constructs a writer using the result set size thresholds for reads
+     * configured in the factory
+     */
+    public StreamingResponseWriter(Factory factory) {
+        this(factory.getMaxResultSetSizeForReadsB(), factory.getWarnResultSetSizeB());
+    }
+
+    /**
+     * @param maxResultSetSizeB Stop writing documents when they exceed this
+     * many bytes. 0 means no limit.
+     * @param warnResultSetSizeB Log a warning when the documents exceed this
+     * many bytes. 0 means no warning.
+     */
+    public StreamingResponseWriter(int maxResultSetSizeB, int warnResultSetSizeB) {
+        this.maxResultSetSizeB = maxResultSetSizeB;
+        this.warnResultSetSizeB = warnResultSetSizeB;
+    }
+
+    /**
+     * Writes the response, and closes its document stream. The output stream
+     * is not closed.
+     *
+     * @param response The response returned by
+     * {@link Mediator#findAndStream(com.redhat.lightblue.crud.FindRequest)}
+     * @param forRequest The request, for logging purposes
+     * @param out The output stream
+     */
+    public void write(StreamingResponse response, Request forRequest, OutputStream out) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(out);
+        List<ResultMetadata> rmd = new ArrayList<>();
+        List<DataError> dataErrors = new ArrayList<>(response.getDataErrors());
+        List<Error> errors = new ArrayList<>(response.getErrors());
+        OperationStatus status = response.getStatus();
+        long numDocs = 0;
+        DocumentStream<DocCtx> docStream = response.documentStream;
+        try (JsonGenerator gen = mapper.getFactory().createGenerator(counter, JsonEncoding.UTF8)) {
+            gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            gen.writeStartObject();
+            if (response.getEntity() != null) {
+                gen.writeStringField("entity", response.getEntity().getEntity());
+                gen.writeStringField("entityVersion", response.getEntity().getVersion());
+            }
+            if (errors.isEmpty() && docStream != null) {
+                gen.writeArrayFieldStart("processed");
+                long start = written(gen, counter);
+                boolean warned = false;
+                while (true) {
+                    DocCtx doc;
+                    try {
+                        if (!docStream.hasNext()) {
+                            break;
+                        }
+                        doc = docStream.next();
+                    } catch (Error e) {
+                        // Reading the rest of the results failed
+                        status = OperationStatus.ERROR;
+                        errors.add(e);
+                        break;
+                    }
+                    if (doc.hasErrors()) {
+                        DataError error = doc.getDataError();
+                        if (error != null) {
+                            dataErrors.add(error);
+                        }
+                    } else {
+                        gen.writeTree(doc.getOutputDocument().getRoot());
+                        rmd.add(doc.getResultMetadata());
+                        numDocs++;
+                        long size = written(gen, counter) - start;
+                        if (!warned && warnResultSetSizeB > 0 && size > warnResultSetSizeB) {
+                            warned = true;
+                            LOGGER.warn("crud:ResultSizeIsLarge: request={}, responseDataSizeB={} threshold={}", forRequest, size, warnResultSetSizeB);
+                        }
+                        if (maxResultSetSizeB > 0 && size > maxResultSetSizeB) {
+                            status = OperationStatus.ERROR;
+                            errors.add(Error.get(Response.ERR_RESULT_SIZE_TOO_LARGE, size + "B > " + maxResultSetSizeB + "B"));
+                            break;
+                        }
+                    }
+                }
+                gen.writeEndArray();
+                gen.writeArrayFieldStart("resultMetadata");
+                for (ResultMetadata x : rmd) {
+                    if (x == null) {
+                        gen.writeNull();
+                    } else {
+                        gen.writeTree(x.toJson());
+                    }
+                }
+                gen.writeEndArray();
+                String continuation = response.continuation == null ? null : response.continuation.get();
+                if (continuation != null && status != OperationStatus.ERROR) {
+                    gen.writeStringField("continuation", continuation);
+                }
+            }
+            gen.writeStringField("status", status.name());
+            gen.writeNumberField("modifiedCount", response.getModifiedCount());
+            gen.writeNumberField("matchCount", response.matchCount == null ? numDocs : response.matchCount);
+            if (response.getTaskHandle() != null) {
+                gen.writeStringField("taskHandle", response.getTaskHandle());
+            }
+            if (response.getSessionInfo() != null) {
+                gen.writeFieldName("session");
+                gen.writeTree(response.getSessionInfo().toJson());
+            }
+            gen.writeStringField("hostname", response.getHostname());
+            if (response.getProfile() != null) {
+                gen.writeFieldName("profile");
+                gen.writeTree(response.getProfile());
+            }
+            if (!dataErrors.isEmpty()) {
+                gen.writeArrayFieldStart("dataErrors");
+                for (DataError x : dataErrors) {
+                    gen.writeTree(x.toJson());
+                }
+                gen.writeEndArray();
+            }
+            if (!errors.isEmpty()) {
+                gen.writeArrayFieldStart("errors");
+                for (Error x : errors) {
+                    gen.writeTree(x.toJson());
+                }
+                gen.writeEndArray();
+            }
+            gen.writeEndObject();
+        } finally {
+            if (docStream != null) {
+                docStream.close();
+            }
+        }
+        LOGGER.debug("Wrote {} documents, {} bytes", numDocs, counter.count);
+    }
+
+    /**
+     * Returns the number of bytes written to the generator so far, including
+     * the bytes it has buffered but not yet written to the output stream
+     */
+    private static long written(JsonGenerator gen, CountingOutputStream counter) throws IOException {
+        int buffered = gen.getOutputBuffered();
+        if (buffered < 0) {
+            gen.flush();
+            buffered = 0;
+        }
+        return counter.count + buffered;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.ep;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.redhat.lightblue.TestDataStoreParser;
+import com.redhat.lightblue.assoc.AnalyzeQuery;
+import com.redhat.lightblue.assoc.BindQuery;
+import com.redhat.lightblue.assoc.Binder;
+import com.redhat.lightblue.assoc.Conjunct;
+import com.redhat.lightblue.eval.QueryEvaluator;
+import com.redhat.lightblue.metadata.AbstractGetMetadata;
+import com.redhat.lightblue.metadata.CompositeMetadata;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.PredefinedFields;
+import com.redhat.lightblue.metadata.ResolvedReferenceField;
+import com.redhat.lightblue.metadata.parser.Extensions;
+import com.redhat.lightblue.metadata.parser.JSONMetadataParser;
+import com.redhat.lightblue.metadata.types.DefaultTypes;
+import com.redhat.lightblue.mindex.GetIndexLookupSpec;
+import com.redhat.lightblue.mindex.MemDocIndex;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.query.Value;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.JsonUtils;
+import com.redhat.lightblue.util.Path;
+import com.redhat.lightblue.util.test.AbstractJsonSchemaTest;
+
+public class CompiledAssociationQueryTest extends AbstractJsonSchemaTest {
+
+    private EntityMetadata getMd(String fname) {
+        try {
+            JsonNode node = loadJsonNode("composite/" + fname + ".json");
+            Extensions<JsonNode> extensions = new Extensions<>();
+            extensions.addDefaultExtensions();
+            extensions.registerDataStoreParser("mongo", new TestDataStoreParser<JsonNode>());
+            JSONMetadataParser parser = new JSONMetadataParser(extensions, new DefaultTypes(), JsonNodeFactory.instance);
+            EntityMetadata md = parser.parseEntityMetadata(node);
+            PredefinedFields.ensurePredefinedFields(md);
+            return md;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private CompositeMetadata getCmd(String fname, String projection) throws Exception {
+        return CompositeMetadata.buildCompositeMetadata(getMd(fname),
+                new AbstractGetMetadata(Projection.fromJson(json(projection)), null) {
+            @Override
+            protected EntityMetadata retrieveMetadata(Path injectionField, String entityName, String version) {
+                return getMd(entityName);
+            }
+        });
+    }
+
+    private static JsonNode json(String s) throws Exception {
+        return JsonUtils.json(s.replaceAll("'", "\""));
+    }
+
+    private final CompositeMetadata amd;
+    private final CompositeMetadata bmd;
+    private final ResolvedReferenceField ref;
+    private final List<JsonDoc> docs = new ArrayList<>();
+
+    public CompiledAssociationQueryTest() throws Exception {
+        amd = getCmd("A", "[{'field':'b'}]");
+        bmd = amd.getChildMetadata(new Path("b"));
+        ref = (ResolvedReferenceField) amd.resolve(new Path("b"));
+        for (String id : new String[]{"B01", "B02", "B03", "B04"}) {
+            docs.add(new JsonDoc(json("{'_id':'" + id + "','objectType':'B','field1':'f" + id + "'}")));
+        }
+    }
+
+    private AssociationQuery aq(String... clauses) throws Exception {
+        List<Conjunct> conjuncts = new ArrayList<>();
+        for (String clause : clauses) {
+            QueryExpression q = QueryExpression.fromJson(json(clause));
+            AnalyzeQuery analyzer = new AnalyzeQuery(amd, ref);
+            analyzer.iterate(q);
+            conjuncts.add(new Conjunct(q, analyzer.getFieldInfo(), ref));
+        }
+        return new AssociationQuery(amd, bmd, ref, conjuncts);
+    }
+
+    private BindQuery bind(AssociationQuery aq, Object value) {
+        return new BindQuery(Arrays.asList(new Binder(aq.getFieldBindings().get(0), value)));
+    }
+
+    /**
+     * Checks the compiled query finds the same documents as the bound query
+     */
+    private void assertSameResults(AssociationQuery aq, BindQuery binders, int expected) {
+        CompiledAssociationQuery compiled = aq.getCompiledQuery();
+        Assert.assertNotNull(compiled);
+        QueryExpression bound = binders.iterate(aq.getQuery());
+        QueryEvaluator qeval = QueryEvaluator.getInstance(bound, bmd);
+        int n = 0;
+        for (JsonDoc doc : docs) {
+            boolean result = qeval.evaluate(doc).getResult();
+            Assert.assertEquals(doc.toString(), result, compiled.evaluate(doc, binders));
+            if (result) {
+                n++;
+            }
+        }
+        Assert.assertEquals(expected, n);
+        if (compiled.getLookupSpec(binders) != null) {
+            MemDocIndex index = new MemDocIndex(aq.getIndexKeySpec());
+            docs.forEach(index::add);
+            AnalyzeQuery analyzer = new AnalyzeQuery(amd, ref);
+            analyzer.iterate(bound);
+            Set<JsonDoc> found = index.find(new GetIndexLookupSpec(analyzer.getFieldInfo()).iterate(bound));
+            Assert.assertEquals(found, index.find(compiled.getLookupSpec(binders)));
+        }
+    }
+
+    @Test
+    public void boundValue() throws Exception {
+        AssociationQuery aq = aq("{'field':'_id','op':'$eq','rfield':'$parent.b_ref'}");
+        assertSameResults(aq, bind(aq, new Value("B02")), 1);
+        assertSameResults(aq, bind(aq, new Value("X")), 0);
+        Assert.assertTrue(aq.getCompiledQuery().hasLookupSpec());
+    }
+
+    @Test
+    public void boundList() throws Exception {
+        AssociationQuery aq = aq("{'field':'_id','op':'$eq','rfield':'$parent.b_ref'}",
+                "{'field':'field1','op':'$neq','rvalue':'fB03'}");
+        assertSameResults(aq, bind(aq, Arrays.asList(new Value("B01"), new Value("B03"), new Value("B04"))), 2);
+        assertSameResults(aq, bind(aq, new ArrayList<Value>()), 0);
+    }
+
+    @Test
+    public void boundListWithRangeOperator() throws Exception {
+        AssociationQuery aq = aq("{'field':'_id','op':'$lt','rfield':'$parent.b_ref'}");
+        BindQuery binders = bind(aq, Arrays.asList(new Value("B02"), new Value("B04")));
+        assertSameResults(aq, binders, 3);
+        // Bound as an $or of comparisons, which can't use the precomputed key specs
+        Assert.assertNull(aq.getCompiledQuery().getLookupSpec(binders));
+    }
+
+    @Test
+    public void boundQueryUnderNot() throws Exception {
+        AssociationQuery aq = aq("{'$not':{'field':'_id','op':'$eq','rfield':'$parent.b_ref'}}");
+        assertSameResults(aq, bind(aq, new Value("B02")), 3);
+    }
+}
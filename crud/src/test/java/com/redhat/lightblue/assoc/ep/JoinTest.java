@@ -6,7 +6,6 @@ import java.util.Iterator;
 import java.util.ArrayList;
 import java.util.HashSet;
 
-import java.util.concurrent.Executors;
 
 import java.util.stream.Stream;
 
@@ -21,6 +20,7 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.redhat.lightblue.util.JsonUtils;
 import com.redhat.lightblue.util.JsonDoc;
 import com.redhat.lightblue.util.Path;
+import com.redhat.lightblue.util.metrics.NoopRequestMetrics;
 
 import com.redhat.lightblue.*;
 
@@ -169,7 +169,7 @@ public class JoinTest extends AbstractJsonSchemaTest {
                 null,
                 new HashSet<String>(),
                 null);
-        ExecutionContext ctx = new ExecutionContext(opctx, Executors.newSingleThreadExecutor());
+        ExecutionContext ctx = new ExecutionContext(opctx, new CompositeExecutor(1).newSession(1, new NoopRequestMetrics()));
         StepResult<JoinTuple> result = join.getResults(ctx);
         Stream<JoinTuple> stream = result.stream();
         stream.forEach(tuple -> System.out.println(tuple));
@@ -216,7 +216,7 @@ public class JoinTest extends AbstractJsonSchemaTest {
                 null,
                 new HashSet<String>(),
                 null);
-        ExecutionContext ctx = new ExecutionContext(opctx, Executors.newSingleThreadExecutor());
+        ExecutionContext ctx = new ExecutionContext(opctx, new CompositeExecutor(1).newSession(1, new NoopRequestMetrics()));
         StepResult<JoinTuple> result = join.getResults(ctx);
         Stream<JoinTuple> stream = result.stream();
         stream.forEach(tuple -> System.out.println(tuple));
@@ -227,4 +227,86 @@ public class JoinTest extends AbstractJsonSchemaTest {
         }
         Assert.assertFalse(itr.hasNext());
     }
+
+    @Test
+    public void hashJoinTest() throws Exception {
+        CompositeMetadata rmd = getCmd("hj_root", projection("[{'field':'a'},{'field':'b'}]"));
+        CompositeMetadata amd = rmd.getChildMetadata(new Path("a"));
+        CompositeMetadata bmd = rmd.getChildMetadata(new Path("b"));
+        QueryPlan qp = new QueryPlanChooser(rmd, new com.redhat.lightblue.assoc.iterators.First(), new SimpleScorer(), null, null).choose();
+        // QueryPlan: a -> root
+        //            b -> root
+        qp.flip(qp.getNode(rmd), qp.getNode(amd));
+        qp.flip(qp.getNode(rmd), qp.getNode(bmd));
+        ExecutionBlock rblock = new ExecutionBlock(rmd, qp.getNode(rmd));
+        ExecutionBlock ablock = new ExecutionBlock(rmd, qp.getNode(amd));
+        ExecutionBlock bblock = new ExecutionBlock(rmd, qp.getNode(bmd));
+        for (ExecutionBlock source : new ExecutionBlock[]{ablock, bblock}) {
+            rblock.addSourceBlock(source);
+            rblock.setAssociationQuery(source, new AssociationQuery(rmd, rmd, rblock.getReference(),
+                    qp.getEdgeData(source.getQueryPlanNode(), rblock.getQueryPlanNode()).getConjuncts()));
+        }
+        ablock.linkBlocks();
+        bblock.linkBlocks();
+        rblock.linkBlocks();
+
+        List<ResultDocument> adocs = Arrays.asList(
+                resultDoc(ablock, "{'_id':'a1','k':'1'}"),
+                resultDoc(ablock, "{'_id':'a2','k':'2'}"),
+                resultDoc(ablock, "{'_id':'a3','k':'1'}"),
+                resultDoc(ablock, "{'_id':'a4','k':'4'}"));
+        List<ResultDocument> bdocs = Arrays.asList(
+                resultDoc(bblock, "{'_id':'b1','k':'1'}"),
+                resultDoc(bblock, "{'_id':'b2','k':'2'}"),
+                resultDoc(bblock, "{'_id':'b3','k':'3'}"));
+        TestStep a = new TestStep(ablock, adocs);
+        TestStep b = new TestStep(bblock, bdocs);
+        Source<ResultDocument>[] sources = new Source[]{new Source<>(a), new Source<>(b)};
+        JoinStrategy strategy = JoinStrategy.choose(rblock, sources);
+        Assert.assertEquals(JoinStrategy.Kind.HASH, strategy.getKind());
+        Join join = new Join(rblock, sources, strategy);
+        Assert.assertEquals("hash", join.toJson().get("strategy").get("kind").asText());
+
+        FindRequest freq = new FindRequest();
+        freq.setEntityVersion(new EntityVersion("test", "1"));
+        OperationContext opctx = new OperationContext(freq,
+                null,
+                new Factory(),
+                CRUDOperation.FIND,
+                null,
+                null,
+                new HashSet<String>(),
+                null);
+        ExecutionContext ctx = new ExecutionContext(opctx, new CompositeExecutor(1).newSession(1, new NoopRequestMetrics()));
+        List<String> tuples = new ArrayList<>();
+        join.getResults(ctx).stream().forEach(tuple -> {
+            Assert.assertNull(tuple.getParentDocument());
+            tuples.add(tuple.getChildTuple().get(0).getDoc().get(new Path("_id")).asText()
+                    + tuple.getChildTuple().get(1).getDoc().get(new Path("_id")).asText());
+        });
+        // Only the tuples with the same k, in the order of the cartesian product
+        Assert.assertEquals(Arrays.asList("a1b1", "a2b2", "a3b1"), tuples);
+
+        // The tuple lists and hashes are counted while the tuples are
+        // iterated, and released at the end, leaving the documents
+        int docsB = 0;
+        for (ResultDocument doc : adocs) {
+            docsB += JsonUtils.size(doc.getDoc().getRoot());
+        }
+        for (ResultDocument doc : bdocs) {
+            docsB += JsonUtils.size(doc.getDoc().getRoot());
+        }
+        Assert.assertEquals(docsB, ctx.memoryUsedB());
+        Iterator<JoinTuple> itr = join.getResults(ctx).stream().iterator();
+        itr.next();
+        Assert.assertTrue(ctx.memoryUsedB() > docsB);
+        while (itr.hasNext()) {
+            itr.next();
+        }
+        Assert.assertEquals(docsB, ctx.memoryUsedB());
+
+        // The cartesian join builds every tuple
+        join = new Join(rblock, sources);
+        Assert.assertEquals(12, join.getResults(ctx).stream().count());
+    }
 }
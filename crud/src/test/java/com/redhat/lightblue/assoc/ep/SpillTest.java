@@ -0,0 +1,310 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.ep;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.EntityVersion;
+import com.redhat.lightblue.assoc.QueryPlan;
+import com.redhat.lightblue.assoc.scorers.SimpleScorer;
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.crud.CompositeExecutor;
+import com.redhat.lightblue.crud.DocumentStream;
+import com.redhat.lightblue.crud.Factory;
+import com.redhat.lightblue.crud.FindRequest;
+import com.redhat.lightblue.mediator.OperationContext;
+import com.redhat.lightblue.metadata.AbstractGetMetadata;
+import com.redhat.lightblue.metadata.CompositeMetadata;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.PredefinedFields;
+import com.redhat.lightblue.metadata.parser.Extensions;
+import com.redhat.lightblue.metadata.parser.JSONMetadataParser;
+import com.redhat.lightblue.metadata.types.DefaultTypes;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.Sort;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.JsonUtils;
+import com.redhat.lightblue.util.Path;
+import com.redhat.lightblue.util.metrics.NoopRequestMetrics;
+import com.redhat.lightblue.util.test.AbstractJsonSchemaTest;
+import com.redhat.lightblue.TestDataStoreParser;
+
+public class SpillTest extends AbstractJsonSchemaTest {
+
+    private ExecutionBlock block() throws Exception {
+        Extensions<JsonNode> extensions = new Extensions<>();
+        extensions.addDefaultExtensions();
+        extensions.registerDataStoreParser("mongo", new TestDataStoreParser<JsonNode>());
+        JSONMetadataParser parser = new JSONMetadataParser(extensions, new DefaultTypes(), JsonNodeFactory.instance);
+        EntityMetadata md = parser.parseEntityMetadata(loadJsonNode("composite/A.json"));
+        PredefinedFields.ensurePredefinedFields(md);
+        CompositeMetadata cmd = CompositeMetadata.buildCompositeMetadata(md, new AbstractGetMetadata(
+                Projection.fromJson(JsonUtils.json("{\"field\":\"*\"}")), null) {
+            @Override
+            protected EntityMetadata retrieveMetadata(Path injectionField, String entityName, String version) {
+                return null;
+            }
+        });
+        QueryPlan qp = new QueryPlan(cmd, new SimpleScorer());
+        return new ExecutionBlock(cmd, qp.getNode(cmd));
+    }
+
+    private ExecutionContext ctx(int spillThresholdB) {
+        Factory factory = new Factory();
+        factory.setCompositeFindSpillThresholdB(spillThresholdB);
+        FindRequest freq = new FindRequest();
+        freq.setEntityVersion(new EntityVersion("A", "1.0.0"));
+        OperationContext opctx = new OperationContext(freq, null, factory, CRUDOperation.FIND,
+                null, null, new HashSet<String>(), null);
+        return new ExecutionContext(opctx, new CompositeExecutor(1).newSession(1, new NoopRequestMetrics()));
+    }
+
+    private List<ResultDocument> docs(ExecutionBlock block, int n) throws Exception {
+        List<ResultDocument> list = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            // field1 has 50 distinct values, so there are many equal documents
+            list.add(new ResultDocument(block, new JsonDoc(JsonUtils.json(
+                    String.format("{\"_id\":\"D%05d\",\"objectType\":\"A\",\"field1\":\"K%02d\"}", i, (i * 7919) % 50)))));
+        }
+        return list;
+    }
+
+    @Test
+    public void spillFileRoundTrip() throws Exception {
+        JsonNodeFactory f = JsonNodeFactory.withExactBigDecimals(true);
+        ObjectNode doc = f.objectNode();
+        doc.put("int", -3);
+        doc.put("long", 1l << 40);
+        doc.put("double", 1.5);
+        doc.put("float", 2.5f);
+        doc.put("string", "ça va");
+        doc.put("bool", true);
+        doc.putNull("null");
+        doc.put("bigint", new BigInteger("123456789012345678901234567890"));
+        doc.put("decimal", new BigDecimal("-12345.678900"));
+        doc.put("binary", new byte[]{1, 2, 3});
+        doc.putArray("array").add(1).add("x").addObject().put("int", 4);
+        try (SpillFile file = new SpillFile()) {
+            for (int i = 0; i < 3; i++) {
+                file.write(doc);
+            }
+            file.write(f.objectNode());
+            Assert.assertEquals(4, file.getNumDocs());
+            // The file can be read many times
+            for (int k = 0; k < 2; k++) {
+                Iterator<JsonNode> itr = file.read(f);
+                for (int i = 0; i < 3; i++) {
+                    Assert.assertEquals(doc, itr.next());
+                }
+                Assert.assertEquals(0, itr.next().size());
+                Assert.assertFalse(itr.hasNext());
+            }
+        }
+    }
+
+    @Test
+    public void closingSpillFileReleasesAbandonedReaders() throws Exception {
+        JsonNodeFactory f = JsonNodeFactory.instance;
+        SpillFile file = new SpillFile();
+        for (int i = 0; i < 3; i++) {
+            file.write(f.objectNode().put("i", i));
+        }
+        Iterator<JsonNode> itr1 = file.read(f);
+        Iterator<JsonNode> itr2 = file.read(f);
+        itr1.next();
+        itr2.next();
+        Assert.assertEquals(2, file.getNumOpenReaders());
+        file.close();
+        Assert.assertEquals(0, file.getNumOpenReaders());
+    }
+
+    @Test
+    public void spillableListWritesToFileOverThreshold() throws Exception {
+        ExecutionBlock block = block();
+        List<ResultDocument> docs = docs(block, 100);
+        ExecutionContext ctx = ctx(JsonUtils.size(docs.get(0).getDoc().getRoot()) * 10);
+        try {
+            SpillableList list = SpillableList.collect(ctx, block, docs.stream());
+            Assert.assertTrue(list.isSpilled());
+            Assert.assertEquals(100, list.size());
+            Assert.assertTrue(ctx.memoryUsedB() < JsonUtils.size(docs.get(0).getDoc().getRoot()) * 20);
+            List<ResultDocument> read = list.stream().collect(Collectors.toList());
+            Assert.assertEquals(100, read.size());
+            for (int i = 0; i < 100; i++) {
+                Assert.assertEquals(docs.get(i).getDoc().getRoot(), read.get(i).getDoc().getRoot());
+            }
+            Assert.assertNotSame(docs.get(99), read.get(99));
+        } finally {
+            ctx.close();
+        }
+    }
+
+    @Test
+    public void sortMergesSpilledRuns() throws Exception {
+        ExecutionBlock block = block();
+        List<ResultDocument> docs = docs(block, 3000);
+        ExecutionContext ctx = ctx(1);
+        try {
+            SortResults sort = new SortResults(block, new Source<>(new JoinTest.TestStep(block, docs)),
+                    Sort.fromJson(JsonUtils.json("{\"field1\":\"$asc\"}")));
+            List<ResultDocument> sorted = sort.getResults(ctx).stream().collect(Collectors.toList());
+            // Equal documents keep their order, as in a stable sort
+            List<ResultDocument> expected = new ArrayList<>(docs);
+            expected.sort(Comparator.comparing(d -> d.getDoc().getRoot().get("field1").asText()));
+            Assert.assertEquals(expected.size(), sorted.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertEquals(expected.get(i).getDoc().getRoot(), sorted.get(i).getDoc().getRoot());
+            }
+            // Documents of the spilled runs are read back from files
+            Assert.assertTrue(sorted.stream().anyMatch(d -> !docs.contains(d)));
+        } finally {
+            ctx.close();
+        }
+    }
+
+    @Test
+    public void topKKeepsDocumentsCountedUpstream() throws Exception {
+        ExecutionBlock block = block();
+        List<ResultDocument> docs = docs(block, 100);
+        ExecutionContext ctx = ctx(0);
+        try {
+            // Half of the documents are held, and counted, by an upstream step
+            for (int i = 0; i < docs.size(); i += 2) {
+                ctx.monitorMemory(docs.get(i));
+            }
+            int upstreamB = ctx.memoryUsedB();
+            SortResults sort = new SortResults(block, new Source<>(new JoinTest.TestStep(block, docs)),
+                    Sort.fromJson(JsonUtils.json("{\"field1\":\"$asc\"}")));
+            sort.setRange(2, 4);
+            List<ResultDocument> sorted = sort.getResults(ctx).stream().collect(Collectors.toList());
+            Assert.assertEquals(3, sorted.size());
+            // Only the documents counted by the sort are released
+            int returnedB = 0;
+            for (ResultDocument doc : sorted) {
+                if (docs.indexOf(doc) % 2 == 1) {
+                    returnedB += JsonUtils.size(doc.getDoc().getRoot());
+                }
+            }
+            Assert.assertEquals(upstreamB + returnedB, ctx.memoryUsedB());
+        } finally {
+            ctx.close();
+        }
+    }
+
+    @Test
+    public void closingSearchStreamStopsSearch() throws Exception {
+        ExecutionBlock block = block();
+        List<ResultDocument> docs = docs(block, 10);
+        int[] batches = new int[1];
+        boolean[] closed = new boolean[1];
+        // Reads the documents in batches of 2, like a batched join search
+        AbstractSearchStep search = new AbstractSearchStep(block) {
+            @Override
+            protected DocumentStream<ResultDocument> getSearchResults(ExecutionContext ctx) {
+                return new DocumentStream<ResultDocument>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return !closed[0] && next < docs.size();
+                    }
+
+                    @Override
+                    public ResultDocument next() {
+                        if (next % 2 == 0) {
+                            batches[0]++;
+                        }
+                        return docs.get(next++);
+                    }
+
+                    @Override
+                    public void close() {
+                        closed[0] = true;
+                    }
+
+                    @Override
+                    public void addListener(Consumer<ResultDocument> listener) {
+                    }
+                };
+            }
+
+            @Override
+            public JsonNode toJson() {
+                return null;
+            }
+
+            @Override
+            public JsonNode explain(ExecutionContext ctx) {
+                return null;
+            }
+        };
+        ExecutionContext ctx = ctx(0);
+        try (Stream<ResultDocument> stream = new Limit<>(block, 3, new Source<>(search)).getResults(ctx).stream()) {
+            Assert.assertEquals(3, stream.count());
+        } finally {
+            ctx.close();
+        }
+        Assert.assertTrue(closed[0]);
+        Assert.assertEquals(2, batches[0]);
+    }
+
+    @Test
+    public void closingAssembledStreamClosesSource() throws Exception {
+        ExecutionBlock block = block();
+        List<ResultDocument> docs = docs(block, 10);
+        boolean[] closed = new boolean[1];
+        Step<ResultDocument> source = new JoinTest.TestStep(block, docs) {
+            @Override
+            public StepResult<ResultDocument> getResults(ExecutionContext ctx) {
+                return new StepResult<ResultDocument>() {
+                    @Override
+                    public Stream<ResultDocument> stream() {
+                        return docs.stream().onClose(() -> closed[0] = true);
+                    }
+                };
+            }
+        };
+        Assemble assemble = new Assemble(block, new Source<>(source), new ExecutionBlock[0], 16, 2);
+        assemble.initialize();
+        ExecutionContext ctx = ctx(0);
+        try (Stream<ResultDocument> stream = new Limit<>(block, 3, new Source<>(assemble)).getResults(ctx).stream()) {
+            Assert.assertEquals(3, stream.count());
+            Assert.assertFalse(closed[0]);
+        } finally {
+            ctx.close();
+        }
+        Assert.assertTrue(closed[0]);
+        Assert.assertEquals(0, ctx.memoryUsedB());
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveBatchSizerTest {
+
+    @Test
+    public void growsWhenFullBatchesAreFast() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(16, 1024, 200, 0, 0);
+        Assert.assertEquals(256, sizer.getBatchSize("a"));
+        Assert.assertEquals(512, sizer.record("a", 256, 10, 256, 1000));
+        Assert.assertEquals(1024, sizer.record("a", 512, 10, 512, 1000));
+        Assert.assertEquals(1024, sizer.record("a", 1024, 10, 1024, 1000));
+        // A partial batch doesn't grow the batch size
+        AdaptiveBatchSizer sizer2 = new AdaptiveBatchSizer(16, 1024, 200, 0, 0);
+        Assert.assertEquals(256, sizer2.record("a", 10, 1, 10, 100));
+    }
+
+    @Test
+    public void shrinksWhenBatchesAreSlow() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(16, 1024, 200, 0, 0);
+        Assert.assertEquals(128, sizer.record("a", 256, 400, 256, 1000));
+        Assert.assertEquals(16, sizer.record("a", 128, 10000, 128, 1000));
+        // Other associations are not affected
+        Assert.assertEquals(256, sizer.getBatchSize("b"));
+    }
+
+    @Test
+    public void limitedByQuerySizeAndResults() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1, 1024, 200, 1000, 0);
+        // 100 bytes per query
+        Assert.assertEquals(10, sizer.record("a", 256, 10, 256, 25600));
+
+        sizer = new AdaptiveBatchSizer(1, 1024, 200, 0, 500);
+        // 10 results per query
+        Assert.assertEquals(50, sizer.record("a", 256, 10, 2560, 1000));
+        Assert.assertEquals(1, sizer.getStatsIfPresent("a").getNumBatches());
+        Assert.assertEquals(50, sizer.getStatsIfPresent("a").toJson().get("batchSize").asInt());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.redhat.lightblue.util.Error;
+
+public class AsyncExecutorTest {
+
+    @Test
+    public void rejectsWhenSaturated() throws Exception {
+        AsyncExecutor executor = new AsyncExecutor(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> running = executor.submit(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Thread.currentThread().getName();
+        });
+        // Wait until the first operation leaves the queue
+        while (executor.getQueueDepth() > 0) {
+            Thread.sleep(1);
+        }
+        CompletableFuture<String> queued = executor.submit(() -> "queued");
+        CompletableFuture<String> rejected = executor.submit(() -> "rejected");
+        Assert.assertEquals(1, executor.getQueueDepth());
+        Assert.assertTrue(rejected.isCompletedExceptionally());
+        Assert.assertEquals(1, executor.getRejectedCount());
+        try {
+            rejected.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertEquals(CrudConstants.ERR_ASYNC_EXECUTOR_SATURATED, ((Error) e.getCause()).getErrorCode());
+        }
+        release.countDown();
+        Assert.assertTrue(running.get(5, TimeUnit.SECONDS).startsWith("lightblue-async-"));
+        Assert.assertEquals("queued", queued.get(5, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    @Test
+    public void cancelledOperationDoesntRun() throws Exception {
+        AsyncExecutor executor = new AsyncExecutor(1, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        });
+        boolean[] ran = new boolean[1];
+        CompletableFuture<Boolean> f = executor.submit(() -> ran[0] = true);
+        f.cancel(true);
+        release.countDown();
+        CompletableFuture<Object> last = executor.submit(() -> null);
+        last.get(5, TimeUnit.SECONDS);
+        Assert.assertFalse(ran[0]);
+        executor.shutdown();
+    }
+
+    @Test
+    public void errorCompletesFuture() throws Exception {
+        AsyncExecutor executor = new AsyncExecutor(1, 1);
+        CompletableFuture<Object> f = executor.submit(() -> {
+            throw new AssertionError("failed");
+        });
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof AssertionError);
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void noQueueHandsOffToIdleThreads() throws Exception {
+        AsyncExecutor executor = new AsyncExecutor(1, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> running = executor.submit(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        });
+        Assert.assertTrue(executor.submit(() -> null).isCompletedExceptionally());
+        Assert.assertEquals(0, executor.getQueueDepth());
+        release.countDown();
+        running.get(5, TimeUnit.SECONDS);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.redhat.lightblue.util.metrics.NoopRequestMetrics;
+
+public class CompositeExecutorTest {
+
+    @Test
+    public void runsInCallerWhenSessionIsSaturated() throws Exception {
+        CompositeExecutor executor = new CompositeExecutor(4);
+        CompositeExecutor.Session session = executor.newSession(1, new NoopRequestMetrics());
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = session.submit(() -> {
+            release.await();
+            return Thread.currentThread().getName();
+        });
+        Thread caller = Thread.currentThread();
+        Future<Thread> second = session.submit(() -> Thread.currentThread());
+        // The second task ran synchronously in this thread
+        Assert.assertTrue(second.isDone());
+        Assert.assertSame(caller, second.get());
+        Assert.assertEquals(1, executor.getCallerRunsCount());
+        release.countDown();
+        Assert.assertTrue(first.get(5, TimeUnit.SECONDS).startsWith("lightblue-composite-"));
+        executor.shutdown();
+    }
+
+    @Test
+    public void nestedTasksDontDeadlock() throws Exception {
+        CompositeExecutor executor = new CompositeExecutor(1);
+        CompositeExecutor.Session session = executor.newSession(10, new NoopRequestMetrics());
+        Future<Integer> outer = session.submit(() -> {
+            // The only thread is busy running this task, so nested tasks run here
+            Future<Integer> inner1 = session.submit(() -> 1);
+            Future<Integer> inner2 = session.submit(() -> 2);
+            return inner1.get() + inner2.get();
+        });
+        Assert.assertEquals(3, outer.get(5, TimeUnit.SECONDS).intValue());
+        Assert.assertEquals(2, executor.getCallerRunsCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void cancelledTaskReleasesPermit() throws Exception {
+        CompositeExecutor executor = new CompositeExecutor(2);
+        CompositeExecutor.Session session = executor.newSession(1, new NoopRequestMetrics());
+        CountDownLatch started = new CountDownLatch(1);
+        Future<Object> first = session.submit(() -> {
+            started.countDown();
+            new CountDownLatch(1).await();
+            return null;
+        });
+        started.await(5, TimeUnit.SECONDS);
+        first.cancel(true);
+        // The permit of the cancelled task is available to the next task
+        Future<Thread> second = session.submit(() -> Thread.currentThread());
+        Assert.assertNotSame(Thread.currentThread(), second.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, executor.getCallerRunsCount());
+        executor.shutdown();
+    }
+}
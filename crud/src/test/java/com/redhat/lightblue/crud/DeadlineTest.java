@@ -0,0 +1,70 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.redhat.lightblue.util.Error;
+
+public class DeadlineTest {
+
+    @Test
+    public void expiredDeadlineCancelsFutures() {
+        Deadline deadline = new Deadline(0);
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        deadline.register(f);
+        Assert.assertFalse(f.isCancelled());
+        try {
+            deadline.check();
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(CrudConstants.ERR_DEADLINE_EXCEEDED, e.getErrorCode());
+        }
+        Assert.assertTrue(f.isCancelled());
+        Assert.assertEquals(0, deadline.getRemainingMS());
+    }
+
+    @Test
+    public void cancelledParentCancelsChild() {
+        Deadline parent = new Deadline();
+        Deadline child = new Deadline(parent, 60000);
+        boolean[] called = new boolean[1];
+        child.onExpire(() -> called[0] = true);
+        child.check();
+        Assert.assertTrue(child.getRemainingMS() <= 60000);
+        parent.cancel();
+        try {
+            child.check();
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(CrudConstants.ERR_REQUEST_CANCELLED, e.getErrorCode());
+        }
+        Assert.assertTrue(called[0]);
+    }
+
+    @Test
+    public void unboundedDeadlineDoesntExpire() {
+        Deadline deadline = new Deadline();
+        Assert.assertFalse(deadline.isExpired());
+        Assert.assertEquals(Long.MAX_VALUE, deadline.getRemainingMS());
+    }
+}
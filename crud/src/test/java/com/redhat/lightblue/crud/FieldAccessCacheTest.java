@@ -0,0 +1,68 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.redhat.lightblue.eval.EvalTestContext;
+import com.redhat.lightblue.eval.FieldAccessMatrix;
+import com.redhat.lightblue.metadata.EntityMetadata;
+
+public class FieldAccessCacheTest {
+
+    @Test
+    public void reusesMatrixUntilMetadataChanges() throws Exception {
+        FieldAccessCache cache = new FieldAccessCache(10);
+        EntityMetadata md = EvalTestContext.getMd("./testMetadata-restricted.json");
+        Set<String> roles = new HashSet<>(Arrays.asList("a", "b"));
+        FieldAccessMatrix m1 = cache.getFieldAccess(md, roles);
+        Assert.assertSame(m1, cache.getFieldAccess(md, new HashSet<>(Arrays.asList("b", "a"))));
+        Assert.assertNotSame(m1, cache.getFieldAccess(md, new HashSet<>(Arrays.asList("a"))));
+
+        // Entries are keyed by entity name and version, not by metadata instance
+        EntityMetadata md2 = EvalTestContext.getMd("./testMetadata-restricted.json");
+        Assert.assertSame(m1, cache.getFieldAccess(md2, roles));
+        Assert.assertEquals(2, cache.size());
+
+        // Other entities are not invalidated
+        cache.invalidate("other");
+        Assert.assertEquals(2, cache.size());
+
+        // A metadata update notification removes the entries of the entity
+        cache.afterCreateNewSchema(null, md2);
+        Assert.assertEquals(0, cache.size());
+        FieldAccessMatrix m2 = cache.getFieldAccess(md2, roles);
+        Assert.assertNotSame(m1, m2);
+        Assert.assertSame(m2, cache.getFieldAccess(md2, roles));
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        FieldAccessCache cache = new Factory().getFieldAccessCache();
+        EntityMetadata md = EvalTestContext.getMd("./testMetadata-restricted.json");
+        Set<String> roles = new HashSet<>(Arrays.asList("a"));
+        Assert.assertNotSame(cache.getFieldAccess(md, roles), cache.getFieldAccess(md, roles));
+        Assert.assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.DataError;
+import com.redhat.lightblue.OperationStatus;
+import com.redhat.lightblue.Response;
+import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.util.JsonUtils;
+
+public class FindCoalescerTest {
+
+    private FindRequest request(String query) throws Exception {
+        return FindRequest.fromJson((ObjectNode) JsonUtils.json(("{'entity':'test','entityVersion':'1.0','query':" + query + "}").replace('\'', '\"')));
+    }
+
+    @Test
+    public void keyIgnoresFieldOrder() throws Exception {
+        String k1 = FindCoalescer.key(request("{'field':'x','op':'=','rvalue':1}"), "1.0", new HashSet<>(Arrays.asList("a", "b")));
+        String k2 = FindCoalescer.key(request("{'rvalue':1,'op':'=','field':'x'}"), "1.0", new HashSet<>(Arrays.asList("b", "a")));
+        Assert.assertEquals(k1, k2);
+    }
+
+    @Test
+    public void keyIncludesRoles() throws Exception {
+        FindRequest req = request("{'field':'x','op':'=','rvalue':1}");
+        Assert.assertNotEquals(FindCoalescer.key(req, "1.0", new HashSet<>(Arrays.asList("a"))),
+                FindCoalescer.key(req, "1.0", new HashSet<>(Arrays.asList("a", "b"))));
+    }
+
+    @Test
+    public void disabledWhenFull() throws Exception {
+        FindCoalescer coalescer = new FindCoalescer(0);
+        Response r = coalescer.execute("k", new Deadline(), JsonNodeFactory.instance,
+                () -> new Response(JsonNodeFactory.instance, OperationStatus.COMPLETE));
+        Assert.assertEquals(OperationStatus.COMPLETE, r.getStatus());
+        Assert.assertEquals(0, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void copyDoesntShareErrors() throws Exception {
+        Response r = new Response(JsonNodeFactory.instance, OperationStatus.PARTIAL);
+        r.getErrors().add(Error.get("e1"));
+        r.getDataErrors().add(new DataError(JsonUtils.json("{\"a\":1}"), new ArrayList<>(Arrays.asList(Error.get("e2")))));
+        Response copy = FindCoalescer.copy(r, JsonNodeFactory.instance);
+        copy.getErrors().clear();
+        copy.getDataErrors().get(0).getErrors().add(Error.get("e3"));
+        ((ObjectNode) copy.getDataErrors().get(0).getEntityData()).put("a", 2);
+        copy.getDataErrors().clear();
+        Assert.assertEquals(1, r.getErrors().size());
+        Assert.assertEquals(1, r.getDataErrors().size());
+        Assert.assertEquals(1, r.getDataErrors().get(0).getErrors().size());
+        Assert.assertEquals(1, r.getDataErrors().get(0).getEntityData().get("a").asInt());
+    }
+
+    @Test
+    public void followerRetriesWhenLeaderReturnsTimeout() throws Exception {
+        FindCoalescer coalescer = new FindCoalescer(10);
+        CountDownLatch leaderRunning = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread leader = new Thread(() -> coalescer.execute("k", new Deadline(), JsonNodeFactory.instance, () -> {
+            leaderRunning.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            // The deadline expired while the documents were read
+            Response r = new Response(JsonNodeFactory.instance, OperationStatus.ERROR);
+            r.getErrors().add(Error.get(CrudConstants.ERR_DEADLINE_EXCEEDED));
+            return r;
+        }));
+        leader.start();
+        leaderRunning.await();
+        Response[] follower = new Response[1];
+        Thread t = new Thread(() -> follower[0] = coalescer.execute("k", new Deadline(), JsonNodeFactory.instance,
+                () -> new Response(JsonNodeFactory.instance, OperationStatus.COMPLETE)));
+        t.start();
+        while (coalescer.getCoalescedCount() < 1) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        t.join();
+        leader.join();
+        Assert.assertEquals(OperationStatus.COMPLETE, follower[0].getStatus());
+        Assert.assertTrue(follower[0].getErrors().isEmpty());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.redhat.lightblue.EntityVersion;
+import com.redhat.lightblue.OperationStatus;
+import com.redhat.lightblue.Response;
+import com.redhat.lightblue.util.JsonUtils;
+import com.redhat.lightblue.util.metrics.NoopRequestMetrics;
+import com.redhat.lightblue.util.metrics.RequestMetrics;
+
+public class FindResultCacheTest {
+
+    private final JsonNodeFactory nodeFactory = JsonNodeFactory.instance;
+    private final RequestMetrics metrics = new NoopRequestMetrics();
+
+    private Response response(String data) throws Exception {
+        Response r = new Response(nodeFactory, OperationStatus.COMPLETE);
+        r.setEntity(new EntityVersion("A", "1.0"));
+        r.setEntityData(JsonUtils.json(data.replace('\'', '\"')));
+        return r;
+    }
+
+    private static Set<String> set(String... s) {
+        return new HashSet<>(Arrays.asList(s));
+    }
+
+    @Test
+    public void returnsCopies() throws Exception {
+        FindResultCache cache = new FindResultCache(1000, 60000);
+        Response r = response("[{'a':'b'}]");
+        cache.put("k", set("A"), cache.getGeneration(set("A")), r, nodeFactory, metrics);
+        Response r1 = cache.get("k", nodeFactory, metrics);
+        Assert.assertEquals(r.getEntityData(), r1.getEntityData());
+        Assert.assertNotSame(r.getEntityData(), r1.getEntityData());
+        Assert.assertNull(cache.get("x", nodeFactory, metrics));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        Response r = response("[{'a':'b'}]");
+        int size = JsonUtils.size(r.getEntityData());
+        FindResultCache cache = new FindResultCache(size * 2, 60000);
+        cache.put("k1", set("A"), 0, r, nodeFactory, metrics);
+        cache.put("k2", set("A"), 0, r, nodeFactory, metrics);
+        Assert.assertNotNull(cache.get("k1", nodeFactory, metrics));
+        cache.put("k3", set("A"), 0, r, nodeFactory, metrics);
+        Assert.assertEquals(2, cache.getNumEntries());
+        Assert.assertEquals(size * 2, cache.getSizeB());
+        Assert.assertNotNull(cache.get("k1", nodeFactory, metrics));
+        Assert.assertNull(cache.get("k2", nodeFactory, metrics));
+        Assert.assertNotNull(cache.get("k3", nodeFactory, metrics));
+    }
+
+    @Test
+    public void expires() throws Exception {
+        FindResultCache cache = new FindResultCache(1000, 1);
+        cache.put("k", set("A"), 0, response("[{'a':'b'}]"), nodeFactory, metrics);
+        Thread.sleep(5);
+        Assert.assertNull(cache.get("k", nodeFactory, metrics));
+        Assert.assertEquals(0, cache.getSizeB());
+    }
+
+    @Test
+    public void invalidatesDependents() throws Exception {
+        FindResultCache cache = new FindResultCache(1000, 60000);
+        // A find on A reading B, and a find on B
+        cache.put("a", set("A", "B"), 0, response("[{'a':'b'}]"), nodeFactory, metrics);
+        cache.put("b", set("B"), 0, response("[{'a':'b'}]"), nodeFactory, metrics);
+        cache.invalidate("A", metrics);
+        Assert.assertNull(cache.get("a", nodeFactory, metrics));
+        Assert.assertNotNull(cache.get("b", nodeFactory, metrics));
+        cache.put("a", set("A", "B"), cache.getGeneration(set("A", "B")), response("[{'a':'b'}]"), nodeFactory, metrics);
+        cache.invalidate("B", metrics);
+        Assert.assertEquals(0, cache.getNumEntries());
+        Assert.assertEquals(0, cache.getSizeB());
+    }
+
+    @Test
+    public void doesntCacheFindRacingWithWrite() throws Exception {
+        FindResultCache cache = new FindResultCache(1000, 60000);
+        long generation = cache.getGeneration(set("A", "B"));
+        cache.invalidate("B", metrics);
+        cache.put("a", set("A", "B"), generation, response("[{'a':'b'}]"), nodeFactory, metrics);
+        Assert.assertNull(cache.get("a", nodeFactory, metrics));
+    }
+
+    @Test
+    public void doesntCacheErrors() throws Exception {
+        FindResultCache cache = new FindResultCache(1000, 60000);
+        Response r = response("[{'a':'b'}]");
+        r.setStatus(OperationStatus.PARTIAL);
+        cache.put("a", set("A"), 0, r, nodeFactory, metrics);
+        Assert.assertNull(cache.get("a", nodeFactory, metrics));
+    }
+}
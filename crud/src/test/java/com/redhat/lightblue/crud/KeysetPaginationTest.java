@@ -0,0 +1,184 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.EntityVersion;
+import com.redhat.lightblue.ExecutionOptions;
+import com.redhat.lightblue.eval.EvalTestContext;
+import com.redhat.lightblue.eval.QueryEvaluator;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.query.CompositeSortKey;
+import com.redhat.lightblue.query.FieldProjection;
+import com.redhat.lightblue.query.SortKey;
+import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.Path;
+
+public class KeysetPaginationTest {
+
+    private FindRequest request(String continuation) {
+        return request(continuation, false);
+    }
+
+    private FindRequest request(String continuation, boolean desc) {
+        FindRequest req = new FindRequest();
+        req.setEntityVersion(new EntityVersion("user", "5.0.0"));
+        req.setSort(new SortKey(new Path("login"), desc));
+        req.setProjection(new FieldProjection(new Path("login"), true, false));
+        req.setFrom(0l);
+        req.setTo(1l);
+        req.setContinuation(continuation);
+        if (continuation == null) {
+            ExecutionOptions options = new ExecutionOptions();
+            options.getOptions().put(KeysetPagination.OPT_KEYSET, "true");
+            req.setExecution(options);
+        }
+        return req;
+    }
+
+    private DocCtx doc(String login, String id) {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        if (login == null) {
+            node.putNull("login");
+        } else {
+            node.put("login", login);
+        }
+        node.put("_id", id);
+        node.put("iduid", "u" + id);
+        return new DocCtx(new JsonDoc(node));
+    }
+
+    private List<DocCtx> read(DocumentStream<DocCtx> stream) {
+        List<DocCtx> list = new ArrayList<>();
+        while (stream.hasNext()) {
+            list.add(stream.next());
+        }
+        return list;
+    }
+
+    @Test
+    public void continuationSelectsNextPage() throws Exception {
+        EntityMetadata md = EvalTestContext.getMd("./usermd.json");
+        FindRequest req = request(null);
+        Assert.assertTrue(KeysetPagination.isRequested(req));
+        KeysetPagination keyset = new KeysetPagination(req, md);
+        // The identity fields break ties
+        List<SortKey> keys = ((CompositeSortKey) keyset.getCRUDFindRequest().getSort()).getKeys();
+        Assert.assertEquals(3, keys.size());
+        Assert.assertEquals(new Path("_id"), keys.get(1).getField());
+
+        List<DocCtx> page = new ArrayList<>();
+        page.add(doc("a", "1"));
+        page.add(doc("b", "2"));
+        List<DocCtx> result = read(keyset.wrap(new ListDocumentStream<>(page)));
+        // The identities are not in the requested projection
+        Assert.assertNull(result.get(1).getOutputDocument().get(new Path("_id")));
+        Assert.assertEquals("b", result.get(1).getOutputDocument().get(new Path("login")).asText());
+        String token = keyset.getContinuation();
+        Assert.assertNotNull(token);
+
+        KeysetPagination next = new KeysetPagination(request(token), md);
+        QueryEvaluator eval = QueryEvaluator.getInstance(next.getCRUDFindRequest().getQuery(), md);
+        Assert.assertFalse(eval.evaluate(doc("a", "9").getOutputDocument()).getResult());
+        Assert.assertFalse(eval.evaluate(doc("b", "2").getOutputDocument()).getResult());
+        Assert.assertTrue(eval.evaluate(doc("b", "3").getOutputDocument()).getResult());
+        Assert.assertTrue(eval.evaluate(doc("c", "0").getOutputDocument()).getResult());
+    }
+
+    private QueryEvaluator nextPage(boolean desc, DocCtx last, EntityMetadata md) {
+        KeysetPagination keyset = new KeysetPagination(request(null, desc), md);
+        List<DocCtx> page = new ArrayList<>();
+        page.add(doc("x", "0"));
+        page.add(last);
+        read(keyset.wrap(new ListDocumentStream<>(page)));
+        KeysetPagination next = new KeysetPagination(request(keyset.getContinuation(), desc), md);
+        return QueryEvaluator.getInstance(next.getCRUDFindRequest().getQuery(), md);
+    }
+
+    @Test
+    public void nullKeysSortFirstAscending() throws Exception {
+        EntityMetadata md = EvalTestContext.getMd("./usermd.json");
+        // After a null key come the nulls with a larger identity and all non-null keys
+        QueryEvaluator eval = nextPage(false, doc(null, "5"), md);
+        Assert.assertFalse(eval.evaluate(doc(null, "4").getOutputDocument()).getResult());
+        Assert.assertFalse(eval.evaluate(doc(null, "5").getOutputDocument()).getResult());
+        Assert.assertTrue(eval.evaluate(doc(null, "6").getOutputDocument()).getResult());
+        Assert.assertTrue(eval.evaluate(doc("a", "0").getOutputDocument()).getResult());
+
+        // After a non-null key, no null key
+        eval = nextPage(false, doc("b", "5"), md);
+        Assert.assertFalse(eval.evaluate(doc(null, "9").getOutputDocument()).getResult());
+        Assert.assertFalse(eval.evaluate(doc("a", "9").getOutputDocument()).getResult());
+        Assert.assertTrue(eval.evaluate(doc("c", "0").getOutputDocument()).getResult());
+    }
+
+    @Test
+    public void nullKeysSortLastDescending() throws Exception {
+        EntityMetadata md = EvalTestContext.getMd("./usermd.json");
+        // After a non-null key come the smaller keys and all null keys
+        QueryEvaluator eval = nextPage(true, doc("b", "5"), md);
+        Assert.assertFalse(eval.evaluate(doc("c", "0").getOutputDocument()).getResult());
+        Assert.assertFalse(eval.evaluate(doc("b", "4").getOutputDocument()).getResult());
+        Assert.assertTrue(eval.evaluate(doc("b", "6").getOutputDocument()).getResult());
+        Assert.assertTrue(eval.evaluate(doc("a", "0").getOutputDocument()).getResult());
+        Assert.assertTrue(eval.evaluate(doc(null, "0").getOutputDocument()).getResult());
+
+        // After a null key, only nulls with a larger identity
+        eval = nextPage(true, doc(null, "5"), md);
+        Assert.assertFalse(eval.evaluate(doc("a", "9").getOutputDocument()).getResult());
+        Assert.assertFalse(eval.evaluate(doc(null, "4").getOutputDocument()).getResult());
+        Assert.assertTrue(eval.evaluate(doc(null, "6").getOutputDocument()).getResult());
+    }
+
+    @Test
+    public void partialPageHasNoContinuation() throws Exception {
+        EntityMetadata md = EvalTestContext.getMd("./usermd.json");
+        KeysetPagination keyset = new KeysetPagination(request(null), md);
+        List<DocCtx> page = new ArrayList<>();
+        page.add(doc("a", "1"));
+        read(keyset.wrap(new ListDocumentStream<>(page)));
+        Assert.assertNull(keyset.getContinuation());
+    }
+
+    @Test
+    public void tokenOfAnotherQueryIsRejected() throws Exception {
+        EntityMetadata md = EvalTestContext.getMd("./usermd.json");
+        KeysetPagination keyset = new KeysetPagination(request(null), md);
+        List<DocCtx> page = new ArrayList<>();
+        page.add(doc("a", "1"));
+        page.add(doc("b", "2"));
+        read(keyset.wrap(new ListDocumentStream<>(page)));
+        FindRequest req = request(keyset.getContinuation());
+        req.setSort(new SortKey(new Path("login"), true));
+        try {
+            new KeysetPagination(req, md);
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(CrudConstants.ERR_INVALID_CONTINUATION, e.getErrorCode());
+        }
+    }
+}
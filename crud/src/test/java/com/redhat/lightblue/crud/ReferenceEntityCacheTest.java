@@ -0,0 +1,82 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.JsonUtils;
+
+public class ReferenceEntityCacheTest {
+
+    private static List<JsonDoc> docs(String... data) throws Exception {
+        List<JsonDoc> list = new ArrayList<>();
+        for (String x : data) {
+            list.add(new JsonDoc(JsonUtils.json(x.replace('\'', '\"'))));
+        }
+        return list;
+    }
+
+    @Test
+    public void cachesUntilInvalidated() throws Exception {
+        ReferenceEntityCache cache = new ReferenceEntityCache(10, 60000);
+        List<JsonDoc> docs = docs("{'a':1}", "{'a':2}");
+        ReferenceEntityCache.Entry entry = cache.put("k", "A", cache.getGeneration("A"), docs, null);
+        Assert.assertTrue(entry.isCached());
+        Assert.assertSame(entry, cache.get("k"));
+        Assert.assertEquals(Arrays.asList(docs.get(0), docs.get(1)),
+                entry.inOrder(Arrays.asList(docs.get(1), docs.get(0))));
+
+        cache.invalidate("B");
+        Assert.assertNotNull(cache.get("k"));
+        cache.invalidate("A");
+        Assert.assertNull(cache.get("k"));
+    }
+
+    @Test
+    public void doesntCacheWrittenEntities() throws Exception {
+        ReferenceEntityCache cache = new ReferenceEntityCache(10, 60000);
+        long generation = cache.getGeneration("A");
+        cache.invalidate("A");
+        // The documents are still returned to the caller
+        Assert.assertTrue(cache.put("k", "A", generation, docs("{'a':1}"), null).isCached());
+        Assert.assertNull(cache.get("k"));
+    }
+
+    @Test
+    public void doesntCacheLargeEntities() throws Exception {
+        ReferenceEntityCache cache = new ReferenceEntityCache(1, 60000);
+        cache.put("k", "A", 0, docs("{'a':1}", "{'a':2}"), null);
+        // The entry remembers the entity is too large
+        Assert.assertFalse(cache.get("k").isCached());
+    }
+
+    @Test
+    public void expires() throws Exception {
+        ReferenceEntityCache cache = new ReferenceEntityCache(10, 1);
+        cache.put("k", "A", 0, docs("{'a':1}"), null);
+        Thread.sleep(5);
+        Assert.assertNull(cache.get("k"));
+    }
+}
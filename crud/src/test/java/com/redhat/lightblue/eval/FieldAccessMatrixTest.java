@@ -0,0 +1,64 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.eval;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.FieldCursor;
+import com.redhat.lightblue.util.Path;
+import com.redhat.lightblue.util.test.AbstractJsonNodeTest;
+
+public class FieldAccessMatrixTest extends AbstractJsonNodeTest {
+
+    private void assertSameAccess(EntityMetadata md, Set<String> roles) {
+        FieldAccessRoleEvaluator eval = new FieldAccessRoleEvaluator(md, roles);
+        FieldAccessMatrix matrix = new FieldAccessMatrix(md, roles);
+        FieldCursor cursor = md.getFieldCursor();
+        while (cursor.next()) {
+            Path field = cursor.getCurrentPath();
+            for (FieldAccessRoleEvaluator.Operation op : FieldAccessRoleEvaluator.Operation.values()) {
+                Assert.assertEquals(field + " " + op, eval.hasAccess(field, op), matrix.hasAccess(field, op));
+            }
+        }
+        // Array indexes are not in the cursor
+        for (Path field : new Path[]{new Path("field6.nf6.1"), new Path("field6.nf6")}) {
+            for (FieldAccessRoleEvaluator.Operation op : FieldAccessRoleEvaluator.Operation.values()) {
+                Assert.assertEquals(field + " " + op, eval.hasAccess(field, op), matrix.hasAccess(field, op));
+            }
+        }
+        for (FieldAccessRoleEvaluator.Operation op : FieldAccessRoleEvaluator.Operation.values()) {
+            Assert.assertEquals(eval.getInaccessibleFields(op), matrix.getInaccessibleFields(op));
+            Assert.assertEquals(eval.getInaccessibleFields(op), new FieldAccessRoleEvaluator(matrix).getInaccessibleFields(op));
+        }
+    }
+
+    @Test
+    public void matchesEvaluator() throws Exception {
+        EntityMetadata md = EvalTestContext.getMd("./testMetadata-restricted.json");
+        assertSameAccess(md, new HashSet<>());
+        assertSameAccess(md, new HashSet<>(Arrays.asList("somerole")));
+        assertSameAccess(md, new HashSet<>(Arrays.asList("somerole", "anyone", "field1", "field6.nf1")));
+    }
+}
@@ -20,6 +20,7 @@ package com.redhat.lightblue.hooks;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Iterator;
 import java.util.function.Consumer;
@@ -55,6 +56,7 @@ import com.redhat.lightblue.crud.Factory;
 import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.crud.ListDocumentStream;
 import com.redhat.lightblue.crud.DocumentStream;
+import com.redhat.lightblue.crud.Deadline;
 
 import com.redhat.lightblue.util.test.AbstractJsonNodeTest;
 import com.redhat.lightblue.util.JsonDoc;
@@ -412,6 +414,22 @@ public class HookManagerTest extends AbstractJsonNodeTest {
     }
 
 
+    @Test
+    public void expiredDeadlineSkipsHooksTest() throws Exception {
+        HookManager hooks = new HookManager(resolver, nodeFactory);
+        TestOperationContext ctx = setupContext(CRUDOperation.UPDATE);
+
+        hooks.queueHooks(ctx);
+        Deadline deadline = new Deadline();
+        deadline.cancel();
+        List<String> skipped = hooks.callQueuedHooks(deadline);
+
+        Assert.assertEquals(Arrays.asList("EH", "hook1", "hook2"), skipped);
+        Assert.assertNull(hook1.md);
+        Assert.assertNull(hook2.md);
+        Assert.assertTrue(hooks.isHookQueueEmpty());
+    }
+
     private static class NonRewindableDocumentStream<T> implements DocumentStream<T> {
 
         private final List<T> documents;
@@ -105,6 +105,16 @@ public abstract class AbstractMediatorTest extends AbstractJsonSchemaTest {
         public JsonNode toJson() {
             return null;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RestClientIdentification && clientRoles.equals(((RestClientIdentification) o).clientRoles);
+        }
+
+        @Override
+        public int hashCode() {
+            return clientRoles.hashCode();
+        }
     }
 
     public EntityMetadata getMd(String fname) throws Exception {
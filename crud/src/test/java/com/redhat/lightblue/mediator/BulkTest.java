@@ -20,6 +20,9 @@ package com.redhat.lightblue.mediator;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -37,6 +40,7 @@ import com.redhat.lightblue.EntityVersion;
 import com.redhat.lightblue.OperationStatus;
 import com.redhat.lightblue.Response;
 import com.redhat.lightblue.ResultMetadata;
+import com.redhat.lightblue.crud.BulkExecutor;
 import com.redhat.lightblue.crud.BulkRequest;
 import com.redhat.lightblue.crud.BulkResponse;
 import com.redhat.lightblue.crud.CRUDDeleteResponse;
@@ -50,6 +54,7 @@ import com.redhat.lightblue.crud.FindRequest;
 import com.redhat.lightblue.crud.InsertionRequest;
 import com.redhat.lightblue.crud.ListDocumentStream;
 import com.redhat.lightblue.metadata.Metadata;
+import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.JsonDoc;
 import com.redhat.lightblue.util.JsonUtils;
 import com.redhat.lightblue.util.metrics.DefaultMetricNamer;
@@ -354,6 +359,186 @@ public class BulkTest extends AbstractMediatorTest {
         Assert.assertTrue(validator.valid);
     }
 
+    @Test
+    public void orderedBulkRunsUnrelatedEntitiesConcurrently() throws Exception {
+        BulkRequest breq = new BulkRequest();
+
+        FindRequest freq = new FindRequest();
+        freq.setEntityVersion(new EntityVersion("other", "1.0"));
+        freq.setClientId(new RestClientIdentification(Arrays.asList("test-find")));
+
+        InsertionRequest ireq = new InsertionRequest();
+        ireq.setEntityVersion(new EntityVersion("test", "1.0"));
+        ireq.setEntityData(loadJsonNode("./sample1.json"));
+        ireq.setReturnFields(null);
+        ireq.setClientId(new RestClientIdentification(Arrays.asList("test-insert", "test-update")));
+
+        breq.add(freq);
+        breq.add(ireq);
+
+        PFindCb findCb = new PFindCb();
+        PInsertCb insertCb = new PInsertCb();
+        ((TestMediator) mediator).findCb = findCb;
+        ((TestMediator) mediator).insertCb = insertCb;
+
+        ValidatorThread validator = new ValidatorThread(findCb, insertCb) {
+            @Override
+            public void run() {
+                try {
+                    // The insert doesn't wait for the find on another entity
+                    while (find.nested.get() < 1 || insert.nested.get() < 1) {
+                        Thread.sleep(1);
+                    }
+                    insert.sem.release(1);
+                    find.sem.release(1);
+                    valid = true;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        validator.start();
+        mediator.bulkRequest(breq, noopMetrics);
+        validator.join();
+
+        Assert.assertTrue(validator.valid);
+    }
+
+    @Test
+    public void streamingBulkReturnsEntriesAsTheyComplete() throws Exception {
+        BulkRequest breq = new BulkRequest();
+
+        FindRequest freq = new FindRequest();
+        freq.setEntityVersion(new EntityVersion("other", "1.0"));
+        freq.setClientId(new RestClientIdentification(Arrays.asList("test-find")));
+
+        InsertionRequest ireq = new InsertionRequest();
+        ireq.setEntityVersion(new EntityVersion("test", "1.0"));
+        ireq.setEntityData(loadJsonNode("./sample1.json"));
+        ireq.setReturnFields(null);
+        ireq.setClientId(new RestClientIdentification(Arrays.asList("test-insert", "test-update")));
+
+        breq.add(freq);
+        breq.add(ireq);
+
+        PFindCb findCb = new PFindCb();
+        PInsertCb insertCb = new PInsertCb();
+        ((TestMediator) mediator).findCb = findCb;
+        ((TestMediator) mediator).insertCb = insertCb;
+
+        // The find blocks until the insert is returned
+        insertCb.sem.release(1);
+        StreamingBulkResponse stream = mediator.bulkRequestAndStream(breq, noopMetrics);
+
+        Assert.assertTrue(stream.hasNext());
+        StreamingBulkResponse.Entry entry = stream.next();
+        Assert.assertEquals(1, entry.getSeq());
+        Assert.assertNotNull(entry.getResponse());
+        Assert.assertEquals(1, entry.toJson().get("seq").asInt());
+
+        findCb.sem.release(1);
+        Assert.assertTrue(stream.hasNext());
+        entry = stream.next();
+        Assert.assertEquals(0, entry.getSeq());
+        Assert.assertFalse(stream.hasNext());
+    }
+
+    @Test
+    public void coalescedBulkWritesTest() throws Exception {
+        mediator.factory.setBulkWriteBatchSize(10);
+        RestClientIdentification client = new RestClientIdentification(Arrays.asList("test-insert", "test-update", "test-find"));
+        BulkRequest breq = new BulkRequest();
+        for (int i = 0; i < 3; i++) {
+            InsertionRequest ireq = new InsertionRequest();
+            ireq.setEntityVersion(new EntityVersion("test", "1.0"));
+            ireq.setEntityData(loadJsonNode("./sample1.json"));
+            ireq.setClientId(client);
+            breq.add(ireq);
+        }
+        FindRequest freq = new FindRequest();
+        freq.setEntityVersion(new EntityVersion("test", "1.0"));
+        freq.setClientId(client);
+        breq.add(freq);
+        InsertionRequest ireq = new InsertionRequest();
+        ireq.setEntityVersion(new EntityVersion("test", "1.0"));
+        ireq.setEntityData(loadJsonNode("./sample1.json"));
+        ireq.setClientId(client);
+        breq.add(ireq);
+
+        List<int[]> units = BulkWriteCoalescer.group(breq.getEntries(), 10);
+        Assert.assertEquals(3, units.size());
+        Assert.assertArrayEquals(new int[]{0, 1, 2}, units.get(0));
+        Assert.assertArrayEquals(new int[]{3}, units.get(1));
+        Assert.assertArrayEquals(new int[]{4}, units.get(2));
+
+        AtomicInteger numCalls = new AtomicInteger(0);
+        mockCrudController.insertResponse = new CRUDInsertionResponse();
+        mockCrudController.insertResponse.setNumInserted(2);
+        mockCrudController.insertCb = ctx -> {
+            if (numCalls.incrementAndGet() == 1) {
+                ctx.getInputDocuments().get(1).addError(Error.get("dup"));
+            }
+        };
+
+        BulkResponse bresp = mediator.bulkRequest(breq, noopMetrics);
+
+        Assert.assertEquals(2, numCalls.get());
+        Assert.assertEquals(5, bresp.getEntries().size());
+        Assert.assertEquals(OperationStatus.COMPLETE, bresp.getEntries().get(0).getStatus());
+        Assert.assertEquals(1, bresp.getEntries().get(0).getModifiedCount());
+        Assert.assertEquals(1, bresp.getEntries().get(0).getEntityData().size());
+        Assert.assertEquals(OperationStatus.ERROR, bresp.getEntries().get(1).getStatus());
+        Assert.assertEquals(1, bresp.getEntries().get(1).getDataErrors().size());
+        Assert.assertEquals("dup", bresp.getEntries().get(1).getDataErrors().get(0).getErrors().get(0).getErrorCode());
+        Assert.assertEquals(OperationStatus.COMPLETE, bresp.getEntries().get(2).getStatus());
+        Assert.assertEquals(0, bresp.getEntries().get(2).getDataErrors().size());
+    }
+
+    @Test
+    public void coalescesWritesOfEqualClients() throws Exception {
+        BulkRequest breq = new BulkRequest();
+        for (List<String> roles : Arrays.asList(Arrays.asList("test-insert"), Arrays.asList("test-insert"), Arrays.asList("test-update"))) {
+            InsertionRequest ireq = new InsertionRequest();
+            ireq.setEntityVersion(new EntityVersion("test", "1.0"));
+            ireq.setEntityData(loadJsonNode("./sample1.json"));
+            // A distinct client identification instance for every request
+            ireq.setClientId(new RestClientIdentification(roles));
+            breq.add(ireq);
+        }
+        List<int[]> units = BulkWriteCoalescer.group(breq.getEntries(), 10);
+        Assert.assertEquals(2, units.size());
+        Assert.assertArrayEquals(new int[]{0, 1}, units.get(0));
+        Assert.assertArrayEquals(new int[]{2}, units.get(1));
+    }
+
+    @Test
+    public void bulkDependencyGraphTest() throws Exception {
+        FindRequest findA = new FindRequest();
+        findA.setEntityVersion(new EntityVersion("a", "1.0"));
+        FindRequest findB = new FindRequest();
+        findB.setEntityVersion(new EntityVersion("b", "1.0"));
+        InsertionRequest insertA = new InsertionRequest();
+        insertA.setEntityVersion(new EntityVersion("a", "1.0"));
+        InsertionRequest insertB = new InsertionRequest();
+        insertB.setEntityVersion(new EntityVersion("b", "2.0"));
+
+        BulkDependencyGraph graph = new BulkDependencyGraph(Arrays.asList(findA, findB, insertB, findA, insertA, findB), mdManager);
+
+        Assert.assertEquals(0, graph.getNumDependencies(0));
+        Assert.assertEquals(0, graph.getNumDependencies(1));
+        // insert b waits for find b
+        Assert.assertEquals(1, graph.getNumDependencies(2));
+        Assert.assertEquals(Arrays.asList(2), graph.getDependents(1));
+        Assert.assertEquals(0, graph.getNumDependencies(3));
+        // insert a waits for both finds on a
+        Assert.assertEquals(2, graph.getNumDependencies(4));
+        Assert.assertEquals(Arrays.asList(4), graph.getDependents(0));
+        Assert.assertEquals(Arrays.asList(4), graph.getDependents(3));
+        // find b waits for insert b
+        Assert.assertEquals(1, graph.getNumDependencies(5));
+        Assert.assertEquals(Arrays.asList(5), graph.getDependents(2));
+    }
+
     @Test
     public void parallelUnorderedBulkTest() throws Exception {
         BulkRequest breq = new BulkRequest();
@@ -415,6 +600,84 @@ public class BulkTest extends AbstractMediatorTest {
         Assert.assertTrue(validator.valid);
     }
     
+    @Test
+    public void saturatedBulkExecutorRejectsEntries() throws Exception {
+        mediator.factory.setBulkMaxThreads(1);
+        mediator.factory.setBulkQueueSize(0);
+        mediator.factory.setBulkQueueTimeoutMS(0);
+
+        BulkRequest breq = new BulkRequest();
+        breq.setOrdered(false);
+
+        FindRequest freq = new FindRequest();
+        freq.setEntityVersion(new EntityVersion("test", "1.0"));
+        freq.setClientId(new RestClientIdentification(Arrays.asList("test-find")));
+        breq.add(freq);
+        breq.add(freq);
+
+        PFindCb findCb = new PFindCb();
+        ((TestMediator) mediator).findCb = findCb;
+
+        ValidatorThread validator = new ValidatorThread(findCb, null) {
+            @Override
+            public void run() {
+                try {
+                    // The first find holds the only thread
+                    while (find.nested.get() < 1) {
+                        Thread.sleep(1);
+                    }
+                    find.sem.release(1);
+                    valid = true;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        validator.start();
+        BulkResponse bresp = mediator.bulkRequest(breq, noopMetrics);
+        validator.join();
+
+        Assert.assertTrue(validator.valid);
+        Assert.assertEquals(0, findCb.nested.get());
+        Response rejected = bresp.getEntries().get(1);
+        Assert.assertEquals(OperationStatus.ERROR, rejected.getStatus());
+        Assert.assertEquals(1, rejected.getErrors().size());
+        Assert.assertEquals(CrudConstants.ERR_BULK_EXECUTOR_SATURATED, rejected.getErrors().get(0).getErrorCode());
+        Assert.assertEquals(0, mediator.factory.getBulkExecutor().getQueueDepth());
+    }
+
+    @Test
+    public void cancelledQueuedEntryReleasesCapacity() throws Exception {
+        BulkExecutor executor = new BulkExecutor(1, 1, 0);
+        try {
+            BulkExecutor.Session session = executor.newSession(10);
+            CountDownLatch running = new CountDownLatch(1);
+            CountDownLatch proceed = new CountDownLatch(1);
+            // Holds the only thread
+            Future<Object> first = session.submit(() -> {
+                running.countDown();
+                proceed.await();
+                return null;
+            }, noopMetrics);
+            running.await();
+            Future<Object> queued = session.submit(() -> null, noopMetrics);
+            Assert.assertEquals(1, executor.getQueueDepth());
+
+            queued.cancel(true);
+            Assert.assertEquals(0, executor.getQueueDepth());
+            // The queue slot of the cancelled entry can be used again
+            Future<Object> next = session.submit(() -> "ok", noopMetrics);
+            Assert.assertEquals(1, executor.getQueueDepth());
+
+            proceed.countDown();
+            first.get();
+            Assert.assertEquals("ok", next.get());
+            Assert.assertEquals(0, executor.getQueueDepth());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void tracksMetricsForRequestsInsideBulkRequest() throws Exception {
         MetricRegistry metricsRegistry = new MetricRegistry();
@@ -472,5 +735,10 @@ public class BulkTest extends AbstractMediatorTest {
         Assert.assertEquals(CrudConstants.ERR_NO_ACCESS, response.getErrors().get(0).getErrorCode());
         Assert.assertEquals(1, deleteTest.requestTimer(metricsRegistry).getCount());
         Assert.assertEquals(1, deleteTest.errorMeter(metricsRegistry, CrudConstants.ERR_NO_ACCESS).getCount());
+
+        // All entries run on the bulk executor
+        RequestMetric bulkQueue = metricNamer.bulkQueue();
+        Assert.assertEquals(3, bulkQueue.requestTimer(metricsRegistry).getCount());
+        Assert.assertEquals(3, bulkQueue.sizeHistogram(metricsRegistry).getCount());
     }
 }
@@ -23,7 +23,9 @@ import java.util.List;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
@@ -52,11 +54,15 @@ import com.redhat.lightblue.crud.UpdateRequest;
 import com.redhat.lightblue.crud.DeleteRequest;
 import com.redhat.lightblue.crud.CRUDDeleteResponse;
 import com.redhat.lightblue.crud.ExplainQuerySupport;
+import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.crud.DocumentStream;
+import com.redhat.lightblue.crud.ListDocumentStream;
 import com.redhat.lightblue.crud.validator.DefaultFieldConstraintValidators;
 import com.redhat.lightblue.crud.validator.EmptyEntityConstraintValidators;
 
 import com.redhat.lightblue.assoc.QueryPlan;
 
+import com.redhat.lightblue.query.NaryValueRelationalExpression;
 import com.redhat.lightblue.query.QueryExpression;
 import com.redhat.lightblue.query.Projection;
 import com.redhat.lightblue.query.Sort;
@@ -71,6 +77,7 @@ import com.redhat.lightblue.util.Error;
 
 import com.redhat.lightblue.TestDataStoreParser;
 
+import com.redhat.lightblue.OperationStatus;
 import com.redhat.lightblue.Response;
 import com.redhat.lightblue.Request;
 import com.redhat.lightblue.EntityVersion;
@@ -85,6 +92,10 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
     private static String errorEntity;
 
     private QueryExpression updateQuery;
+    private final List<QueryExpression> updateQueries = new ArrayList<>();
+    // If set, the find on this entity returns its first document again at
+    // the end, like a cursor passing a document moved by an update
+    private String repeatFirstEntity;
 
     private class TestMetadata extends DatabaseMetadata {
         @Override
@@ -138,7 +149,11 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
                                          UpdateExpression update,
                                          Projection projection) {
             updateQuery = query;
-            return new CRUDUpdateResponse();
+            updateQueries.add(query);
+            CRUDUpdateResponse response = new CRUDUpdateResponse();
+            response.setNumUpdated(1);
+            response.setNumMatched(1);
+            return response;
         }
 
         @Override
@@ -146,7 +161,10 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
                                          QueryExpression query) {
 
             updateQuery = query;
-            return new CRUDDeleteResponse();
+            updateQueries.add(query);
+            CRUDDeleteResponse response = new CRUDDeleteResponse();
+            response.setNumDeleted(1);
+            return response;
         }
 
         @Override
@@ -160,7 +178,19 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
                 ctx.addError(findError);
                 return new CRUDFindResponse();
             } else {
-                return super.find(ctx, query, projection, sort, from, to);
+                CRUDFindResponse response = super.find(ctx, query, projection, sort, from, to);
+                if (ctx.getEntityName().equals(repeatFirstEntity)) {
+                    List<DocCtx> docs = new ArrayList<>();
+                    DocumentStream<DocCtx> stream = ctx.getDocumentStream();
+                    while (stream.hasNext()) {
+                        docs.add(stream.next());
+                    }
+                    if (!docs.isEmpty()) {
+                        docs.add(new DocCtx(docs.get(0).copy()));
+                    }
+                    ctx.setDocumentStream(new ListDocumentStream<>(docs));
+                }
+                return response;
             }
         }
         @Override
@@ -181,10 +211,15 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
     }
 
     public void initMediator(int memoryIndexThreshold) throws Exception {
+        initMediator(memoryIndexThreshold, 1000);
+    }
+
+    public Factory initMediator(int memoryIndexThreshold, int assembleWindowSize) throws Exception {
         Factory factory = new Factory();
         factory.addFieldConstraintValidators(new DefaultFieldConstraintValidators());
         factory.addEntityConstraintValidators(new EmptyEntityConstraintValidators());
         factory.setMemoryIndexThreshold(memoryIndexThreshold);
+        factory.setAssembleWindowSize(assembleWindowSize);
         factory.addCRUDController("mongo", new CompositeTestCrudController(new TestCrudController.GetData() {
             public List<JsonDoc> getData(String entityName) {
                 try {
@@ -205,8 +240,11 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
         }));
         mediator = new TestMediator(new TestMetadata(), factory);
         updateQuery = null;
+        updateQueries.clear();
         findError = null;
         errorEntity = null;
+        repeatFirstEntity = null;
+        return factory;
     }
 
     private QueryExpression query(String s) throws Exception {
@@ -318,6 +356,46 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
         Assert.assertEquals(1, response.getEntityData().get(2).get("b").size());
     }
 
+    @Test
+    public void retrieveAandBonly_manyA_smallWindow() throws Exception {
+        // Each window assembles a single A document
+        initMediator(16, 1);
+        FindRequest fr = new FindRequest();
+        fr.setQuery(query("{'field':'_id','op':'$in','values':['A01','A02','A03']}"));
+        fr.setProjection(projection("[{'field':'*','recursive':1},{'field':'b'}]"));
+        fr.setSort(sort("{'_id':'$asc'}"));
+        fr.setEntityVersion(new EntityVersion("A", "1.0.0"));
+        Response response = mediator.find(fr);
+        Assert.assertEquals(3, response.getEntityData().size());
+        Assert.assertEquals(3, response.getMatchCount());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals("A0" + (i + 1), response.getEntityData().get(i).get("_id").asText());
+            Assert.assertEquals(1, response.getEntityData().get(i).get("b").size());
+        }
+    }
+
+    @Test
+    public void retrieveAandBonly_sharedB_cached() throws Exception {
+        // Each window assembles a single A document, and all of them reference B77
+        initMediator(16, 1);
+        FindRequest fr = new FindRequest();
+        fr.setQuery(query("{'field':'_id','op':'$in','values':['SHAREDB1','SHAREDB2','SHAREDB3']}"));
+        fr.setProjection(projection("[{'field':'*','recursive':1},{'field':'b'}]"));
+        fr.setSort(sort("{'_id':'$asc'}"));
+        fr.setEntityVersion(new EntityVersion("A", "1.0.0"));
+        Response response = mediator.find(fr);
+        Assert.assertEquals(3, response.getEntityData().size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals("SHAREDB" + (i + 1), response.getEntityData().get(i).get("_id").asText());
+            Assert.assertEquals(1, response.getEntityData().get(i).get("b").size());
+            Assert.assertEquals("B77", response.getEntityData().get(i).get("b").get(0).get("_id").asText());
+        }
+        // B77 is retrieved by the first window, the others use the cached document
+        String explain = mediator.explain(fr).getEntityData().get(0).toString();
+        Assert.assertTrue(explain, explain.indexOf("\"batches\":1,") != -1);
+        Assert.assertTrue(explain, explain.indexOf("\"cacheLookups\":3,\"cacheHits\":2") != -1);
+    }
+
     @Test
     public void retrieveAandBonly_manyA_nullproj() throws Exception {
         FindRequest fr = new FindRequest();
@@ -405,6 +483,33 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
         Assert.assertEquals("C", qplan.getSources()[0].getMetadata().getName());
     }
 
+    private List<String> findCFirstIds(int joinPrefetchDepth) throws Exception {
+        Factory factory = initMediator(16, 1000);
+        factory.setJoinPrefetchDepth(joinPrefetchDepth);
+        // One query in each join batch
+        factory.setMinBatchSize(1);
+        factory.setMaxBatchSize(1);
+        FindRequest fr = new FindRequest();
+        fr.setQuery(query("{'field':'obj1.c.*.objectType','op':'=','rvalue':'C'}"));
+        fr.setProjection(projection("[{'field':'*','recursive':1},{'field':'obj1.c'}]"));
+        fr.setEntityVersion(new EntityVersion("A", "1.0.0"));
+        Response response = mediator.find(fr);
+        Assert.assertTrue(response.getErrors().isEmpty());
+        List<String> ids = new ArrayList<>();
+        for (JsonNode doc : response.getEntityData()) {
+            ids.add(doc.get("_id").asText());
+        }
+        return ids;
+    }
+
+    @Test
+    public void retrieveAandConly_CFirst_prefetch() throws Exception {
+        List<String> ids = findCFirstIds(0);
+        Assert.assertTrue(ids.size() > 1);
+        Assert.assertEquals(ids, findCFirstIds(1));
+        Assert.assertEquals(ids, findCFirstIds(3));
+    }
+
     @Test
     public void retrieveAandConly_CFirst_range() throws Exception {
         FindRequest fr = new FindRequest();
@@ -432,6 +537,22 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
         Assert.assertTrue(doc.toString().indexOf("testController")!=-1);
     }
 
+    @Test
+    public void explainReportsBatchStats() throws Exception {
+        FindRequest fr = new FindRequest();
+        fr.setQuery(query("{'field':'_id','op':'$in','values':['A01','A02','A03']}"));
+        fr.setProjection(projection("[{'field':'*','recursive':1},{'field':'b'}]"));
+        fr.setEntityVersion(new EntityVersion("A", "1.0.0"));
+        Response response = mediator.explain(fr);
+        Assert.assertTrue(response.getEntityData().get(0).toString().indexOf("\"batch\"")==-1);
+
+        mediator.find(fr);
+        response = mediator.explain(fr);
+        JsonNode doc=response.getEntityData().get(0);
+        // Statistics of the batches of the find are in the explain output
+        Assert.assertTrue(doc.toString().indexOf("\"batches\":1")!=-1);
+    }
+
     @Test
     public void retrieveAandBonly_2q() throws Exception {
         FindRequest fr = new FindRequest();
@@ -670,6 +791,57 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
         Assert.assertTrue(updateQuery instanceof ValueComparisonExpression);
     }
 
+    @Test
+    public void updateWithAssocqInBatches() throws Exception {
+        mediator.factory.setCompositeWriteBatchSize(2);
+        UpdateRequest urq = new UpdateRequest();
+        urq.setQuery(query("{'field':'b.*._id','op':'$in','values':['B01','B02','B03']}"));
+        urq.setUpdateExpression(update("{'$set':{'field1':1}}"));
+        urq.setEntityVersion(new EntityVersion("A", "1.0.0"));
+
+        Response response = mediator.update(urq);
+        Assert.assertEquals(2, updateQueries.size());
+        Assert.assertTrue(updateQueries.get(0) instanceof NaryValueRelationalExpression);
+        Assert.assertEquals(2, ((NaryValueRelationalExpression) updateQueries.get(0)).getValues().size());
+        Assert.assertTrue(updateQueries.get(1) instanceof ValueComparisonExpression);
+        Assert.assertEquals(2, response.getModifiedCount());
+        Assert.assertEquals(2, response.getMatchCount());
+    }
+
+    @Test
+    public void updateInBatchesUpdatesOnce() throws Exception {
+        mediator.factory.setCompositeWriteBatchSize(1);
+        // The update changes the searched field, and moves the first
+        // document to the end of the search
+        repeatFirstEntity = "A";
+        UpdateRequest urq = new UpdateRequest();
+        urq.setQuery(query("{'field':'field1','op':'$in','values':['8nH0wBwk7C','PvbBP','P zph-zTEvyIyUoD1fwTmD07']}"));
+        urq.setReturnFields(projection("[{'field':'*','recursive':1},{'field':'b'}]"));
+        urq.setUpdateExpression(update("{'$set':{'field1':'zzz'}}"));
+        urq.setEntityVersion(new EntityVersion("A", "1.0.0"));
+
+        Response response = mediator.update(urq);
+        Set<String> ids = new HashSet<>();
+        for (QueryExpression q : updateQueries) {
+            Assert.assertTrue(q instanceof ValueComparisonExpression);
+            Assert.assertTrue(ids.add(((ValueComparisonExpression) q).getRvalue().getValue().toString()));
+        }
+        Assert.assertEquals(3, ids.size());
+        Assert.assertEquals(3, response.getModifiedCount());
+    }
+
+    @Test
+    public void deleteWithAssocqInBatches() throws Exception {
+        mediator.factory.setCompositeWriteBatchSize(2);
+        DeleteRequest drq = new DeleteRequest();
+        drq.setQuery(query("{'field':'b.*._id','op':'$in','values':['B01','B02','B03']}"));
+        drq.setEntityVersion(new EntityVersion("A", "1.0.0"));
+
+        Response response = mediator.delete(drq);
+        Assert.assertEquals(2, updateQueries.size());
+        Assert.assertEquals(2, response.getModifiedCount());
+    }
+
     @Test
     public void rev_search_with_arraycond() throws Exception {
         /**
@@ -715,6 +887,30 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
         Assert.assertEquals(0, response.getEntityData().size());
     }
 
+    private void assertCountMatchesFind(String entity, String version, String q, int expected) throws Exception {
+        FindRequest fr = new FindRequest();
+        fr.setQuery(query(q));
+        fr.setProjection(projection("[{'field':'*','recursive':1}]"));
+        fr.setEntityVersion(new EntityVersion(entity, version));
+        Response found = mediator.find(fr);
+        Assert.assertEquals(expected, found.getEntityData().size());
+        Response counted = mediator.count(fr);
+        Assert.assertEquals(OperationStatus.COMPLETE, counted.getStatus());
+        Assert.assertNull(counted.getEntityData());
+        Assert.assertEquals(expected, counted.getMatchCount());
+    }
+
+    @Test
+    public void countOnly() throws Exception {
+        // Root entity query only, counted by the controller
+        assertCountMatchesFind("A", "1.0.0", "{'field':'_id','op':'$in','values':['MANYB1','MANYB2']}", 2);
+        // Queries on associated entities
+        assertCountMatchesFind("L", "0.0.1", "{'array':'us.*.authentications','elemMatch':{ '$and':[ { 'field':'principal','op':'$in','values':['a']}, {'field':'providerName','op':'$eq','rvalue':'p'} ] } }", 1);
+        assertCountMatchesFind("UC", "0.0.1", "{'field':'userRedHatPrincipal','op':'=','rvalue':'a'}", 1);
+        assertCountMatchesFind("A_with_index", "1.0.0", "{'$and': [ {'field':'_id','op':'$in','values':['A99','ADEEP']}, {'field':'level1.arr1.*.ref.*.field1','op':'=','rvalue':'bdeep1'} ] }", 1);
+        assertCountMatchesFind("A", "1.0.0", "{'array':'obj1.c','elemMatch':{'field':'b.*.field1','op':'=','rvalue':'F, BLYO4OjLMAT aG.4qJ'}}", 1);
+    }
+
     @Test
     public void elem_match_forward() throws Exception {
         FindRequest fr = new FindRequest();
@@ -790,6 +986,43 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
 
     }
 
+    private void assertOrderCountries(Response response) {
+        Assert.assertTrue(response.getErrors().toString(), response.getErrors().isEmpty());
+        Assert.assertEquals(4, response.getEntityData().size());
+        Assert.assertEquals("United States", response.getEntityData().get(0).get("country").get(0).get("name").asText());
+        Assert.assertEquals("Canada", response.getEntityData().get(1).get("country").get(0).get("name").asText());
+        Assert.assertEquals("United States", response.getEntityData().get(2).get("country").get(0).get("name").asText());
+        Assert.assertEquals(1, response.getEntityData().get(2).get("country").size());
+        Assert.assertNull(response.getEntityData().get(3).get("country"));
+    }
+
+    @Test
+    public void referenceEntityIsCached() throws Exception {
+        FindRequest fr = new FindRequest();
+        fr.setQuery(query("{'field':'objectType','op':'=','rvalue':'ref_order'}"));
+        fr.setProjection(projection("[{'field':'*','recursive':1},{'field':'country','recursive':1}]"));
+        fr.setSort(sort("{'_id':'$asc'}"));
+        fr.setEntityVersion(new EntityVersion("ref_order", "1.0.0"));
+        Response response = mediator.find(fr);
+        assertOrderCountries(response);
+        Assert.assertEquals(1, mediator.factory.getReferenceEntityCache().getNumEntries());
+
+        // Countries are not read from the back end again
+        findError = Error.get("NoAccess", "blah");
+        errorEntity = "ref_country";
+        assertOrderCountries(mediator.find(fr));
+
+        // Writing to the countries invalidates the cache
+        UpdateRequest urq = new UpdateRequest();
+        urq.setQuery(query("{'field':'_id','op':'=','rvalue':'c1'}"));
+        urq.setUpdateExpression(update("{'$set':{'name':'x'}}"));
+        urq.setEntityVersion(new EntityVersion("ref_country", "1.0.0"));
+        mediator.update(urq);
+        Assert.assertEquals(0, mediator.factory.getReferenceEntityCache().getNumEntries());
+        response = mediator.find(fr);
+        Assert.assertEquals(1, response.getErrors().size());
+    }
+
     @Test
     public void assocQWithNull() throws Exception {
         FindRequest fr = new FindRequest();
@@ -1107,6 +1340,27 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
         Assert.assertEquals(3,response.getEntityData().size());
     }
 
+    @Test
+    public void sortedRangeOnChildQuery_usesTopK() throws Exception {
+        FindRequest fr = new FindRequest();
+        fr.setQuery(query("{'field':'b.*._id','op':'$in','values':['B01','B02','B03','B04','B05']}"));
+        fr.setProjection(projection("[{'field':'_id'}]"));
+        fr.setSort(sort("{'_id':'$desc'}"));
+        fr.setEntityVersion(new EntityVersion("A", "1.0.0"));
+        Response all = mediator.find(fr);
+        Assert.assertTrue(all.getEntityData().size() > 3);
+
+        fr.setFrom(1l);
+        fr.setTo(2l);
+        Response page = mediator.find(fr);
+        Assert.assertEquals(all.getEntityData().size(), page.getMatchCount());
+        Assert.assertEquals(2, page.getEntityData().size());
+        Assert.assertEquals(all.getEntityData().get(1), page.getEntityData().get(0));
+        Assert.assertEquals(all.getEntityData().get(2), page.getEntityData().get(1));
+        String explain = mediator.explain(fr).getEntityData().get(0).toString();
+        Assert.assertTrue(explain, explain.indexOf("\"topK\":3") != -1);
+    }
+
     @Test
     public void obeys_memory_thresholds_inside_execution_context() throws Exception {
         FindRequest fr = new FindRequest();
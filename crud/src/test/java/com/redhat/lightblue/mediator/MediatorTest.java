@@ -18,8 +18,17 @@
  */
 package com.redhat.lightblue.mediator;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -28,25 +37,41 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.redhat.lightblue.EntityVersion;
+import com.redhat.lightblue.ExecutionOptions;
 import com.redhat.lightblue.OperationStatus;
 import com.redhat.lightblue.Response;
 import com.redhat.lightblue.ResultMetadata;
+import com.redhat.lightblue.crud.AsyncFindSupport;
+import com.redhat.lightblue.crud.CRUDController;
 import com.redhat.lightblue.crud.CRUDDeleteResponse;
 import com.redhat.lightblue.crud.CRUDFindResponse;
+import com.redhat.lightblue.crud.CRUDHealth;
 import com.redhat.lightblue.crud.CRUDInsertionResponse;
+import com.redhat.lightblue.crud.CRUDOperationContext;
 import com.redhat.lightblue.crud.CRUDSaveResponse;
 import com.redhat.lightblue.crud.CRUDUpdateResponse;
 import com.redhat.lightblue.crud.CrudConstants;
 import com.redhat.lightblue.crud.DeleteRequest;
 import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.crud.FindCoalescer;
+import com.redhat.lightblue.crud.FindResultCache;
 import com.redhat.lightblue.crud.FindRequest;
 import com.redhat.lightblue.crud.InsertionRequest;
+import com.redhat.lightblue.crud.KeysetPagination;
 import com.redhat.lightblue.crud.ListDocumentStream;
+import com.redhat.lightblue.interceptor.InterceptPoint;
+import com.redhat.lightblue.interceptor.MediatorInterceptor;
 import com.redhat.lightblue.crud.SaveRequest;
 import com.redhat.lightblue.crud.UpdateRequest;
+import com.redhat.lightblue.metadata.MetadataListener;
 import com.redhat.lightblue.metadata.MetadataStatus;
 import com.redhat.lightblue.query.BinaryComparisonOperator;
 import com.redhat.lightblue.query.FieldProjection;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.query.Sort;
+import com.redhat.lightblue.query.SortKey;
+import com.redhat.lightblue.query.UpdateExpression;
 import com.redhat.lightblue.query.Value;
 import com.redhat.lightblue.query.ValueComparisonExpression;
 import com.redhat.lightblue.util.Error;
@@ -91,6 +116,82 @@ public class MediatorTest extends AbstractMediatorTest {
         Assert.assertEquals(0, response.getErrors().size());
     }
 
+    @Test
+    public void insertFromStreamTest() throws Exception {
+        mediator.factory.setWriteChunkSize(2);
+        InsertionRequest req = new InsertionRequest();
+        req.setEntityVersion(new EntityVersion("test", "1.0"));
+        req.setClientId(new RestClientIdentification(Arrays.asList("test-insert", "test-update")));
+        List<JsonNode> docs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            docs.add(loadJsonNode("./sample1.json"));
+        }
+        List<Integer> chunkSizes = new ArrayList<>();
+        mockCrudController.insertResponse = new CRUDInsertionResponse();
+        mockCrudController.insertCb = ctx -> {
+            chunkSizes.add(ctx.getInputDocuments().size());
+            mockCrudController.insertResponse.setNumInserted(ctx.getInputDocuments().size());
+        };
+        List<Response> chunkResponses = new ArrayList<>();
+
+        Response response = mediator.insertFromStream(req, docs.iterator(), chunkResponses::add);
+
+        Assert.assertEquals(Arrays.asList(2, 2, 1), chunkSizes);
+        Assert.assertEquals(3, chunkResponses.size());
+        Assert.assertEquals(1, chunkResponses.get(2).getEntityData().size());
+        Assert.assertEquals(OperationStatus.COMPLETE, response.getStatus());
+        Assert.assertEquals(5, response.getModifiedCount());
+        Assert.assertNull(response.getEntityData());
+        Assert.assertEquals(0, response.getDataErrors().size());
+        Assert.assertEquals(0, response.getErrors().size());
+    }
+
+    @Test
+    public void insertFromStreamStopsOnErrorTest() throws Exception {
+        mediator.factory.setWriteChunkSize(2);
+        InsertionRequest req = new InsertionRequest();
+        req.setEntityVersion(new EntityVersion("test", "1.0"));
+        req.setClientId(new RestClientIdentification(Arrays.asList("test-update")));
+        List<JsonNode> docs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            docs.add(loadJsonNode("./sample1.json"));
+        }
+        List<Response> chunkResponses = new ArrayList<>();
+
+        Response response = mediator.insertFromStream(req, docs.iterator(), chunkResponses::add);
+
+        Assert.assertEquals(1, chunkResponses.size());
+        Assert.assertEquals(OperationStatus.ERROR, response.getStatus());
+        Assert.assertEquals(CrudConstants.ERR_NO_ACCESS, response.getErrors().get(0).getErrorCode());
+    }
+
+    @Test
+    public void insertFromStreamCapsDataErrorsTest() throws Exception {
+        mediator.factory.setWriteChunkSize(2);
+        InsertionRequest req = new InsertionRequest();
+        req.setEntityVersion(new EntityVersion("test", "1.0"));
+        req.setClientId(new RestClientIdentification(Arrays.asList("test-insert", "test-update")));
+        List<JsonNode> docs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            docs.add(loadJsonNode("./sample1.json"));
+        }
+        mockCrudController.insertResponse = new CRUDInsertionResponse();
+        mockCrudController.insertCb = ctx -> ctx.getInputDocuments().forEach(doc -> doc.addError(Error.get("dup")));
+
+        // Data errors are only returned in the chunk responses
+        List<Response> chunkResponses = new ArrayList<>();
+        Response response = mediator.insertFromStream(req, docs.iterator(), chunkResponses::add);
+        Assert.assertEquals(3, chunkResponses.size());
+        Assert.assertEquals(1, chunkResponses.get(2).getDataErrors().size());
+        Assert.assertEquals(OperationStatus.ERROR, response.getStatus());
+        Assert.assertEquals(0, response.getDataErrors().size());
+
+        // Without a listener, at most one chunk of data errors is returned
+        response = mediator.insertFromStream(req, docs.iterator(), null);
+        Assert.assertEquals(OperationStatus.ERROR, response.getStatus());
+        Assert.assertEquals(2, response.getDataErrors().size());
+    }
+
     private ResultMetadata getRmd(String ver) {
         ResultMetadata md=new ResultMetadata();
         md.setDocumentVersion(ver);
@@ -359,6 +460,178 @@ public class MediatorTest extends AbstractMediatorTest {
         Assert.assertEquals("1.0",response.getEntity().getVersion());
     }
 
+    @Test
+    public void findDeadlineExceededTest() throws Exception {
+        FindRequest req = new FindRequest();
+        req.setEntityVersion(new EntityVersion("test", "1.0"));
+        req.setExecution(ExecutionOptions.fromJson((ObjectNode) JsonUtils.json("{\"deadlineMS\":\"0\"}")));
+
+        mdManager.md.getAccess().getFind().setRoles("anyone");
+        mockCrudController.findCb=ctx->ctx.setDocumentStream(new ListDocumentStream<DocCtx>(new ArrayList<DocCtx>()));
+        mockCrudController.findResponse = new CRUDFindResponse();
+        Response response = mediator.find(req);
+
+        Assert.assertEquals(OperationStatus.ERROR, response.getStatus());
+        Assert.assertEquals(1, response.getErrors().size());
+        Assert.assertEquals(CrudConstants.ERR_DEADLINE_EXCEEDED, response.getErrors().get(0).getErrorCode());
+    }
+
+    @Test
+    public void findProfileTest() throws Exception {
+        FindRequest req = new FindRequest();
+        req.setEntityVersion(new EntityVersion("test", "1.0"));
+
+        mdManager.md.getAccess().getFind().setRoles("anyone");
+        mockCrudController.findCb=ctx->ctx.setDocumentStream(new ListDocumentStream<DocCtx>(new ArrayList<DocCtx>()));
+        mockCrudController.findResponse = new CRUDFindResponse();
+        Response response = mediator.find(req);
+        Assert.assertNull(response.getProfile());
+        Assert.assertNull(response.toJson().get("profile"));
+
+        req.setExecution(ExecutionOptions.fromJson((ObjectNode) JsonUtils.json("{\"profile\":\"true\"}")));
+        response = mediator.find(req);
+        Assert.assertEquals(OperationStatus.COMPLETE, response.getStatus());
+        JsonNode profile = response.toJson().get("profile");
+        Assert.assertEquals(1, profile.size());
+        Assert.assertEquals("find", profile.get(0).get("phase").asText());
+        Assert.assertEquals(1, profile.get(0).get("count").asLong());
+        Assert.assertTrue(profile.get(0).get("totalNs").asLong() > 0);
+        Assert.assertEquals("finder.find", profile.get(0).get("phases").get(0).get("phase").asText());
+    }
+
+    @Test
+    public void countTest() throws Exception {
+        FindRequest req = new FindRequest();
+        req.setEntityVersion(new EntityVersion("test", "1.0"));
+        req.setFrom(0l);
+        req.setTo(0l);
+
+        mdManager.md.getAccess().getFind().setRoles("anyone");
+        List<DocCtx> docs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            docs.add(new DocCtx(new JsonDoc(JsonNodeFactory.instance.objectNode())));
+        }
+        mockCrudController.findCb=ctx->{
+            Assert.assertTrue(ctx.isComputeCounts());
+            ctx.setDocumentStream(new ListDocumentStream<DocCtx>(docs));
+        };
+        mockCrudController.findResponse = new CRUDFindResponse();
+        mockCrudController.findResponse.setSize(3);
+        Response response = mediator.count(req);
+
+        Assert.assertEquals(OperationStatus.COMPLETE, response.getStatus());
+        Assert.assertEquals(3, response.getMatchCount());
+        Assert.assertNull(response.getEntityData());
+    }
+
+    @Test
+    public void findInterceptorsDisableCachedFindTest() throws Exception {
+        FindRequest req = new FindRequest();
+        req.setEntityVersion(new EntityVersion("test", "1.0"));
+
+        mdManager.md.getAccess().getFind().setRoles("anyone");
+        mdManager.md.getEntityInfo().getProperties().put(FindResultCache.PROP_CACHE_FINDS, true);
+        AtomicInteger intercepted = new AtomicInteger(0);
+        mediator.factory.getInterceptors().registerInterceptor(1,
+                (MediatorInterceptor) ctx -> intercepted.incrementAndGet(), InterceptPoint.PRE_MEDIATOR_FIND);
+        AtomicInteger calls = new AtomicInteger(0);
+        mockCrudController.findCb=ctx->{
+            calls.incrementAndGet();
+            ctx.setDocumentStream(new ListDocumentStream<DocCtx>(new ArrayList<>()));
+        };
+        mockCrudController.findResponse = new CRUDFindResponse();
+
+        mediator.find(req);
+        mediator.find(req);
+        // Every request runs the interceptors, and the find
+        Assert.assertEquals(2, intercepted.get());
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(0, mediator.factory.getFindResultCache().getNumEntries());
+    }
+
+    @Test
+    public void cachedFindTest() throws Exception {
+        FindRequest req = new FindRequest();
+        req.setEntityVersion(new EntityVersion("test", "1.0"));
+
+        mdManager.md.getAccess().getFind().setRoles("anyone");
+        mdManager.md.getAccess().getDelete().setRoles("anyone");
+        mdManager.md.getEntityInfo().getProperties().put(FindResultCache.PROP_CACHE_FINDS, true);
+        AtomicInteger calls = new AtomicInteger(0);
+        mockCrudController.findCb=ctx->{
+            calls.incrementAndGet();
+            List<DocCtx> docs = new ArrayList<>();
+            docs.add(new DocCtx(new JsonDoc(JsonNodeFactory.instance.objectNode().put("_id", "1"))));
+            ctx.setDocumentStream(new ListDocumentStream<DocCtx>(docs));
+        };
+        mockCrudController.findResponse = new CRUDFindResponse();
+        mockCrudController.findResponse.setSize(1);
+
+        Response r1 = mediator.find(req);
+        Response r2 = mediator.find(req);
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(OperationStatus.COMPLETE, r2.getStatus());
+        Assert.assertEquals(r1.getEntityData(), r2.getEntityData());
+        Assert.assertEquals(1, r2.getMatchCount());
+
+        // Writes invalidate the cached responses of the entity
+        DeleteRequest dreq = new DeleteRequest();
+        dreq.setEntityVersion(new EntityVersion("test", "1.0"));
+        dreq.setQuery(new ValueComparisonExpression(new Path("field1"), BinaryComparisonOperator._eq, new Value("x")));
+        mockCrudController.deleteCb=ctx->{};
+        mockCrudController.deleteResponse = new CRUDDeleteResponse();
+        mediator.delete(dreq);
+        Assert.assertEquals(0, mediator.factory.getFindResultCache().getNumEntries());
+        mediator.find(req);
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void coalescedFindTest() throws Exception {
+        FindRequest req = new FindRequest();
+        req.setEntityVersion(new EntityVersion("test", "1.0"));
+
+        mdManager.md.getAccess().getFind().setRoles("anyone");
+        mdManager.md.getEntityInfo().getProperties().put(FindCoalescer.PROP_COALESCE_FINDS, true);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger(0);
+        mockCrudController.findCb=ctx->{
+            calls.incrementAndGet();
+            started.countDown();
+            List<DocCtx> docs = new ArrayList<>();
+            try {
+                release.await();
+                docs.add(new DocCtx(new JsonDoc(JsonUtils.json("{\"_id\":\"1\"}"))));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            ctx.setDocumentStream(new ListDocumentStream<DocCtx>(docs));
+        };
+        mockCrudController.findResponse = new CRUDFindResponse();
+        mockCrudController.findResponse.setSize(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Response> leader = executor.submit(() -> mediator.find(req));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Future<Response> follower = executor.submit(() -> mediator.find(req));
+            while (mediator.factory.getFindCoalescer().getCoalescedCount() == 0) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            Response r1 = leader.get(5, TimeUnit.SECONDS);
+            Response r2 = follower.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(1, calls.get());
+            Assert.assertEquals(OperationStatus.COMPLETE, r2.getStatus());
+            Assert.assertEquals(1, r2.getMatchCount());
+            Assert.assertEquals(r1.getEntityData(), r2.getEntityData());
+            Assert.assertNotSame(r1.getEntityData(), r2.getEntityData());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Test
     public void findAndStream_ErrorHandling() throws Exception {
         mdManager.md = null;
@@ -475,6 +748,42 @@ public class MediatorTest extends AbstractMediatorTest {
         Assert.assertEquals("11290B > 11000B", response.getErrors().get(0).getMsg());
     }
 
+    @Test
+    public void streamingResponseWriterTest() throws Exception {
+        final JsonNode sampleDoc = loadJsonNode("./sample1.json");
+
+        FindRequest req = new FindRequest();
+        req.setEntityVersion(new EntityVersion("test", "1.0"));
+
+        mdManager.md.getAccess().getFind().setRoles("anyone");
+        mockCrudController.findResponse = new CRUDFindResponse();
+        mockCrudController.findCb=ctx->{
+            ArrayList<DocCtx> docs=new ArrayList<>();
+            for(int i=0;i<10;i++) {
+                docs.add(new DocCtx(new JsonDoc(sampleDoc.deepCopy()),getRmd(Integer.toString(i))));
+            }
+            ctx.setDocumentStream(new ListDocumentStream<DocCtx>(docs));
+        };
+
+        JsonNode expected = mediator.find(req).toJson();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new StreamingResponseWriter(0, 0).write(mediator.findAndStream(req), req, out);
+        JsonNode written = JsonUtils.json(out.toString("UTF-8"));
+        Assert.assertEquals("COMPLETE", written.get("status").asText());
+        Assert.assertEquals(10, written.get("matchCount").asInt());
+        Assert.assertEquals(expected.get("processed").toString(), written.get("processed").toString());
+        Assert.assertEquals(expected.get("resultMetadata").toString(), written.get("resultMetadata").toString());
+        Assert.assertNull(written.get("errors"));
+
+        out = new ByteArrayOutputStream();
+        new StreamingResponseWriter(5000, 0).write(mediator.findAndStream(req), req, out);
+        written = JsonUtils.json(out.toString("UTF-8"));
+        Assert.assertEquals("ERROR", written.get("status").asText());
+        Assert.assertTrue(written.get("processed").size() < 10);
+        Assert.assertEquals(1, written.get("errors").size());
+        Assert.assertEquals(Response.ERR_RESULT_SIZE_TOO_LARGE, written.get("errors").get(0).get("errorCode").asText());
+    }
+
     @Test
     public void updateResultSetTooLargeTest() throws Exception {
 
@@ -636,4 +945,145 @@ public class MediatorTest extends AbstractMediatorTest {
         System.out.println(mockCrudController.ctx.getInputDocuments().get(0));
     }
 
+    @Test
+    public void findAsyncOnExecutorTest() throws Exception {
+        FindRequest req = new FindRequest();
+        req.setEntityVersion(new EntityVersion("test", "1.0"));
+
+        mdManager.md.getAccess().getFind().setRoles("anyone");
+        List<String> threads = new ArrayList<>();
+        mockCrudController.findCb=ctx->{
+            threads.add(Thread.currentThread().getName());
+            List<DocCtx> docs = new ArrayList<>();
+            docs.add(new DocCtx(new JsonDoc(JsonNodeFactory.instance.objectNode().put("_id", "1"))));
+            ctx.setDocumentStream(new ListDocumentStream<DocCtx>(docs));
+        };
+        mockCrudController.findResponse = new CRUDFindResponse();
+        mockCrudController.findResponse.setSize(1);
+
+        Response response = mediator.findAsync(req).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(OperationStatus.COMPLETE, response.getStatus());
+        Assert.assertEquals(1, response.getEntityData().size());
+        Assert.assertEquals(1, response.getMatchCount());
+        // The mock controller blocks, so the find ran on the async executor
+        Assert.assertTrue(threads.get(0).startsWith("lightblue-async-"));
+    }
+
+    @Test
+    public void findAsyncNonBlockingTest() throws Exception {
+        FindRequest req = new FindRequest();
+        req.setEntityVersion(new EntityVersion("test", "1.0"));
+
+        mdManager.md.getAccess().getFind().setRoles("anyone");
+        AsyncCrudController controller = new AsyncCrudController();
+        mediator.factory.addCRUDController("mongo", controller);
+
+        CompletableFuture<Response> future = mediator.findAsync(req);
+        // The controller is waiting for the back-end, no thread is blocked
+        Assert.assertFalse(future.isDone());
+        Assert.assertNotNull(controller.pending);
+        List<DocCtx> docs = new ArrayList<>();
+        docs.add(new DocCtx(new JsonDoc(JsonNodeFactory.instance.objectNode().put("_id", "1"))));
+        controller.ctx.setDocumentStream(new ListDocumentStream<DocCtx>(docs));
+        CRUDFindResponse result = new CRUDFindResponse();
+        result.setSize(1);
+        controller.pending.complete(result);
+
+        Response response = future.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(OperationStatus.COMPLETE, response.getStatus());
+        Assert.assertEquals(1, response.getEntityData().size());
+
+        // Cancelling the returned future cancels the controller future
+        future = mediator.findAsync(req);
+        future.cancel(true);
+        Assert.assertTrue(controller.pending.isCancelled());
+    }
+
+    @Test
+    public void keysetFindTest() throws Exception {
+        mdManager.md = getMd("./usermd.json");
+        FindRequest req = new FindRequest();
+        req.setEntityVersion(new EntityVersion("user", "5.0.0"));
+        req.setSort(new SortKey(new Path("login"), false));
+        req.setProjection(new FieldProjection(new Path("login"), true, false));
+        req.setTo(0l);
+        ExecutionOptions options = new ExecutionOptions();
+        options.getOptions().put(KeysetPagination.OPT_KEYSET, "true");
+        req.setExecution(options);
+
+        mockCrudController.findCb=ctx->{
+            List<DocCtx> docs = new ArrayList<>();
+            docs.add(new DocCtx(new JsonDoc(JsonNodeFactory.instance.objectNode().put("login", "a").put("_id", "1").put("iduid", "x"))));
+            ctx.setDocumentStream(new ListDocumentStream<DocCtx>(docs));
+        };
+        mockCrudController.findResponse = new CRUDFindResponse();
+        mockCrudController.findResponse.setSize(1);
+
+        Response response = mediator.find(req);
+        Assert.assertEquals(OperationStatus.COMPLETE, response.getStatus());
+        Assert.assertNotNull(response.getContinuation());
+        Assert.assertEquals(response.getContinuation(), response.toJson().get("continuation").asText());
+        // The identity fields used for the token are not returned
+        Assert.assertNull(response.getEntityData().get(0).get("_id"));
+
+        req.setContinuation(response.getContinuation());
+        req.setExecution(null);
+        response = mediator.find(req);
+        Assert.assertEquals(OperationStatus.COMPLETE, response.getStatus());
+
+        req.setContinuation("garbage");
+        response = mediator.find(req);
+        Assert.assertEquals(CrudConstants.ERR_INVALID_CONTINUATION, response.getErrors().get(0).getErrorCode());
+    }
+
+    private static class AsyncCrudController implements CRUDController, AsyncFindSupport {
+        CRUDOperationContext ctx;
+        CompletableFuture<CRUDFindResponse> pending;
+
+        @Override
+        public CompletableFuture<CRUDFindResponse> findAsync(CRUDOperationContext ctx, QueryExpression query, Projection projection, Sort sort, Long from, Long to) {
+            this.ctx = ctx;
+            pending = new CompletableFuture<>();
+            return pending;
+        }
+
+        @Override
+        public CRUDFindResponse find(CRUDOperationContext ctx, QueryExpression query, Projection projection, Sort sort, Long from, Long to) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CRUDInsertionResponse insert(CRUDOperationContext ctx, Projection projection) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CRUDSaveResponse save(CRUDOperationContext ctx, boolean upsert, Projection projection) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CRUDUpdateResponse update(CRUDOperationContext ctx, QueryExpression query, UpdateExpression update, Projection projection) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CRUDDeleteResponse delete(CRUDOperationContext ctx, QueryExpression query) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MetadataListener getMetadataListener() {
+            return null;
+        }
+
+        @Override
+        public void updatePredefinedFields(CRUDOperationContext ctx, JsonDoc doc) {
+        }
+
+        @Override
+        public CRUDHealth checkHealth() {
+            return new CRUDHealth(true, null);
+        }
+    }
 }
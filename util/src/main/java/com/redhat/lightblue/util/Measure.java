@@ -18,31 +18,50 @@
  */
 package com.redhat.lightblue.util;
 
-import java.util.Map;
-import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Records the number of times and the total time spent in named phases of a
+ * request. A phase started while another phase is running is nested in that
+ * phase.
+ */
 public class Measure {
 
-    private final Map<String, Stat> map = new HashMap<>();
+    private final Map<String, Stat> map = new LinkedHashMap<>();
+    private final ArrayList<String> running = new ArrayList<>(32);
 
     private static class Stat {
+        private final String parent;
         private long total;
         private long numSamples;
         private final ArrayList<Long> stack = new ArrayList<>(32);
 
+        public Stat(String parent) {
+            this.parent = parent;
+        }
+
         public void push(long l) {
             stack.add(l);
         }
 
-        public void pop(long l) {
+        public boolean pop(long l) {
             int n = stack.size();
             if (n > 0) {
                 n--;
                 long entry = stack.get(n);
                 stack.remove(n);
                 next(l - entry);
+                return true;
             }
+            return false;
         }
 
         public void next(long value) {
@@ -59,19 +78,96 @@ public class Measure {
         }
     }
 
+    /**
+     * Timing information of a phase
+     */
+    public static class Phase {
+        private final String name;
+        private final String parent;
+        private final long count;
+        private final long totalNanos;
+
+        private Phase(String name, Stat s) {
+            this.name = name;
+            this.parent = s.parent;
+            this.count = s.numSamples;
+            this.totalNanos = s.total;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The phase this phase was first started in, or null
+         */
+        public String getParent() {
+            return parent;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+    }
+
     public void begin(String f) {
         Stat s = map.get(f);
         if (s == null) {
-            map.put(f, s = new Stat());
+            map.put(f, s = new Stat(running.isEmpty() ? null : running.get(running.size() - 1)));
         }
+        running.add(f);
         s.push(System.nanoTime());
     }
 
     public void end(String f) {
         Stat s = map.get(f);
-        if (s != null) {
-            s.pop(System.nanoTime());
+        if (s != null && s.pop(System.nanoTime())) {
+            running.remove(running.lastIndexOf(f));
+        }
+    }
+
+    /**
+     * Returns the completed phases, in the order they were first started
+     */
+    public List<Phase> getPhases() {
+        List<Phase> list = new ArrayList<>(map.size());
+        for (Map.Entry<String, Stat> entry : map.entrySet()) {
+            if (entry.getValue().numSamples > 0) {
+                list.add(new Phase(entry.getKey(), entry.getValue()));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the phases as a JSON array. Each element contains the phase
+     * name, the number of times it ran, its total time in nanoseconds, and
+     * the phases nested in it.
+     */
+    public JsonNode toJson(JsonNodeFactory factory) {
+        return toJson(factory, null, getPhases());
+    }
+
+    private static ArrayNode toJson(JsonNodeFactory factory, String parent, List<Phase> phases) {
+        ArrayNode arr = factory.arrayNode();
+        for (Phase p : phases) {
+            if (parent == null ? p.parent == null : parent.equals(p.parent)) {
+                ObjectNode node = factory.objectNode();
+                node.put("phase", p.name);
+                node.put("count", p.count);
+                node.put("totalNs", p.totalNanos);
+                ArrayNode nested = toJson(factory, p.name, phases);
+                if (nested.size() > 0) {
+                    node.set("phases", nested);
+                }
+                arr.add(node);
+            }
         }
+        return arr;
     }
 
     public String toString() {
@@ -104,13 +104,52 @@ public class MemoryMonitor<T> {
      * @return
      */
     public synchronized T apply(final T value) {
+        add(value);
+        return value;
+    }
+
+    /**
+     * Same as {@link #apply(Object)}, but returns true if the value is
+     * counted by this call, and false if it was counted before.
+     *
+     * @param value
+     * @return
+     */
+    public synchronized boolean add(final T value) {
         if (counted.add(value)) {
             dataSizeB += sizeCalculator.size(value);
 
             checkThresholdMonitors(value);
+            return true;
         }
+        return false;
+    }
 
-        return value;
+    /**
+     * Adds the given size to the total. Use this for memory that is not a
+     * value, such as the collections holding values, which the caller
+     * releases with {@link #releaseSize(int)}.
+     *
+     * @param sizeB
+     */
+    public synchronized void addSize(int sizeB) {
+        dataSizeB += sizeB;
+        checkThresholdMonitors(null);
+    }
+
+    /**
+     * Removes the given size added by {@link #addSize(int)} from the total.
+     * Monitors are re-armed as in {@link #release(Object)}.
+     *
+     * @param sizeB
+     */
+    public synchronized void releaseSize(int sizeB) {
+        dataSizeB -= sizeB;
+        for (ThresholdMonitor<T> m : monitors) {
+            if (dataSizeB <= m.thresholdB) {
+                m.fired = false;
+            }
+        }
     }
 
     public synchronized T deduct(T value) {
@@ -119,6 +158,50 @@ public class MemoryMonitor<T> {
         return value;
     }
 
+    /**
+     * Removes this value's size from the total if it was counted before.
+     * Monitors whose threshold is no longer exceeded are re-armed, so they
+     * fire again the next time the threshold is exceeded. Use this when
+     * values are released while monitoring continues, e.g. when results are
+     * streamed to the client.
+     *
+     * @param value
+     * @return
+     */
+    public synchronized T release(T value) {
+        if (counted.remove(value)) {
+            dataSizeB -= sizeCalculator.size(value);
+            for (ThresholdMonitor<T> m : monitors) {
+                if (dataSizeB <= m.thresholdB) {
+                    m.fired = false;
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Removes the given size from the total if this value was counted
+     * before. Use this when the value changed since it was counted, and the
+     * caller recorded its size when it was counted. Monitors are re-armed as
+     * in {@link #release(Object)}.
+     *
+     * @param value
+     * @param sizeB The size of the value when it was counted
+     * @return
+     */
+    public synchronized T release(T value, int sizeB) {
+        if (counted.remove(value)) {
+            dataSizeB -= sizeB;
+            for (ThresholdMonitor<T> m : monitors) {
+                if (dataSizeB <= m.thresholdB) {
+                    m.fired = false;
+                }
+            }
+        }
+        return value;
+    }
+
     public int getDataSizeB() {
         return dataSizeB;
     }
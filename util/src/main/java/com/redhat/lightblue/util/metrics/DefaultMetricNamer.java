@@ -4,6 +4,7 @@ import static com.codahale.metrics.MetricRegistry.name;
 
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.DefaultObjectNameFactory;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
@@ -66,6 +67,19 @@ public class DefaultMetricNamer implements DropwizardRequestMetrics.MetricNamer,
                     properties.put("savedSearch", metricTokens.nextToken());
                     properties.put("version", metricTokens.nextToken());
                     break;
+                case "phase":
+                    properties = new Hashtable<>(6);
+                    properties.put("operation", metricTokens.nextToken());
+                    properties.put("entity", metricTokens.nextToken());
+                    properties.put("version", metricTokens.nextToken());
+                    properties.put("phase", metricTokens.nextToken());
+                    break;
+                case "find-cache":
+                    properties = new Hashtable<>(5);
+                    properties.put("entity", metricTokens.nextToken());
+                    properties.put("version", metricTokens.nextToken());
+                    properties.put("event", metricTokens.nextToken());
+                    break;
                 case "generate":
                     properties = new Hashtable<>(5);
                     properties.put("entity", metricTokens.nextToken());
@@ -149,6 +163,38 @@ public class DefaultMetricNamer implements DropwizardRequestMetrics.MetricNamer,
         return new ParseableMetric(PREFIX_TOKEN, "bulk");
     }
 
+    // metrics:type=timers,operation=bulk-queue
+    // metrics:type=histograms,operation=bulk-queue
+    // app.api.bulk-queue
+    @Override
+    public RequestMetric bulkQueue() {
+        return new ParseableMetric(PREFIX_TOKEN, "bulk-queue");
+    }
+
+    // metrics:type=histograms,operation=composite-executor
+    // metrics:type=meters,operation=composite-executor,error=callerRuns
+    // app.api.composite-executor
+    @Override
+    public RequestMetric compositeExecutor() {
+        return new ParseableMetric(PREFIX_TOKEN, "composite-executor");
+    }
+
+    // metrics:type=timers,operation=find,entity=foo,version=default,phase=finder_find
+    // app.api.phase.${operation}.${entity}.${version}.${phase}
+    @Override
+    public RequestMetric phase(String operation, String entity, String version, String phase) {
+        return new ParseableMetric(PREFIX_TOKEN, "phase", escape(operation), escape(entity),
+                escapeVersion(version), escape(phase));
+    }
+
+    // metrics:type=meters,entity=foo,version=default,event=hit
+    // app.api.find-cache.${entity}.${version}.${event}
+    @Override
+    public RequestMetric findCache(String entity, String version, String event) {
+        return new ParseableMetric(PREFIX_TOKEN, "find-cache", escape(entity), escapeVersion(version),
+                escape(event));
+    }
+
     @Override
     public RequestMetric generate(String entity, String version, String field) {
         return new ParseableMetric(PREFIX_TOKEN, "generate", escape(entity), escapeVersion(version),
@@ -182,6 +228,16 @@ public class DefaultMetricNamer implements DropwizardRequestMetrics.MetricNamer,
             return registry.meter(name(base, ERROR_TOKEN, escapeErrorTypeOrCode(errorTypeOrCode)));
         }
 
+        @Override
+        public final Histogram sizeHistogram(MetricRegistry registry) {
+            return registry.histogram(name(base, "size"));
+        }
+
+        @Override
+        public final Meter meter(MetricRegistry registry) {
+            return registry.meter(base);
+        }
+
         private static String escapeErrorTypeOrCode(String errorTypeOrCode) {
             return escape(errorTypeOrCode);
         }
@@ -23,6 +23,7 @@ import com.codahale.metrics.JmxReporter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.util.Measure;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,6 +51,10 @@ public class DropwizardRequestMetrics implements RequestMetrics {
         RequestMetric health();
         RequestMetric bulk();
         RequestMetric generate(String entity, String version, String field);
+        RequestMetric bulkQueue();
+        RequestMetric compositeExecutor();
+        RequestMetric phase(String operation, String entity, String version, String phase);
+        RequestMetric findCache(String entity, String version, String event);
     }
 
     public static DropwizardRequestMetrics withDefaultMBeans(MetricRegistry registry) {
@@ -115,6 +120,36 @@ public class DropwizardRequestMetrics implements RequestMetrics {
         return new DropwizardContext(metricNamer.generate(entity, version, field));
     }
 
+    @Override
+    public void markBulkEntryQueued(int queueDepth, long waitTimeNanos) {
+        RequestMetric metric = metricNamer.bulkQueue();
+        metric.requestTimer(metricRegistry).update(waitTimeNanos, TimeUnit.NANOSECONDS);
+        metric.sizeHistogram(metricRegistry).update(queueDepth);
+    }
+
+    @Override
+    public void markCompositeTaskSubmitted(int activeThreads, boolean callerRuns) {
+        RequestMetric metric = metricNamer.compositeExecutor();
+        metric.sizeHistogram(metricRegistry).update(activeThreads);
+        if (callerRuns) {
+            metric.errorMeter(metricRegistry, "callerRuns").mark();
+        }
+    }
+
+    @Override
+    public void markPhases(String operation, String entity, String version, Measure measure) {
+        for (Measure.Phase phase : measure.getPhases()) {
+            metricNamer.phase(operation, entity, version, phase.getName())
+                    .requestTimer(metricRegistry)
+                    .update(phase.getTotalNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void markFindCache(String entity, String version, String event) {
+        metricNamer.findCache(entity, version, event).meter(metricRegistry).mark();
+    }
+
     private class DropwizardContext implements Context {
         private final RequestMetric metric;
         private final Timer.Context context;
@@ -1,6 +1,7 @@
 package com.redhat.lightblue.util.metrics;
 
 import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.util.Measure;
 
 import java.util.List;
 
@@ -48,6 +49,24 @@ public class NoopRequestMetrics implements RequestMetrics {
         return NOOP_CONTEXT;
     }
 
+    @Override
+    public void markPhases(String operation, String entity, String version, Measure measure) {
+    }
+
+    @Override
+    public void markFindCache(String entity, String version, String event) {
+    }
+
+    @Override
+    public void markBulkEntryQueued(int queueDepth, long waitTimeNanos) {
+
+    }
+
+    @Override
+    public void markCompositeTaskSubmitted(int activeThreads, boolean callerRuns) {
+
+    }
+
     private static class NoopContext implements Context {
         @Override
         public void endRequestMonitoring() {
@@ -1,6 +1,7 @@
 package com.redhat.lightblue.util.metrics;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
@@ -11,4 +12,8 @@ public interface RequestMetric {
     Counter activeRequestCounter(MetricRegistry registry);
 
     Meter errorMeter(MetricRegistry registry, String errorTypeOrCode);
+
+    Histogram sizeHistogram(MetricRegistry registry);
+
+    Meter meter(MetricRegistry registry);
 }
@@ -19,6 +19,7 @@
 package com.redhat.lightblue.util.metrics;
 
 import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.util.Measure;
 
 import java.util.List;
 
@@ -32,6 +33,22 @@ import java.util.List;
  */
 public interface RequestMetrics {
 
+    /**
+     * A find response was returned from the find result cache
+     */
+    String FIND_CACHE_HIT = "hit";
+
+    /**
+     * A find response was not in the find result cache
+     */
+    String FIND_CACHE_MISS = "miss";
+
+    /**
+     * A find response was removed from the find result cache because it
+     * expired, the cache was full, or the entity was written
+     */
+    String FIND_CACHE_EVICTION = "eviction";
+
     /** 
      * Starts monitoring for a simple request. This will handle all LB  
      * CRUD operations. 
@@ -77,6 +94,54 @@ public interface RequestMetrics {
 
     Context startGenerateRequest(String entity, String version, String field);
 
+    // The methods below record events of the mediator. They do nothing by
+    // default, so existing implementations don't have to implement them.
+
+    /**
+     * Records that an entry of a bulk request started executing on the shared
+     * bulk executor, after waiting in its queue.
+     *
+     * @param queueDepth Number of entries waiting in the queue when this entry
+     * was submitted, including itself
+     * @param waitTimeNanos Time the entry waited before it started executing
+     */
+    default void markBulkEntryQueued(int queueDepth, long waitTimeNanos) {
+    }
+
+    /**
+     * Records that a task was submitted to the shared composite find
+     * executor.
+     *
+     * @param activeThreads Number of executor threads running tasks when
+     * this task was submitted
+     * @param callerRuns true if the executor or the request was saturated,
+     * and the task ran in the submitting thread
+     */
+    default void markCompositeTaskSubmitted(int activeThreads, boolean callerRuns) {
+    }
+
+    /**
+     * Records the time spent in each phase of a completed CRUD request.
+     *
+     * @param operation The CRUD operation
+     * @param entity Entity name
+     * @param version Entity version
+     * @param measure Phase timings of the request
+     */
+    default void markPhases(String operation, String entity, String version, Measure measure) {
+    }
+
+    /**
+     * Records an event of the find result cache.
+     *
+     * @param entity Entity name
+     * @param version Entity version
+     * @param event One of {@link #FIND_CACHE_HIT}, {@link #FIND_CACHE_MISS},
+     * or {@link #FIND_CACHE_EVICTION}
+     */
+    default void markFindCache(String entity, String version, String event) {
+    }
+
     /**
      * Context information for a request. Context is created when monitoring starts for any request 
      * and is further monitoring actions on that request are tracked using this context.
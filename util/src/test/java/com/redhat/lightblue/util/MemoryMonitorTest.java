@@ -62,6 +62,33 @@ public class MemoryMonitorTest {
         Assert.assertTrue(fired[0]==1 && fired[1]==1);
     }
 
+    @Test
+    public void testReleaseRearmsThresholds() {
+        String el1 = "foobar";
+        String el2 = "foo";
+
+        MemoryMonitor<String> m = new MemoryMonitor<>( (el) ->  el.length());
+
+        int fired[] = new int[1];
+        m.registerMonitor(new ThresholdMonitor<String>(el1.length()-1, (size, threshold, str) ->{
+            fired[0] += 1;
+        }));
+
+        m.apply(el1);
+        Assert.assertEquals(1, fired[0]);
+        m.release(el1);
+        Assert.assertEquals(0, m.getDataSizeB());
+
+        // Not counted, nothing to release
+        m.release(el2);
+        Assert.assertEquals(0, m.getDataSizeB());
+
+        m.apply(el2);
+        Assert.assertEquals(1, fired[0]);
+        m.apply(el1);
+        Assert.assertEquals(2, fired[0]);
+    }
+
     @Test
     public void testSizeDoesNotGrowIfSameReferenceCounted() {
         String el1 = "foobar";
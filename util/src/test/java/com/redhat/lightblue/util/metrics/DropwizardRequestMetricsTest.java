@@ -23,6 +23,7 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.util.Measure;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -135,5 +136,27 @@ public class DropwizardRequestMetricsTest {
         Assert.assertEquals(1, restExceptionMeter.getCount());
         Assert.assertEquals(1, mongoExceptionMeter.getCount());
     }    
-}
 
+    @Test
+    public void testMarkPhases() {
+        Measure measure = new Measure();
+        measure.begin("find");
+        measure.begin("finder.find");
+        measure.end("finder.find");
+        measure.end("find");
+        requestMetrics.markPhases("find", "name", "1.0.0", measure);
+
+        Assert.assertEquals(1, metricsRegistry.timer("request.phase.find.name.1_0_0.find").getCount());
+        Assert.assertEquals(1, metricsRegistry.timer("request.phase.find.name.1_0_0.finder_find").getCount());
+    }
+
+    @Test
+    public void testMarkFindCache() {
+        requestMetrics.markFindCache("name", "1.0.0", RequestMetrics.FIND_CACHE_HIT);
+        requestMetrics.markFindCache("name", "1.0.0", RequestMetrics.FIND_CACHE_HIT);
+        requestMetrics.markFindCache("name", "1.0.0", RequestMetrics.FIND_CACHE_MISS);
+
+        Assert.assertEquals(2, metricsRegistry.meter("request.find-cache.name.1_0_0.hit").getCount());
+        Assert.assertEquals(1, metricsRegistry.meter("request.find-cache.name.1_0_0.miss").getCount());
+    }
+}